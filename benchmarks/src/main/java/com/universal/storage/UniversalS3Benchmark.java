@@ -0,0 +1,270 @@
+package com.universal.storage;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import com.universal.storage.settings.UniversalSettings;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class benchmarks the transfers of the storage against an in-process fake S3 endpoint.
+ *
+ * The files lesser than or equal to the part size are stored using a single PUT, the greater ones using a 
+ * multipart upload, so the parameters fileSize and partSize select the path being measured.  The counter 
+ * "bytes" reports the throughput in bytes, the allocation rate is reported by the gc profiler (-prof gc).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UniversalS3Benchmark {
+    private static final String BUCKET = "bucket";
+
+    /**
+     * This class holds the fake endpoint and the storage shared by every benchmark thread.
+     */
+    @State(Scope.Benchmark)
+    public static class Environment {
+        @Param({"1048576", "16777216", "67108864"})
+        public int fileSize;
+
+        @Param({"5242880", "16777216"})
+        public long partSize;
+
+        @Param({"1", "4", "16"})
+        public int concurrency;
+
+        @Param({"0"})
+        public long latency;
+
+        @Param({"0"})
+        public long bandwidth;
+
+        UniversalS3FakeServer server;
+        UniversalS3Storage storage;
+        File tmp;
+        byte[] content;
+        final AtomicInteger threads = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            this.server = new UniversalS3FakeServer(this.latency, this.bandwidth);
+            this.server.start();
+
+            this.tmp = File.createTempFile("universal-s3-benchmark", "");
+            this.tmp.delete();
+            this.tmp.mkdirs();
+
+            this.content = new byte[this.fileSize];
+            new Random(42).nextBytes(this.content);
+
+            Map<String, String> values = new HashMap<String, String>();
+            values.put("part_size", String.valueOf(this.partSize));
+            values.put("upload_concurrency", String.valueOf(this.concurrency));
+            values.put("download_concurrency", String.valueOf(this.concurrency));
+            values.put("download_segment_size", String.valueOf(this.partSize));
+            values.put("delete_concurrency", String.valueOf(this.concurrency));
+
+            this.storage = newStorage(this.server, this.tmp, values);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            this.storage.close();
+            this.server.stop();
+            FileUtils.deleteDirectory(this.tmp);
+        }
+    }
+
+    /**
+     * This class holds the file and the object of every benchmark thread, so the threads don't share keys.
+     */
+    @State(Scope.Thread)
+    public static class ThreadData {
+        File file;
+        String key;
+        String path;
+
+        @Setup(Level.Trial)
+        public void setUp(Environment environment) throws Exception {
+            int index = environment.threads.incrementAndGet();
+            this.path = "thread-" + index;
+            this.file = new File(environment.tmp, "upload-" + index + "/file-" + index + ".bin");
+            this.key = this.path + "/" + this.file.getName();
+
+            FileUtils.writeByteArrayToFile(this.file, environment.content);
+            environment.server.put(BUCKET, this.key, environment.content);
+        }
+    }
+
+    /**
+     * This class reports the transferred bytes as a secondary result.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Transferred {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.bytes = 0;
+        }
+    }
+
+    @Benchmark
+    public void storeFile(Environment environment, ThreadData data, Transferred transferred) throws Exception {
+        environment.storage.storeFile(data.file, data.path);
+        transferred.bytes += environment.fileSize;
+    }
+
+    @Benchmark
+    public File retrieveFile(Environment environment, ThreadData data, Transferred transferred) throws Exception {
+        File file = environment.storage.retrieveFile(data.key);
+        transferred.bytes += environment.fileSize;
+        return file;
+    }
+
+    @Benchmark
+    public void retrieveFileAsStream(Environment environment, ThreadData data, Transferred transferred, 
+                Blackhole blackhole) throws Exception {
+        InputStream stream = environment.storage.retrieveFileAsStream(data.key);
+        try {
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                blackhole.consume(read);
+            }
+        } finally {
+            stream.close();
+        }
+
+        transferred.bytes += environment.fileSize;
+    }
+
+    /**
+     * This class benchmarks wipe, the root is filled again before every invocation.
+     */
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    @Fork(1)
+    @State(Scope.Benchmark)
+    public static class Wipe {
+        @Param({"1000", "10000"})
+        public int objects;
+
+        @Param({"1", "4", "16"})
+        public int concurrency;
+
+        @Param({"0"})
+        public long latency;
+
+        UniversalS3FakeServer server;
+        UniversalS3Storage storage;
+        File tmp;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            this.server = new UniversalS3FakeServer(this.latency, 0);
+            this.server.start();
+
+            this.tmp = File.createTempFile("universal-s3-benchmark", "");
+            this.tmp.delete();
+            this.tmp.mkdirs();
+
+            Map<String, String> values = new HashMap<String, String>();
+            values.put("delete_concurrency", String.valueOf(this.concurrency));
+            this.storage = newStorage(this.server, this.tmp, values);
+        }
+
+        @Setup(Level.Invocation)
+        public void fill() {
+            byte[] content = new byte[16];
+            for (int i = 0; i < this.objects; i++) {
+                this.server.put(BUCKET, "folder-" + (i % 10) + "/object-" + i, content);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            this.storage.close();
+            this.server.stop();
+            FileUtils.deleteDirectory(this.tmp);
+        }
+
+        @Benchmark
+        public int wipe() throws Exception {
+            this.storage.wipe();
+            return this.server.size();
+        }
+    }
+
+    /**
+     * Returns a new storage whose client points to the fake endpoint.
+     */
+    static UniversalS3Storage newStorage(UniversalS3FakeServer server, File tmp, Map<String, String> values) throws Exception {
+        File file = new File(tmp, "settings.json");
+        FileUtils.writeStringToFile(file, "{\"provider\": \"aws.s3\", \"root\": \"" + BUCKET + "\", \"tmp\": \"" +
+                    tmp.getAbsolutePath().replace("\\", "/") + "\", \"aws_s3\": {\"access_key\": \"fake\", " + 
+                    "\"secret_key\": \"fake\", \"storage_class\": \"STANDARD\", \"s3_region\": \"us-east-1\", " +
+                    "\"encryption\": false, \"tags\": []}}", "UTF-8");
+
+        AmazonS3 s3client = AmazonS3ClientBuilder.standard()
+            .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(server.getEndpoint(), "us-east-1"))
+            .withPathStyleAccessEnabled(true)
+            .withClientConfiguration(new ClientConfiguration().withMaxConnections(256))
+            .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("fake", "fake")))
+            .build();
+
+        return new UniversalS3Storage(new UniversalSettings(file), new UniversalS3Settings(null, values), s3client);
+    }
+}
@@ -0,0 +1,636 @@
+package com.universal.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class is an in-process S3-compatible HTTP endpoint for benchmarks.  The objects live in memory and 
+ * every request can be slowed down with a fixed latency and a bandwidth limit, so the numbers reflect the 
+ * work of this library rather than the network.
+ *
+ * Only the subset of the S3 REST API used by this library is supported, using path-style requests: object 
+ * PUT, GET (ranges and ETag conditions), HEAD, DELETE and copy, multipart uploads, listings of objects and 
+ * versions, multi-object deletes and tagging.  The signatures are not verified.
+ */
+public class UniversalS3FakeServer {
+    private static final int BUFFER_SIZE = 65536;
+    private static final String STREAMING_PAYLOAD = "STREAMING-AWS4-HMAC-SHA256-PAYLOAD";
+    private static final Pattern PART = Pattern.compile("<PartNumber>(\\d+)</PartNumber>");
+    private static final Pattern KEY = Pattern.compile("<Key>(.*?)</Key>");
+    private static final Pattern QUIET = Pattern.compile("<Quiet>true</Quiet>");
+
+    private final ConcurrentNavigableMap<String, StoredObject> objects = new ConcurrentSkipListMap<String, StoredObject>();
+    private final Map<String, SortedMap<Integer, byte[]>> uploads = new ConcurrentHashMap<String, SortedMap<Integer, byte[]>>();
+    private final AtomicInteger uploadIds = new AtomicInteger();
+    private final long latency;
+    private final long bandwidth;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * This constructor creates a new server, the server listens after calling the method start.
+     *
+     * @param latency in milliseconds added to every request.
+     * @param bandwidth in bytes per second of every request body and response body, 0 means unlimited.
+     */
+    public UniversalS3FakeServer(long latency, long bandwidth) {
+        this.latency = latency;
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * This method starts listening on a free port of the loopback interface.
+     */
+    public void start() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        this.executor = Executors.newCachedThreadPool(new UniversalS3ThreadFactory("universal-s3-fake-server"));
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    UniversalS3FakeServer.this.handle(exchange);
+                } catch (Exception e) {
+                    sendError(exchange, 500, "InternalError", String.valueOf(e.getMessage()));
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        this.server.start();
+    }
+
+    /**
+     * This method stops the server.
+     */
+    public void stop() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Returns the endpoint of this server, i.e: http://127.0.0.1:53412
+     */
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + this.server.getAddress().getPort();
+    }
+
+    /**
+     * Stores an object within this server.
+     */
+    public void put(String bucketName, String key, byte[] content) {
+        this.objects.put(bucketName + "/" + key, new StoredObject(content, eTag(content)));
+    }
+
+    /**
+     * Returns the number of objects within this server.
+     */
+    public int size() {
+        return this.objects.size();
+    }
+
+    /**
+     * Dispatches a request according to its method and sub-resource.
+     */
+    private void handle(HttpExchange exchange) throws Exception {
+        if (this.latency > 0) {
+            Thread.sleep(this.latency);
+        }
+
+        String path = exchange.getRequestURI().getPath().substring(1);
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        String method = exchange.getRequestMethod();
+        int slash = path.indexOf('/');
+        String bucketName = slash == -1 ? path : path.substring(0, slash);
+        String key = slash == -1 ? "" : path.substring(slash + 1);
+
+        if ("".equals(key)) {
+            if ("GET".equals(method) && query.containsKey("versions")) {
+                listVersions(exchange, bucketName, query);
+            } else if ("GET".equals(method)) {
+                listObjects(exchange, bucketName, query);
+            } else if ("POST".equals(method) && query.containsKey("delete")) {
+                deleteObjects(exchange, bucketName);
+            } else {
+                sendError(exchange, 501, "NotImplemented", method + " " + path);
+            }
+        } else if ("PUT".equals(method) && query.containsKey("tagging")) {
+            readBody(exchange);
+            send(exchange, 200, null, new byte[0]);
+        } else if ("PUT".equals(method) && query.containsKey("uploadId")) {
+            uploadPart(exchange, query);
+        } else if ("PUT".equals(method) && exchange.getRequestHeaders().getFirst("x-amz-copy-source") != null) {
+            copyObject(exchange, bucketName, key);
+        } else if ("PUT".equals(method)) {
+            byte[] content = readBody(exchange);
+            StoredObject object = new StoredObject(content, eTag(content));
+            this.objects.put(bucketName + "/" + key, object);
+            exchange.getResponseHeaders().set("ETag", object.eTag);
+            send(exchange, 200, null, new byte[0]);
+        } else if ("POST".equals(method) && query.containsKey("uploads")) {
+            String uploadId = "upload-" + this.uploadIds.incrementAndGet();
+            this.uploads.put(uploadId, new TreeMap<Integer, byte[]>());
+            send(exchange, 200, "application/xml", xml("<InitiateMultipartUploadResult><Bucket>" + escape(bucketName) + 
+                        "</Bucket><Key>" + escape(key) + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>"));
+        } else if ("POST".equals(method) && query.containsKey("uploadId")) {
+            completeMultipartUpload(exchange, bucketName, key, query.get("uploadId"));
+        } else if ("DELETE".equals(method) && query.containsKey("uploadId")) {
+            this.uploads.remove(query.get("uploadId"));
+            send(exchange, 204, null, null);
+        } else if ("DELETE".equals(method)) {
+            this.objects.remove(bucketName + "/" + key);
+            send(exchange, 204, null, null);
+        } else if ("GET".equals(method) || "HEAD".equals(method)) {
+            getObject(exchange, bucketName, key, "HEAD".equals(method));
+        } else {
+            sendError(exchange, 501, "NotImplemented", method + " " + path);
+        }
+    }
+
+    /**
+     * Sends an object or a range of it, the ETag conditions are honored.
+     */
+    private void getObject(HttpExchange exchange, String bucketName, String key, boolean head) throws Exception {
+        StoredObject object = this.objects.get(bucketName + "/" + key);
+        if (object == null) {
+            sendError(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+            return;
+        }
+
+        String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        if (ifMatch != null && !ifMatch.contains(object.eTag)) {
+            sendError(exchange, 412, "PreconditionFailed", "At least one of the preconditions you specified did not hold.");
+            return;
+        }
+
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null && ifNoneMatch.contains(object.eTag)) {
+            exchange.getResponseHeaders().set("ETag", object.eTag);
+            send(exchange, 304, null, null);
+            return;
+        }
+
+        int from = 0;
+        int to = object.content.length - 1;
+        int status = 200;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=")) {
+            if (object.content.length == 0) {
+                sendError(exchange, 416, "InvalidRange", "The requested range is not satisfiable");
+                return;
+            }
+
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            from = Integer.parseInt(bounds[0]);
+            to = bounds.length > 1 && !"".equals(bounds[1]) ? Math.min(to, Integer.parseInt(bounds[1])) : to;
+            status = 206;
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + object.content.length);
+        }
+
+        exchange.getResponseHeaders().set("ETag", object.eTag);
+        exchange.getResponseHeaders().set("Last-Modified", httpDate(object.lastModified));
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+
+        if (head) {
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(object.content.length));
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+
+        exchange.sendResponseHeaders(status, to - from + 1);
+        OutputStream out = exchange.getResponseBody();
+        long start = System.nanoTime();
+        for (int position = from; position <= to; position += BUFFER_SIZE) {
+            int length = Math.min(BUFFER_SIZE, to - position + 1);
+            out.write(object.content, position, length);
+            throttle(start, position - from + length);
+        }
+
+        out.close();
+    }
+
+    /**
+     * Stores a part of a multipart upload.
+     */
+    private void uploadPart(HttpExchange exchange, Map<String, String> query) throws Exception {
+        byte[] content = readBody(exchange);
+        SortedMap<Integer, byte[]> parts = this.uploads.get(query.get("uploadId"));
+        if (parts == null) {
+            sendError(exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+            return;
+        }
+
+        synchronized (parts) {
+            parts.put(Integer.parseInt(query.get("partNumber")), content);
+        }
+
+        exchange.getResponseHeaders().set("ETag", eTag(content));
+        send(exchange, 200, null, new byte[0]);
+    }
+
+    /**
+     * Assembles the parts of a multipart upload in the order of the request.
+     */
+    private void completeMultipartUpload(HttpExchange exchange, String bucketName, String key, String uploadId) throws Exception {
+        String body = new String(readBody(exchange), "UTF-8");
+        SortedMap<Integer, byte[]> parts = this.uploads.remove(uploadId);
+        if (parts == null) {
+            sendError(exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+            return;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MessageDigest digests = MessageDigest.getInstance("MD5");
+        int count = 0;
+        Matcher matcher = PART.matcher(body);
+        while (matcher.find()) {
+            byte[] part = parts.get(Integer.parseInt(matcher.group(1)));
+            if (part == null) {
+                sendError(exchange, 400, "InvalidPart", "One or more of the specified parts could not be found.");
+                return;
+            }
+
+            out.write(part);
+            digests.update(MessageDigest.getInstance("MD5").digest(part));
+            count++;
+        }
+
+        StoredObject object = new StoredObject(out.toByteArray(), "\"" + toHex(digests.digest()) + "-" + count + "\"");
+        this.objects.put(bucketName + "/" + key, object);
+        send(exchange, 200, "application/xml", xml("<CompleteMultipartUploadResult><Bucket>" + escape(bucketName) + 
+                    "</Bucket><Key>" + escape(key) + "</Key><ETag>" + escape(object.eTag) + "</ETag></CompleteMultipartUploadResult>"));
+    }
+
+    /**
+     * Copies an object, the copy gets the MD5 of its content as ETag.
+     */
+    private void copyObject(HttpExchange exchange, String bucketName, String key) throws Exception {
+        readBody(exchange);
+        String source = URLDecoder.decode(exchange.getRequestHeaders().getFirst("x-amz-copy-source"), "UTF-8");
+        StoredObject object = this.objects.get(source.startsWith("/") ? source.substring(1) : source);
+        if (object == null) {
+            sendError(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+            return;
+        }
+
+        StoredObject copy = new StoredObject(object.content, eTag(object.content));
+        this.objects.put(bucketName + "/" + key, copy);
+        send(exchange, 200, "application/xml", xml("<CopyObjectResult><LastModified>" + isoDate(copy.lastModified) + 
+                    "</LastModified><ETag>" + escape(copy.eTag) + "</ETag></CopyObjectResult>"));
+    }
+
+    /**
+     * Lists the objects of a bucket, the delimiter groups the keys into common prefixes.
+     */
+    private void listObjects(HttpExchange exchange, String bucketName, Map<String, String> query) throws Exception {
+        String prefix = query.containsKey("prefix") ? query.get("prefix") : "";
+        String delimiter = query.get("delimiter");
+        boolean encode = "url".equals(query.get("encoding-type"));
+        int maxKeys = query.containsKey("max-keys") ? Integer.parseInt(query.get("max-keys")) : 1000;
+
+        StringBuilder contents = new StringBuilder();
+        List<String> commonPrefixes = new ArrayList<String>();
+        String lastKey = null;
+        int count = 0;
+        boolean truncated = false;
+        for (Map.Entry<String, StoredObject> entry : tail(bucketName, prefix, query.get("marker")).entrySet()) {
+            String key = entry.getKey().substring(bucketName.length() + 1);
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+
+            if (count == maxKeys) {
+                truncated = true;
+                break;
+            }
+
+            int index = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+            if (index != -1) {
+                String commonPrefix = key.substring(0, index + delimiter.length());
+                if (!commonPrefixes.contains(commonPrefix)) {
+                    commonPrefixes.add(commonPrefix);
+                    count++;
+                }
+            } else {
+                StoredObject object = entry.getValue();
+                contents.append("<Contents><Key>").append(encodeKey(key, encode)).append("</Key><LastModified>")
+                    .append(isoDate(object.lastModified)).append("</LastModified><ETag>").append(escape(object.eTag))
+                    .append("</ETag><Size>").append(object.content.length).append("</Size><StorageClass>STANDARD</StorageClass></Contents>");
+                count++;
+            }
+
+            lastKey = key;
+        }
+
+        StringBuilder result = new StringBuilder("<ListBucketResult><Name>").append(escape(bucketName)).append("</Name><Prefix>")
+            .append(encodeKey(prefix, encode)).append("</Prefix><MaxKeys>").append(maxKeys).append("</MaxKeys><IsTruncated>")
+            .append(truncated).append("</IsTruncated>");
+        if (truncated && lastKey != null) {
+            result.append("<NextMarker>").append(encodeKey(lastKey, encode)).append("</NextMarker>");
+        }
+
+        if (encode) {
+            result.append("<EncodingType>url</EncodingType>");
+        }
+
+        result.append(contents);
+        for (String commonPrefix : commonPrefixes) {
+            result.append("<CommonPrefixes><Prefix>").append(encodeKey(commonPrefix, encode)).append("</Prefix></CommonPrefixes>");
+        }
+
+        send(exchange, 200, "application/xml", xml(result.append("</ListBucketResult>").toString()));
+    }
+
+    /**
+     * Lists the versions of a bucket, every object has a single version.
+     */
+    private void listVersions(HttpExchange exchange, String bucketName, Map<String, String> query) throws Exception {
+        String prefix = query.containsKey("prefix") ? query.get("prefix") : "";
+        boolean encode = "url".equals(query.get("encoding-type"));
+        int maxKeys = query.containsKey("max-keys") ? Integer.parseInt(query.get("max-keys")) : 1000;
+
+        StringBuilder versions = new StringBuilder();
+        String lastKey = null;
+        int count = 0;
+        boolean truncated = false;
+        for (Map.Entry<String, StoredObject> entry : tail(bucketName, prefix, query.get("key-marker")).entrySet()) {
+            String key = entry.getKey().substring(bucketName.length() + 1);
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+
+            if (count == maxKeys) {
+                truncated = true;
+                break;
+            }
+
+            StoredObject object = entry.getValue();
+            versions.append("<Version><Key>").append(encodeKey(key, encode)).append("</Key><VersionId>null</VersionId>")
+                .append("<IsLatest>true</IsLatest><LastModified>").append(isoDate(object.lastModified)).append("</LastModified><ETag>")
+                .append(escape(object.eTag)).append("</ETag><Size>").append(object.content.length)
+                .append("</Size><StorageClass>STANDARD</StorageClass></Version>");
+            lastKey = key;
+            count++;
+        }
+
+        StringBuilder result = new StringBuilder("<ListVersionsResult><Name>").append(escape(bucketName)).append("</Name><Prefix>")
+            .append(encodeKey(prefix, encode)).append("</Prefix><MaxKeys>").append(maxKeys).append("</MaxKeys><IsTruncated>")
+            .append(truncated).append("</IsTruncated>");
+        if (truncated) {
+            result.append("<NextKeyMarker>").append(encodeKey(lastKey, encode)).append("</NextKeyMarker><NextVersionIdMarker>null</NextVersionIdMarker>");
+        }
+
+        if (encode) {
+            result.append("<EncodingType>url</EncodingType>");
+        }
+
+        send(exchange, 200, "application/xml", xml(result.append(versions).append("</ListVersionsResult>").toString()));
+    }
+
+    /**
+     * Deletes the keys of a multi-object delete request.
+     */
+    private void deleteObjects(HttpExchange exchange, String bucketName) throws Exception {
+        String body = new String(readBody(exchange), "UTF-8");
+        boolean quiet = QUIET.matcher(body).find();
+
+        StringBuilder result = new StringBuilder("<DeleteResult>");
+        Matcher matcher = KEY.matcher(body);
+        while (matcher.find()) {
+            String key = unescape(matcher.group(1));
+            this.objects.remove(bucketName + "/" + key);
+            if (!quiet) {
+                result.append("<Deleted><Key>").append(escape(key)).append("</Key></Deleted>");
+            }
+        }
+
+        send(exchange, 200, "application/xml", xml(result.append("</DeleteResult>").toString()));
+    }
+
+    /**
+     * Returns the objects of a bucket starting from the prefix or after the marker.
+     */
+    private SortedMap<String, StoredObject> tail(String bucketName, String prefix, String marker) {
+        String from = bucketName + "/" + prefix;
+        if (marker != null && !"".equals(marker) && (bucketName + "/" + marker).compareTo(from) >= 0) {
+            return this.objects.tailMap(bucketName + "/" + marker, false);
+        }
+
+        return this.objects.tailMap(from, true);
+    }
+
+    /**
+     * Reads the body of a request, the aws-chunked payloads sent by the SDK over http are decoded.
+     */
+    private byte[] readBody(HttpExchange exchange) throws Exception {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long start = System.nanoTime();
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            throttle(start, out.size());
+        }
+
+        byte[] body = out.toByteArray();
+        if (STREAMING_PAYLOAD.equals(exchange.getRequestHeaders().getFirst("x-amz-content-sha256"))) {
+            return decodeChunks(body);
+        }
+
+        return body;
+    }
+
+    /**
+     * Decodes an aws-chunked payload, every chunk is "hex-size;chunk-signature=...\r\n" + data + "\r\n".
+     */
+    private static byte[] decodeChunks(byte[] body) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int position = 0;
+        while (position < body.length) {
+            int end = position;
+            while (body[end] != '\r') {
+                end++;
+            }
+
+            String header = new String(body, position, end - position, "US-ASCII");
+            int index = header.indexOf(';');
+            int size = Integer.parseInt(index == -1 ? header : header.substring(0, index), 16);
+            if (size == 0) {
+                break;
+            }
+
+            out.write(body, end + 2, size);
+            position = end + 2 + size + 2;
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Sleeps as needed to keep the transferred bytes within the bandwidth.
+     */
+    private void throttle(long start, long transferred) throws InterruptedException {
+        if (this.bandwidth <= 0) {
+            return;
+        }
+
+        long expected = transferred * 1000000000L / this.bandwidth;
+        long elapsed = System.nanoTime() - start;
+        if (expected > elapsed) {
+            long nanos = expected - elapsed;
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        }
+    }
+
+    private void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        if (contentType != null) {
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+        }
+
+        exchange.getResponseHeaders().set("x-amz-request-id", "fake");
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+    }
+
+    private void sendError(HttpExchange exchange, int status, String code, String message) throws IOException {
+        send(exchange, status, "application/xml", xml("<Error><Code>" + code + "</Code><Message>" + escape(message) + 
+                    "</Message><RequestId>fake</RequestId></Error>"));
+    }
+
+    private static byte[] xml(String content) throws UnsupportedEncodingException {
+        return ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + content).getBytes("UTF-8");
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<String, String>();
+        if (rawQuery == null) {
+            return query;
+        }
+
+        for (String pair : rawQuery.split("&")) {
+            int index = pair.indexOf('=');
+            if (index == -1) {
+                query.put(URLDecoder.decode(pair, "UTF-8"), "");
+            } else {
+                query.put(URLDecoder.decode(pair.substring(0, index), "UTF-8"), URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+            }
+        }
+
+        return query;
+    }
+
+    private static String encodeKey(String key, boolean encode) throws UnsupportedEncodingException {
+        return encode ? URLEncoder.encode(key, "UTF-8").replace("+", "%20") : escape(key);
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static String unescape(String value) {
+        return value.replace("&quot;", "\"").replace("&gt;", ">").replace("&lt;", "<").replace("&amp;", "&");
+    }
+
+    private static String httpDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+
+    private static String isoDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time));
+    }
+
+    private static String eTag(byte[] content) {
+        try {
+            return "\"" + toHex(MessageDigest.getInstance("MD5").digest(content)) + "\"";
+        } catch (Exception e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest) {
+            builder.append(String.format("%02x", b));
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * This class represents an object stored within this server.
+     */
+    private static class StoredObject {
+        private final byte[] content;
+        private final String eTag;
+        private final long lastModified = System.currentTimeMillis();
+
+        StoredObject(byte[] content, String eTag) {
+            this.content = content;
+            this.eTag = eTag;
+        }
+    }
+}
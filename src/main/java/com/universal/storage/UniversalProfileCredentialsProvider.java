@@ -31,7 +31,7 @@ import com.universal.storage.settings.UniversalSettings;
  */
 public class UniversalProfileCredentialsProvider extends ProfileCredentialsProvider {
     private UniversalSettings settings;
-    private static AWSCredentials credentials = null;
+    private AWSCredentials credentials = null;
 
     /**
      * This constructor creates a new instance.
@@ -50,11 +50,11 @@ public class UniversalProfileCredentialsProvider extends ProfileCredentialsProvi
      * 
      * This method is overridden to get the access key from the settings in context.
      * 
-     * Returns a singleton instance.
+     * Returns the same instance for every call, the credentials are never shared with other providers.
      */
-    public AWSCredentials getCredentials() {
-        if (credentials == null) {
-            credentials = new AWSCredentials() {
+    public synchronized AWSCredentials getCredentials() {
+        if (this.credentials == null) {
+            this.credentials = new AWSCredentials() {
                 public String getAWSAccessKeyId() {
                     return UniversalProfileCredentialsProvider.this.settings.getAWSAccessKeyId();
                 }
@@ -65,6 +65,6 @@ public class UniversalProfileCredentialsProvider extends ProfileCredentialsProvi
             };
         }
 
-        return credentials;
+        return this.credentials;
     }
 }
\ No newline at end of file
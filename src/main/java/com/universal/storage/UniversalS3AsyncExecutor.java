@@ -0,0 +1,216 @@
+package com.universal.storage;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class executes the asynchronous operations of the storage.
+ *
+ * The operations run either on a bounded pool of platform threads or, on JDK 21 and later, on virtual
+ * threads.  Every kind of operation has its own limit of operations in flight, the operations above the 
+ * limit wait in a queue without holding a thread, so a burst can't exhaust the connections of the client.
+ */
+class UniversalS3AsyncExecutor {
+    private final ExecutorService executor;
+    private final boolean virtual;
+
+    /**
+     * This constructor creates a new executor according to the settings.
+     *
+     * @param s3Settings with the kind of threads and the size of the pool.
+     */
+    UniversalS3AsyncExecutor(UniversalS3Settings s3Settings) {
+        ExecutorService virtualExecutor = null;
+        if ("virtual".equalsIgnoreCase(s3Settings.getAsyncExecutor())) {
+            virtualExecutor = newVirtualThreadExecutor();
+        }
+
+        this.virtual = virtualExecutor != null;
+        this.executor = this.virtual ? virtualExecutor : Executors.newFixedThreadPool(s3Settings.getAsyncThreads(), 
+                    new UniversalS3ThreadFactory("universal-s3-async"));
+    }
+
+    /**
+     * Returns true if the operations run on virtual threads.
+     */
+    boolean isVirtual() {
+        return this.virtual;
+    }
+
+    /**
+     * This method submits an operation.
+     *
+     * @param limiter of the kind of operation.
+     * @param operation to be executed.
+     * @return a future completed with the result of the operation.
+     */
+    <T> CompletableFuture<T> submit(Limiter limiter, final Callable<T> operation) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        limiter.execute(new Runnable() {
+            public void run() {
+                if (future.isCancelled()) {
+                    return;
+                }
+
+                try {
+                    future.complete(operation.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        }, future);
+
+        return future;
+    }
+
+    /**
+     * Returns a new limiter for a kind of operation.
+     *
+     * @param maxInFlight max number of operations of this kind in flight.
+     */
+    Limiter newLimiter(int maxInFlight) {
+        return new Limiter(maxInFlight);
+    }
+
+    /**
+     * This method stops accepting operations, the operations in flight are completed.
+     */
+    void shutdown() {
+        this.executor.shutdown();
+    }
+
+    /**
+     * This method waits until the operations in flight are completed, see shutdown.  An interrupted wait returns
+     * with the interrupt status set.
+     */
+    void awaitTermination() {
+        UniversalS3Storage.awaitTermination(this.executor);
+    }
+
+    /**
+     * Returns an executor that starts a virtual thread per task, null if the jvm doesn't support virtual threads.
+     * The executor is created through reflection, so this library still runs on older jvms.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * This class limits the operations of a kind in flight, the operations above the limit are queued.
+     */
+    class Limiter {
+        private final int maxInFlight;
+        private final Queue<Task> pending = new ArrayDeque<Task>();
+        private int inFlight;
+
+        Limiter(int maxInFlight) {
+            this.maxInFlight = Math.max(1, maxInFlight);
+        }
+
+        /**
+         * Executes the task if the limit allows it, otherwise the task is queued.
+         *
+         * @param runnable to be executed.
+         * @param future completed exceptionally if the task is rejected.
+         */
+        void execute(Runnable runnable, CompletableFuture<?> future) {
+            Task task = new Task(runnable, future);
+            synchronized (this) {
+                if (this.inFlight >= this.maxInFlight) {
+                    this.pending.add(task);
+                    return;
+                }
+
+                this.inFlight++;
+            }
+
+            dispatch(task);
+        }
+
+        /**
+         * Returns the number of operations in flight.
+         */
+        synchronized int getInFlight() {
+            return this.inFlight;
+        }
+
+        /**
+         * Hands the task to the executor, the next queued task is dispatched when this one finishes.
+         */
+        private void dispatch(final Task task) {
+            try {
+                UniversalS3AsyncExecutor.this.executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            task.runnable.run();
+                        } finally {
+                            next();
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                task.future.completeExceptionally(e);
+                next();
+            }
+        }
+
+        /**
+         * Dispatches the next queued task, if any.
+         */
+        private void next() {
+            Task task;
+            synchronized (this) {
+                task = this.pending.poll();
+                if (task == null) {
+                    this.inFlight--;
+                    return;
+                }
+            }
+
+            dispatch(task);
+        }
+    }
+
+    /**
+     * This class represents a queued operation.
+     */
+    private static class Task {
+        private final Runnable runnable;
+        private final CompletableFuture<?> future;
+
+        Task(Runnable runnable, CompletableFuture<?> future) {
+            this.runnable = runnable;
+            this.future = future;
+        }
+    }
+}
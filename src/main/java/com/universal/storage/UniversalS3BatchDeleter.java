@@ -0,0 +1,308 @@
+package com.universal.storage;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import com.universal.error.UniversalIOException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ListVersionsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import com.amazonaws.services.s3.model.VersionListing;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class deletes the objects or versions under a prefix using a pipeline.
+ *
+ * Every listing page feeds multi-object delete batches of up to 1000 keys, several batches are in flight
+ * at once and the next listing page is fetched while the current page is being deleted.  A failed key or
+ * batch is reported through the error listeners of the storage without stopping the run.
+ */
+class UniversalS3BatchDeleter {
+    static final int MAX_BATCH_SIZE = 1000; // S3 doesn't accept more than 1000 keys per request.
+
+    private AmazonS3 s3client;
+    private UniversalS3Settings s3Settings;
+    private UniversalStorage storage;
+
+    /**
+     * This constructor creates a new deleter.
+     *
+     * @param s3client used to list and delete.
+     * @param s3Settings with the batch size and the number of batches in flight.
+     * @param storage whose error listeners will be notified.
+     */
+    UniversalS3BatchDeleter(AmazonS3 s3client, UniversalS3Settings s3Settings, UniversalStorage storage) {
+        this.s3client = s3client;
+        this.s3Settings = s3Settings;
+        this.storage = storage;
+    }
+
+    /**
+     * This method deletes every version (including delete markers) under the passed prefix.
+     *
+     * @param bucketName in context.
+     * @param prefix in context, null means the whole bucket.
+     * @return the number of keys that couldn't be deleted.
+     * @throws Exception when a listing page fails.
+     */
+    long deleteVersions(String bucketName, String prefix) throws Exception {
+        return run(bucketName, new VersionPage(this.s3client.listVersions(
+                new ListVersionsRequest().withBucketName(bucketName).withPrefix(prefix))));
+    }
+
+    /**
+     * This method deletes the last version of every object under the passed prefix.
+     *
+     * @param bucketName in context.
+     * @param prefix in context, null means the whole bucket.
+     * @return the number of keys that couldn't be deleted.
+     * @throws Exception when a listing page fails.
+     */
+    long deleteObjects(String bucketName, String prefix) throws Exception {
+        return run(bucketName, new ObjectPage(this.s3client.listObjects(
+                new ListObjectsRequest().withBucketName(bucketName).withPrefix(prefix))));
+    }
+
+    /**
+     * This method deletes the passed keys, the keys are consumed while the previous batches are in flight,
+     * i.e: from a UniversalS3Listing.
+     *
+     * @param bucketName in context.
+     * @param keys to be deleted.
+     * @return the number of keys that couldn't be deleted.
+     * @throws Exception when the keys can't be read.
+     */
+    long delete(String bucketName, Iterator<String> keys) throws Exception {
+        int concurrency = this.s3Settings.getDeleteConcurrency();
+        int batchSize = this.s3Settings.getDeleteBatchSize();
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, new UniversalS3ThreadFactory("universal-s3-delete"));
+        Semaphore inFlight = new Semaphore(concurrency);
+        AtomicLong failed = new AtomicLong();
+        try {
+            List<KeyVersion> batch = new ArrayList<KeyVersion>();
+            while (keys.hasNext()) {
+                batch.add(new KeyVersion(keys.next()));
+                if (batch.size() == batchSize) {
+                    submit(executor, inFlight, failed, bucketName, batch);
+                    batch = new ArrayList<KeyVersion>();
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                submit(executor, inFlight, failed, bucketName, batch);
+            }
+
+            // Waits for the batches in flight.
+            inFlight.acquire(concurrency);
+            inFlight.release(concurrency);
+        } finally {
+            executor.shutdown();
+        }
+
+        return failed.get();
+    }
+
+    /**
+     * This method executes the pipeline starting from the passed page.
+     *
+     * @param bucketName in context.
+     * @param page the first listing page.
+     * @return the number of keys that couldn't be deleted.
+     * @throws Exception when a listing page fails.
+     */
+    private long run(final String bucketName, Page page) throws Exception {
+        int concurrency = this.s3Settings.getDeleteConcurrency();
+        int batchSize = this.s3Settings.getDeleteBatchSize();
+
+        // One extra thread, so the listing prefetch never waits for the delete batches.
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency + 1,
+                    new UniversalS3ThreadFactory("universal-s3-delete"));
+        final Semaphore inFlight = new Semaphore(concurrency);
+        final AtomicLong failed = new AtomicLong();
+        try {
+            while (page != null) {
+                Future<Page> next = null;
+                if (page.isTruncated()) {
+                    final Page current = page;
+                    next = executor.submit(new Callable<Page>() {
+                        public Page call() throws Exception {
+                            return current.next();
+                        }
+                    });
+                }
+
+                List<KeyVersion> keys = page.getKeys();
+                for (int from = 0; from < keys.size(); from += batchSize) {
+                    submit(executor, inFlight, failed, bucketName, 
+                                new ArrayList<KeyVersion>(keys.subList(from, Math.min(keys.size(), from + batchSize))));
+                }
+
+                try {
+                    page = next == null ? null : next.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+
+            // Waits for the batches in flight.
+            inFlight.acquire(concurrency);
+            inFlight.release(concurrency);
+        } finally {
+            executor.shutdown();
+        }
+
+        return failed.get();
+    }
+
+    /**
+     * Submits a batch, blocks while the max number of batches are in flight.
+     */
+    private void submit(ExecutorService executor, final Semaphore inFlight, final AtomicLong failed, 
+                final String bucketName, final List<KeyVersion> batch) throws InterruptedException {
+        inFlight.acquire();
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        failed.addAndGet(deleteBatch(bucketName, batch));
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * This method deletes a batch of keys using a single request.
+     *
+     * @param bucketName in context.
+     * @param batch of keys to be deleted.
+     * @return the number of keys that couldn't be deleted.
+     */
+    long deleteBatch(String bucketName, List<KeyVersion> batch) {
+        try {
+            this.s3client.deleteObjects(new DeleteObjectsRequest(bucketName).withKeys(batch).withQuiet(true));
+            return 0;
+        } catch (MultiObjectDeleteException e) {
+            for (DeleteError deleteError : e.getErrors()) {
+                this.storage.triggerOnErrorListeners(new UniversalIOException(deleteError.getKey() +
+                        (deleteError.getVersionId() == null ? "" : (" (" + deleteError.getVersionId() + ")")) +
+                        " couldn't be deleted: " + deleteError.getMessage()));
+            }
+
+            return e.getErrors().size();
+        } catch (Exception e) {
+            this.storage.triggerOnErrorListeners(new UniversalIOException(batch.size() +
+                        " keys couldn't be deleted: " + e.getMessage()));
+
+            return batch.size();
+        }
+    }
+
+    /**
+     * This interface represents a listing page.
+     */
+    private interface Page {
+        List<KeyVersion> getKeys();
+
+        boolean isTruncated();
+
+        Page next();
+    }
+
+    /**
+     * This class represents a page of objects.
+     */
+    private class ObjectPage implements Page {
+        private ObjectListing listing;
+
+        ObjectPage(ObjectListing listing) {
+            this.listing = listing;
+        }
+
+        public List<KeyVersion> getKeys() {
+            List<KeyVersion> keys = new ArrayList<KeyVersion>();
+            for (S3ObjectSummary summary : this.listing.getObjectSummaries()) {
+                keys.add(new KeyVersion(summary.getKey()));
+            }
+
+            return keys;
+        }
+
+        public boolean isTruncated() {
+            return this.listing.isTruncated();
+        }
+
+        public Page next() {
+            return new ObjectPage(UniversalS3BatchDeleter.this.s3client.listNextBatchOfObjects(this.listing));
+        }
+    }
+
+    /**
+     * This class represents a page of versions.
+     */
+    private class VersionPage implements Page {
+        private VersionListing listing;
+
+        VersionPage(VersionListing listing) {
+            this.listing = listing;
+        }
+
+        public List<KeyVersion> getKeys() {
+            List<KeyVersion> keys = new ArrayList<KeyVersion>();
+            for (S3VersionSummary summary : this.listing.getVersionSummaries()) {
+                keys.add(new KeyVersion(summary.getKey(), summary.getVersionId()));
+            }
+
+            return keys;
+        }
+
+        public boolean isTruncated() {
+            return this.listing.isTruncated();
+        }
+
+        public Page next() {
+            return new VersionPage(UniversalS3BatchDeleter.this.s3client.listNextBatchOfVersions(this.listing));
+        }
+    }
+}
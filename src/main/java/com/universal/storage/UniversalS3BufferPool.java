@@ -0,0 +1,103 @@
+package com.universal.storage;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class is a pool of reusable direct buffers, all of them with the same capacity.
+ *
+ * The pool retains at most maxRetained buffers, a buffer released when the pool is full is discarded.
+ * This pool doesn't limit how many buffers are in use, callers must bound their buffers in flight.  A pool
+ * created with a max number of buffers in use carries the permits its callers share to bound them, see getPermits.
+ */
+class UniversalS3BufferPool {
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> buffers;
+    private final Semaphore permits;
+
+    /**
+     * This constructor creates a new pool.
+     *
+     * @param bufferSize capacity of every buffer.
+     * @param maxRetained max number of idle buffers retained by this pool.
+     */
+    UniversalS3BufferPool(int bufferSize, int maxRetained) {
+        this(bufferSize, maxRetained, 0);
+    }
+
+    /**
+     * This constructor creates a new pool along with the permits of its buffers in use.
+     *
+     * @param bufferSize capacity of every buffer.
+     * @param maxRetained max number of idle buffers retained by this pool.
+     * @param maxInUse max number of buffers in use by every caller, 0 means no permits.
+     */
+    UniversalS3BufferPool(int bufferSize, int maxRetained, int maxInUse) {
+        this.bufferSize = bufferSize;
+        this.buffers = new LinkedBlockingQueue<ByteBuffer>(Math.max(1, maxRetained));
+        this.permits = maxInUse > 0 ? new Semaphore(maxInUse, true) : null;
+    }
+
+    /**
+     * Returns the capacity of every buffer.
+     */
+    int getBufferSize() {
+        return this.bufferSize;
+    }
+
+    /**
+     * Returns the permits shared by the callers of this pool, a permit must be acquired before every buffer
+     * and released along with it.  Null if this pool has no permits.
+     */
+    Semaphore getPermits() {
+        return this.permits;
+    }
+
+    /**
+     * Returns a cleared buffer, the buffer is allocated if the pool is empty.
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = this.buffers.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(this.bufferSize);
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns the buffer to the pool.
+     *
+     * @param buffer to be reused.
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.capacity() == this.bufferSize) {
+            this.buffers.offer(buffer);
+        }
+    }
+}
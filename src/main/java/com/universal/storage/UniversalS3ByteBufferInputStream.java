@@ -0,0 +1,86 @@
+package com.universal.storage;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class is an InputStream over the remaining bytes of a ByteBuffer.  The stream supports mark and
+ * reset over the whole buffer, so the AWS SDK can retry a request without copying the bytes.
+ */
+class UniversalS3ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    /**
+     * This constructor creates a new stream, the passed buffer is not modified.
+     *
+     * @param buffer whose remaining bytes will be read.
+     */
+    UniversalS3ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer.duplicate();
+        this.buffer.mark();
+    }
+
+    public int read() {
+        return this.buffer.hasRemaining() ? (this.buffer.get() & 0xFF) : -1;
+    }
+
+    public int read(byte[] bytes, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+
+        if (!this.buffer.hasRemaining()) {
+            return -1;
+        }
+
+        length = Math.min(length, this.buffer.remaining());
+        this.buffer.get(bytes, offset, length);
+
+        return length;
+    }
+
+    public long skip(long n) {
+        int skipped = (int) Math.max(0, Math.min(n, this.buffer.remaining()));
+        this.buffer.position(this.buffer.position() + skipped);
+
+        return skipped;
+    }
+
+    public int available() {
+        return this.buffer.remaining();
+    }
+
+    public boolean markSupported() {
+        return true;
+    }
+
+    public synchronized void mark(int readLimit) {
+        this.buffer.mark();
+    }
+
+    public synchronized void reset() {
+        this.buffer.reset();
+    }
+}
@@ -0,0 +1,123 @@
+package com.universal.storage;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class moves the content of the SDK streams into channels without intermediate heap arrays.
+ *
+ * File channels are filled using FileChannel.transferFrom, any other channel is written through a pooled
+ * direct buffer, so large downloads don't allocate a new array for every chunk.
+ */
+class UniversalS3Channels {
+    private UniversalS3Channels() {}
+
+    /**
+     * This method writes a source at a position of a file channel until either the count is reached or the
+     * source is over.  The position of the channel is not modified.
+     *
+     * @param source channel, see Channels.newChannel.
+     * @param channel destination, the position must not be greater than its size.
+     * @param position where the first byte is written.
+     * @param count max number of bytes to write.
+     * @return the number of bytes written.
+     * @throws IOException when either the source can't be read or the channel can't be written.
+     */
+    static long transfer(ReadableByteChannel source, FileChannel channel, long position, long count) throws IOException {
+        long written = 0;
+        while (written < count) {
+            long transferred = channel.transferFrom(source, position + written, count - written);
+            if (transferred <= 0) {
+                break;
+            }
+
+            written += transferred;
+        }
+
+        return written;
+    }
+
+    /**
+     * This method reads a range of a file into a buffer, the buffer is flipped so its remaining bytes are the range.
+     *
+     * @param channel source.
+     * @param buffer destination, cleared and with room for the whole range.
+     * @param position of the first byte of the range.
+     * @param count number of bytes of the range.
+     * @throws IOException when the file is shorter than the range.
+     */
+    static void read(FileChannel channel, ByteBuffer buffer, long position, long count) throws IOException {
+        buffer.limit((int) count);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new IOException("The file was truncated while it was being read.");
+            }
+        }
+
+        buffer.flip();
+    }
+
+    /**
+     * This method writes a stream into a channel until the stream is over.  A file channel is written at its
+     * current position, which is moved after the written bytes.
+     *
+     * @param stream source.
+     * @param channel destination.
+     * @param pool of direct buffers used when the channel is not a file channel.
+     * @return the number of bytes written.
+     * @throws IOException when either the stream can't be read or the channel can't be written.
+     */
+    static long copy(InputStream stream, WritableByteChannel channel, UniversalS3BufferPool pool) throws IOException {
+        if (channel instanceof FileChannel) {
+            FileChannel fileChannel = (FileChannel) channel;
+            long written = transfer(Channels.newChannel(stream), fileChannel, fileChannel.position(), Long.MAX_VALUE);
+            fileChannel.position(fileChannel.position() + written);
+            return written;
+        }
+
+        ReadableByteChannel source = Channels.newChannel(stream);
+        ByteBuffer buffer = pool.acquire();
+        long written = 0;
+        try {
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer);
+                }
+
+                buffer.clear();
+            }
+
+            return written;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+}
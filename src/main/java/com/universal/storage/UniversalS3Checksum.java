@@ -0,0 +1,342 @@
+package com.universal.storage;
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Base64;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class verifies the content of a downloaded object against its ETag while the bytes arrive.
+ *
+ * The ETag of an object uploaded using a single PUT is the MD5 of its content, the ETag of a multipart
+ * upload is the MD5 of the MD5s of its parts followed by the number of parts.  The uploads of this storage
+ * record their part size within the user metadata, so the part MD5s can be computed by the ranges of a
+ * download, each range feeding the parts it covers.  The ranges of a multipart object are aligned to its
+ * parts, see alignUp, so a part is read again from the downloaded file only if a retry resumed it in the
+ * middle.  A single PUT object is a single part, it's read again when it was downloaded in several ranges.  Objects encrypted with KMS or customer keys, and multipart
+ * objects without a recorded part size, can't be verified because their ETag is not an MD5.
+ */
+class UniversalS3Checksum {
+    static final String METADATA_PART_SIZE = "universal-part-size";
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final String key;
+    private final String eTag;
+    private final long length;
+    private final long partSize;
+    private final int parts;
+    private final boolean multipart;
+    private final byte[][] digests;
+
+    private UniversalS3Checksum(String key, String eTag, long length, long partSize, int parts, boolean multipart) {
+        this.key = key;
+        this.eTag = eTag;
+        this.length = length;
+        this.partSize = partSize;
+        this.parts = parts;
+        this.multipart = multipart;
+        this.digests = new byte[parts][];
+    }
+
+    /**
+     * Returns a checksum for an object, null if the ETag of the object is not an MD5.
+     *
+     * @param key of the object, used by the error message.
+     * @param metadata of the object, the response of either a GET or a ranged GET.
+     */
+    static UniversalS3Checksum forObject(String key, ObjectMetadata metadata) {
+        if (metadata == null || metadata.getETag() == null || metadata.getSSEAwsKmsKeyId() != null || 
+                    metadata.getSSECustomerAlgorithm() != null) {
+            return null;
+        }
+
+        String eTag = metadata.getETag().replace("\"", "").toLowerCase();
+        long length = metadata.getInstanceLength();
+        int dash = eTag.indexOf('-');
+        if (dash == -1) {
+            return eTag.length() == 32 ? new UniversalS3Checksum(key, eTag, length, Math.max(1, length), 1, false) : null;
+        }
+
+        try {
+            int parts = Integer.parseInt(eTag.substring(dash + 1));
+            String recorded = UniversalS3Compression.getUserMetadata(metadata, METADATA_PART_SIZE);
+            long partSize = recorded != null ? Long.parseLong(recorded) : (parts == 1 ? Math.max(1, length) : -1);
+            if (partSize <= 0 || parts <= 0 || (length + partSize - 1) / partSize != parts) {
+                return null;
+            }
+
+            return new UniversalS3Checksum(key, eTag, length, partSize, parts, true);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the Base64 MD5 of the remaining bytes of a buffer, the value of the header Content-MD5.
+     * The passed buffer is not modified.
+     *
+     * @param buffer in context.
+     */
+    static String md5(ByteBuffer buffer) {
+        MessageDigest digest = newDigest();
+        digest.update(buffer.duplicate());
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    /**
+     * Returns the end of the part that holds the passed position, the position itself if it's the first byte
+     * of a part or if the object is not multipart.  A range ending there doesn't split a part.
+     *
+     * @param position within the object.
+     */
+    long alignUp(long position) {
+        if (!this.multipart) {
+            return position;
+        }
+
+        return Math.min(this.length, ((position + this.partSize - 1) / this.partSize) * this.partSize);
+    }
+
+    /**
+     * Returns the passed range size rounded down to whole parts, at least one part.  The size is returned as
+     * it is if the object is not multipart.
+     *
+     * @param size of a range.
+     */
+    long alignSize(long size) {
+        return this.multipart ? Math.max(1, size / this.partSize) * this.partSize : size;
+    }
+
+    /**
+     * Returns a range that feeds the parts from the passed position on.
+     *
+     * @param position of the first byte of the range.
+     */
+    Range range(long position) {
+        return new Range(position);
+    }
+
+    /**
+     * Returns a stream that verifies the whole content of the object, the checksum is verified when the 
+     * end of the stream is reached.
+     *
+     * @param stream with the content of the object.
+     */
+    InputStream verifying(InputStream stream) {
+        final Range range = new Range(0);
+        return new FilterInputStream(stream) {
+            private boolean verified;
+
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) == -1 ? -1 : (single[0] & 0xff);
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = this.in.read(b, off, len);
+                if (read > 0) {
+                    range.update(b, off, read);
+                } else if (read == -1 && !this.verified) {
+                    this.verified = true;
+                    verify(null);
+                }
+
+                return read;
+            }
+
+            public long skip(long n) throws IOException {
+                byte[] skipped = new byte[(int) Math.min(BUFFER_SIZE, Math.max(0, n))];
+                int read = read(skipped, 0, skipped.length);
+                return Math.max(0, read);
+            }
+
+            public boolean markSupported() {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * This method compares the ETag of the object with the one computed from the part MD5s.  The parts that 
+     * were not fed by a single range are read from the passed channel.
+     *
+     * @param channel with the downloaded content, can be null if every part was fed.
+     * @throws IOException if the content doesn't match the ETag.
+     */
+    void verify(FileChannel channel) throws IOException {
+        MessageDigest composite = newDigest();
+        for (int part = 0; part < this.parts; part++) {
+            if (this.digests[part] == null) {
+                this.digests[part] = digest(channel, part * this.partSize, Math.min(this.length, (part + 1) * this.partSize));
+            }
+
+            composite.update(this.digests[part]);
+        }
+
+        String computed = this.multipart ? (toHex(composite.digest()) + "-" + this.parts) : toHex(this.digests[0]);
+        if (!computed.equals(this.eTag)) {
+            throw new IOException("The content of " + this.key + " doesn't match its checksum, expected " + 
+                        this.eTag + " but was " + computed + ".");
+        }
+    }
+
+    /**
+     * Returns the MD5 of a part read from the channel.
+     */
+    private byte[] digest(FileChannel channel, long from, long to) throws IOException {
+        MessageDigest digest = newDigest();
+        if (from >= to) {
+            return digest.digest();
+        }
+
+        if (channel == null) {
+            throw new IOException("The content of " + this.key + " couldn't be verified.");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        for (long position = from; position < to; ) {
+            buffer.clear();
+            buffer.limit((int) Math.min(BUFFER_SIZE, to - position));
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new IOException("Premature end of the file of " + this.key + ".");
+            }
+
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+
+        return digest.digest();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (Exception e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest) {
+            builder.append(String.format("%02x", b));
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * This class feeds the MD5s of the parts with the bytes of a contiguous range, in order.  Only the parts 
+     * fully covered by the range are recorded.
+     */
+    class Range {
+        private final MessageDigest digest = newDigest();
+        private long position;
+        private boolean whole;
+
+        private Range(long position) {
+            seek(position);
+        }
+
+        /**
+         * This method moves the range to a new position, i.e: a retry resumes from the last written byte.
+         * The part in progress is dropped unless the position is the one already reached.
+         *
+         * @param position of the next byte.
+         */
+        void seek(long position) {
+            if (position != this.position || position == 0) {
+                this.position = position;
+                this.whole = position % UniversalS3Checksum.this.partSize == 0;
+                this.digest.reset();
+            }
+        }
+
+        /**
+         * Returns a stream that feeds this range with the bytes read.
+         *
+         * @param stream with the bytes from the current position on.
+         */
+        InputStream wrap(InputStream stream) {
+            return new FilterInputStream(stream) {
+                public int read() throws IOException {
+                    byte[] single = new byte[1];
+                    return read(single, 0, 1) == -1 ? -1 : (single[0] & 0xff);
+                }
+
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = this.in.read(b, off, len);
+                    if (read > 0) {
+                        update(b, off, read);
+                    }
+
+                    return read;
+                }
+
+                public long skip(long n) throws IOException {
+                    throw new IOException("skip is not supported.");
+                }
+
+                public boolean markSupported() {
+                    return false;
+                }
+            };
+        }
+
+        /**
+         * This method feeds the bytes that follow the current position.
+         */
+        void update(byte[] b, int off, int len) {
+            long partSize = UniversalS3Checksum.this.partSize;
+            while (len > 0 && this.position < UniversalS3Checksum.this.length) {
+                int part = (int) (this.position / partSize);
+                long partEnd = Math.min(UniversalS3Checksum.this.length, (part + 1) * partSize);
+                int n = (int) Math.min(len, partEnd - this.position);
+                if (this.whole) {
+                    this.digest.update(b, off, n);
+                }
+
+                this.position += n;
+                off += n;
+                len -= n;
+                if (this.position == partEnd) {
+                    if (this.whole) {
+                        UniversalS3Checksum.this.digests[part] = this.digest.digest();
+                    }
+
+                    this.digest.reset();
+                    this.whole = true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.universal.storage;
+
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import com.universal.storage.settings.UniversalSettings;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.HeadBucketRequest;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class shares the AmazonS3 clients between the storages of the jvm.
+ *
+ * The storages with the same region, credentials and connection settings use the same client, so they share 
+ * its connection pool and pay the creation of the client once.  Every client counts the storages using it 
+ * and it's shut down when the last one releases it.
+ */
+class UniversalS3ClientRegistry {
+    private static final Map<String, Entry> clients = new HashMap<String, Entry>();
+    private static final Map<AmazonS3, Entry> entries = new IdentityHashMap<AmazonS3, Entry>();
+
+    private UniversalS3ClientRegistry() {
+    }
+
+    /**
+     * Returns the shared client for the passed settings, the client is created if doesn't exist.
+     *
+     * @param settings with the region and the credentials.
+     * @param s3Settings with the connection settings.
+     * @return the shared client, it must be passed to the method release when it's no longer used.
+     */
+    static AmazonS3 acquire(UniversalSettings settings, UniversalS3Settings s3Settings) {
+        return acquire(settings, s3Settings, settings.getS3Region(), settings.getRoot());
+    }
+
+    /**
+     * Returns the shared client of the passed region, i.e: the region of a read replica.
+     *
+     * @param settings with the credentials.
+     * @param s3Settings with the connection settings.
+     * @param region of the client.
+     * @param bucketName the connections are warmed up against.
+     * @return the shared client, it must be passed to the method release when it's no longer used.
+     */
+    static AmazonS3 acquire(UniversalSettings settings, UniversalS3Settings s3Settings, String region, String bucketName) {
+        String id = id(settings, s3Settings, region);
+
+        Entry entry;
+        boolean created = false;
+        synchronized (UniversalS3ClientRegistry.class) {
+            entry = clients.get(id);
+            if (entry == null) {
+                entry = new Entry(id, newClient(settings, s3Settings, region));
+                clients.put(id, entry);
+                entries.put(entry.client, entry);
+                created = true;
+            }
+
+            entry.references++;
+        }
+
+        if (created) {
+            warmUp(entry.client, bucketName, s3Settings);
+        }
+
+        return entry.client;
+    }
+
+    /**
+     * This method releases a client, the client is shut down if no storage uses it anymore.
+     * A client that was not acquired from this registry is shut down right away.
+     *
+     * @param client in context.
+     */
+    static void release(AmazonS3 client) {
+        synchronized (UniversalS3ClientRegistry.class) {
+            Entry entry = entries.get(client);
+            if (entry != null && --entry.references > 0) {
+                return;
+            }
+
+            if (entry != null) {
+                entries.remove(client);
+                clients.remove(entry.id);
+            }
+        }
+
+        client.shutdown();
+    }
+
+    /**
+     * Returns the number of storages using the shared client, 0 if the client is not shared.
+     *
+     * @param client in context.
+     */
+    static synchronized int getReferences(AmazonS3 client) {
+        Entry entry = entries.get(client);
+        return entry == null ? 0 : entry.references;
+    }
+
+    /**
+     * Returns a new client that is not shared.
+     *
+     * @param settings with the region and the credentials.
+     * @param s3Settings with the connection settings.
+     */
+    static AmazonS3 newClient(UniversalSettings settings, UniversalS3Settings s3Settings) {
+        return newClient(settings, s3Settings, settings.getS3Region());
+    }
+
+    /**
+     * Returns a new client of the passed region that is not shared.
+     *
+     * @param settings with the credentials.
+     * @param s3Settings with the connection settings.
+     * @param region of the client.
+     */
+    static AmazonS3 newClient(UniversalSettings settings, UniversalS3Settings s3Settings, String region) {
+        return AmazonS3ClientBuilder.standard().withRegion(Regions.fromName(region))
+                    .withCredentials(new UniversalProfileCredentialsProvider(settings))
+                    .withClientConfiguration(newClientConfiguration(s3Settings)).build();
+    }
+
+    /**
+     * Returns the configuration of the connection pool according to the settings.  The SDK doesn't retry if
+     * the library does, see UniversalS3Settings.isLibraryRetry.
+     *
+     * @param s3Settings with the connection settings.
+     */
+    static ClientConfiguration newClientConfiguration(UniversalS3Settings s3Settings) {
+        ClientConfiguration configuration = new ClientConfiguration()
+            .withMaxConnections(s3Settings.getMaxConnections())
+            .withConnectionTimeout(s3Settings.getConnectionTimeout())
+            .withSocketTimeout(s3Settings.getSocketTimeout())
+            .withConnectionTTL(s3Settings.getConnectionTtl())
+            .withConnectionMaxIdleMillis(s3Settings.getConnectionMaxIdle())
+            .withTcpKeepAlive(s3Settings.isTcpKeepAlive())
+            .withReaper(s3Settings.isIdleConnectionReaper());
+        if (s3Settings.isLibraryRetry()) {
+            configuration.setRetryPolicy(PredefinedRetryPolicies.NO_RETRY_POLICY);
+        }
+
+        return configuration;
+    }
+
+    /**
+     * This method opens connections to the bucket concurrently, so they are pooled before the first operation.
+     * The errors are ignored, i.e: the bucket doesn't exist yet.
+     */
+    private static void warmUp(final AmazonS3 client, final String bucketName, UniversalS3Settings s3Settings) {
+        int connections = Math.min(s3Settings.getWarmupConnections(), s3Settings.getMaxConnections());
+        if (connections == 0) {
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(connections, new UniversalS3ThreadFactory("universal-s3-warmup"));
+        try {
+            List<Callable<Void>> requests = new ArrayList<Callable<Void>>();
+            for (int i = 0; i < connections; i++) {
+                requests.add(new Callable<Void>() {
+                    public Void call() {
+                        try {
+                            client.headBucket(new HeadBucketRequest(bucketName));
+                        } catch (Exception ignore) {}
+
+                        return null;
+                    }
+                });
+            }
+
+            executor.invokeAll(requests, Math.max(1000, s3Settings.getConnectionTimeout() * 2L), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the id of a client, the secret key is hashed so it's not kept as plain text.
+     */
+    private static String id(UniversalSettings settings, UniversalS3Settings s3Settings, String region) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(region).append('|').append(settings.getAWSAccessKeyId()).append('|');
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(String.valueOf(settings.getAWSSecretKey()).getBytes("UTF-8"));
+            for (byte b : digest) {
+                builder.append(String.format("%02x", b));
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+
+        return builder.append('|').append(s3Settings.getMaxConnections()).append('|').append(s3Settings.getConnectionTimeout())
+            .append('|').append(s3Settings.getSocketTimeout()).append('|').append(s3Settings.getConnectionTtl())
+            .append('|').append(s3Settings.getConnectionMaxIdle()).append('|').append(s3Settings.isTcpKeepAlive())
+            .append('|').append(s3Settings.isIdleConnectionReaper()).append('|').append(s3Settings.isLibraryRetry()).toString();
+    }
+
+    /**
+     * This class represents a shared client.
+     */
+    private static class Entry {
+        private final String id;
+        private final AmazonS3 client;
+        private int references;
+
+        Entry(String id, AmazonS3 client) {
+            this.id = id;
+            this.client = client;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.universal.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class compresses and decompresses the content of objects on the fly.
+ *
+ * A compressed object records its codec, uncompressed length and uncompressed MD5 within its user metadata,
+ * so readers know how to decompress it and the synchronization can compare it with a local file.  Objects
+ * without these entries are read as they are.
+ */
+class UniversalS3Compression {
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    static final String METADATA_CODEC = "universal-compression";
+    static final String METADATA_LENGTH = "universal-uncompressed-length";
+    static final String METADATA_MD5 = "universal-uncompressed-md5";
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private UniversalS3Compression() {}
+
+    /**
+     * Returns a stream with the compressed content of the passed stream, closing it closes the passed stream.
+     *
+     * @param stream uncompressed content.
+     * @param codec either gzip or deflate.
+     * @param level from 1 to 9.
+     */
+    static InputStream compress(InputStream stream, String codec, int level) {
+        return GZIP.equals(codec) ? new GzipCompressingInputStream(stream, level) 
+                    : new EndingDeflaterInputStream(stream, new Deflater(level));
+    }
+
+    /**
+     * Returns a stream with the decompressed content of the passed stream, closing it closes the passed stream.
+     *
+     * @param stream compressed content.
+     * @param codec either gzip or deflate.
+     * @throws IOException if the gzip header can't be read.
+     */
+    static InputStream decompress(InputStream stream, String codec) throws IOException {
+        if (GZIP.equals(codec)) {
+            return new GZIPInputStream(stream, BUFFER_SIZE);
+        }
+
+        if (DEFLATE.equals(codec)) {
+            return new InflaterInputStream(stream, new Inflater(), BUFFER_SIZE) {
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        this.inf.end();
+                    }
+                }
+            };
+        }
+
+        throw new IOException("Unsupported compression: " + codec);
+    }
+
+    /**
+     * This method writes the decompressed content of a stream into a file while the stream is being read.
+     * The stream is read until its end, so a verifying stream checks the stored bytes, see UniversalS3Checksum.
+     *
+     * @param stored compressed content, it's closed by this method.
+     * @param codec of the object.
+     * @param dest file, will be replaced if already exists.
+     * @throws IOException if the content can't be decompressed.
+     */
+    static void decompress(InputStream stored, String codec, File dest) throws IOException {
+        InputStream in;
+        try {
+            in = decompress(stored, codec);
+        } catch (IOException e) {
+            stored.close();
+            throw e;
+        }
+
+        try {
+            FileUtils.forceMkdirParent(dest);
+            OutputStream out = new FileOutputStream(dest);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                IOUtils.copyLarge(in, out, buffer);
+                while (stored.read(buffer) != -1) {
+                    // Trailing bytes the decompressor didn't need.
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            dest.delete();
+            throw e;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the codec of an object, null if the object is not compressed.
+     *
+     * @param metadata of the object.
+     */
+    static String getCodec(ObjectMetadata metadata) {
+        return getUserMetadata(metadata, METADATA_CODEC);
+    }
+
+    /**
+     * Returns an entry of the user metadata, null if the entry is not present.
+     *
+     * @param metadata of the object.
+     * @param key of the entry.
+     */
+    static String getUserMetadata(ObjectMetadata metadata, String key) {
+        Map<String, String> userMetadata = metadata == null ? null : metadata.getUserMetadata();
+        return userMetadata == null ? null : userMetadata.get(key);
+    }
+
+    /**
+     * This class ends its deflater when it's closed, so the native memory is released right away.
+     */
+    private static class EndingDeflaterInputStream extends DeflaterInputStream {
+        EndingDeflaterInputStream(InputStream stream, Deflater deflater) {
+            super(stream, deflater, BUFFER_SIZE);
+        }
+
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                this.def.end();
+            }
+        }
+    }
+
+    /**
+     * This class produces the gzip format (RFC 1952) from an uncompressed stream: a fixed header, the raw
+     * deflated content and a trailer with the CRC32 and the length of the uncompressed content.
+     */
+    private static class GzipCompressingInputStream extends FilterInputStream {
+        private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+        private final CRC32 crc = new CRC32();
+        private final Deflater deflater;
+        private final InputStream header = new ByteArrayInputStream(HEADER);
+        private InputStream trailer;
+
+        GzipCompressingInputStream(InputStream stream, int level) {
+            super(null);
+            this.deflater = new Deflater(level, true);
+            this.in = new EndingDeflaterInputStream(new CheckedInputStream(stream, this.crc), this.deflater);
+        }
+
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : (single[0] & 0xff);
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = this.header.read(b, off, len);
+            if (read != -1) {
+                return read;
+            }
+
+            if (this.trailer == null) {
+                read = this.in.read(b, off, len);
+                if (read != -1) {
+                    return read;
+                }
+
+                long crcValue = this.crc.getValue();
+                long length = this.deflater.getBytesRead();
+                this.trailer = new ByteArrayInputStream(new byte[] {
+                    (byte) crcValue, (byte) (crcValue >> 8), (byte) (crcValue >> 16), (byte) (crcValue >> 24),
+                    (byte) length, (byte) (length >> 8), (byte) (length >> 16), (byte) (length >> 24)});
+            }
+
+            return this.trailer.read(b, off, len);
+        }
+
+        public long skip(long n) throws IOException {
+            throw new IOException("skip is not supported.");
+        }
+
+        public int available() {
+            return 0;
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,484 @@
+package com.universal.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import com.universal.error.UniversalIOException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.GetObjectTaggingRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.ObjectTagging;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.StorageClass;
+import com.amazonaws.services.s3.model.Tag;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class copies objects within a bucket without transferring their content through this host.
+ *
+ * Objects up to the copy threshold are copied using a single CopyObject request.  Larger objects are copied
+ * using a multipart upload whose parts are UploadPartCopy ranges of the source, copied concurrently using the
+ * passed executor.  Every range must match the ETag of the source, so a source replaced during the copy makes
+ * the copy fail instead of mixing both versions.
+ *
+ * The objects under a prefix are copied concurrently, page by page, and a move deletes every copied page
+ * using multi-object delete requests.
+ *
+ * A packed file (see UniversalS3PackStore) has no object of its own, so it's read from its pack and stored 
+ * using a single PUT.  The packed copy of a target is removed once the target is written, so it doesn't 
+ * shadow the copy.
+ *
+ * The copies, the ranges and the PUTs of packed files that fail with a transient error are retried, see 
+ * UniversalS3Retrier.  A range whose source was replaced is not retried.
+ */
+class UniversalS3Copier {
+    private static final long MEGABYTE = 1048576;
+
+    private AmazonS3 s3client;
+    private ExecutorService executor;
+    private UniversalS3Settings s3Settings;
+    private UniversalS3Storage storage;
+    private StorageClass storageClass;
+    private boolean encryption;
+    private UniversalS3Retrier retrier;
+    private UniversalS3Operation operation;
+    private final AtomicInteger retries = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger parts = new AtomicInteger();
+
+    /**
+     * This constructor creates a new copier.
+     *
+     * @param s3client used to copy.
+     * @param executor where the ranges of large objects will be copied.
+     * @param s3Settings with the copy threshold, part size and concurrency.
+     * @param storage whose error listeners will be notified.
+     * @param storageClass of the copies.
+     * @param encryption true if the copies must be encrypted using AES-256.
+     * @param retrier of the requests.
+     * @param operation whose budget is used by the single requests, the ranges use the part retries.
+     */
+    UniversalS3Copier(AmazonS3 s3client, ExecutorService executor, UniversalS3Settings s3Settings, 
+                UniversalS3Storage storage, StorageClass storageClass, boolean encryption, UniversalS3Retrier retrier,
+                UniversalS3Operation operation) {
+        this.s3client = s3client;
+        this.executor = executor;
+        this.s3Settings = s3Settings;
+        this.storage = storage;
+        this.storageClass = storageClass;
+        this.encryption = encryption;
+        this.retrier = retrier;
+        this.operation = operation;
+    }
+
+    /**
+     * This method copies an object, the target will be replaced if already exists.
+     *
+     * @param bucketName in context.
+     * @param sourceKey key of the object to copy.
+     * @param targetKey key of the copy.
+     * @return the version id of the copy.
+     * @throws Exception when the source doesn't exist or the copy fails.
+     */
+    String copy(String bucketName, String sourceKey, String targetKey) throws Exception {
+        byte[] packed = this.storage.readPacked(sourceKey);
+        String versionId;
+        if (packed != null) {
+            versionId = putObject(bucketName, targetKey, packed);
+            this.bytes.addAndGet(packed.length);
+        } else {
+            ObjectMetadata source = getObjectMetadata(bucketName, sourceKey);
+            versionId = source.getContentLength() <= this.s3Settings.getCopyThreshold() 
+                        ? copyObject(bucketName, sourceKey, targetKey, source) 
+                        : copyParts(bucketName, sourceKey, targetKey, source);
+            this.bytes.addAndGet(source.getContentLength());
+        }
+
+        // A packed copy of the target would shadow the new object.
+        this.storage.removePacked(targetKey);
+        return versionId;
+    }
+
+    /**
+     * This method copies every object under the source prefix to the target prefix, keeping their relative keys.
+     * An object that couldn't be copied is reported through the error listeners and the process continues.
+     * The packed files are copied first, a moved packed file is removed along with a plain object of its key.
+     *
+     * @param bucketName in context.
+     * @param sourcePrefix without trailing slash, it can't be empty.
+     * @param targetPrefix without trailing slash, empty means the root.
+     * @param move true if the copied objects must be deleted.
+     * @return the number of objects that couldn't be either copied or deleted.
+     * @throws Exception when a listing page fails.
+     */
+    long copyFolder(final String bucketName, String sourcePrefix, String targetPrefix, boolean move) throws Exception {
+        final String from = sourcePrefix + "/";
+        final String to = "".equals(targetPrefix) ? "" : (targetPrefix + "/");
+        final AtomicLong failed = new AtomicLong();
+
+        int concurrency = this.s3Settings.getCopyConcurrency();
+        ExecutorService objects = Executors.newFixedThreadPool(concurrency, new UniversalS3ThreadFactory("universal-s3-copy-objects"));
+        final Semaphore inFlight = new Semaphore(concurrency);
+        UniversalS3BatchDeleter deleter = new UniversalS3BatchDeleter(this.s3client, this.s3Settings, this.storage);
+        try {
+            // A plain object shadowed by a packed file of the same key is stale, so it's not copied.
+            Set<String> packed = new HashSet<String>(this.storage.listPacked(from));
+            List<Future<KeyVersion>> packedFutures = new ArrayList<Future<KeyVersion>>();
+            for (String key : packed) {
+                packedFutures.add(submit(objects, inFlight, failed, bucketName, key, to + key.substring(from.length())));
+            }
+
+            List<KeyVersion> packedCopied = new ArrayList<KeyVersion>();
+            for (Future<KeyVersion> future : packedFutures) {
+                KeyVersion key = future.get();
+                if (key != null) {
+                    packedCopied.add(key);
+                }
+            }
+
+            if (move) {
+                List<KeyVersion> removed = new ArrayList<KeyVersion>();
+                for (KeyVersion key : packedCopied) {
+                    try {
+                        this.storage.removePacked(key.getKey());
+                        removed.add(key);
+                    } catch (Exception e) {
+                        // The error listeners were notified by the storage.
+                        failed.incrementAndGet();
+                    }
+                }
+
+                failed.addAndGet(delete(deleter, bucketName, removed));
+            }
+
+            ObjectListing listing = this.s3client.listObjects(new ListObjectsRequest().withBucketName(bucketName).withPrefix(from));
+            while (listing != null) {
+                List<Future<KeyVersion>> futures = new ArrayList<Future<KeyVersion>>();
+                for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+                    if (!packed.contains(summary.getKey())) {
+                        futures.add(submit(objects, inFlight, failed, bucketName, summary.getKey(), 
+                                    to + summary.getKey().substring(from.length())));
+                    }
+                }
+
+                // The next page is listed while the current one is being copied.
+                ObjectListing next = listing.isTruncated() ? this.s3client.listNextBatchOfObjects(listing) : null;
+
+                List<KeyVersion> copied = new ArrayList<KeyVersion>();
+                for (Future<KeyVersion> future : futures) {
+                    KeyVersion key = future.get();
+                    if (key != null) {
+                        copied.add(key);
+                    }
+                }
+
+                if (move) {
+                    failed.addAndGet(delete(deleter, bucketName, copied));
+                }
+
+                listing = next;
+            }
+        } finally {
+            objects.shutdownNow();
+        }
+
+        return failed.get();
+    }
+
+    /**
+     * Submits the copy of an object, the future returns null if the copy failed.  Blocks while the max number 
+     * of objects is being copied.
+     */
+    private Future<KeyVersion> submit(ExecutorService objects, final Semaphore inFlight, final AtomicLong failed, 
+                final String bucketName, final String sourceKey, final String targetKey) throws InterruptedException {
+        inFlight.acquire();
+        try {
+            return objects.submit(new Callable<KeyVersion>() {
+                public KeyVersion call() {
+                    try {
+                        copy(bucketName, sourceKey, targetKey);
+                        return new KeyVersion(sourceKey);
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        UniversalS3Copier.this.storage.triggerOnErrorListeners(
+                                    new UniversalIOException(sourceKey + ": " + e.getMessage()));
+                        return null;
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Deletes the passed keys using multi-object delete requests.
+     *
+     * @return the number of keys that couldn't be deleted.
+     */
+    private long delete(UniversalS3BatchDeleter deleter, String bucketName, List<KeyVersion> keys) {
+        long failed = 0;
+        int batchSize = this.s3Settings.getDeleteBatchSize();
+        for (int index = 0; index < keys.size(); index += batchSize) {
+            failed += deleter.deleteBatch(bucketName, new ArrayList<KeyVersion>(keys.subList(index, Math.min(keys.size(), index + batchSize))));
+        }
+
+        return failed;
+    }
+
+    /**
+     * Returns the number of bytes copied.
+     */
+    long getBytes() {
+        return this.bytes.get();
+    }
+
+    /**
+     * Returns the number of ranges copied using UploadPartCopy.
+     */
+    int getParts() {
+        return this.parts.get();
+    }
+
+    /**
+     * Returns the number of times a request was sent again.
+     */
+    int getRetries() {
+        return this.retries.get();
+    }
+
+    /**
+     * Returns the metadata of the source of a copy.
+     */
+    private ObjectMetadata getObjectMetadata(final String bucketName, final String key) throws Exception {
+        return this.retrier.execute(this.operation, new Callable<ObjectMetadata>() {
+            public ObjectMetadata call() {
+                return UniversalS3Copier.this.s3client.getObjectMetadata(bucketName, key);
+            }
+        }, this.retries);
+    }
+
+    /**
+     * This method copies an object using a single request, the metadata and the tags are copied by S3.
+     */
+    private String copyObject(String bucketName, String sourceKey, String targetKey, ObjectMetadata source) 
+                throws Exception {
+        final CopyObjectRequest request = new CopyObjectRequest(bucketName, sourceKey, bucketName, targetKey)
+                    .withStorageClass(this.storageClass);
+        if (this.encryption) {
+            // The new metadata replaces the source's one, so the source's metadata is sent along.
+            request.setNewObjectMetadata(newMetadata(source));
+        }
+
+        return this.retrier.execute(this.operation, new Callable<String>() {
+            public String call() {
+                return UniversalS3Copier.this.s3client.copyObject(request).getVersionId();
+            }
+        }, this.retries);
+    }
+
+    /**
+     * This method stores the content of a packed file as an object using a single PUT.
+     */
+    private String putObject(String bucketName, String targetKey, final byte[] content) throws Exception {
+        ObjectMetadata metadata = newMetadata(new ObjectMetadata());
+        metadata.setContentLength(content.length);
+        if (this.s3Settings.isVerifyIntegrity()) {
+            metadata.setContentMD5(UniversalS3Checksum.md5(ByteBuffer.wrap(content)));
+        }
+
+        final PutObjectRequest request = new PutObjectRequest(bucketName, targetKey, (InputStream) null, metadata);
+        request.setTagging(this.storage.getTagging());
+        request.setStorageClass(this.storageClass);
+
+        return this.retrier.execute(this.operation, new Callable<String>() {
+            public String call() {
+                // A retry sends the content again from its beginning.
+                request.setInputStream(new ByteArrayInputStream(content));
+                return UniversalS3Copier.this.s3client.putObject(request).getVersionId();
+            }
+        }, this.retries);
+    }
+
+    /**
+     * This method copies an object using concurrent UploadPartCopy ranges.  If any range fails, the remaining 
+     * ranges are cancelled and the multipart upload is aborted.
+     */
+    private String copyParts(final String bucketName, final String sourceKey, final String targetKey, 
+                ObjectMetadata source) throws Exception {
+        long length = source.getContentLength();
+        long partSize = Math.max(this.s3Settings.getCopyPartSize(), 
+                    roundUp((length + UniversalS3MultipartUploader.MAX_PARTS - 1) / UniversalS3MultipartUploader.MAX_PARTS));
+        final String eTag = source.getETag();
+
+        // The ETag of the copy is made of the copied ranges, not of the parts of the source.
+        ObjectMetadata metadata = newMetadata(source);
+        metadata.addUserMetadata(UniversalS3Checksum.METADATA_PART_SIZE, String.valueOf(partSize));
+
+        // Unlike CopyObject, a multipart upload doesn't copy the tags, they are sent by the initiate request.
+        final GetObjectTaggingRequest taggingRequest = new GetObjectTaggingRequest(bucketName, sourceKey);
+        List<Tag> tags = this.retrier.execute(this.operation, new Callable<List<Tag>>() {
+            public List<Tag> call() {
+                return UniversalS3Copier.this.s3client.getObjectTagging(taggingRequest).getTagSet();
+            }
+        }, this.retries);
+        final String uploadId = UniversalS3MultipartUploader.initiate(this.s3client, this.retrier, this.operation, this.retries,
+                    bucketName, targetKey, metadata, tags == null ? null : new ObjectTagging(tags), this.storageClass);
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Future<PartETag>> futures = new ArrayList<Future<PartETag>>();
+        try {
+            int partNumber = 1;
+            for (long offset = 0; offset < length && failure.get() == null; offset += partSize) {
+                final CopyPartRequest request = new CopyPartRequest()
+                    .withSourceBucketName(bucketName)
+                    .withSourceKey(sourceKey)
+                    .withDestinationBucketName(bucketName)
+                    .withDestinationKey(targetKey)
+                    .withUploadId(uploadId)
+                    .withPartNumber(partNumber++)
+                    .withFirstByte(offset)
+                    .withLastByte(Math.min(length, offset + partSize) - 1)
+                    .withMatchingETagConstraint(eTag);
+
+                futures.add(this.executor.submit(new Callable<PartETag>() {
+                    public PartETag call() throws Exception {
+                        try {
+                            if (failure.get() != null) {
+                                throw new IllegalStateException("Multipart copy was cancelled.");
+                            }
+
+                            CopyPartResult result = UniversalS3Copier.this.retrier.execute(
+                                        UniversalS3Copier.this.s3Settings.getPartRetries(), new Callable<CopyPartResult>() {
+                                public CopyPartResult call() {
+                                    return UniversalS3Copier.this.s3client.copyPart(request);
+                                }
+                            }, UniversalS3Copier.this.retries);
+                            if (result == null) {
+                                throw new UniversalS3ObjectChangedException("The object " + sourceKey + " has changed during the copy.");
+                            }
+
+                            return result.getPartETag();
+                        } catch (Exception e) {
+                            failure.compareAndSet(null, e);
+                            throw e;
+                        }
+                    }
+                }));
+            }
+
+            List<PartETag> partETags = new ArrayList<PartETag>();
+            for (Future<PartETag> future : futures) {
+                try {
+                    partETags.add(future.get());
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+
+            String versionId = UniversalS3MultipartUploader.complete(this.s3client, this.retrier, this.operation, this.retries,
+                        new CompleteMultipartUploadRequest(bucketName, targetKey, uploadId, partETags)).getVersionId();
+            this.parts.addAndGet(partETags.size());
+
+            return versionId;
+        } catch (Exception e) {
+            failure.compareAndSet(null, e);
+            for (Future<PartETag> future : futures) {
+                future.cancel(true);
+            }
+
+            try {
+                this.s3client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, targetKey, uploadId));
+            } catch (Exception ignore) {}
+
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the metadata for a copy, i.e: content type and user metadata of the source.
+     */
+    private ObjectMetadata newMetadata(ObjectMetadata source) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        if (source.getContentType() != null) {
+            metadata.setContentType(source.getContentType());
+        }
+
+        if (source.getContentEncoding() != null) {
+            metadata.setContentEncoding(source.getContentEncoding());
+        }
+
+        if (source.getContentDisposition() != null) {
+            metadata.setContentDisposition(source.getContentDisposition());
+        }
+
+        if (source.getCacheControl() != null) {
+            metadata.setCacheControl(source.getCacheControl());
+        }
+
+        if (source.getUserMetadata() != null) {
+            metadata.setUserMetadata(new HashMap<String, String>(source.getUserMetadata()));
+        }
+
+        if (this.encryption) {
+            metadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+        }
+
+        return metadata;
+    }
+
+    /**
+     * Rounds up the passed size to a MB.
+     */
+    private static long roundUp(long size) {
+        return ((size + MEGABYTE - 1) / MEGABYTE) * MEGABYTE;
+    }
+}
@@ -0,0 +1,304 @@
+package com.universal.storage;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class hedges idempotent reads against slow responses.
+ *
+ * The time until every response starts, i.e: the headers of a GET, is sampled.  A request is sent from the 
+ * caller's thread, if it doesn't respond within the hedge percentile of the recent samples, a second identical
+ * request is sent from a bounded pool and the first response wins, the other one is cancelled and its 
+ * connection aborted.  A slow request is sampled as well when it responds, even if it lost.  Requests are not hedged
+ * until enough samples are collected, and the hedged requests never exceed a tenth of the requests, so
+ * an overloaded bucket doesn't receive twice the load.
+ */
+class UniversalS3Hedger {
+    private static final int SAMPLES = 256;
+    private static final int MIN_SAMPLES = 20;
+    private static final double MAX_HEDGE_RATIO = 0.1;
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final double percentile;
+    private final long minDelay;
+    private final long[] samples = new long[SAMPLES];
+    private int sampled;
+    private int next;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+
+    /**
+     * This constructor creates a new hedger.
+     *
+     * @param s3Settings with the hedge percentile and the min delay.
+     */
+    UniversalS3Hedger(UniversalS3Settings s3Settings) {
+        this.executor = new ScheduledThreadPoolExecutor(s3Settings.getDownloadConcurrency(), 
+                    new UniversalS3ThreadFactory("universal-s3-hedge"));
+        this.executor.setRemoveOnCancelPolicy(true);
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.percentile = s3Settings.getHedgePercentile() / 100.0;
+        this.minDelay = TimeUnit.MILLISECONDS.toNanos(s3Settings.getHedgeMinDelay());
+    }
+
+    /**
+     * Returns the response of a GET, hedged if the response is slow.
+     *
+     * @param s3client in context.
+     * @param request to be sent.
+     */
+    S3Object getObject(final AmazonS3 s3client, final GetObjectRequest request) throws Exception {
+        return execute(new Callable<S3Object>() {
+            public S3Object call() {
+                return s3client.getObject(request);
+            }
+        });
+    }
+
+    /**
+     * Returns the metadata of an object, hedged if the response is slow.
+     *
+     * @param s3client in context.
+     * @param bucketName in context.
+     * @param key in context.
+     */
+    ObjectMetadata getObjectMetadata(final AmazonS3 s3client, final String bucketName, final String key) throws Exception {
+        return execute(new Callable<ObjectMetadata>() {
+            public ObjectMetadata call() {
+                return s3client.getObjectMetadata(bucketName, key);
+            }
+        });
+    }
+
+    /**
+     * Returns the number of hedged requests.
+     */
+    long getHedges() {
+        return this.hedges.get();
+    }
+
+    /**
+     * Returns the current delay in nanoseconds before a request is hedged, -1 if the requests are not hedged.
+     */
+    synchronized long getDelay() {
+        if (this.sampled < MIN_SAMPLES || this.hedges.get() >= this.requests.get() * MAX_HEDGE_RATIO) {
+            return -1;
+        }
+
+        long[] sorted = Arrays.copyOf(this.samples, this.sampled);
+        Arrays.sort(sorted);
+        return Math.max(this.minDelay, sorted[Math.min(this.sampled - 1, (int) Math.ceil(this.percentile * this.sampled) - 1)]);
+    }
+
+    /**
+     * This method stops the threads of the hedged requests.
+     */
+    void shutdown() {
+        this.executor.shutdown();
+    }
+
+    /**
+     * This method waits until the hedged requests in flight are completed, see shutdown.  An interrupted wait returns
+     * with the interrupt status set.
+     */
+    void awaitTermination() {
+        UniversalS3Storage.awaitTermination(this.executor);
+    }
+
+    /**
+     * Executes a request on the caller's thread, and a second one on the pool if the first doesn't respond 
+     * within the delay.  When the second request responds first, the caller's thread is interrupted so the 
+     * first request is aborted if the client allows it, otherwise its response is discarded when it arrives.
+     */
+    private <T> T execute(final Callable<T> request) throws Exception {
+        this.requests.incrementAndGet();
+        long delay = getDelay();
+        long start = System.nanoTime();
+        if (delay < 0) {
+            T response = request.call();
+            sample(System.nanoTime() - start);
+            return response;
+        }
+
+        final Race race = new Race(Thread.currentThread());
+        Future<T> hedge = this.executor.schedule(new Callable<T>() {
+            public T call() throws Exception {
+                if (!race.start()) {
+                    throw new CancellationException("The first request is over.");
+                }
+
+                UniversalS3Hedger.this.hedges.incrementAndGet();
+                T response = request.call();
+                if (!race.claim()) {
+                    discard(response);
+                    throw new CancellationException("The other request responded first.");
+                }
+
+                race.interruptCaller();
+                return response;
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+
+        T response = null;
+        Exception failure = null;
+        try {
+            response = request.call();
+        } catch (Exception e) {
+            failure = e;
+        } finally {
+            race.leave();
+        }
+
+        if (failure != null) {
+            if (!race.isClaimed() && race.abandon()) {
+                hedge.cancel(false);
+                throw failure;
+            }
+
+            // The other request may still succeed.
+            return awaitHedge(hedge);
+        }
+
+        sample(System.nanoTime() - start);
+        if (race.claim()) {
+            race.abandon();
+            hedge.cancel(true);
+            return response;
+        }
+
+        discard(response);
+        return awaitHedge(hedge);
+    }
+
+    /**
+     * Returns the response of a hedged request.
+     */
+    private static <T> T awaitHedge(Future<T> hedge) throws Exception {
+        try {
+            return hedge.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Stores the time until a response started.
+     */
+    private synchronized void sample(long nanos) {
+        this.samples[this.next] = nanos;
+        this.next = (this.next + 1) % SAMPLES;
+        this.sampled = Math.min(SAMPLES, this.sampled + 1);
+    }
+
+    /**
+     * Aborts the connection of a response that lost the race.
+     */
+    private static void discard(Object response) {
+        if (response instanceof S3Object) {
+            ((S3Object) response).getObjectContent().abort();
+        }
+    }
+
+    /**
+     * This class holds the state shared by a request and its hedge.
+     */
+    private static class Race {
+        private final Thread caller;
+        private boolean started;
+        private boolean abandoned;
+        private boolean claimed;
+        private boolean running = true;
+        private boolean interrupted;
+
+        Race(Thread caller) {
+            this.caller = caller;
+        }
+
+        /**
+         * Returns true if the hedge can be sent, false if the first request is already over.
+         */
+        synchronized boolean start() {
+            this.started = !this.abandoned;
+            return this.started;
+        }
+
+        /**
+         * Returns true if the hedge won't be sent, false if it's already in flight.
+         */
+        synchronized boolean abandon() {
+            this.abandoned = !this.started;
+            return this.abandoned;
+        }
+
+        /**
+         * Returns true if the calling request responded first.
+         */
+        synchronized boolean claim() {
+            if (this.claimed) {
+                return false;
+            }
+
+            this.claimed = true;
+            return true;
+        }
+
+        /**
+         * Returns true if a request already responded.
+         */
+        synchronized boolean isClaimed() {
+            return this.claimed;
+        }
+
+        /**
+         * This method interrupts the caller while its request is running.
+         */
+        synchronized void interruptCaller() {
+            if (this.running) {
+                this.interrupted = true;
+                this.caller.interrupt();
+            }
+        }
+
+        /**
+         * This method records that the request of the caller is over, the interrupt sent by the hedge is cleared.
+         */
+        synchronized void leave() {
+            this.running = false;
+            if (this.interrupted) {
+                Thread.interrupted();
+            }
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package com.universal.storage;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import com.universal.error.UniversalIOException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class lists the files under a prefix lazily, page by page.
+ *
+ * The listing pages are requested by background producers and handed over through a bounded queue, so the
+ * next page is fetched while the caller consumes the current one and memory doesn't grow with the number
+ * of objects.  When the list concurrency is greater than 1, the prefix is listed using the delimiter "/" and
+ * every sub-prefix found is listed by its own producer, down to the list fan out depth.  In that case the
+ * files are not returned in lexicographic order.
+ *
+ * The folder markers and the packs are skipped, the packed files are returned along with the objects, see
+ * UniversalS3PackStore.  A listing must be closed when it's not consumed until its end, otherwise its
+ * producers stay blocked.  A failed listing page is reported through the error listeners of the storage
+ * and thrown as IllegalStateException by hasNext and next.
+ */
+public class UniversalS3Listing implements Iterator<UniversalS3Metadata>, Closeable {
+    private static final String DELIMITER = "/";
+    private static final long OFFER_TIMEOUT = 100;
+
+    private final AmazonS3 s3client;
+    private final UniversalS3Retrier retrier;
+    private final UniversalS3Metrics metrics;
+    private final UniversalStorage storage;
+    private final String bucketName;
+    private final String hidden;
+    private final boolean markers;
+    private final Set<String> packed = new HashSet<String>();
+    private final BlockingQueue<Object> pages;
+    private final ExecutorService executor;
+    private final AtomicInteger producers = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final Object end = new Object();
+    private volatile boolean closed;
+
+    private Iterator<UniversalS3Metadata> current = Collections.<UniversalS3Metadata>emptyList().iterator();
+    private boolean done;
+
+    /**
+     * This constructor creates a new listing and starts listing the prefix.
+     *
+     * @param s3client used to list the objects.
+     * @param s3Settings with the list concurrency and fan out depth.
+     * @param retrier of the listing requests.
+     * @param metrics where the listing requests are recorded.
+     * @param storage whose error listeners will be notified.
+     * @param bucketName in context.
+     * @param prefix of the keys, an empty string means the whole bucket.
+     * @param hidden prefix of the keys that are skipped, i.e: the packs, can be null.
+     * @param packedFiles the packed files under the prefix, the objects with the same key are skipped.
+     * @param markers true if the folder markers are returned as well, i.e: to delete them.
+     */
+    UniversalS3Listing(AmazonS3 s3client, UniversalS3Settings s3Settings, UniversalS3Retrier retrier, 
+                UniversalS3Metrics metrics, UniversalStorage storage, String bucketName, String prefix, 
+                String hidden, List<UniversalS3Metadata> packedFiles, boolean markers) {
+        this.s3client = s3client;
+        this.retrier = retrier;
+        this.metrics = metrics;
+        this.storage = storage;
+        this.bucketName = bucketName;
+        this.hidden = hidden;
+        this.markers = markers;
+
+        int concurrency = s3Settings.getListConcurrency();
+        this.pages = new LinkedBlockingQueue<Object>(concurrency);
+        this.executor = Executors.newFixedThreadPool(concurrency, new UniversalS3ThreadFactory("universal-s3-list"));
+
+        if (!packedFiles.isEmpty()) {
+            for (UniversalS3Metadata file : packedFiles) {
+                this.packed.add(file.getPath());
+            }
+
+            this.pages.add(new ArrayList<UniversalS3Metadata>(packedFiles));
+        }
+
+        fork(prefix, concurrency > 1 ? s3Settings.getListFanOutDepth() : 0);
+    }
+
+    /**
+     * Returns true if the listing has more files, blocks until the next page arrives.
+     *
+     * @throws IllegalStateException when a listing page failed.
+     */
+    public boolean hasNext() {
+        while (!this.current.hasNext()) {
+            if (this.done || this.closed) {
+                return false;
+            }
+
+            Object page;
+            try {
+                page = this.pages.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IllegalStateException("The listing was interrupted.", e);
+            }
+
+            if (page == this.end) {
+                this.done = true;
+                close();
+            } else if (page instanceof Exception) {
+                close();
+
+                Exception e = (Exception) page;
+                this.storage.triggerOnErrorListeners(new UniversalIOException(e.getMessage()));
+                throw new IllegalStateException(e.getMessage(), e);
+            } else {
+                @SuppressWarnings("unchecked")
+                List<UniversalS3Metadata> files = (List<UniversalS3Metadata>) page;
+                this.current = files.iterator();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the next file of the listing.
+     *
+     * @throws NoSuchElementException if the listing has no more files.
+     * @throws IllegalStateException when a listing page failed.
+     */
+    public UniversalS3Metadata next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        return this.current.next();
+    }
+
+    /**
+     * Returns a sequential stream over the remaining files, closing the stream closes this listing.
+     */
+    public Stream<UniversalS3Metadata> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, 
+                    Spliterator.NONNULL | Spliterator.DISTINCT), false).onClose(new Runnable() {
+                        public void run() {
+                            close();
+                        }
+                    });
+    }
+
+    /**
+     * Returns the number of listing requests sent so far.
+     */
+    public int getRequests() {
+        return this.requests.get();
+    }
+
+    /**
+     * This method stops the producers, the files not consumed yet are discarded.
+     */
+    public void close() {
+        this.closed = true;
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Starts a producer for the passed prefix.
+     */
+    private void fork(final String prefix, final int depth) {
+        this.producers.incrementAndGet();
+        try {
+            this.executor.execute(new Runnable() {
+                public void run() {
+                    produce(prefix, depth);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The listing was closed.
+            this.producers.decrementAndGet();
+        }
+    }
+
+    /**
+     * This method lists a prefix page by page.  If the depth is greater than 0, the prefix is listed using
+     * the delimiter and every sub-prefix is forked, otherwise every key under the prefix is listed.
+     */
+    private void produce(String prefix, int depth) {
+        try {
+            ListObjectsRequest request = new ListObjectsRequest().withBucketName(this.bucketName).withPrefix(prefix);
+            if (depth > 0) {
+                request.setDelimiter(DELIMITER);
+            }
+
+            ObjectListing listing = list(request, null);
+            while (!this.closed) {
+                for (String common : listing.getCommonPrefixes()) {
+                    if (this.hidden == null || !common.startsWith(this.hidden)) {
+                        fork(common, depth - 1);
+                    }
+                }
+
+                offer(toPage(listing));
+                if (!listing.isTruncated()) {
+                    break;
+                }
+
+                listing = list(null, listing);
+            }
+        } catch (InterruptedException e) {
+            // The listing was closed.
+        } catch (Exception e) {
+            try {
+                offer(e);
+            } catch (InterruptedException ignore) {}
+        } finally {
+            if (this.producers.decrementAndGet() == 0) {
+                try {
+                    offer(this.end);
+                } catch (InterruptedException ignore) {}
+            }
+        }
+    }
+
+    /**
+     * Sends a listing request, either the first one or the next page of the passed listing.
+     */
+    private ObjectListing list(final ListObjectsRequest request, final ObjectListing previous) throws Exception {
+        AtomicInteger retries = new AtomicInteger();
+        long start = this.metrics.start(UniversalS3Operation.LIST_FILES);
+        boolean failed = true;
+        try {
+            ObjectListing listing = this.retrier.execute(UniversalS3Operation.LIST_FILES, new Callable<ObjectListing>() {
+                public ObjectListing call() {
+                    return previous == null ? UniversalS3Listing.this.s3client.listObjects(request) : 
+                                UniversalS3Listing.this.s3client.listNextBatchOfObjects(previous);
+                }
+            }, retries);
+
+            this.requests.incrementAndGet();
+            failed = false;
+            return listing;
+        } finally {
+            this.metrics.stop(UniversalS3Operation.LIST_FILES, start, 0, 0, retries.get(), failed);
+        }
+    }
+
+    /**
+     * Returns the files of a listing page, without packs and packed keys.
+     */
+    private List<UniversalS3Metadata> toPage(ObjectListing listing) {
+        List<UniversalS3Metadata> files = new ArrayList<UniversalS3Metadata>();
+        for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+            String key = summary.getKey();
+            if ((!this.markers && key.endsWith(DELIMITER)) || (this.hidden != null && key.startsWith(this.hidden)) || this.packed.contains(key)) {
+                continue;
+            }
+
+            files.add(new UniversalS3Metadata(key, summary));
+        }
+
+        return files;
+    }
+
+    /**
+     * Hands a page over to the consumer, waits while the queue is full unless the listing is closed.
+     */
+    private void offer(Object page) throws InterruptedException {
+        while (!this.closed && !this.pages.offer(page, OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            // The consumer is behind.
+        }
+    }
+}
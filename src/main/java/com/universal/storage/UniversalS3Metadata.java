@@ -0,0 +1,142 @@
+package com.universal.storage;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class represents the metadata of an object within the storage, i.e: its size and ETag.
+ * An instance of this class is immutable, so it can be shared between threads.
+ */
+public class UniversalS3Metadata {
+    private final String path;
+    private final long size;
+    private final String eTag;
+    private final Date lastModified;
+    private final String versionId;
+    private final String contentType;
+    private final String storageClass;
+    private final Map<String, String> userMetadata;
+
+    /**
+     * This constructor creates a new instance from the metadata returned by S3.
+     *
+     * @param path of the object within the root.
+     * @param metadata returned by S3.
+     */
+    UniversalS3Metadata(String path, ObjectMetadata metadata) {
+        this.path = path;
+        this.size = metadata.getContentLength();
+        this.eTag = metadata.getETag();
+        this.lastModified = metadata.getLastModified() == null ? null : new Date(metadata.getLastModified().getTime());
+        this.versionId = metadata.getVersionId();
+        this.contentType = metadata.getContentType();
+        this.storageClass = metadata.getStorageClass();
+        this.userMetadata = Collections.unmodifiableMap(metadata.getUserMetadata() == null ? 
+                    new HashMap<String, String>() : new HashMap<String, String>(metadata.getUserMetadata()));
+    }
+
+    /**
+     * This constructor creates a new instance from a listing entry, a listing doesn't return the version id,
+     * the content type nor the user metadata of the objects.
+     *
+     * @param path of the object within the root.
+     * @param summary returned by S3.
+     */
+    UniversalS3Metadata(String path, S3ObjectSummary summary) {
+        this.path = path;
+        this.size = summary.getSize();
+        this.eTag = summary.getETag();
+        this.lastModified = summary.getLastModified() == null ? null : new Date(summary.getLastModified().getTime());
+        this.versionId = null;
+        this.contentType = null;
+        this.storageClass = summary.getStorageClass();
+        this.userMetadata = Collections.unmodifiableMap(new HashMap<String, String>());
+    }
+
+    /**
+     * Returns the path of the object within the root.
+     */
+    public String getPath() {
+        return this.path;
+    }
+
+    /**
+     * Returns the size in bytes of the object.
+     */
+    public long getSize() {
+        return this.size;
+    }
+
+    /**
+     * Returns the ETag of the object.
+     */
+    public String getETag() {
+        return this.eTag;
+    }
+
+    /**
+     * Returns the last modified date of the object.
+     */
+    public Date getLastModified() {
+        return this.lastModified == null ? null : new Date(this.lastModified.getTime());
+    }
+
+    /**
+     * Returns the version id of the object, null if the bucket is not versioned.
+     */
+    public String getVersionId() {
+        return this.versionId;
+    }
+
+    /**
+     * Returns the content type of the object.
+     */
+    public String getContentType() {
+        return this.contentType;
+    }
+
+    /**
+     * Returns the storage class of the object, null means STANDARD.
+     */
+    public String getStorageClass() {
+        return this.storageClass;
+    }
+
+    /**
+     * Returns the user metadata of the object.
+     */
+    public Map<String, String> getUserMetadata() {
+        return this.userMetadata;
+    }
+
+    public String toString() {
+        return "path=" + this.path + ", size=" + this.size + ", eTag=" + this.eTag + ", lastModified=" + 
+                    this.lastModified + ", versionId=" + this.versionId;
+    }
+}
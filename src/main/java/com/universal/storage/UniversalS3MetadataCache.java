@@ -0,0 +1,153 @@
+package com.universal.storage;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class is an in-memory cache of HEAD results.  Every entry expires after the ttl, missing objects
+ * are cached as well so repeated existence checks don't hit S3.
+ *
+ * When the cache reaches its max number of entries, the expired entries are removed first and then
+ * a tenth of the remaining entries.
+ */
+class UniversalS3MetadataCache {
+    private final long ttl;
+    private final int maxEntries;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * This constructor creates a new cache.
+     *
+     * @param ttl time to live in milliseconds of every entry.
+     * @param maxEntries max number of entries.
+     */
+    UniversalS3MetadataCache(long ttl, int maxEntries) {
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the cached entry of a path, null if the path is not cached or its entry has expired.
+     *
+     * @param path in context.
+     */
+    Entry get(String path) {
+        Entry entry = this.entries.get(path);
+        if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+            this.entries.remove(path, entry);
+            return null;
+        }
+
+        return entry;
+    }
+
+    /**
+     * This method caches the metadata of a path.
+     *
+     * @param path in context.
+     * @param metadata of the object, null means the object doesn't exist.
+     */
+    void put(String path, UniversalS3Metadata metadata) {
+        if (this.entries.size() >= this.maxEntries) {
+            evict();
+        }
+
+        this.entries.put(path, new Entry(metadata, System.currentTimeMillis() + this.ttl));
+    }
+
+    /**
+     * This method removes the entry of a path.
+     *
+     * @param path in context.
+     */
+    void invalidate(String path) {
+        this.entries.remove(path);
+    }
+
+    /**
+     * This method removes the entries of every path under the passed prefix.
+     *
+     * @param prefix in context.
+     */
+    void invalidatePrefix(String prefix) {
+        for (Iterator<String> iterator = this.entries.keySet().iterator(); iterator.hasNext();) {
+            if (iterator.next().startsWith(prefix)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * This method removes every entry.
+     */
+    void clear() {
+        this.entries.clear();
+    }
+
+    /**
+     * Returns the number of entries, expired entries included.
+     */
+    int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Removes the expired entries, if the cache is still full removes a tenth of the entries.
+     */
+    private synchronized void evict() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Entry> iterator = this.entries.values().iterator(); iterator.hasNext();) {
+            if (iterator.next().expiresAt < now) {
+                iterator.remove();
+            }
+        }
+
+        int target = this.maxEntries - Math.max(1, this.maxEntries / 10);
+        for (Iterator<Entry> iterator = this.entries.values().iterator(); iterator.hasNext() && this.entries.size() > target;) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * This class represents a cached HEAD result.
+     */
+    static class Entry {
+        private final UniversalS3Metadata metadata;
+        private final long expiresAt;
+
+        Entry(UniversalS3Metadata metadata, long expiresAt) {
+            this.metadata = metadata;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * Returns the metadata, null if the object doesn't exist.
+         */
+        UniversalS3Metadata getMetadata() {
+            return this.metadata;
+        }
+    }
+}
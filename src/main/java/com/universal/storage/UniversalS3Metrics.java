@@ -0,0 +1,220 @@
+package com.universal.storage;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class collects the metrics of the operations of the storage.
+ *
+ * Every kind of operation has its own counters and a log-linear latency histogram of fixed size, so recording 
+ * a sample doesn't allocate and only updates atomic counters.  The samples are forwarded to the registered sinks.
+ */
+class UniversalS3Metrics {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    private static final UniversalS3MetricsSink[] NO_SINKS = new UniversalS3MetricsSink[0];
+
+    private final Recorder[] recorders;
+    private volatile UniversalS3MetricsSink[] sinks = NO_SINKS;
+
+    /**
+     * This constructor creates a new collector with empty counters.
+     */
+    UniversalS3Metrics() {
+        UniversalS3Operation[] operations = UniversalS3Operation.values();
+        this.recorders = new Recorder[operations.length];
+        for (int i = 0; i < operations.length; i++) {
+            this.recorders[i] = new Recorder();
+        }
+    }
+
+    /**
+     * This method marks the start of an operation.
+     *
+     * @param operation in context.
+     * @return the start time, it must be passed to the method stop.
+     */
+    long start(UniversalS3Operation operation) {
+        this.recorders[operation.ordinal()].inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * This method marks the end of an operation and records its sample.
+     *
+     * @param operation in context.
+     * @param start time returned by the method start.
+     * @param bytes transferred by the operation.
+     * @param parts number of parts or segments.
+     * @param retries number of retried requests.
+     * @param failed true if the operation threw an error.
+     */
+    void stop(UniversalS3Operation operation, long start, long bytes, int parts, int retries, boolean failed) {
+        long nanos = Math.max(0, System.nanoTime() - start);
+        Recorder recorder = this.recorders[operation.ordinal()];
+        recorder.inFlight.decrementAndGet();
+        recorder.count.increment();
+        recorder.bytes.add(bytes);
+        recorder.parts.add(parts);
+        recorder.retries.add(retries);
+        if (failed) {
+            recorder.failures.increment();
+        }
+
+        recorder.histogram.incrementAndGet(bucket(nanos));
+        long max;
+        while (nanos > (max = recorder.max.get()) && !recorder.max.compareAndSet(max, nanos)) {
+            // Another thread updated the max.
+        }
+
+        UniversalS3MetricsSink[] current = this.sinks;
+        for (int i = 0; i < current.length; i++) {
+            try {
+                current[i].record(operation, nanos, bytes, parts, retries, failed);
+            } catch (RuntimeException ignore) {}
+        }
+    }
+
+    /**
+     * This method registers a sink.
+     *
+     * @param sink to be registered.
+     */
+    synchronized void addSink(UniversalS3MetricsSink sink) {
+        UniversalS3MetricsSink[] current = this.sinks;
+        UniversalS3MetricsSink[] updated = new UniversalS3MetricsSink[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = sink;
+        this.sinks = updated;
+    }
+
+    /**
+     * This method unregisters a sink.
+     *
+     * @param sink to be unregistered.
+     */
+    synchronized void removeSink(UniversalS3MetricsSink sink) {
+        UniversalS3MetricsSink[] current = this.sinks;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == sink) {
+                UniversalS3MetricsSink[] updated = new UniversalS3MetricsSink[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                this.sinks = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the metrics of every kind of operation.
+     */
+    UniversalS3MetricsSnapshot getSnapshot() {
+        Map<UniversalS3Operation, UniversalS3OperationMetrics> operations = 
+                    new EnumMap<UniversalS3Operation, UniversalS3OperationMetrics>(UniversalS3Operation.class);
+        for (UniversalS3Operation operation : UniversalS3Operation.values()) {
+            Recorder recorder = this.recorders[operation.ordinal()];
+
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = recorder.histogram.get(i);
+                total += counts[i];
+            }
+
+            long max = recorder.max.get();
+            operations.put(operation, new UniversalS3OperationMetrics(operation, recorder.count.sum(), recorder.failures.sum(), 
+                        recorder.bytes.sum(), recorder.parts.sum(), recorder.retries.sum(), recorder.inFlight.get(), 
+                        Math.min(max, percentile(counts, total, 0.5)), Math.min(max, percentile(counts, total, 0.99)), max));
+        }
+
+        return new UniversalS3MetricsSnapshot(operations);
+    }
+
+    /**
+     * Returns the bucket of a value, the values lesser than 8 have their own bucket and the greater ones 
+     * are split into 8 buckets per power of two.
+     */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        return (msb - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (int) ((value >>> (msb - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Returns the greatest value of a bucket.
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS)) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * Returns the value below which the passed fraction of the samples fall.
+     */
+    private static long percentile(long[] counts, long total, double fraction) {
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+
+        return upperBound(counts.length - 1);
+    }
+
+    /**
+     * This class holds the counters of a kind of operation.
+     */
+    private static class Recorder {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder parts = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong max = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+    }
+}
@@ -0,0 +1,44 @@
+package com.universal.storage;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This interface receives a sample for every finished operation of the storage, so the metrics can be 
+ * forwarded to any metrics library without adding a dependency to this API.
+ *
+ * The method is called from the thread that executed the operation, implementations should be fast and 
+ * must not throw exceptions.
+ */
+public interface UniversalS3MetricsSink {
+    /**
+     * This method is called when an operation finishes.
+     *
+     * @param operation the kind of operation.
+     * @param nanos elapsed time of the operation.
+     * @param bytes transferred by the operation, 0 if unknown.
+     * @param parts number of parts or segments, 0 for single requests.
+     * @param retries number of retried requests.
+     * @param failed true if the operation threw an error.
+     */
+    void record(UniversalS3Operation operation, long nanos, long bytes, int parts, int retries, boolean failed);
+}
@@ -0,0 +1,70 @@
+package com.universal.storage;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class represents a snapshot of the metrics of every kind of operation.
+ */
+public class UniversalS3MetricsSnapshot {
+    private final Map<UniversalS3Operation, UniversalS3OperationMetrics> operations;
+
+    /**
+     * This constructor creates a new snapshot.
+     *
+     * @param operations the metrics of every kind of operation.
+     */
+    public UniversalS3MetricsSnapshot(Map<UniversalS3Operation, UniversalS3OperationMetrics> operations) {
+        this.operations = Collections.unmodifiableMap(new EnumMap<UniversalS3Operation, UniversalS3OperationMetrics>(operations));
+    }
+
+    /**
+     * Returns the metrics of a kind of operation.
+     *
+     * @param operation in context.
+     */
+    public UniversalS3OperationMetrics get(UniversalS3Operation operation) {
+        return this.operations.get(operation);
+    }
+
+    /**
+     * Returns the metrics of every kind of operation.
+     */
+    public Map<UniversalS3Operation, UniversalS3OperationMetrics> getOperations() {
+        return this.operations;
+    }
+
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (UniversalS3OperationMetrics metrics : this.operations.values()) {
+            if (metrics.getCount() > 0 || metrics.getInFlight() > 0) {
+                builder.append(metrics).append("\n");
+            }
+        }
+
+        return builder.toString();
+    }
+}
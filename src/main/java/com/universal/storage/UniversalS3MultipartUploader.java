@@ -0,0 +1,573 @@
+package com.universal.storage;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.util.SdkHttpUtils;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.ObjectTagging;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.StorageClass;
+import com.amazonaws.services.s3.model.Tag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class uploads the parts of a multipart upload concurrently using the passed executor.
+ * The number of parts in flight is bounded by the max in flight bytes from the S3 settings, so
+ * the submission loop blocks until a running part finishes.
+ *
+ * The part size is never lesser than the one needed to fit the file within the 10,000 parts accepted by S3.
+ * When the adaptive upload is enabled, the part size is picked from the file length and the number of parts
+ * in flight follows the measured throughput, see UniversalS3UploadController.  A part that fails with a
+ * transient error is retried after a backoff, see UniversalS3Retrier.
+ *
+ * When a journal directory is passed, the upload is resumable: the completed parts are recorded within a
+ * journal (see UniversalS3UploadJournal) and a failed upload is kept instead of being aborted, so the next
+ * upload of the same unmodified file only sends the parts that ListParts doesn't report.
+ *
+ * When the integrity is verified, every part is read once into a pooled buffer and its MD5 is sent along,
+ * so S3 rejects a part whose bytes were corrupted on the way.  The part size is recorded within the user
+ * metadata, so the downloads can verify the ETag, see UniversalS3Checksum.
+ */
+class UniversalS3MultipartUploader {
+    static final int MAX_PARTS = 10000;
+    static final long MAX_PART_SIZE = 5368709120L; // S3 doesn't accept parts greater than 5 GB.
+    private static final long MEGABYTE = 1048576;
+
+    private AmazonS3 s3client;
+    private ExecutorService executor;
+    private UniversalS3Settings s3Settings;
+    private File journalDirectory;
+    private UniversalS3BufferPool pool;
+    private UniversalS3Retrier retrier;
+    private final AtomicInteger retries = new AtomicInteger();
+    private long partSize;
+    private int parts;
+    private int resumedParts;
+    private UniversalS3UploadController controller;
+
+    /**
+     * This constructor creates a new uploader.
+     *
+     * @param s3client used to upload the parts.
+     * @param executor where the parts will be uploaded.
+     * @param s3Settings with the part size and the in flight limits.
+     */
+    UniversalS3MultipartUploader(AmazonS3 s3client, ExecutorService executor, UniversalS3Settings s3Settings) {
+        this(s3client, executor, s3Settings, null);
+    }
+
+    /**
+     * This constructor creates a new resumable uploader.
+     *
+     * @param s3client used to upload the parts.
+     * @param executor where the parts will be uploaded.
+     * @param s3Settings with the part size and the in flight limits.
+     * @param journalDirectory where the journals are kept, null means the upload is not resumable.
+     */
+    UniversalS3MultipartUploader(AmazonS3 s3client, ExecutorService executor, UniversalS3Settings s3Settings, 
+                File journalDirectory) {
+        this(s3client, executor, s3Settings, journalDirectory, null);
+    }
+
+    /**
+     * This constructor creates a new resumable uploader which reads the parts into pooled buffers when the
+     * integrity is verified.
+     *
+     * @param s3client used to upload the parts.
+     * @param executor where the parts will be uploaded.
+     * @param s3Settings with the part size and the in flight limits.
+     * @param journalDirectory where the journals are kept, null means the upload is not resumable.
+     * @param pool of buffers, used if its buffers fit the part size.  Otherwise, the upload creates its own pool.
+     */
+    UniversalS3MultipartUploader(AmazonS3 s3client, ExecutorService executor, UniversalS3Settings s3Settings, 
+                File journalDirectory, UniversalS3BufferPool pool) {
+        this(s3client, executor, s3Settings, journalDirectory, pool, new UniversalS3Retrier(s3Settings));
+    }
+
+    /**
+     * This constructor creates a new resumable uploader whose parts are retried by the passed retrier.
+     *
+     * @param s3client used to upload the parts.
+     * @param executor where the parts will be uploaded.
+     * @param s3Settings with the part size and the in flight limits.
+     * @param journalDirectory where the journals are kept, null means the upload is not resumable.
+     * @param pool of buffers, used if its buffers fit the part size.  Otherwise, the upload creates its own pool.
+     * @param retrier of the parts.
+     */
+    UniversalS3MultipartUploader(AmazonS3 s3client, ExecutorService executor, UniversalS3Settings s3Settings, 
+                File journalDirectory, UniversalS3BufferPool pool, UniversalS3Retrier retrier) {
+        this.s3client = s3client;
+        this.executor = executor;
+        this.s3Settings = s3Settings;
+        this.journalDirectory = journalDirectory;
+        this.pool = pool;
+        this.retrier = retrier;
+    }
+
+    /**
+     * This method uploads a file using a multipart upload.  If any part fails, the remaining parts are
+     * cancelled and the multipart upload is aborted, unless the upload is resumable.
+     *
+     * @param file to be uploaded.
+     * @param bucketName target bucket.
+     * @param key target key.
+     * @param objectMetadata sent along with every part.
+     * @return the result of the completion step.
+     * @throws Exception when any part or the completion step fails.
+     */
+    CompleteMultipartUploadResult upload(File file, String bucketName, String key, ObjectMetadata objectMetadata) throws Exception {
+        return upload(file, bucketName, key, objectMetadata, null, null);
+    }
+
+    /**
+     * This method uploads a file using a multipart upload.  The metadata, the tags and the storage class are 
+     * sent by the initiate request, so the completion step is the last request of the upload.
+     *
+     * @param file to be uploaded.
+     * @param bucketName target bucket.
+     * @param key target key.
+     * @param objectMetadata for the initiate request, i.e: the encryption, it's sent along with every part as well.
+     * @param tagging of the new object, can be null.
+     * @param storageClass of the new object, null means STANDARD.
+     * @return the result of the completion step.
+     * @throws Exception when any part or the completion step fails.
+     */
+    CompleteMultipartUploadResult upload(final File file, final String bucketName, final String key,
+                final ObjectMetadata objectMetadata, ObjectTagging tagging, StorageClass storageClass) throws Exception {
+        long contentLength = file.length();
+        long partSize = choosePartSize(contentLength, this.s3Settings);
+        Map<Integer, PartETag> uploaded = new HashMap<Integer, PartETag>();
+        UniversalS3UploadJournal resumed = this.journalDirectory == null ? null : resume(file, bucketName, key, uploaded);
+        if (resumed != null) {
+            partSize = resumed.getPartSize();
+        }
+
+        ObjectMetadata initiateMetadata = objectMetadata == null ? new ObjectMetadata() : objectMetadata.clone();
+        initiateMetadata.addUserMetadata(UniversalS3Checksum.METADATA_PART_SIZE, String.valueOf(partSize));
+        final String uploadId = resumed != null ? resumed.getUploadId() 
+                    : initiate(this.s3client, this.retrier, UniversalS3Operation.STORE_FILE, this.retries, bucketName, key, 
+                                initiateMetadata, tagging, storageClass);
+
+        final UniversalS3UploadJournal journal;
+        try {
+            journal = resumed != null || this.journalDirectory == null ? resumed 
+                        : UniversalS3UploadJournal.create(this.journalDirectory, bucketName, key, uploadId, file, partSize);
+        } catch (Exception e) {
+            abort(bucketName, key, uploadId);
+            throw e;
+        }
+
+        // The in flight bytes bound the adaptive controller as well, it can't grow past them.
+        int maxInFlightParts = (int) Math.max(1, Math.min(Integer.MAX_VALUE, this.s3Settings.getMaxInFlightBytes() / partSize));
+
+        this.partSize = partSize;
+        this.parts = (int) ((contentLength + partSize - 1) / partSize);
+        this.resumedParts = uploaded.size();
+        this.controller = this.s3Settings.isAdaptiveUpload() 
+                    ? new UniversalS3UploadController(Math.min(this.s3Settings.getUploadConcurrency(), maxInFlightParts), 
+                                Math.min(this.s3Settings.getAdaptiveMaxConcurrency(), maxInFlightParts), true)
+                    : new UniversalS3UploadController(maxInFlightParts, maxInFlightParts, false);
+
+        final UniversalS3UploadController inFlight = this.controller;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Future<PartETag>> futures = new ArrayList<Future<PartETag>>();
+
+        // Parts greater than a ByteBuffer are sent from the file, without their MD5.
+        final UniversalS3BufferPool buffers = !this.s3Settings.isVerifyIntegrity() || partSize > Integer.MAX_VALUE - 8 ? null 
+                    : (this.pool != null && this.pool.getBufferSize() >= partSize ? this.pool 
+                    : new UniversalS3BufferPool((int) partSize, maxInFlightParts));
+        RandomAccessFile raf = null;
+
+        try {
+            final FileChannel channel = buffers == null ? null : (raf = new RandomAccessFile(file, "r")).getChannel();
+            long filePosition = 0;
+            for (int i = 1; filePosition < contentLength && failure.get() == null; i++) {
+                // Last part can be less than the part size.
+                final long size = Math.min(partSize, (contentLength - filePosition));
+                final long offset = filePosition;
+                final int partNumber = i;
+
+                PartETag resumedPart = uploaded.get(partNumber);
+                if (resumedPart != null) {
+                    futures.add(CompletableFuture.completedFuture(resumedPart));
+                    filePosition += size;
+                    continue;
+                }
+
+                inFlight.acquire();
+                try {
+                    futures.add(this.executor.submit(new Callable<PartETag>() {
+                        public PartETag call() throws Exception {
+                            long start = System.nanoTime();
+                            long sent = 0;
+                            try {
+                                if (failure.get() != null) {
+                                    throw new IllegalStateException("Multipart upload was cancelled.");
+                                }
+
+                                UploadPartRequest uploadRequest = new UploadPartRequest()
+                                    .withBucketName(bucketName)
+                                    .withKey(key)
+                                    .withUploadId(uploadId).withPartNumber(partNumber)
+                                    .withObjectMetadata(objectMetadata)
+                                    .withPartSize(size);
+
+                                PartETag partETag;
+                                if (buffers == null) {
+                                    partETag = uploadPart(uploadRequest.withFileOffset(offset).withFile(file), null, inFlight);
+                                } else {
+                                    ByteBuffer buffer = buffers.acquire();
+                                    try {
+                                        UniversalS3Channels.read(channel, buffer, offset, size);
+                                        partETag = uploadPart(uploadRequest.withMD5Digest(UniversalS3Checksum.md5(buffer)), 
+                                                    buffer, inFlight);
+                                    } finally {
+                                        buffers.release(buffer);
+                                    }
+                                }
+
+                                sent = size;
+                                if (journal != null) {
+                                    try {
+                                        journal.append(partNumber, partETag.getETag());
+                                    } catch (Exception ignore) {
+                                        // ListParts still reports the part when the upload is resumed.
+                                    }
+                                }
+
+                                return partETag;
+                            } catch (Exception e) {
+                                failure.compareAndSet(null, e);
+                                throw e;
+                            } finally {
+                                inFlight.release(sent, System.nanoTime() - start);
+                            }
+                        }
+                    }));
+                } catch (RuntimeException e) {
+                    inFlight.release(0, 0);
+                    throw e;
+                }
+
+                filePosition += size;
+            }
+
+            // The futures are in part order, so the list of PartETags is in order as well.
+            List<PartETag> partETags = new ArrayList<PartETag>();
+            for (Future<PartETag> future : futures) {
+                try {
+                    partETags.add(future.get());
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+
+            CompleteMultipartUploadResult result = complete(this.s3client, this.retrier, UniversalS3Operation.STORE_FILE, 
+                    this.retries, new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags));
+            if (journal != null) {
+                journal.delete();
+            }
+
+            return result;
+        } catch (Exception e) {
+            failure.compareAndSet(null, e);
+            for (Future<PartETag> future : futures) {
+                future.cancel(true);
+            }
+
+            if (journal != null) {
+                // The upload is kept, so it can be resumed.
+                journal.close();
+            } else {
+                abort(bucketName, key, uploadId);
+            }
+
+            throw e;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (Exception ignore) {}
+            }
+        }
+    }
+
+    /**
+     * Returns the number of parts of the last upload that were already uploaded by a previous attempt.
+     */
+    int getResumedParts() {
+        return this.resumedParts;
+    }
+
+    /**
+     * Returns the part size of the last upload.
+     */
+    long getPartSize() {
+        return this.partSize;
+    }
+
+    /**
+     * Returns the number of parts of the last upload.
+     */
+    int getParts() {
+        return this.parts;
+    }
+
+    /**
+     * Returns the number of times a part was uploaded again.
+     */
+    int getRetries() {
+        return this.retries.get();
+    }
+
+    /**
+     * Returns the controller of the last upload, with the number of parts in flight it allowed.
+     */
+    UniversalS3UploadController getController() {
+        return this.controller;
+    }
+
+    /**
+     * Returns the part size for a file.  The part size is the configured one unless the file needs larger
+     * parts to fit within the max number of parts, or the adaptive upload is enabled and the file is large
+     * enough to exceed the target number of parts.  Computed part sizes are rounded up to a MB.
+     *
+     * @param length of the file.
+     * @param s3Settings with the part size and the adaptive settings.
+     * @throws IllegalStateException if the file can't be uploaded within the limits of S3.
+     */
+    static long choosePartSize(long length, UniversalS3Settings s3Settings) {
+        long partSize = Math.max(s3Settings.getPartSize(), roundUp((length + MAX_PARTS - 1) / MAX_PARTS));
+        if (s3Settings.isAdaptiveUpload()) {
+            int targetParts = s3Settings.getAdaptiveTargetParts();
+            partSize = Math.max(partSize, roundUp((length + targetParts - 1) / targetParts));
+        }
+
+        if (partSize > MAX_PART_SIZE) {
+            if ((length + MAX_PART_SIZE - 1) / MAX_PART_SIZE > MAX_PARTS) {
+                throw new IllegalStateException("The file is too large to be uploaded: " + length + " bytes.");
+            }
+
+            partSize = MAX_PART_SIZE;
+        }
+
+        return partSize;
+    }
+
+    /**
+     * This method looks for the journal of a previous upload of the file and fills the passed map with the parts
+     * that ListParts reports with the expected size.  A journal of a modified file is removed along with its upload.
+     *
+     * @return the journal of the upload to resume, null if the upload must start again.
+     */
+    private UniversalS3UploadJournal resume(File file, String bucketName, String key, Map<Integer, PartETag> uploaded) {
+        UniversalS3UploadJournal journal = UniversalS3UploadJournal.load(this.journalDirectory, bucketName, key);
+        if (journal == null) {
+            return null;
+        }
+
+        if (!journal.matches(file)) {
+            abort(bucketName, key, journal.getUploadId());
+            journal.delete();
+            return null;
+        }
+
+        long contentLength = file.length();
+        long partSize = journal.getPartSize();
+        try {
+            ListPartsRequest request = new ListPartsRequest(bucketName, key, journal.getUploadId());
+            PartListing listing;
+            do {
+                listing = this.s3client.listParts(request);
+                for (PartSummary part : listing.getParts()) {
+                    long expectedSize = Math.min(partSize, contentLength - (part.getPartNumber() - 1) * partSize);
+                    String eTag = journal.getETag(part.getPartNumber());
+                    if (expectedSize > 0 && part.getSize() == expectedSize && 
+                                (eTag == null || unquote(eTag).equals(unquote(part.getETag())))) {
+                        uploaded.put(part.getPartNumber(), new PartETag(part.getPartNumber(), part.getETag()));
+                    }
+                }
+
+                request.setPartNumberMarker(listing.getNextPartNumberMarker());
+            } while (listing.isTruncated());
+
+            return journal;
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() != 404) {
+                throw e;
+            }
+
+            // The upload was either completed, aborted or expired.
+            uploaded.clear();
+            journal.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Aborts a multipart upload, errors are ignored.
+     */
+    private void abort(String bucketName, String key, String uploadId) {
+        try {
+            this.s3client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+        } catch (Exception ignore) {}
+    }
+
+    private static String unquote(String eTag) {
+        return eTag == null ? "" : eTag.replace("\"", "");
+    }
+
+    /**
+     * Uploads a part, a part that fails with a transient error is retried after a backoff until the part 
+     * retries are exhausted.
+     *
+     * @param uploadRequest of the part.
+     * @param buffer with the content of the part, null if the part is sent from the file.
+     * @param controller notified about the throttled attempts.
+     */
+    private PartETag uploadPart(final UploadPartRequest uploadRequest, final ByteBuffer buffer, 
+                final UniversalS3UploadController controller) throws Exception {
+        return this.retrier.execute(this.s3Settings.getPartRetries(), new Callable<PartETag>() {
+            public PartETag call() {
+                if (buffer != null) {
+                    // A retry sends the buffer again from its beginning.
+                    uploadRequest.setInputStream(new UniversalS3ByteBufferInputStream(buffer.duplicate()));
+                }
+
+                try {
+                    return UniversalS3MultipartUploader.this.s3client.uploadPart(uploadRequest).getPartETag();
+                } catch (AmazonServiceException e) {
+                    if (isThrottling(e)) {
+                        controller.throttled();
+                    }
+
+                    throw e;
+                }
+            }
+        }, this.retries);
+    }
+
+    /**
+     * This method initiates a multipart upload.  The tags are sent within the tagging header, so they don't 
+     * need another request once the upload is completed.
+     *
+     * @param s3client in context.
+     * @param retrier of the request.
+     * @param operation whose budget is used.
+     * @param retries is incremented on every retry.
+     * @param bucketName target bucket.
+     * @param key target key.
+     * @param metadata of the new object.
+     * @param tagging of the new object, can be null.
+     * @param storageClass of the new object, null means STANDARD.
+     * @return the upload id.
+     */
+    static String initiate(final AmazonS3 s3client, UniversalS3Retrier retrier, UniversalS3Operation operation, 
+                AtomicInteger retries, String bucketName, String key, ObjectMetadata metadata, ObjectTagging tagging, 
+                StorageClass storageClass) throws Exception {
+        final InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(bucketName, key, metadata);
+        if (storageClass != null) {
+            request.setStorageClass(storageClass);
+        }
+
+        if (tagging != null && tagging.getTagSet() != null && !tagging.getTagSet().isEmpty()) {
+            StringBuilder header = new StringBuilder();
+            for (Tag tag : tagging.getTagSet()) {
+                if (header.length() > 0) {
+                    header.append('&');
+                }
+
+                header.append(SdkHttpUtils.urlEncode(tag.getKey(), false)).append('=')
+                      .append(SdkHttpUtils.urlEncode(tag.getValue(), false));
+            }
+
+            request.putCustomRequestHeader(Headers.S3_TAGGING, header.toString());
+        }
+
+        return retrier.execute(operation, new Callable<String>() {
+            public String call() {
+                return s3client.initiateMultipartUpload(request).getUploadId();
+            }
+        }, retries);
+    }
+
+    /**
+     * This method completes a multipart upload.
+     *
+     * @param s3client in context.
+     * @param retrier of the request.
+     * @param operation whose budget is used.
+     * @param retries is incremented on every retry.
+     * @param request with the parts of the upload.
+     * @return the result of the completion step.
+     */
+    static CompleteMultipartUploadResult complete(final AmazonS3 s3client, UniversalS3Retrier retrier, 
+                UniversalS3Operation operation, AtomicInteger retries, final CompleteMultipartUploadRequest request) 
+                throws Exception {
+        return retrier.execute(operation, new Callable<CompleteMultipartUploadResult>() {
+            public CompleteMultipartUploadResult call() {
+                return s3client.completeMultipartUpload(request);
+            }
+        }, retries);
+    }
+
+    /**
+     * Returns true if the error means that S3 is asking to reduce the request rate.
+     */
+    static boolean isThrottling(AmazonServiceException e) {
+        return e.getStatusCode() == 503 || e.getStatusCode() == 429 || "SlowDown".equals(e.getErrorCode());
+    }
+
+    /**
+     * Rounds up the passed size to a MB.
+     */
+    private static long roundUp(long size) {
+        return ((size + MEGABYTE - 1) / MEGABYTE) * MEGABYTE;
+    }
+}
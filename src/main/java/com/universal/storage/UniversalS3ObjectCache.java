@@ -0,0 +1,323 @@
+package com.universal.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class is a persistent, size-bounded local cache of objects keyed by bucket, key and ETag.
+ *
+ * Every entry is stored as a data file plus a small properties file with its bucket, key and ETag, so the
+ * cache survives restarts.  When the total size of the entries exceeds the byte budget, the least recently
+ * used entries are evicted.
+ */
+class UniversalS3ObjectCache {
+    private static final String DATA_EXTENSION = ".data";
+    private static final String META_EXTENSION = ".meta";
+
+    private final File directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long totalBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * This constructor creates a new cache and loads the entries already stored within the directory.
+     *
+     * @param directory where the entries are stored.
+     * @param maxBytes budget of this cache.
+     */
+    UniversalS3ObjectCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        load();
+    }
+
+    /**
+     * Returns the cached entry of an object, null if the object is not cached.
+     *
+     * @param bucketName in context.
+     * @param key in context.
+     */
+    synchronized Entry get(String bucketName, String key) {
+        Entry entry = this.entries.get(UniversalS3Keys.id(bucketName, key));
+        if (entry != null && !entry.getFile().exists()) {
+            remove(entry);
+            return null;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Returns a new temporary file within the cache directory, the file should be passed to the method put.
+     */
+    File createTempFile() throws IOException {
+        FileUtils.forceMkdir(this.directory);
+        return File.createTempFile("download", ".tmp", this.directory);
+    }
+
+    /**
+     * This method stores a downloaded object within the cache, the least recently used entries are evicted
+     * if the budget is exceeded.  An object greater than the budget is not cached.
+     *
+     * @param bucketName in context.
+     * @param key in context.
+     * @param eTag of the downloaded object.
+     * @param downloaded file created through the method createTempFile.
+     * @return the new entry, null if the object was not cached.
+     */
+    synchronized Entry put(String bucketName, String key, String eTag, File downloaded) throws IOException {
+        String id = UniversalS3Keys.id(bucketName, key);
+        Entry previous = this.entries.get(id);
+        if (previous != null) {
+            remove(previous);
+        }
+
+        if (downloaded.length() > this.maxBytes || eTag == null) {
+            downloaded.delete();
+            return null;
+        }
+
+        File data = new File(this.directory, id + DATA_EXTENSION);
+        data.delete();
+        if (!downloaded.renameTo(data)) {
+            downloaded.delete();
+            return null;
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty("bucket", bucketName);
+        properties.setProperty("key", key);
+        properties.setProperty("etag", eTag);
+        OutputStream out = new FileOutputStream(new File(this.directory, id + META_EXTENSION));
+        try {
+            properties.store(out, null);
+        } finally {
+            out.close();
+        }
+
+        Entry entry = new Entry(id, bucketName, key, eTag, data, data.length());
+        this.entries.put(id, entry);
+        this.totalBytes += entry.getSize();
+
+        Iterator<Entry> iterator = this.entries.values().iterator();
+        while (this.totalBytes > this.maxBytes && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            if (eldest != entry) {
+                iterator.remove();
+                delete(eldest);
+                this.evictions.incrementAndGet();
+            }
+        }
+
+        return entry;
+    }
+
+    /**
+     * This method marks an entry as recently used, the last modified date of its file is updated
+     * so the order is kept after a restart.
+     *
+     * @param entry in context.
+     */
+    void touch(Entry entry) {
+        entry.getFile().setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * This method removes the cached entry of an object.
+     *
+     * @param bucketName in context.
+     * @param key in context.
+     */
+    synchronized void invalidate(String bucketName, String key) {
+        Entry entry = this.entries.get(UniversalS3Keys.id(bucketName, key));
+        if (entry != null) {
+            remove(entry);
+        }
+    }
+
+    /**
+     * This method removes the cached entries of every object under the passed prefix.
+     *
+     * @param bucketName in context.
+     * @param prefix in context.
+     */
+    synchronized void invalidatePrefix(String bucketName, String prefix) {
+        for (Iterator<Entry> iterator = this.entries.values().iterator(); iterator.hasNext();) {
+            Entry entry = iterator.next();
+            if (bucketName.equals(entry.getBucketName()) && entry.getKey() != null && entry.getKey().startsWith(prefix)) {
+                iterator.remove();
+                delete(entry);
+            }
+        }
+    }
+
+    /**
+     * This method counts a request served from the cache.
+     */
+    void hit() {
+        this.hits.incrementAndGet();
+    }
+
+    /**
+     * This method counts a request that needed to download the object.
+     */
+    void miss() {
+        this.misses.incrementAndGet();
+    }
+
+    /**
+     * Returns a snapshot of the counters of this cache.
+     */
+    synchronized UniversalS3CacheStatistics getStatistics() {
+        return new UniversalS3CacheStatistics(this.hits.get(), this.misses.get(), this.evictions.get(),
+                    this.entries.size(), this.totalBytes, this.maxBytes);
+    }
+
+    /**
+     * Removes an entry and its files.
+     */
+    private void remove(Entry entry) {
+        this.entries.remove(entry.getId());
+        delete(entry);
+    }
+
+    /**
+     * Deletes the files of an entry.
+     */
+    private void delete(Entry entry) {
+        this.totalBytes -= entry.getSize();
+        entry.getFile().delete();
+        new File(this.directory, entry.getId() + META_EXTENSION).delete();
+    }
+
+    /**
+     * This method loads the entries stored within the directory, ordered by last use.
+     */
+    private void load() {
+        File[] files = this.directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".tmp")) {
+                file.delete();
+                continue;
+            }
+
+            if (!name.endsWith(DATA_EXTENSION)) {
+                continue;
+            }
+
+            String id = name.substring(0, name.length() - DATA_EXTENSION.length());
+            File meta = new File(this.directory, id + META_EXTENSION);
+            Properties properties = new Properties();
+            try {
+                InputStream in = new FileInputStream(meta);
+                try {
+                    properties.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                file.delete();
+                meta.delete();
+                continue;
+            }
+
+            Entry entry = new Entry(id, properties.getProperty("bucket"), properties.getProperty("key"), 
+                        properties.getProperty("etag"), file, file.length());
+            this.entries.put(id, entry);
+            this.totalBytes += entry.getSize();
+        }
+    }
+
+    /**
+     * This class represents a cached object.
+     */
+    static class Entry {
+        private final String id;
+        private final String bucketName;
+        private final String key;
+        private final String eTag;
+        private final File file;
+        private final long size;
+
+        Entry(String id, String bucketName, String key, String eTag, File file, long size) {
+            this.id = id;
+            this.bucketName = bucketName;
+            this.key = key;
+            this.eTag = eTag;
+            this.file = file;
+            this.size = size;
+        }
+
+        String getId() {
+            return this.id;
+        }
+
+        String getBucketName() {
+            return this.bucketName;
+        }
+
+        String getKey() {
+            return this.key;
+        }
+
+        String getETag() {
+            return this.eTag;
+        }
+
+        File getFile() {
+            return this.file;
+        }
+
+        long getSize() {
+            return this.size;
+        }
+    }
+}
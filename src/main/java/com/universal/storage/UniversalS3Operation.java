@@ -0,0 +1,48 @@
+package com.universal.storage;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This enum represents the kinds of operation measured by the metrics of the storage.
+ */
+public enum UniversalS3Operation {
+    STORE_FILE,
+    STORE_STREAM,
+    FLUSH_PACK,
+    RETRIEVE_FILE,
+    RETRIEVE_STREAM,
+    RETRIEVE_CHANNEL,
+    READ_RANGE,
+    REMOVE_FILE,
+    COPY_FILE,
+    MOVE_FILE,
+    CREATE_FOLDER,
+    REMOVE_FOLDER,
+    COPY_FOLDER,
+    MOVE_FOLDER,
+    GET_METADATA,
+    LIST_FILES,
+    SYNC_TO_STORAGE,
+    SYNC_FROM_STORAGE,
+    WIPE
+}
@@ -0,0 +1,117 @@
+package com.universal.storage;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class represents a snapshot of the metrics of a kind of operation.  The latencies are in nanoseconds, 
+ * the percentiles are approximated by a log-linear histogram with an error lesser than 12.5%.
+ */
+public class UniversalS3OperationMetrics {
+    private final UniversalS3Operation operation;
+    private final long count;
+    private final long failures;
+    private final long bytes;
+    private final long parts;
+    private final long retries;
+    private final int inFlight;
+    private final long p50;
+    private final long p99;
+    private final long max;
+
+    /**
+     * This constructor creates a new snapshot.
+     *
+     * @param operation the kind of operation.
+     * @param count finished operations.
+     * @param failures operations that threw an error.
+     * @param bytes transferred.
+     * @param parts uploaded or downloaded.
+     * @param retries of requests.
+     * @param inFlight operations running when the snapshot was taken.
+     * @param p50 median latency.
+     * @param p99 99th percentile latency.
+     * @param max latency.
+     */
+    public UniversalS3OperationMetrics(UniversalS3Operation operation, long count, long failures, long bytes, long parts, 
+                long retries, int inFlight, long p50, long p99, long max) {
+        this.operation = operation;
+        this.count = count;
+        this.failures = failures;
+        this.bytes = bytes;
+        this.parts = parts;
+        this.retries = retries;
+        this.inFlight = inFlight;
+        this.p50 = p50;
+        this.p99 = p99;
+        this.max = max;
+    }
+
+    public UniversalS3Operation getOperation() {
+        return this.operation;
+    }
+
+    public long getCount() {
+        return this.count;
+    }
+
+    public long getFailures() {
+        return this.failures;
+    }
+
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    public long getParts() {
+        return this.parts;
+    }
+
+    public long getRetries() {
+        return this.retries;
+    }
+
+    public int getInFlight() {
+        return this.inFlight;
+    }
+
+    public long getP50() {
+        return this.p50;
+    }
+
+    public long getP99() {
+        return this.p99;
+    }
+
+    public long getMax() {
+        return this.max;
+    }
+
+    public String toString() {
+        return this.operation + ": count=" + this.count + ", failures=" + this.failures + ", bytes=" + this.bytes + 
+                    ", parts=" + this.parts + ", retries=" + this.retries + ", inFlight=" + this.inFlight + 
+                    ", p50=" + TimeUnit.NANOSECONDS.toMillis(this.p50) + "ms, p99=" + TimeUnit.NANOSECONDS.toMillis(this.p99) + 
+                    "ms, max=" + TimeUnit.NANOSECONDS.toMillis(this.max) + "ms";
+    }
+}
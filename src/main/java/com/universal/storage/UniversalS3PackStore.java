@@ -0,0 +1,950 @@
+package com.universal.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.IOUtils;
+import com.universal.error.UniversalIOException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.DeleteObjectRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.ObjectTagging;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.StorageClass;
+import com.amazonaws.services.s3.model.Tag;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class packs small files into larger pack objects, so storing a small file doesn't cost a request.
+ *
+ * The files are appended to a pending pack in memory, which is uploaded using a single PUT when it reaches
+ * the max pack size or when it's flushed.  A pack object holds the content of its files followed by an
+ * index (key, offset, length and MD5 of every file) and a fixed trailer with the offset of the index:
+ *
+ * [content][count, (key, offset, length, md5) * count][index offset (8 bytes), magic (4 bytes)]
+ *
+ * The indexes of the packs under the pack prefix are loaded and cached, so reading a packed file costs a
+ * single ranged GET.  The packs are named after their creation time, a file stored again in a newer pack
+ * shadows the older copy.  Removing a packed file stores an empty tombstone next to its pack, and a pack
+ * whose dead bytes exceed the compaction ratio is rewritten in the background with its live files only.
+ */
+class UniversalS3PackStore {
+    static final String PACK_EXTENSION = ".pack";
+    static final String DELETED_SUFFIX = ".deleted/";
+
+    private static final int MAGIC = 0x55535031;
+    private static final int TRAILER_SIZE = 12;
+
+    private final AmazonS3 s3client;
+    private final UniversalS3Settings s3Settings;
+    private final UniversalStorage storage;
+    private final String bucketName;
+    private final String prefix;
+    private final boolean encryption;
+    private final StorageClass storageClass;
+    private final List<Tag> tags;
+    private final UniversalS3Retrier retrier;
+
+    private LinkedHashMap<String, byte[]> pending = new LinkedHashMap<String, byte[]>();
+    private Map<String, byte[]> flushing = new HashMap<String, byte[]>();
+    private Set<String> removedWhileFlushing = new HashSet<String>();
+    private long pendingBytes;
+    private final Object flushLock = new Object();
+
+    private final TreeMap<String, Pack> packs = new TreeMap<String, Pack>();
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final Set<String> compacting = new HashSet<String>();
+    private long refreshed;
+    private ExecutorService compactor;
+    private final AtomicInteger compactions = new AtomicInteger();
+
+    /**
+     * This constructor creates a new pack store, the indexes are loaded by the first lookup.
+     *
+     * @param s3client used to store and read the packs.
+     * @param s3Settings with the pack settings.
+     * @param storage whose error listeners are notified about failed compactions.
+     * @param bucketName root bucket.
+     * @param encryption true if the packs are encrypted by S3.
+     * @param storageClass of the packs.
+     * @param tags of the packs.
+     * @param retrier of the requests.
+     */
+    UniversalS3PackStore(AmazonS3 s3client, UniversalS3Settings s3Settings, UniversalStorage storage, String bucketName,
+                boolean encryption, StorageClass storageClass, List<Tag> tags, UniversalS3Retrier retrier) {
+        this.s3client = s3client;
+        this.s3Settings = s3Settings;
+        this.storage = storage;
+        this.bucketName = bucketName;
+        this.prefix = s3Settings.getPackPrefix() + "/";
+        this.encryption = encryption;
+        this.storageClass = storageClass;
+        this.tags = tags;
+        this.retrier = retrier;
+    }
+
+    /**
+     * This method appends a file to the pending pack, a pending file with the same key is replaced.
+     *
+     * @param key of the file within the root.
+     * @param content of the file.
+     * @return true if the pending pack reached the max pack size and should be flushed.
+     */
+    synchronized boolean add(String key, byte[] content) {
+        byte[] previous = this.pending.remove(key);
+        if (previous != null) {
+            this.pendingBytes -= previous.length;
+        }
+
+        this.pending.put(key, content);
+        this.pendingBytes += content.length;
+        return this.pendingBytes >= this.s3Settings.getPackMaxSize();
+    }
+
+    /**
+     * Returns true if a file is waiting to be flushed.
+     */
+    synchronized boolean hasPending() {
+        return !this.pending.isEmpty();
+    }
+
+    /**
+     * This method uploads the pending pack using a single PUT.  If the upload fails, the files are kept
+     * pending so the next flush retries them.
+     *
+     * @return the entries of the new pack, empty if nothing was pending.  The files removed during the 
+     * upload are not returned.
+     * @throws Exception when the pack can't be uploaded.
+     */
+    List<Entry> flush() throws Exception {
+        synchronized (this.flushLock) {
+            Map<String, byte[]> batch;
+            synchronized (this) {
+                if (this.pending.isEmpty()) {
+                    return new ArrayList<Entry>();
+                }
+
+                batch = this.pending;
+                this.flushing = batch;
+                this.pending = new LinkedHashMap<String, byte[]>();
+                this.pendingBytes = 0;
+            }
+
+            Pack pack;
+            try {
+                pack = upload(newPackKey(String.format("%013d", System.currentTimeMillis())), batch);
+            } catch (Exception e) {
+                synchronized (this) {
+                    for (Map.Entry<String, byte[]> file : batch.entrySet()) {
+                        if (!this.pending.containsKey(file.getKey()) && !this.removedWhileFlushing.contains(file.getKey())) {
+                            this.pending.put(file.getKey(), file.getValue());
+                            this.pendingBytes += file.getValue().length;
+                        }
+                    }
+
+                    this.flushing = new HashMap<String, byte[]>();
+                    this.removedWhileFlushing = new HashSet<String>();
+                }
+
+                throw e;
+            }
+
+            // The files removed while the pack was being uploaded get a tombstone next to the new pack.
+            List<Entry> stored = new ArrayList<Entry>();
+            List<String> removed = new ArrayList<String>();
+            synchronized (this) {
+                this.packs.put(pack.getKey(), pack);
+                for (Entry entry : pack.getEntries()) {
+                    if (this.removedWhileFlushing.contains(entry.getKey())) {
+                        pack.getDeleted().add(UniversalS3Keys.id(this.bucketName, entry.getKey()));
+                        removed.add(entry.getKey());
+                    } else {
+                        this.entries.put(entry.getKey(), entry);
+                        stored.add(entry);
+                    }
+                }
+
+                this.flushing = new HashMap<String, byte[]>();
+                this.removedWhileFlushing = new HashSet<String>();
+            }
+
+            for (String key : removed) {
+                putTombstone(pack, key);
+            }
+
+            if (!removed.isEmpty()) {
+                maybeCompact(pack);
+            }
+
+            return stored;
+        }
+    }
+
+    /**
+     * Returns the content of a file that is waiting to be flushed, null if the file is not pending.
+     *
+     * @param key of the file within the root.
+     */
+    synchronized byte[] getPending(String key) {
+        byte[] content = this.pending.get(key);
+        return content != null || this.removedWhileFlushing.contains(key) ? content : this.flushing.get(key);
+    }
+
+    /**
+     * Returns the entry of a packed file, null if the file is not packed.  The indexes are loaded again 
+     * when the index TTL has expired, so the packs of other writers are found.
+     *
+     * @param key of the file within the root.
+     * @throws Exception when the indexes can't be loaded.
+     */
+    Entry lookup(String key) throws Exception {
+        refreshIfExpired();
+        synchronized (this) {
+            return this.entries.get(key);
+        }
+    }
+
+    /**
+     * Returns the keys of the pending and packed files that start with the passed prefix.
+     *
+     * @param prefix in context.
+     */
+    List<String> list(String prefix) throws Exception {
+        refreshIfExpired();
+        Set<String> keys = new TreeSet<String>();
+        synchronized (this) {
+            for (String key : this.pending.keySet()) {
+                if (key.startsWith(prefix)) {
+                    keys.add(key);
+                }
+            }
+
+            for (String key : this.flushing.keySet()) {
+                if (key.startsWith(prefix) && !this.removedWhileFlushing.contains(key)) {
+                    keys.add(key);
+                }
+            }
+
+            for (String key : this.entries.keySet()) {
+                if (key.startsWith(prefix)) {
+                    keys.add(key);
+                }
+            }
+        }
+
+        return new ArrayList<String>(keys);
+    }
+
+    /**
+     * Returns the metadata of a packed file, either pending or stored, null if the file is not packed.
+     *
+     * @param key of the file within the root.
+     * @throws Exception when the indexes can't be loaded.
+     */
+    ObjectMetadata getMetadata(String key) throws Exception {
+        byte[] content = getPending(key);
+        ObjectMetadata metadata = new ObjectMetadata();
+        if (content != null) {
+            metadata.setContentLength(content.length);
+            metadata.setHeader("ETag", toHex(md5(content)));
+            return metadata;
+        }
+
+        Entry entry = lookup(key);
+        if (entry == null) {
+            return null;
+        }
+
+        metadata.setContentLength(entry.getLength());
+        metadata.setHeader("ETag", toHex(entry.getMd5()));
+        metadata.setLastModified(entry.getPack().getLastModified());
+        return metadata;
+    }
+
+    /**
+     * This method reads a packed file using a single ranged GET, the content is checked against its MD5.
+     * If the pack was removed by a compaction meanwhile, the file is read from the new pack.
+     *
+     * @param entry of the file.
+     * @return the content of the file.
+     * @throws IOException when the content doesn't match its MD5.
+     */
+    byte[] read(Entry entry) throws IOException {
+        if (entry.getLength() == 0) {
+            return new byte[0];
+        }
+
+        byte[] content;
+        try {
+            content = readRange(entry.getPack().getKey(), entry.getOffset(), entry.getLength());
+        } catch (AmazonS3Exception e) {
+            Entry current;
+            synchronized (this) {
+                current = this.entries.get(entry.getKey());
+            }
+
+            // The compaction moves the live entries to the new pack before removing the old one.
+            if (e.getStatusCode() != 404 || current == null || current == entry) {
+                throw e;
+            }
+
+            return read(current);
+        }
+
+        if (!Arrays.equals(entry.getMd5(), md5(content))) {
+            throw new IOException("The content of " + entry.getKey() + " doesn't match its checksum.");
+        }
+
+        return content;
+    }
+
+    /**
+     * This method removes a packed file.  A pending file is dropped, a file being flushed gets a tombstone
+     * once its pack is uploaded, a stored file gets a tombstone next to its pack and the pack is compacted 
+     * if its dead bytes exceed the compaction ratio.
+     *
+     * @param key of the file within the root.
+     * @return true if the file was packed.
+     * @throws Exception when the tombstone can't be stored.
+     */
+    boolean remove(String key) throws Exception {
+        boolean removed = false;
+        synchronized (this) {
+            byte[] previous = this.pending.remove(key);
+            if (previous != null) {
+                this.pendingBytes -= previous.length;
+                removed = true;
+            }
+
+            if (this.flushing.containsKey(key)) {
+                this.removedWhileFlushing.add(key);
+                removed = true;
+            }
+        }
+
+        refreshIfExpired();
+
+        Entry entry;
+        synchronized (this) {
+            entry = this.entries.remove(key);
+        }
+
+        if (entry == null) {
+            return removed;
+        }
+
+        // The compaction of a pack holds its lock, so a tombstone is never stored next to a pack being replaced.
+        Pack pack = entry.getPack();
+        synchronized (pack) {
+            boolean compacted;
+            String id = UniversalS3Keys.id(this.bucketName, key);
+            synchronized (this) {
+                compacted = this.packs.get(pack.getKey()) != pack;
+                if (!compacted) {
+                    // A refresh while the tombstone is being stored doesn't restore the file.
+                    pack.getDeleted().add(id);
+                }
+            }
+
+            if (compacted) {
+                // The pack was compacted meanwhile, the new pack already has the tombstone.
+                return true;
+            }
+
+            try {
+                putTombstone(pack, key);
+            } catch (Exception e) {
+                synchronized (this) {
+                    pack.getDeleted().remove(id);
+                    if (!this.entries.containsKey(key)) {
+                        this.entries.put(key, entry);
+                    }
+                }
+
+                throw e;
+            }
+        }
+
+        maybeCompact(pack);
+        return true;
+    }
+
+    /**
+     * This method forgets the cached indexes and the pending files, this method should be called after 
+     * wiping the root bucket.
+     */
+    synchronized void clear() {
+        this.pending.clear();
+        this.pendingBytes = 0;
+        this.packs.clear();
+        this.entries.clear();
+        this.refreshed = 0;
+    }
+
+    /**
+     * Returns the number of packs rewritten or removed by the compaction.
+     */
+    int getCompactions() {
+        return this.compactions.get();
+    }
+
+    /**
+     * This method waits until the compactions submitted so far are finished.
+     */
+    void awaitCompactions() throws Exception {
+        ExecutorService executor;
+        synchronized (this) {
+            executor = this.compactor;
+        }
+
+        if (executor != null) {
+            executor.submit(new Runnable() {
+                public void run() {}
+            }).get();
+        }
+    }
+
+    /**
+     * This method stops the background compaction, a running compaction finishes.
+     */
+    synchronized void close() {
+        if (this.compactor != null) {
+            this.compactor.shutdown();
+        }
+    }
+
+    /**
+     * This method waits until the running compaction, if any, is finished, see close.  An interrupted wait
+     * returns with the interrupt status set.
+     */
+    void awaitTermination() {
+        ExecutorService executor;
+        synchronized (this) {
+            executor = this.compactor;
+        }
+
+        if (executor != null) {
+            UniversalS3Storage.awaitTermination(executor);
+        }
+    }
+
+    /**
+     * This method loads the indexes of the packs again if the index TTL has expired.
+     */
+    private void refreshIfExpired() throws Exception {
+        synchronized (this) {
+            if (this.refreshed != 0 && System.currentTimeMillis() - this.refreshed < this.s3Settings.getPackIndexTtl()) {
+                return;
+            }
+        }
+
+        refresh();
+    }
+
+    /**
+     * This method lists the packs and their tombstones, loads the indexes of the new packs and rebuilds the
+     * map of packed files.  A pack is immutable, so an index already loaded is never read again.  The packs
+     * stored or removed by this store while listing are merged, so a pack just flushed is never hidden.
+     */
+    private void refresh() throws Exception {
+        // The packs known before the listing, so the packs stored or removed during the listing are told apart.
+        Set<String> known;
+        synchronized (this) {
+            known = new HashSet<String>(this.packs.keySet());
+        }
+
+        Map<String, S3ObjectSummary> listed = new TreeMap<String, S3ObjectSummary>();
+        Map<String, Set<String>> tombstones = new HashMap<String, Set<String>>();
+        ObjectListing listing = this.s3client.listObjects(new ListObjectsRequest().withBucketName(this.bucketName).withPrefix(this.prefix));
+        while (true) {
+            for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+                String key = summary.getKey();
+                int index = key.indexOf(PACK_EXTENSION + DELETED_SUFFIX);
+                if (index != -1) {
+                    String packKey = key.substring(0, index + PACK_EXTENSION.length());
+                    if (!tombstones.containsKey(packKey)) {
+                        tombstones.put(packKey, new HashSet<String>());
+                    }
+
+                    tombstones.get(packKey).add(key.substring(index + PACK_EXTENSION.length() + DELETED_SUFFIX.length()));
+                } else if (key.endsWith(PACK_EXTENSION)) {
+                    listed.put(key, summary);
+                }
+            }
+
+            if (!listing.isTruncated()) {
+                break;
+            }
+
+            listing = this.s3client.listNextBatchOfObjects(listing);
+        }
+
+        Map<String, Pack> loaded = new HashMap<String, Pack>();
+        for (S3ObjectSummary summary : listed.values()) {
+            Pack pack;
+            synchronized (this) {
+                pack = this.packs.get(summary.getKey());
+            }
+
+            loaded.put(summary.getKey(), pack != null ? pack : load(summary));
+        }
+
+        List<Pack> candidates = new ArrayList<Pack>();
+        synchronized (this) {
+            // The packs stored meanwhile are kept and the packs compacted meanwhile are not loaded again.
+            for (String key : known) {
+                if (!this.packs.containsKey(key)) {
+                    loaded.remove(key);
+                }
+            }
+
+            for (Pack pack : this.packs.values()) {
+                if (!known.contains(pack.getKey())) {
+                    loaded.put(pack.getKey(), pack);
+                }
+            }
+
+            this.packs.clear();
+            this.entries.clear();
+            for (Pack pack : loaded.values()) {
+                if (pack != null) {
+                    this.packs.put(pack.getKey(), pack);
+                    if (tombstones.containsKey(pack.getKey())) {
+                        pack.getDeleted().addAll(tombstones.get(pack.getKey()));
+                    }
+                }
+            }
+
+            // The packs are sorted by creation time, so a newer copy of a file replaces the older one.
+            for (Pack pack : this.packs.values()) {
+                for (Entry entry : pack.getEntries()) {
+                    if (!pack.getDeleted().contains(UniversalS3Keys.id(this.bucketName, entry.getKey()))) {
+                        this.entries.put(entry.getKey(), entry);
+                    } else {
+                        this.entries.remove(entry.getKey());
+                    }
+                }
+            }
+
+            candidates.addAll(this.packs.values());
+            this.refreshed = System.currentTimeMillis();
+        }
+
+        for (Pack pack : candidates) {
+            maybeCompact(pack);
+        }
+    }
+
+    /**
+     * This method reads the index of a pack using two ranged GETs, the trailer and the index.
+     *
+     * @return the pack, null if the object is not a valid pack.
+     */
+    private Pack load(S3ObjectSummary summary) throws IOException {
+        long size = summary.getSize();
+        if (size < TRAILER_SIZE + 4) {
+            return null;
+        }
+
+        DataInputStream trailer = new DataInputStream(new ByteArrayInputStream(
+                    readRange(summary.getKey(), size - TRAILER_SIZE, TRAILER_SIZE)));
+        long indexOffset = trailer.readLong();
+        if (trailer.readInt() != MAGIC || indexOffset < 0 || indexOffset > size - TRAILER_SIZE - 4) {
+            return null;
+        }
+
+        Pack pack = new Pack(summary.getKey(), indexOffset, summary.getLastModified());
+        DataInputStream index = new DataInputStream(new ByteArrayInputStream(
+                    readRange(summary.getKey(), indexOffset, size - TRAILER_SIZE - indexOffset)));
+        int count = index.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = index.readUTF();
+            long offset = index.readLong();
+            long length = index.readLong();
+            byte[] md5 = new byte[16];
+            index.readFully(md5);
+            pack.getEntries().add(new Entry(key, pack, offset, length, md5));
+        }
+
+        return pack;
+    }
+
+    /**
+     * This method submits the compaction of a pack if its dead bytes exceed the compaction ratio.  The dead
+     * bytes are the files removed or stored again in a newer pack.
+     */
+    private void maybeCompact(final Pack pack) {
+        synchronized (this) {
+            if (this.compacting.contains(pack.getKey()) || this.packs.get(pack.getKey()) != pack) {
+                return;
+            }
+
+            long live = 0;
+            int liveEntries = 0;
+            for (Entry entry : pack.getEntries()) {
+                if (this.entries.get(entry.getKey()) == entry) {
+                    live += entry.getLength();
+                    liveEntries++;
+                }
+            }
+
+            long total = pack.getDataBytes();
+            if (liveEntries == pack.getEntries().size() || 
+                        (liveEntries > 0 && (total - live) * 100 < total * this.s3Settings.getPackCompactionPercent())) {
+                return;
+            }
+
+            if (this.compactor == null) {
+                this.compactor = Executors.newSingleThreadExecutor(new UniversalS3ThreadFactory("universal-s3-pack"));
+            }
+
+            if (this.compactor.isShutdown()) {
+                return;
+            }
+
+            this.compacting.add(pack.getKey());
+            this.compactor.submit(new Callable<Void>() {
+                public Void call() {
+                    try {
+                        compact(pack);
+                    } catch (Exception e) {
+                        UniversalS3PackStore.this.storage.triggerOnErrorListeners(
+                                    new UniversalIOException(pack.getKey() + ": " + e.getMessage()));
+                    } finally {
+                        synchronized (UniversalS3PackStore.this) {
+                            UniversalS3PackStore.this.compacting.remove(pack.getKey());
+                        }
+                    }
+
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * This method rewrites a pack with its live files, then removes the old pack and its tombstones.  The new
+     * pack keeps the creation time of the old one, so the newer packs still replace its files.  The lock of
+     * the pack is held meanwhile, so the files being removed wait for the new pack.
+     */
+    private void compact(Pack pack) throws Exception {
+        synchronized (pack) {
+            rewrite(pack);
+        }
+    }
+
+    /**
+     * This method rewrites a pack, the caller holds the lock of the pack.
+     */
+    private void rewrite(Pack pack) throws Exception {
+        List<Entry> live = new ArrayList<Entry>();
+        synchronized (this) {
+            for (Entry entry : pack.getEntries()) {
+                if (this.entries.get(entry.getKey()) == entry) {
+                    live.add(entry);
+                }
+            }
+        }
+
+        if (!live.isEmpty()) {
+            byte[] content = readRange(pack.getKey(), 0, pack.getDataBytes());
+            LinkedHashMap<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+            for (Entry entry : live) {
+                files.put(entry.getKey(), Arrays.copyOfRange(content, (int) entry.getOffset(), (int) (entry.getOffset() + entry.getLength())));
+            }
+
+            String name = pack.getKey().substring(this.prefix.length());
+            Pack compacted = upload(newPackKey(name.substring(0, name.indexOf('-'))), files);
+
+            // The files removed while the pack was being rewritten get a tombstone next to the new pack.
+            List<String> removed = new ArrayList<String>();
+            synchronized (this) {
+                this.packs.put(compacted.getKey(), compacted);
+                for (Entry entry : compacted.getEntries()) {
+                    Entry current = this.entries.get(entry.getKey());
+                    if (current != null && current.getPack() == pack) {
+                        this.entries.put(entry.getKey(), entry);
+                    } else if (current == null) {
+                        compacted.getDeleted().add(UniversalS3Keys.id(this.bucketName, entry.getKey()));
+                        removed.add(entry.getKey());
+                    }
+                }
+            }
+
+            for (String key : removed) {
+                putTombstone(compacted, key);
+            }
+        }
+
+        synchronized (this) {
+            this.packs.remove(pack.getKey());
+        }
+
+        final DeleteObjectRequest request = new DeleteObjectRequest(this.bucketName, pack.getKey());
+        this.retrier.execute(UniversalS3Operation.REMOVE_FILE, new Callable<Void>() {
+            public Void call() {
+                UniversalS3PackStore.this.s3client.deleteObject(request);
+                return null;
+            }
+        }, null);
+        new UniversalS3BatchDeleter(this.s3client, this.s3Settings, this.storage).deleteObjects(this.bucketName, 
+                    pack.getKey() + DELETED_SUFFIX);
+        this.compactions.incrementAndGet();
+    }
+
+    /**
+     * This method uploads a pack with the passed files.
+     */
+    private Pack upload(String packKey, Map<String, byte[]> files) throws Exception {
+        Pack pack = new Pack(packKey, 0, new Date());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            pack.getEntries().add(new Entry(file.getKey(), pack, out.size(), file.getValue().length, md5(file.getValue())));
+            out.write(file.getValue());
+        }
+
+        long indexOffset = out.size();
+        pack.setDataBytes(indexOffset);
+
+        DataOutputStream index = new DataOutputStream(out);
+        index.writeInt(pack.getEntries().size());
+        for (Entry entry : pack.getEntries()) {
+            index.writeUTF(entry.getKey());
+            index.writeLong(entry.getOffset());
+            index.writeLong(entry.getLength());
+            index.write(entry.getMd5());
+        }
+
+        index.writeLong(indexOffset);
+        index.writeInt(MAGIC);
+        index.flush();
+
+        byte[] bytes = out.toByteArray();
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setContentLength(bytes.length);
+        if (this.encryption) {
+            objectMetadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+        }
+
+        final PutObjectRequest request = new PutObjectRequest(this.bucketName, packKey, (InputStream) null, objectMetadata);
+        request.setTagging(new ObjectTagging(this.tags));
+        request.setStorageClass(this.storageClass);
+        putObject(UniversalS3Operation.FLUSH_PACK, request, bytes);
+
+        return pack;
+    }
+
+    /**
+     * This method stores an empty tombstone for a file of a pack.
+     */
+    private void putTombstone(Pack pack, String key) throws Exception {
+        String id = UniversalS3Keys.id(this.bucketName, key);
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setContentLength(0);
+        putObject(UniversalS3Operation.REMOVE_FILE, new PutObjectRequest(this.bucketName, pack.getKey() + DELETED_SUFFIX + id, 
+                    (InputStream) null, objectMetadata), new byte[0]);
+
+        synchronized (this) {
+            pack.getDeleted().add(id);
+        }
+    }
+
+    /**
+     * Stores an object, a retry sends the content again from its beginning.
+     */
+    private void putObject(UniversalS3Operation operation, final PutObjectRequest request, final byte[] content) throws Exception {
+        this.retrier.execute(operation, new Callable<Void>() {
+            public Void call() {
+                request.setInputStream(new ByteArrayInputStream(content));
+                UniversalS3PackStore.this.s3client.putObject(request);
+                return null;
+            }
+        }, null);
+    }
+
+    /**
+     * Returns the bytes of a range of an object, a GET that fails or ends prematurely is retried.
+     */
+    private byte[] readRange(final String key, final long offset, final long length) throws IOException {
+        try {
+            return this.retrier.execute(UniversalS3Operation.READ_RANGE, new Callable<byte[]>() {
+                public byte[] call() throws IOException {
+                    S3Object object = UniversalS3PackStore.this.s3client.getObject(
+                                new GetObjectRequest(UniversalS3PackStore.this.bucketName, key).withRange(offset, offset + length - 1));
+                    InputStream stream = object.getObjectContent();
+                    try {
+                        byte[] content = IOUtils.toByteArray(stream);
+                        if (content.length != length) {
+                            throw new IOException("Premature end of the range " + offset + "-" + (offset + length - 1) + 
+                                        " of " + key + ".");
+                        }
+
+                        return content;
+                    } finally {
+                        stream.close();
+                    }
+                }
+            }, null);
+        } catch (IOException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns the key of a new pack created at the passed time.
+     */
+    private String newPackKey(String timestamp) {
+        return this.prefix + timestamp + "-" + UUID.randomUUID().toString().replace("-", "") + PACK_EXTENSION;
+    }
+
+    private static byte[] md5(byte[] content) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(content);
+        } catch (Exception e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest) {
+            builder.append(String.format("%02x", b));
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * This class represents a pack object and its index.
+     */
+    static class Pack {
+        private final String key;
+        private final Date lastModified;
+        private final List<Entry> entries = new ArrayList<Entry>();
+        private final Set<String> deleted = new HashSet<String>();
+        private long dataBytes;
+
+        Pack(String key, long dataBytes, Date lastModified) {
+            this.key = key;
+            this.dataBytes = dataBytes;
+            this.lastModified = lastModified;
+        }
+
+        String getKey() {
+            return this.key;
+        }
+
+        Date getLastModified() {
+            return this.lastModified;
+        }
+
+        List<Entry> getEntries() {
+            return this.entries;
+        }
+
+        /**
+         * Returns the ids of the removed files, see UniversalS3Keys.id.
+         */
+        Set<String> getDeleted() {
+            return this.deleted;
+        }
+
+        long getDataBytes() {
+            return this.dataBytes;
+        }
+
+        void setDataBytes(long dataBytes) {
+            this.dataBytes = dataBytes;
+        }
+    }
+
+    /**
+     * This class represents a file within a pack.
+     */
+    static class Entry {
+        private final String key;
+        private final Pack pack;
+        private final long offset;
+        private final long length;
+        private final byte[] md5;
+
+        Entry(String key, Pack pack, long offset, long length, byte[] md5) {
+            this.key = key;
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+            this.md5 = md5;
+        }
+
+        String getKey() {
+            return this.key;
+        }
+
+        Pack getPack() {
+            return this.pack;
+        }
+
+        long getOffset() {
+            return this.offset;
+        }
+
+        long getLength() {
+            return this.length;
+        }
+
+        byte[] getMd5() {
+            return this.md5;
+        }
+    }
+}
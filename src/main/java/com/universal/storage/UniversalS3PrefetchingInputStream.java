@@ -0,0 +1,320 @@
+package com.universal.storage;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class reads an object ahead of its consumer.
+ *
+ * The object is split into blocks of the buffer size of the pool.  While the consumer reads the current
+ * block, the next blocks are downloaded in the background using byte-range GETs, so the consumer doesn't
+ * wait for a round trip at every block.  The number of blocks in flight, the depth, adapts to the consumer:
+ * it grows every time the consumer waits for a block and shrinks when the window stays downloaded while
+ * the consumer reads a whole window, so a slow consumer doesn't hold more buffers than it needs.  The depth never exceeds the
+ * max prefetch depth, which bounds the memory held by a stream.  Every block is retried on its own,
+ * resuming from its last read byte, and must match the ETag of the first response.
+ */
+class UniversalS3PrefetchingInputStream extends InputStream {
+    private final AmazonS3 s3client;
+    private final ExecutorService executor;
+    private final UniversalS3BufferPool pool;
+    private final String bucketName;
+    private final String key;
+    private final String eTag;
+    private final long length;
+    private final int maxDepth;
+    private final int maxRetries;
+    private final ArrayDeque<Future<ByteBuffer>> window = new ArrayDeque<Future<ByteBuffer>>();
+    private final InputStream firstStream;
+    private final Future<ByteBuffer> firstBlock;
+    private ByteBuffer current;
+    private long scheduled;
+    private int depth;
+    private int waits;
+    private int ahead;
+    private volatile boolean closed;
+
+    /**
+     * This constructor creates a new stream and starts reading ahead.
+     *
+     * @param s3client used to download the blocks.
+     * @param executor where the blocks are downloaded.
+     * @param pool of buffers, the capacity of every buffer is the block size.
+     * @param s3Settings with the max depth and the retries.
+     * @param bucketName source bucket.
+     * @param first response of the GET of the first block, its stream is read as the first block.
+     */
+    UniversalS3PrefetchingInputStream(AmazonS3 s3client, ExecutorService executor, UniversalS3BufferPool pool,
+                UniversalS3Settings s3Settings, String bucketName, S3Object first) {
+        this.s3client = s3client;
+        this.executor = executor;
+        this.pool = pool;
+        this.bucketName = bucketName;
+        this.key = first.getKey();
+        this.eTag = first.getObjectMetadata().getETag();
+        this.length = first.getObjectMetadata().getInstanceLength();
+        this.maxDepth = s3Settings.getPrefetchMaxDepth();
+        this.maxRetries = s3Settings.getDownloadSegmentRetries();
+        this.depth = Math.min(2, this.maxDepth);
+
+        this.firstStream = first.getObjectContent();
+        this.firstBlock = submit(0, this.firstStream);
+        this.window.add(this.firstBlock);
+        this.scheduled = Math.min(this.length, pool.getBufferSize());
+        schedule();
+    }
+
+    public int read() throws IOException {
+        if (!ensureCurrent()) {
+            return -1;
+        }
+
+        return this.current.get() & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!ensureCurrent()) {
+            return -1;
+        }
+
+        int count = Math.min(len, this.current.remaining());
+        this.current.get(b, off, count);
+        return count;
+    }
+
+    public int available() throws IOException {
+        return this.current == null ? 0 : this.current.remaining();
+    }
+
+    /**
+     * This method cancels the blocks in flight and returns the buffers to the pool.
+     */
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+
+        this.closed = true;
+        if (this.window.contains(this.firstBlock) && !this.firstBlock.isDone()) {
+            // The block might not have started, so nobody else would close its connection.
+            close(this.firstStream, true);
+        }
+
+        // The buffers of the blocks cancelled while running are left to the garbage collector.
+        for (Future<ByteBuffer> future : this.window) {
+            if (!future.cancel(true) && future.isDone()) {
+                try {
+                    this.pool.release(future.get());
+                } catch (Exception ignore) {}
+            }
+        }
+
+        this.window.clear();
+        this.pool.release(this.current);
+        this.current = null;
+    }
+
+    /**
+     * Returns the current number of blocks read ahead.
+     */
+    int getDepth() {
+        return this.depth;
+    }
+
+    /**
+     * Returns the number of times the consumer waited for a block.
+     */
+    int getWaits() {
+        return this.waits;
+    }
+
+    /**
+     * This method moves to the next block if the current one is over.
+     *
+     * @return false if the object is over.
+     */
+    private boolean ensureCurrent() throws IOException {
+        if (this.closed) {
+            throw new IOException("The stream of " + this.key + " is closed.");
+        }
+
+        while (this.current == null || !this.current.hasRemaining()) {
+            this.pool.release(this.current);
+            this.current = null;
+
+            Future<ByteBuffer> next = this.window.poll();
+            if (next == null) {
+                return false;
+            }
+
+            if (!next.isDone()) {
+                // The consumer is faster than the network, more blocks are needed in flight.
+                this.waits++;
+                this.ahead = 0;
+                this.depth = Math.min(this.maxDepth, this.depth + 1);
+            } else if (this.window.size() + 1 >= this.depth && isWindowDone() && ++this.ahead >= this.depth) {
+                // The network stayed ahead of the consumer for a whole window, a block fewer is enough.
+                this.ahead = 0;
+                this.depth = Math.max(1, this.depth - 1);
+            }
+
+            try {
+                this.current = next.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading " + this.key + ".");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : 
+                            new IOException(e.getCause().getMessage(), e.getCause());
+            }
+
+            schedule();
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns true if every block in flight is already downloaded.
+     */
+    private boolean isWindowDone() {
+        for (Future<ByteBuffer> future : this.window) {
+            if (!future.isDone()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Submits the next blocks until the window reaches the depth.
+     */
+    private void schedule() {
+        while (this.window.size() < this.depth && this.scheduled < this.length) {
+            this.window.add(submit(this.scheduled, null));
+            this.scheduled = Math.min(this.length, this.scheduled + this.pool.getBufferSize());
+        }
+    }
+
+    /**
+     * Submits the download of the block that starts at the passed position.
+     *
+     * @param from first byte of the block.
+     * @param stream an already opened stream for this block, can be null.
+     */
+    private Future<ByteBuffer> submit(final long from, final InputStream stream) {
+        return this.executor.submit(new Callable<ByteBuffer>() {
+            public ByteBuffer call() throws Exception {
+                ByteBuffer buffer = UniversalS3PrefetchingInputStream.this.pool.acquire();
+                buffer.limit((int) Math.min(buffer.capacity(), UniversalS3PrefetchingInputStream.this.length - from));
+                try {
+                    download(from, stream, buffer);
+                } catch (Exception e) {
+                    UniversalS3PrefetchingInputStream.this.pool.release(buffer);
+                    throw e;
+                }
+
+                buffer.flip();
+                return buffer;
+            }
+        });
+    }
+
+    /**
+     * This method fills the buffer with the block that starts at the passed position.  If the download fails,
+     * the remaining bytes of the block are requested again until the retries are exhausted.
+     */
+    private void download(long from, InputStream stream, ByteBuffer buffer) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                if (stream == null) {
+                    long position = from + buffer.position();
+                    S3Object object = this.s3client.getObject(new GetObjectRequest(this.bucketName, this.key)
+                                .withRange(position, from + buffer.limit() - 1).withMatchingETagConstraint(this.eTag));
+                    if (object == null) {
+                        throw new UniversalS3ObjectChangedException("The object " + this.key + " has changed during the download.");
+                    }
+
+                    stream = object.getObjectContent();
+                }
+
+                ReadableByteChannel channel = Channels.newChannel(stream);
+                while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                    // Keeps reading.
+                }
+
+                if (buffer.hasRemaining()) {
+                    throw new IOException("Premature end of the block " + from + " of " + this.key + ".");
+                }
+
+                return;
+            } catch (IllegalStateException e) {
+                throw e;
+            } catch (Exception e) {
+                if (attempt >= this.maxRetries || this.closed || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+            } finally {
+                close(stream, buffer.hasRemaining());
+                stream = null;
+            }
+        }
+    }
+
+    /**
+     * Closes the passed stream, if the stream was not fully read the underlying connection is aborted.
+     */
+    private void close(InputStream stream, boolean incomplete) {
+        if (stream == null) {
+            return;
+        }
+
+        try {
+            if (incomplete && stream instanceof S3ObjectInputStream) {
+                ((S3ObjectInputStream) stream).abort();
+            } else {
+                stream.close();
+            }
+        } catch (Exception ignore) {}
+    }
+}
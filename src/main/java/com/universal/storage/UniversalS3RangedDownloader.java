@@ -0,0 +1,399 @@
+package com.universal.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.commons.io.FileUtils;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class downloads an object using concurrent byte-range GETs.
+ *
+ * The first GET asks for the bytes below the download threshold, so an object lesser than the threshold
+ * is retrieved with a single request.  Otherwise, the remaining bytes are split into segments which are
+ * downloaded concurrently and written straight to their offset within the preallocated destination file.
+ * Every segment is retried on its own, resuming from the last written chunk.  The bytes are moved using
+ * FileChannel.transferFrom, so no heap arrays are allocated per download.  When the integrity is verified,
+ * every segment feeds the checksum of the object while its bytes are written, see UniversalS3Checksum.
+ * The first range then goes on to the end of the part it stops in and the segments are made of whole 
+ * parts, so no part is read again from the file to be verified.
+ * A compressed object is read sequentially and decompressed while it's written, see UniversalS3Compression.
+ */
+class UniversalS3RangedDownloader {
+    private static final long TRANSFER_CHUNK = 1048576;
+    private static final int INVALID_RANGE = 416;
+
+    private AmazonS3 s3client;
+    private ExecutorService executor;
+    private UniversalS3Settings s3Settings;
+    private UniversalS3Hedger hedger;
+    private final AtomicInteger segments = new AtomicInteger();
+    private final AtomicInteger retries = new AtomicInteger();
+
+    /**
+     * This constructor creates a new downloader.
+     *
+     * @param s3client used to download the segments.
+     * @param executor where the segments will be downloaded.
+     * @param s3Settings with the threshold, segment size and retries.
+     */
+    UniversalS3RangedDownloader(AmazonS3 s3client, ExecutorService executor, UniversalS3Settings s3Settings) {
+        this(s3client, executor, s3Settings, null);
+    }
+
+    /**
+     * This constructor creates a new downloader whose first GET is hedged, see UniversalS3Hedger.
+     *
+     * @param s3client used to download the segments.
+     * @param executor where the segments will be downloaded.
+     * @param s3Settings with the threshold, segment size and retries.
+     * @param hedger of the first GET, null means the GET is not hedged.
+     */
+    UniversalS3RangedDownloader(AmazonS3 s3client, ExecutorService executor, UniversalS3Settings s3Settings,
+                UniversalS3Hedger hedger) {
+        this.s3client = s3client;
+        this.executor = executor;
+        this.s3Settings = s3Settings;
+        this.hedger = hedger;
+    }
+
+    /**
+     * This method downloads an object into the passed file.
+     *
+     * @param bucketName source bucket.
+     * @param key source key.
+     * @param dest destination file, will be replaced if already exists.
+     * @return the metadata of the first response, i.e: the ETag of the object.
+     * @throws Exception when a segment fails after its retries.
+     */
+    ObjectMetadata download(String bucketName, String key, File dest) throws Exception {
+        return download(this.s3client, bucketName, key, dest, null);
+    }
+
+    /**
+     * This method downloads an object into the passed file using the passed client, i.e: the client of a
+     * read replica.
+     *
+     * @param s3client of the region of the bucket.
+     * @param bucketName source bucket.
+     * @param key source key.
+     * @param dest destination file, will be replaced if already exists.
+     * @param latency recorded when the first GET responds, can be null.
+     * @return the metadata of the first response, i.e: the ETag of the object.  The destination holds the 
+     *         decompressed content if the object was stored compressed.
+     * @throws Exception when a segment fails after its retries.
+     */
+    ObjectMetadata download(final AmazonS3 s3client, final String bucketName, final String key, File dest, 
+                UniversalS3ReadRouter.Latency latency) throws Exception {
+        long threshold = this.s3Settings.getDownloadThreshold();
+
+        S3Object object;
+        try {
+            object = getObject(s3client, new GetObjectRequest(bucketName, key).withRange(0, threshold - 1));
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() != INVALID_RANGE) {
+                throw e;
+            }
+
+            // Empty objects don't satisfy any range.
+            object = getObject(s3client, new GetObjectRequest(bucketName, key));
+        }
+
+        if (latency != null) {
+            latency.responded();
+        }
+
+        UniversalS3Checksum checksum = this.s3Settings.isVerifyIntegrity() ? 
+                    UniversalS3Checksum.forObject(key, object.getObjectMetadata()) : null;
+        long total = object.getObjectMetadata().getInstanceLength();
+        String codec = UniversalS3Compression.getCodec(object.getObjectMetadata());
+        if (codec != null) {
+            // The decompression needs the bytes in order, so the remaining bytes are read with a single GET.
+            InputStream stored = object.getObjectContent();
+            if (total > threshold) {
+                stored = new SequenceInputStream(stored, openRemaining(s3client, bucketName, key, 
+                            object.getObjectMetadata().getETag(), threshold, total - 1, stored));
+            }
+
+            UniversalS3Compression.decompress(checksum == null ? stored : checksum.verifying(stored), codec, dest);
+            return object.getObjectMetadata();
+        }
+
+        if (total <= threshold) {
+            InputStream objectData = object.getObjectContent();
+            try {
+                FileUtils.forceMkdirParent(dest);
+                FileOutputStream out = new FileOutputStream(dest);
+                try {
+                    UniversalS3Channels.transfer(Channels.newChannel(checksum == null ? objectData : 
+                                checksum.range(0).wrap(objectData)), out.getChannel(), 0, Long.MAX_VALUE);
+                    if (checksum != null) {
+                        checksum.verify(out.getChannel());
+                    }
+                } catch (IOException e) {
+                    out.close();
+                    dest.delete();
+                    throw e;
+                } finally {
+                    out.close();
+                }
+            } finally {
+                objectData.close();
+            }
+
+            return object.getObjectMetadata();
+        }
+
+        final String eTag = object.getObjectMetadata().getETag();
+        long segmentSize = this.s3Settings.getDownloadSegmentSize();
+        long firstEnd = threshold;
+        if (checksum != null) {
+            firstEnd = checksum.alignUp(threshold);
+            segmentSize = checksum.alignSize(segmentSize);
+        }
+
+        this.segments.set(1 + (int) ((total - firstEnd + segmentSize - 1) / segmentSize));
+
+        FileUtils.forceMkdirParent(dest);
+        RandomAccessFile raf = new RandomAccessFile(dest, "rw");
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        boolean completed = false;
+        try {
+            raf.setLength(total);
+            final FileChannel channel = raf.getChannel();
+
+            for (long start = firstEnd; start < total; start += segmentSize) {
+                final long from = start;
+                final long to = Math.min(total, start + segmentSize) - 1;
+                final UniversalS3Checksum.Range range = checksum == null ? null : checksum.range(from);
+                futures.add(this.executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        try {
+                            if (failure.get() == null) {
+                                downloadSegment(s3client, bucketName, key, eTag, from, to, null, channel, range);
+                            }
+
+                            return null;
+                        } catch (Exception e) {
+                            failure.compareAndSet(null, e);
+                            throw e;
+                        }
+                    }
+                }));
+            }
+
+            // The calling thread writes the first segment using the stream already opened, then the rest of its last part.
+            try {
+                UniversalS3Checksum.Range range = checksum == null ? null : checksum.range(0);
+                downloadSegment(s3client, bucketName, key, eTag, 0, threshold - 1, object.getObjectContent(), channel, range);
+                if (firstEnd > threshold) {
+                    downloadSegment(s3client, bucketName, key, eTag, threshold, firstEnd - 1, null, channel, range);
+                }
+            } catch (Exception e) {
+                failure.compareAndSet(null, e);
+                throw e;
+            }
+
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+
+            if (checksum != null) {
+                checksum.verify(channel);
+            }
+
+            completed = true;
+            return object.getObjectMetadata();
+        } finally {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+
+            try {
+                raf.close();
+            } catch (Exception ignore) {}
+
+            if (!completed) {
+                dest.delete();
+            }
+        }
+    }
+
+    /**
+     * Sends the first GET, hedged if a hedger was passed.
+     */
+    private S3Object getObject(AmazonS3 s3client, GetObjectRequest request) throws Exception {
+        return this.hedger == null ? s3client.getObject(request) : this.hedger.getObject(s3client, request);
+    }
+
+    /**
+     * Opens the bytes of an object from the passed position on, the stream of the first GET is closed if 
+     * the GET fails.
+     */
+    private InputStream openRemaining(AmazonS3 s3client, String bucketName, String key, String eTag, long from, 
+                long to, InputStream first) {
+        try {
+            S3Object object = s3client.getObject(new GetObjectRequest(bucketName, key)
+                        .withRange(from, to).withMatchingETagConstraint(eTag));
+            if (object == null) {
+                throw new UniversalS3ObjectChangedException("The object " + key + " has changed during the download.");
+            }
+
+            return object.getObjectContent();
+        } catch (RuntimeException e) {
+            close(first);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of segments of the last download, 0 if the object was retrieved with a single GET.
+     */
+    int getSegments() {
+        return this.segments.get();
+    }
+
+    /**
+     * Returns the number of segment requests that were retried.
+     */
+    int getRetries() {
+        return this.retries.get();
+    }
+
+    /**
+     * Returns the counter of the retries, the reads that include the download count their own retries 
+     * within it, i.e: a failover to the primary, see UniversalS3Retrier.
+     */
+    AtomicInteger getRetryCounter() {
+        return this.retries;
+    }
+
+    /**
+     * This method downloads a segment and writes it at its offset within the channel.  If the download fails,
+     * the remaining bytes of the segment are requested again until the retries are exhausted.
+     *
+     * @param s3client of the region of the bucket.
+     * @param bucketName source bucket.
+     * @param key source key.
+     * @param eTag the segments must match, so a replaced object is never mixed up with the previous one.
+     * @param from first byte of the segment (inclusive).
+     * @param to last byte of the segment (inclusive).
+     * @param stream an already opened stream for this segment, can be null.
+     * @param channel destination.
+     * @param range of the checksum fed with the bytes of the segment, null if the download is not verified.
+     * @throws Exception when the retries are exhausted.
+     */
+    private void downloadSegment(AmazonS3 s3client, String bucketName, String key, String eTag, long from, long to,
+                InputStream stream, FileChannel channel, UniversalS3Checksum.Range range) throws Exception {
+        int maxRetries = this.s3Settings.getDownloadSegmentRetries();
+        long position = from;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                if (stream == null) {
+                    S3Object object = s3client.getObject(new GetObjectRequest(bucketName, key)
+                                .withRange(position, to).withMatchingETagConstraint(eTag));
+                    if (object == null) {
+                        throw new UniversalS3ObjectChangedException("The object " + key + " has changed during the download.");
+                    }
+
+                    stream = object.getObjectContent();
+                }
+
+                // Chunks bound the bytes written again when a retry resumes from the last position.
+                if (range != null) {
+                    range.seek(position);
+                }
+
+                ReadableByteChannel source = Channels.newChannel(range == null ? stream : range.wrap(stream));
+                while (position <= to) {
+                    long transferred = UniversalS3Channels.transfer(source, channel, position, Math.min(TRANSFER_CHUNK, to - position + 1));
+                    if (transferred == 0) {
+                        break;
+                    }
+
+                    position += transferred;
+                }
+
+                if (position <= to) {
+                    throw new IOException("Premature end of the segment " + from + "-" + to + " of " + key + ".");
+                }
+
+                return;
+            } catch (IllegalStateException e) {
+                throw e;
+            } catch (Exception e) {
+                if (attempt >= maxRetries || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+
+                this.retries.incrementAndGet();
+            } finally {
+                close(stream);
+                stream = null;
+            }
+        }
+    }
+
+    /**
+     * Closes the passed stream, if the stream was not fully read the underlying connection is aborted.
+     */
+    private void close(InputStream stream) {
+        if (stream == null) {
+            return;
+        }
+
+        try {
+            if (stream instanceof S3ObjectInputStream && stream.available() > 0) {
+                ((S3ObjectInputStream) stream).abort();
+            } else {
+                stream.close();
+            }
+        } catch (Exception ignore) {}
+    }
+}
@@ -0,0 +1,291 @@
+package com.universal.storage;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class routes the reads between the root bucket and its read replicas according to their latency.
+ *
+ * The time until every read responds, i.e: the headers of a GET or a HEAD, is tracked per bucket with an 
+ * exponentially weighted moving average, and every read goes to the bucket with the lowest average.  The time
+ * spent transferring the content is not tracked, so the size of the objects doesn't weigh on the average.  A bucket that has not
+ * been measured yet is tried first, and a bucket that has not been chosen for the probe interval receives
+ * the next read, so its average follows the network conditions.  A replica that fails, doesn't have the 
+ * object yet or serves a copy being replaced, i.e: the replication is behind, is failed over to the primary, 
+ * and its average is doubled when the error is not a missing object.  The writes never go through this class.
+ */
+class UniversalS3ReadRouter {
+    private static final int NOT_FOUND = 404;
+
+    private final Target primary;
+    private final List<Target> targets = new CopyOnWriteArrayList<Target>();
+    private final List<AmazonS3> owned = new ArrayList<AmazonS3>();
+    private final double weight;
+    private final long probeInterval;
+    private final AtomicLong failovers = new AtomicLong();
+
+    /**
+     * This constructor creates a new router without replicas, the replicas are added by the method addReplica.
+     *
+     * @param s3Settings with the weight of the average and the probe interval.
+     * @param s3client of the primary.
+     * @param bucketName the root bucket.
+     */
+    UniversalS3ReadRouter(UniversalS3Settings s3Settings, AmazonS3 s3client, String bucketName) {
+        this.weight = s3Settings.getReplicaEwmaWeight() / 100.0;
+        this.probeInterval = s3Settings.getReplicaProbeInterval();
+        this.primary = new Target(s3client, bucketName);
+        this.targets.add(this.primary);
+    }
+
+    /**
+     * This method adds a read replica.
+     *
+     * @param s3client of the region of the replica.
+     * @param bucketName of the replica.
+     * @param release true if the client is released by the method close.
+     */
+    void addReplica(AmazonS3 s3client, String bucketName, boolean release) {
+        this.targets.add(new Target(s3client, bucketName));
+        if (release) {
+            synchronized (this.owned) {
+                this.owned.add(s3client);
+            }
+        }
+    }
+
+    /**
+     * This method executes a read against the bucket with the lowest latency, the read is executed again 
+     * against the primary if the replica fails.
+     *
+     * @param read to be executed, it must be safe to execute it again.
+     * @return the result of the read.
+     * @throws Exception the error of the primary.
+     */
+    <T> T read(Read<T> read) throws Exception {
+        return read(read, null);
+    }
+
+    /**
+     * This method executes a read against the bucket with the lowest latency, the read is executed again 
+     * against the primary if the replica fails.
+     *
+     * @param read to be executed, it must be safe to execute it again.
+     * @param retries is incremented when the read is failed over, can be null.
+     * @return the result of the read.
+     * @throws Exception the error of the primary.
+     */
+    <T> T read(Read<T> read, AtomicInteger retries) throws Exception {
+        Target target = choose();
+        if (target == this.primary) {
+            return execute(target, read);
+        }
+
+        try {
+            return execute(target, read);
+        } catch (AmazonClientException e) {
+            if (!isNotFound(e)) {
+                target.penalize();
+            }
+        } catch (IOException e) {
+            target.penalize();
+        } catch (UniversalS3ObjectChangedException e) {
+            target.penalize();
+        }
+
+        this.failovers.incrementAndGet();
+        if (retries != null) {
+            retries.incrementAndGet();
+        }
+
+        return execute(this.primary, read);
+    }
+
+    /**
+     * Returns the bucket that receives the next read.
+     */
+    Target choose() {
+        long now = System.currentTimeMillis();
+        Target best = null;
+        for (Target target : this.targets) {
+            if (!target.isMeasured() || (this.probeInterval > 0 && now - target.chosen >= this.probeInterval)) {
+                best = target;
+                break;
+            }
+
+            if (best == null || target.getLatency() < best.getLatency()) {
+                best = target;
+            }
+        }
+
+        best.chosen = now;
+        return best;
+    }
+
+    /**
+     * Returns the buckets, the primary first.
+     */
+    List<Target> getTargets() {
+        return new ArrayList<Target>(this.targets);
+    }
+
+    /**
+     * Returns the number of reads of a replica that were executed again against the primary.
+     */
+    long getFailovers() {
+        return this.failovers.get();
+    }
+
+    /**
+     * This method releases the clients of the replicas created for this router.
+     */
+    void close() {
+        synchronized (this.owned) {
+            for (AmazonS3 s3client : this.owned) {
+                UniversalS3ClientRegistry.release(s3client);
+            }
+
+            this.owned.clear();
+        }
+    }
+
+    /**
+     * Returns true if the error means that the object doesn't exist.
+     */
+    private static boolean isNotFound(AmazonClientException e) {
+        return e instanceof AmazonServiceException && ((AmazonServiceException) e).getStatusCode() == NOT_FOUND;
+    }
+
+    /**
+     * Executes a read and records its latency, unless the read already recorded it.
+     */
+    private <T> T execute(Target target, Read<T> read) throws Exception {
+        Latency latency = new Latency(target, this.weight);
+        T result = read.call(target.getClient(), target.getBucketName(), latency);
+        latency.responded();
+        return result;
+    }
+
+    /**
+     * This interface represents a read, i.e: a GET or a HEAD.
+     */
+    interface Read<T> {
+        /**
+         * Executes the read against the passed bucket.
+         *
+         * @param s3client of the region of the bucket.
+         * @param bucketName in context.
+         * @param latency to be recorded when the first response arrives, if the read transfers the content 
+         *        before returning.
+         */
+        T call(AmazonS3 s3client, String bucketName, Latency latency) throws Exception;
+    }
+
+    /**
+     * This class measures the time until a read responds.
+     */
+    static class Latency {
+        private final Target target;
+        private final double weight;
+        private final long start = System.nanoTime();
+        private boolean recorded;
+
+        Latency(Target target, double weight) {
+            this.target = target;
+            this.weight = weight;
+        }
+
+        /**
+         * Records the time elapsed since the read was sent, only the first call is recorded.
+         */
+        synchronized void responded() {
+            if (!this.recorded) {
+                this.recorded = true;
+                this.target.record(System.nanoTime() - this.start, this.weight);
+            }
+        }
+    }
+
+    /**
+     * This class represents a bucket and its measured latency.
+     */
+    static class Target {
+        private final AmazonS3 client;
+        private final String bucketName;
+        private double latency;
+        private boolean measured;
+        private volatile long chosen;
+
+        Target(AmazonS3 client, String bucketName) {
+            this.client = client;
+            this.bucketName = bucketName;
+        }
+
+        AmazonS3 getClient() {
+            return this.client;
+        }
+
+        String getBucketName() {
+            return this.bucketName;
+        }
+
+        /**
+         * Returns the average latency in nanoseconds.
+         */
+        synchronized double getLatency() {
+            return this.latency;
+        }
+
+        /**
+         * Returns true if at least one read of this bucket has responded.
+         */
+        synchronized boolean isMeasured() {
+            return this.measured;
+        }
+
+        /**
+         * Adds a sample to the average.
+         */
+        synchronized void record(long nanos, double weight) {
+            this.latency = this.measured ? this.latency + weight * (nanos - this.latency) : nanos;
+            this.measured = true;
+        }
+
+        /**
+         * Doubles the average, so a failing bucket is avoided until a probe measures it again.
+         */
+        synchronized void penalize() {
+            this.latency = Math.max(1, this.latency) * 2;
+            this.measured = true;
+        }
+    }
+}
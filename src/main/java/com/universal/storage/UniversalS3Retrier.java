@@ -0,0 +1,175 @@
+package com.universal.storage;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import org.apache.http.conn.ConnectTimeoutException;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class retries the requests of an operation that fail with a transient error.
+ *
+ * Every operation has its own budget of retries, see UniversalS3Settings.getRetries.  The retries wait for
+ * an exponential backoff with full jitter, so the clients that failed at once don't retry at once.  When S3
+ * asks to reduce the request rate, i.e: 503 SlowDown, the backoff starts four times longer.  Errors that
+ * would fail again, i.e: 404 or 403, are not retried.
+ */
+class UniversalS3Retrier {
+    private static final int MAX_EXPONENT = 16;
+    private static final int THROTTLING_EXPONENT = 2;
+
+    private final UniversalS3Settings s3Settings;
+    private final Random random = new Random();
+
+    /**
+     * This constructor creates a new retrier.
+     *
+     * @param s3Settings with the retries and the delays.
+     */
+    UniversalS3Retrier(UniversalS3Settings s3Settings) {
+        this.s3Settings = s3Settings;
+    }
+
+    /**
+     * This method executes a request and retries it while the error is transient and the budget of the
+     * operation is not exhausted.
+     *
+     * @param operation whose budget is used.
+     * @param request to be executed, it must be safe to execute it again.
+     * @param retries is incremented on every retry, can be null.
+     * @return the result of the request.
+     * @throws Exception the last error.
+     */
+    <T> T execute(UniversalS3Operation operation, Callable<T> request, AtomicInteger retries) throws Exception {
+        return execute(operation, request, retries, null);
+    }
+
+    /**
+     * This method executes a request that retries on its own, i.e: a ranged download whose segments are 
+     * retried.  A failed attempt is not retried if the request already retried, so the attempts of both 
+     * layers don't multiply.
+     *
+     * @param operation whose budget is used.
+     * @param request to be executed, it must be safe to execute it again.
+     * @param retries is incremented on every retry, can be null.
+     * @param inner retries of the request, can be null.
+     * @return the result of the request.
+     * @throws Exception the last error.
+     */
+    <T> T execute(UniversalS3Operation operation, Callable<T> request, AtomicInteger retries, AtomicInteger inner) 
+                throws Exception {
+        return execute(this.s3Settings.getRetries(operation), request, retries, inner);
+    }
+
+    /**
+     * This method executes a request with a budget of its own, i.e: a part of a multipart upload, see
+     * UniversalS3Settings.getPartRetries.
+     *
+     * @param maxRetries budget of the request.
+     * @param request to be executed, it must be safe to execute it again.
+     * @param retries is incremented on every retry, can be null.
+     * @return the result of the request.
+     * @throws Exception the last error.
+     */
+    <T> T execute(int maxRetries, Callable<T> request, AtomicInteger retries) throws Exception {
+        return execute(maxRetries, request, retries, null);
+    }
+
+    private <T> T execute(int maxRetries, Callable<T> request, AtomicInteger retries, AtomicInteger inner) 
+                throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            int innerRetries = inner == null ? 0 : inner.get();
+            try {
+                return request.call();
+            } catch (Exception e) {
+                if (attempt >= maxRetries || !isRetryable(e) || Thread.currentThread().isInterrupted() || 
+                            (inner != null && inner.get() != innerRetries)) {
+                    throw e;
+                }
+
+                if (retries != null) {
+                    retries.incrementAndGet();
+                }
+
+                Thread.sleep(backoff(attempt + (isThrottling(e) ? THROTTLING_EXPONENT : 0)));
+            }
+        }
+    }
+
+    /**
+     * Returns a random delay between 0 and the exponential backoff of the attempt, capped by the max delay.
+     */
+    long backoff(int attempt) {
+        long cap = Math.min(this.s3Settings.getRetryMaxDelay(), 
+                    this.s3Settings.getRetryBaseDelay() << Math.min(attempt, MAX_EXPONENT));
+        synchronized (this.random) {
+            return (long) (this.random.nextDouble() * (cap + 1));
+        }
+    }
+
+    /**
+     * Returns true if the error is transient: a server error, a throttling, a request timeout or a broken 
+     * connection.  A client error is transient only if it was caused by the connection, the SDK flags most
+     * client errors as retryable, i.e: missing credentials or an invalid request.
+     */
+    static boolean isRetryable(Exception e) {
+        if (e instanceof AmazonServiceException) {
+            AmazonServiceException error = (AmazonServiceException) e;
+            return error.getStatusCode() >= 500 || isThrottling(e) || "RequestTimeout".equals(error.getErrorCode());
+        }
+
+        if (e instanceof AmazonClientException) {
+            return e.getCause() instanceof IOException && isTransient((IOException) e.getCause());
+        }
+
+        return e instanceof IOException && isTransient((IOException) e);
+    }
+
+    /**
+     * Returns true if the IO error comes from the connection, an interrupted thread or a missing local file 
+     * are not transient.
+     */
+    private static boolean isTransient(IOException e) {
+        if (e instanceof SocketTimeoutException || e instanceof ConnectTimeoutException) {
+            return true;
+        }
+
+        return !(e instanceof InterruptedIOException) && !(e instanceof ClosedByInterruptException) && 
+                    !(e instanceof FileNotFoundException);
+    }
+
+    /**
+     * Returns true if the error means that S3 is asking to reduce the request rate.
+     */
+    static boolean isThrottling(Exception e) {
+        return e instanceof AmazonServiceException && UniversalS3MultipartUploader.isThrottling((AmazonServiceException) e);
+    }
+}
@@ -0,0 +1,287 @@
+package com.universal.storage;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import org.apache.commons.io.IOUtils;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class is a read-only SeekableByteChannel over an object.
+ *
+ * The object is split into aligned blocks of the seekable block size, every read is served from a small
+ * LRU cache of blocks.  The blocks missing for a read are requested with byte-range GETs, adjacent missing
+ * blocks are coalesced into a single GET, so reading a footer costs one request and reading it again
+ * costs none.  Every GET must match the ETag of the object when the channel was opened.
+ */
+class UniversalS3SeekableChannel implements SeekableByteChannel {
+    private final AmazonS3 s3client;
+    private final UniversalS3Metrics metrics;
+    private final String bucketName;
+    private final String key;
+    private final String eTag;
+    private final long size;
+    private final int blockSize;
+    private final int maxBlocks;
+    private final int maxRetries;
+    private final byte[] content;
+    private final LinkedHashMap<Long, byte[]> blocks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true);
+    private long position;
+    private boolean open = true;
+    private int requests;
+
+    /**
+     * This constructor creates a new channel over a stored object.
+     *
+     * @param s3client used to request the blocks.
+     * @param s3Settings with the block size, the cache size and the retries.
+     * @param metrics where the GETs are recorded.
+     * @param bucketName source bucket.
+     * @param key source key.
+     * @param metadata of the object, its length and ETag.
+     */
+    UniversalS3SeekableChannel(AmazonS3 s3client, UniversalS3Settings s3Settings, UniversalS3Metrics metrics,
+                String bucketName, String key, ObjectMetadata metadata) {
+        this.s3client = s3client;
+        this.metrics = metrics;
+        this.bucketName = bucketName;
+        this.key = key;
+        this.eTag = metadata.getETag();
+        this.size = metadata.getContentLength();
+        this.blockSize = s3Settings.getSeekableBlockSize();
+        this.maxBlocks = s3Settings.getSeekableCacheBlocks();
+        this.maxRetries = s3Settings.getDownloadSegmentRetries();
+        this.content = null;
+    }
+
+    /**
+     * This constructor creates a new channel over content already in memory, i.e: a packed file.
+     *
+     * @param key in context.
+     * @param content of the file.
+     */
+    UniversalS3SeekableChannel(String key, byte[] content) {
+        this.s3client = null;
+        this.metrics = null;
+        this.bucketName = null;
+        this.key = key;
+        this.eTag = null;
+        this.size = content.length;
+        this.blockSize = Math.max(1, content.length);
+        this.maxBlocks = 0;
+        this.maxRetries = 0;
+        this.content = content;
+    }
+
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (this.position >= this.size) {
+            return -1;
+        }
+
+        int count = (int) Math.min(dst.remaining(), this.size - this.position);
+        if (count == 0) {
+            return 0;
+        }
+
+        if (this.content != null) {
+            dst.put(this.content, (int) this.position, count);
+            this.position += count;
+            return count;
+        }
+
+        long first = this.position / this.blockSize;
+        long last = (this.position + count - 1) / this.blockSize;
+
+        // The missing blocks are fetched by runs of adjacent blocks, one GET per run.
+        byte[][] read = new byte[(int) (last - first + 1)][];
+        for (long index = first; index <= last; index++) {
+            read[(int) (index - first)] = this.blocks.get(index);
+        }
+
+        for (long index = first; index <= last; index++) {
+            if (read[(int) (index - first)] != null) {
+                continue;
+            }
+
+            long end = index;
+            while (end < last && read[(int) (end + 1 - first)] == null) {
+                end++;
+            }
+
+            byte[] run = fetch(index * this.blockSize, Math.min(this.size, (end + 1) * this.blockSize) - 1);
+            for (long block = index; block <= end; block++) {
+                int from = (int) ((block - index) * this.blockSize);
+                byte[] bytes = new byte[Math.min(this.blockSize, run.length - from)];
+                System.arraycopy(run, from, bytes, 0, bytes.length);
+                read[(int) (block - first)] = bytes;
+                cache(block, bytes);
+            }
+
+            index = end;
+        }
+
+        int remaining = count;
+        for (long index = first; index <= last; index++) {
+            byte[] block = read[(int) (index - first)];
+            int offset = (int) (this.position - index * this.blockSize);
+            int length = Math.min(remaining, block.length - offset);
+            dst.put(block, offset, length);
+            this.position += length;
+            remaining -= length;
+        }
+
+        return count;
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return this.position;
+    }
+
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+
+        this.position = newPosition;
+        return this;
+    }
+
+    public synchronized long size() throws IOException {
+        ensureOpen();
+        return this.size;
+    }
+
+    public SeekableByteChannel truncate(long size) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    public synchronized boolean isOpen() {
+        return this.open;
+    }
+
+    public synchronized void close() {
+        this.open = false;
+        this.blocks.clear();
+    }
+
+    /**
+     * Returns the number of GETs sent by this channel.
+     */
+    synchronized int getRequests() {
+        return this.requests;
+    }
+
+    /**
+     * Throws ClosedChannelException if this channel is closed.
+     */
+    private void ensureOpen() throws IOException {
+        if (!this.open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * This method stores a block within the cache, the least recently used block is evicted if the cache 
+     * is full.
+     */
+    private void cache(long index, byte[] block) {
+        this.blocks.put(index, block);
+        Iterator<Long> iterator = this.blocks.keySet().iterator();
+        while (this.blocks.size() > this.maxBlocks && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Returns the bytes of a range of the object, the GET is retried until the retries are exhausted.
+     *
+     * @param from first byte (inclusive).
+     * @param to last byte (inclusive).
+     */
+    private byte[] fetch(long from, long to) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            long start = this.metrics.start(UniversalS3Operation.READ_RANGE);
+            boolean failed = true;
+            InputStream stream = null;
+            try {
+                this.requests++;
+                S3Object object = this.s3client.getObject(new GetObjectRequest(this.bucketName, this.key)
+                            .withRange(from, to).withMatchingETagConstraint(this.eTag));
+                if (object == null) {
+                    throw new UniversalS3ObjectChangedException("The object " + this.key + " has changed since the channel was opened.");
+                }
+
+                stream = object.getObjectContent();
+                byte[] bytes = new byte[(int) (to - from + 1)];
+                IOUtils.readFully(stream, bytes);
+                failed = false;
+                return bytes;
+            } catch (IllegalStateException e) {
+                throw new IOException(e.getMessage());
+            } catch (Exception e) {
+                if (attempt >= this.maxRetries || Thread.currentThread().isInterrupted()) {
+                    throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+                }
+            } finally {
+                close(stream, failed);
+                this.metrics.stop(UniversalS3Operation.READ_RANGE, start, failed ? 0 : to - from + 1, 0, attempt, failed);
+            }
+        }
+    }
+
+    /**
+     * Closes the passed stream, if the stream was not fully read the underlying connection is aborted.
+     */
+    private void close(InputStream stream, boolean incomplete) {
+        if (stream == null) {
+            return;
+        }
+
+        try {
+            if (incomplete && stream instanceof S3ObjectInputStream) {
+                ((S3ObjectInputStream) stream).abort();
+            } else {
+                stream.close();
+            }
+        } catch (Exception ignore) {}
+    }
+}
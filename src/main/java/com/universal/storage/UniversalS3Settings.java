@@ -0,0 +1,700 @@
+package com.universal.storage;
+
+import com.universal.storage.settings.UniversalSettings;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class represents the S3 specific settings that complement the settings in context.
+ *
+ * Every value is read, in this order, from the provided values, the jvm parameter
+ * (i.e: -Duniversal.storage.s3.part_size=8388608) and the environment variable
+ * (i.e: universal_storage_s3_part_size=8388608).  If none of them is present, the default value is used.
+ * A value is resolved and parsed the first time it's read, the later reads return the same value, so the
+ * getters are cheap enough to be called on every request.
+ */
+public class UniversalS3Settings {
+    public static final long MIN_PART_SIZE = 5242880; // S3 doesn't accept parts lesser than 5 MB.
+
+    private static final String PROPERTY_PREFIX = "universal.storage.s3.";
+    private static final String ENV_PREFIX = "universal_storage_s3_";
+
+    private UniversalSettings settings;
+    private Map<String, String> values;
+    private final ConcurrentMap<String, String> resolved = new ConcurrentHashMap<String, String>();
+    private final ConcurrentMap<String, Long> numbers = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * This constructor creates a new instance using the jvm parameters and environment variables.
+     *
+     * @param settings in context.
+     */
+    public UniversalS3Settings(UniversalSettings settings) {
+        this(settings, new HashMap<String, String>());
+    }
+
+    /**
+     * This constructor creates a new instance using the provided values, i.e: "part_size" -> "8388608".
+     * A missing value will be read from the jvm parameters and environment variables.
+     *
+     * @param settings in context.
+     * @param values provided programmatically.
+     */
+    public UniversalS3Settings(UniversalSettings settings, Map<String, String> values) {
+        this.settings = settings;
+        this.values = values == null ? new HashMap<String, String>() : new HashMap<String, String>(values);
+    }
+
+    /**
+     * Returns the settings in context.
+     */
+    public UniversalSettings getSettings() {
+        return this.settings;
+    }
+
+    /**
+     * Returns the part size used by multipart uploads, this value will never be lesser than 5 MB.
+     */
+    public long getPartSize() {
+        return Math.max(MIN_PART_SIZE, getLong("part_size", MIN_PART_SIZE));
+    }
+
+    /**
+     * Returns the number of parts that will be uploaded concurrently.
+     */
+    public int getUploadConcurrency() {
+        return Math.max(1, getInt("upload_concurrency", 4));
+    }
+
+    /**
+     * Returns the max amount of bytes that can be in flight during a multipart upload.
+     * This value will never be lesser than the part size.
+     */
+    public long getMaxInFlightBytes() {
+        return Math.max(getPartSize(), getLong("max_in_flight_bytes", getPartSize() * getUploadConcurrency() * 2));
+    }
+
+    /**
+     * Returns true if multipart uploads pick their part size from the file length and adjust the number of
+     * parts in flight according to the measured throughput.
+     */
+    public boolean isAdaptiveUpload() {
+        return getBoolean("adaptive_upload", false);
+    }
+
+    /**
+     * Returns the number of parts an adaptive upload aims for, larger files get larger parts.
+     */
+    public int getAdaptiveTargetParts() {
+        return Math.max(1, Math.min(10000, getInt("adaptive_target_parts", 1000)));
+    }
+
+    /**
+     * Returns the max number of parts in flight an adaptive upload can grow to.
+     */
+    public int getAdaptiveMaxConcurrency() {
+        return Math.max(1, getInt("adaptive_max_concurrency", 16));
+    }
+
+    /**
+     * Returns the number of times a part that fails with a transient error is either uploaded or copied again.
+     */
+    public int getPartRetries() {
+        return Math.max(0, getInt("part_retries", 3));
+    }
+
+    /**
+     * Returns the number of times a request of the passed operation that fails with a transient error is
+     * retried, i.e: "retries_retrieve_file" -> "5".  If the operation has no value of its own, the value of
+     * "retries" is used.
+     *
+     * @param operation in context.
+     */
+    public int getRetries(UniversalS3Operation operation) {
+        return Math.max(0, getInt("retries_" + operation.name().toLowerCase(), getInt("retries", 3)));
+    }
+
+    /**
+     * Returns true if the requests are retried by this library, see UniversalS3Retrier.  The SDK doesn't retry
+     * them then, so the attempts of both don't multiply.  The SDK keeps its own retries if "retries" is 0.
+     */
+    public boolean isLibraryRetry() {
+        return getInt("retries", 3) > 0;
+    }
+
+    /**
+     * Returns the delay in milliseconds the backoff of the retries starts from.
+     */
+    public long getRetryBaseDelay() {
+        return Math.max(1, getLong("retry_base_delay", 100));
+    }
+
+    /**
+     * Returns the max delay in milliseconds before a retry.
+     */
+    public long getRetryMaxDelay() {
+        return Math.max(getRetryBaseDelay(), getLong("retry_max_delay", 20000));
+    }
+
+    /**
+     * Returns true if the reads send a second request when the first one is slower than the hedge 
+     * percentile, see UniversalS3Hedger.
+     */
+    public boolean isHedgeReads() {
+        return getBoolean("hedge_reads", false);
+    }
+
+    /**
+     * Returns the percentile of the recent response times from which a read is hedged.
+     */
+    public int getHedgePercentile() {
+        return Math.max(1, Math.min(100, getInt("hedge_percentile", 95)));
+    }
+
+    /**
+     * Returns the min delay in milliseconds before a read is hedged.
+     */
+    public long getHedgeMinDelay() {
+        return Math.max(0, getLong("hedge_min_delay", 10));
+    }
+
+    /**
+     * Returns the read replicas of the root bucket, the key is the bucket and the value is its region, 
+     * i.e: "read_replicas" -> "my-bucket-west@us-west-2,my-bucket-eu@eu-west-1".  The reads are routed 
+     * according to the latency of every bucket, see UniversalS3ReadRouter.
+     *
+     * @throws IllegalStateException if a replica doesn't have a bucket and a region.
+     */
+    public Map<String, String> getReadReplicas() {
+        Map<String, String> replicas = new LinkedHashMap<String, String>();
+        String value = getValue("read_replicas");
+        if (value == null) {
+            return replicas;
+        }
+
+        for (String replica : value.split(",")) {
+            String[] pair = replica.trim().split("@");
+            if (pair.length != 2 || "".equals(pair[0].trim()) || "".equals(pair[1].trim())) {
+                throw new IllegalStateException("Invalid read_replicas: " + value);
+            }
+
+            replicas.put(pair[0].trim(), pair[1].trim());
+        }
+
+        return replicas;
+    }
+
+    /**
+     * Returns the weight in percentage of the last sample within the average latency of a bucket.
+     */
+    public int getReplicaEwmaWeight() {
+        return Math.max(1, Math.min(100, getInt("replica_ewma_weight", 20)));
+    }
+
+    /**
+     * Returns the time in milliseconds after which a bucket that was not chosen receives a read, so its
+     * latency is measured again, 0 means never.
+     */
+    public long getReplicaProbeInterval() {
+        return Math.max(0, getLong("replica_probe_interval", 30000));
+    }
+
+    /**
+     * Returns true if multipart uploads of files keep a local journal, so a failed upload can be resumed
+     * instead of being aborted.
+     */
+    public boolean isResumableUpload() {
+        return getBoolean("resumable_upload", false);
+    }
+
+    /**
+     * Returns the folder of the upload journals, null means a folder within the tmp folder.
+     */
+    public String getJournalDirectory() {
+        return getValue("journal_dir");
+    }
+
+    /**
+     * Returns the age in milliseconds from which journals and incomplete multipart uploads are removed, 0 means never.
+     */
+    public long getResumableUploadMaxAge() {
+        return Math.max(0, getLong("resumable_upload_max_age", 604800000));
+    }
+
+    /**
+     * Returns true if the cleanup of the journals aborts as well the old incomplete multipart uploads of the
+     * root bucket without a local journal, i.e: uploads of other hosts or tools.
+     */
+    public boolean isAbortStaleUploads() {
+        return getBoolean("abort_stale_uploads", false);
+    }
+
+    /**
+     * Returns true if the uploads send the MD5 of every PUT and part, so S3 rejects corrupted bytes, and the
+     * downloads verify the content against the ETag of the object while the bytes arrive.
+     */
+    public boolean isVerifyIntegrity() {
+        return getBoolean("verify_integrity", true);
+    }
+
+    /**
+     * Returns the codec used to compress the files stored by storeFile, either gzip or deflate.  Null means 
+     * the files are stored as they are.
+     *
+     * @throws IllegalStateException if the codec is not supported.
+     */
+    public String getCompression() {
+        String codec = getValue("compression");
+        if (codec == null || "none".equalsIgnoreCase(codec)) {
+            return null;
+        }
+
+        codec = codec.toLowerCase();
+        if (!UniversalS3Compression.GZIP.equals(codec) && !UniversalS3Compression.DEFLATE.equals(codec)) {
+            throw new IllegalStateException("Invalid compression: " + codec);
+        }
+
+        return codec;
+    }
+
+    /**
+     * Returns the size from which a file is compressed, smaller files are stored as they are.
+     */
+    public long getCompressionMinSize() {
+        return Math.max(0, getLong("compression_min_size", 1024));
+    }
+
+    /**
+     * Returns the compression level, from 1 (fastest) to 9 (smallest).
+     */
+    public int getCompressionLevel() {
+        return Math.max(1, Math.min(9, getInt("compression_level", 6)));
+    }
+
+    /**
+     * Returns true if the files smaller than the pack threshold are packed into larger pack objects, see 
+     * UniversalS3PackStore.
+     */
+    public boolean isPackFiles() {
+        return getBoolean("pack_files", false);
+    }
+
+    /**
+     * Returns the size below which a file is packed.
+     */
+    public long getPackThreshold() {
+        return Math.max(1, getLong("pack_threshold", 16384));
+    }
+
+    /**
+     * Returns the size from which the pending pack is uploaded.
+     */
+    public long getPackMaxSize() {
+        return Math.max(1, getLong("pack_max_size", 8388608));
+    }
+
+    /**
+     * Returns the max time in milliseconds a file waits within the pending pack before the pack is uploaded,
+     * 0 means the pending pack is uploaded only when it's full, by flushPacks or by close.
+     */
+    public long getPackMaxDelay() {
+        return Math.max(0, getLong("pack_max_delay", 1000));
+    }
+
+    /**
+     * Returns the prefix within the root where the packs are stored.
+     */
+    public String getPackPrefix() {
+        String prefix = getValue("pack_prefix");
+        return prefix == null ? ".packs" : (prefix.endsWith("/") ? prefix.substring(0, prefix.length() - 1) : prefix);
+    }
+
+    /**
+     * Returns the time in milliseconds the indexes of the packs are cached before being listed again, so 
+     * the packs stored by other writers are found.
+     */
+    public long getPackIndexTtl() {
+        return Math.max(0, getLong("pack_index_ttl", 60000));
+    }
+
+    /**
+     * Returns the percentage of dead bytes from which a pack is compacted.
+     */
+    public int getPackCompactionPercent() {
+        return Math.max(1, Math.min(100, getInt("pack_compaction_percent", 50)));
+    }
+
+    /**
+     * Returns the size above which an object is copied using concurrent UploadPartCopy ranges, this value will
+     * never be greater than 5 GB.  Objects up to this size are copied using a single request.
+     */
+    public long getCopyThreshold() {
+        return Math.max(1, Math.min(UniversalS3MultipartUploader.MAX_PART_SIZE, getLong("copy_threshold", 134217728)));
+    }
+
+    /**
+     * Returns the size of every UploadPartCopy range, this value will never be lesser than 5 MB.
+     */
+    public long getCopyPartSize() {
+        return Math.max(MIN_PART_SIZE, Math.min(UniversalS3MultipartUploader.MAX_PART_SIZE, getLong("copy_part_size", 67108864)));
+    }
+
+    /**
+     * Returns the number of parts, or objects within a folder, copied concurrently.
+     */
+    public int getCopyConcurrency() {
+        return Math.max(1, getInt("copy_concurrency", 8));
+    }
+
+    /**
+     * Returns the size from which an object is downloaded using concurrent byte-range GETs.
+     * Objects lesser than this size are downloaded using a single GET.
+     */
+    public long getDownloadThreshold() {
+        return Math.max(1, getLong("download_threshold", 16777216));
+    }
+
+    /**
+     * Returns the size of every byte-range GET for segmented downloads.
+     */
+    public long getDownloadSegmentSize() {
+        return Math.max(65536, getLong("download_segment_size", 8388608));
+    }
+
+    /**
+     * Returns the number of segments that will be downloaded concurrently.
+     */
+    public int getDownloadConcurrency() {
+        return Math.max(1, getInt("download_concurrency", 4));
+    }
+
+    /**
+     * Returns how many times a failed segment will be requested again.
+     */
+    public int getDownloadSegmentRetries() {
+        return Math.max(0, getInt("download_segment_retries", 3));
+    }
+
+    /**
+     * Returns true if the streams returned by retrieveFileAsStream read the object ahead of the consumer,
+     * see UniversalS3PrefetchingInputStream.
+     */
+    public boolean isPrefetchStream() {
+        return getBoolean("prefetch_stream", false);
+    }
+
+    /**
+     * Returns the size of every block read ahead, this value will never be lesser than 64 KB.
+     */
+    public int getPrefetchBlockSize() {
+        return Math.max(65536, getInt("prefetch_block_size", 1048576));
+    }
+
+    /**
+     * Returns the max number of blocks a stream reads ahead of its consumer.
+     */
+    public int getPrefetchMaxDepth() {
+        return Math.max(1, getInt("prefetch_max_depth", 8));
+    }
+
+    /**
+     * Returns true if concurrent calls of retrieveFileAsStream for the same file share a single download, 
+     * every caller reads the content from memory or from a temporary file.
+     */
+    public boolean isCoalesceStreams() {
+        return getBoolean("coalesce_streams", false);
+    }
+
+    /**
+     * Returns the max size of a shared stream download kept in memory, a larger content is spooled to a
+     * temporary file.
+     */
+    public long getCoalesceStreamMemory() {
+        return Math.max(0, getLong("coalesce_stream_memory", 8388608));
+    }
+
+    /**
+     * Returns the size of the aligned blocks requested by the channels returned by openSeekable, this value 
+     * will never be lesser than 4 KB.
+     */
+    public int getSeekableBlockSize() {
+        return Math.max(4096, getInt("seekable_block_size", 65536));
+    }
+
+    /**
+     * Returns the number of blocks cached by every channel returned by openSeekable.
+     */
+    public int getSeekableCacheBlocks() {
+        return Math.max(1, getInt("seekable_cache_blocks", 16));
+    }
+
+    /**
+     * Returns the number of listing pages requested concurrently by listFiles, 1 means the prefix is listed
+     * sequentially while the next page is prefetched.
+     */
+    public int getListConcurrency() {
+        return Math.max(1, getInt("list_concurrency", 1));
+    }
+
+    /**
+     * Returns the number of folder levels a concurrent listing splits into sub-prefixes.
+     */
+    public int getListFanOutDepth() {
+        return Math.max(1, getInt("list_fan_out_depth", 1));
+    }
+
+    /**
+     * Returns the number of multi-object delete batches in flight at once.
+     */
+    public int getDeleteConcurrency() {
+        return Math.max(1, getInt("delete_concurrency", 4));
+    }
+
+    /**
+     * Returns the number of keys per multi-object delete batch, this value will never be greater than 1000.
+     */
+    public int getDeleteBatchSize() {
+        return Math.max(1, Math.min(UniversalS3BatchDeleter.MAX_BATCH_SIZE, getInt("delete_batch_size", UniversalS3BatchDeleter.MAX_BATCH_SIZE)));
+    }
+
+    /**
+     * Returns the budget in bytes of the local object cache used by retrieveFile, 0 means disabled.
+     */
+    public long getCacheMaxBytes() {
+        return Math.max(0, getLong("cache_max_bytes", 0));
+    }
+
+    /**
+     * Returns the folder of the local object cache, null means a folder within the tmp folder.
+     */
+    public String getCacheDirectory() {
+        return getValue("cache_dir");
+    }
+
+    /**
+     * Returns the time to live in milliseconds of the cached metadata used by exists and getMetadata, 0, the default,
+     * means disabled.
+     */
+    public long getMetadataCacheTtl() {
+        return Math.max(0, getLong("metadata_cache_ttl", 0));
+    }
+
+    /**
+     * Returns the max number of entries of the metadata cache.
+     */
+    public int getMetadataCacheMaxEntries() {
+        return Math.max(1, getInt("metadata_cache_max_entries", 10000));
+    }
+
+    /**
+     * Returns the number of files transferred concurrently by syncToStorage and syncFromStorage.
+     */
+    public int getSyncConcurrency() {
+        return Math.max(1, getInt("sync_concurrency", 8));
+    }
+
+    /**
+     * Returns the kind of threads of the asynchronous operations, either "platform" or "virtual".
+     * Virtual threads need JDK 21 or later, otherwise a pool of platform threads is used.
+     */
+    public String getAsyncExecutor() {
+        String value = getValue("async_executor");
+        return value == null ? "platform" : value;
+    }
+
+    /**
+     * Returns the size of the pool of platform threads of the asynchronous operations.
+     */
+    public int getAsyncThreads() {
+        return Math.max(1, getInt("async_threads", 16));
+    }
+
+    /**
+     * Returns the max number of asynchronous operations of the same kind in flight, i.e: storeFileAsync.
+     */
+    public int getAsyncOperationLimit() {
+        return Math.max(1, getInt("async_operation_limit", 8));
+    }
+
+    /**
+     * Returns true if the storages with the same region, credentials and connection settings share one client.
+     */
+    public boolean isSharedClient() {
+        return getBoolean("shared_client", true);
+    }
+
+    /**
+     * Returns the max number of open connections of the client.
+     */
+    public int getMaxConnections() {
+        return Math.max(1, getInt("max_connections", 50));
+    }
+
+    /**
+     * Returns the timeout in milliseconds for establishing a connection.
+     */
+    public int getConnectionTimeout() {
+        return Math.max(0, getInt("connection_timeout", 10000));
+    }
+
+    /**
+     * Returns the timeout in milliseconds for reading from an open connection.
+     */
+    public int getSocketTimeout() {
+        return Math.max(0, getInt("socket_timeout", 50000));
+    }
+
+    /**
+     * Returns the time to live in milliseconds of a pooled connection, -1 means no limit.
+     */
+    public long getConnectionTtl() {
+        return getLong("connection_ttl", -1);
+    }
+
+    /**
+     * Returns the time in milliseconds after which an idle connection is closed.
+     */
+    public long getConnectionMaxIdle() {
+        return Math.max(0, getLong("connection_max_idle", 60000));
+    }
+
+    /**
+     * Returns true if the connections use TCP keep-alive.
+     */
+    public boolean isTcpKeepAlive() {
+        return getBoolean("tcp_keep_alive", false);
+    }
+
+    /**
+     * Returns true if a background thread closes the idle and expired connections.
+     */
+    public boolean isIdleConnectionReaper() {
+        return getBoolean("idle_connection_reaper", true);
+    }
+
+    /**
+     * Returns the number of connections opened when a client is created, 0 means disabled.
+     */
+    public int getWarmupConnections() {
+        return Math.max(0, getInt("warmup_connections", 0));
+    }
+
+    /**
+     * Returns the value of the passed key, null if the key is not present.
+     *
+     * @param key in context without prefix, i.e: part_size.
+     */
+    protected String getValue(String key) {
+        // A missing key is kept as an empty string, a resolved value is never empty.
+        String value = this.resolved.get(key);
+        if (value == null) {
+            value = resolve(key);
+            this.resolved.putIfAbsent(key, value == null ? "" : value);
+        }
+
+        return "".equals(value) ? null : value;
+    }
+
+    /**
+     * Returns the value of the passed key read from the provided values, the jvm parameters and the 
+     * environment variables, null if the key is not present.
+     *
+     * @param key in context without prefix, i.e: part_size.
+     */
+    private String resolve(String key) {
+        String value = this.values.get(key);
+        if (value == null || "".equals(value.trim())) {
+            value = System.getProperty(PROPERTY_PREFIX + key);
+        }
+
+        if (value == null || "".equals(value.trim())) {
+            value = System.getenv(ENV_PREFIX + key);
+        }
+
+        return value == null || "".equals(value.trim()) ? null : value.trim();
+    }
+
+    /**
+     * Returns the value of the passed key as long.
+     *
+     * @param key in context.
+     * @param defaultValue is returned when the key is not present.
+     * @throws IllegalStateException if the value is not a valid number.
+     */
+    protected long getLong(String key, long defaultValue) {
+        Long number = this.numbers.get(key);
+        if (number != null) {
+            return number;
+        }
+
+        String value = getValue(key);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            number = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Invalid " + key + ": " + value);
+        }
+
+        this.numbers.putIfAbsent(key, number);
+        return number;
+    }
+
+    /**
+     * Returns the value of the passed key as int.
+     *
+     * @param key in context.
+     * @param defaultValue is returned when the key is not present.
+     * @throws IllegalStateException if the value is not a valid number.
+     */
+    protected int getInt(String key, int defaultValue) {
+        long value = getLong(key, defaultValue);
+        if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) {
+            throw new IllegalStateException("Invalid " + key + ": " + value);
+        }
+
+        return (int) value;
+    }
+
+    /**
+     * Returns the value of the passed key as boolean.
+     *
+     * @param key in context.
+     * @param defaultValue is returned when the key is not present.
+     */
+    protected boolean getBoolean(String key, boolean defaultValue) {
+        String value = getValue(key);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        return Boolean.parseBoolean(value);
+    }
+}
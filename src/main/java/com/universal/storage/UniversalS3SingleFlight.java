@@ -0,0 +1,121 @@
+package com.universal.storage;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class coalesces concurrent executions of the same operation.
+ *
+ * The first caller of an id executes the operation, the callers that arrive while it's in flight wait
+ * for it and receive the same result or the same error.  Once the operation is over, the next caller of
+ * the id executes it again, so the results are never cached.
+ *
+ * @param <T> the result of the operation.
+ */
+class UniversalS3SingleFlight<T> {
+    private final Map<String, Flight<T>> flights = new HashMap<String, Flight<T>>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * This method executes the operation, or waits for the execution in flight with the same id.
+     *
+     * @param id of the operation, i.e: the bucket and key of a download.
+     * @param operation to be executed if there is no execution in flight.
+     * @return the result of the execution.
+     * @throws Exception the error thrown by the execution.
+     */
+    T execute(String id, Callable<T> operation) throws Exception {
+        Flight<T> flight;
+        boolean leader;
+        synchronized (this.flights) {
+            flight = this.flights.get(id);
+            leader = flight == null;
+            if (leader) {
+                flight = new Flight<T>(new FutureTask<T>(operation));
+                this.flights.put(id, flight);
+            } else {
+                this.coalesced.incrementAndGet();
+            }
+
+            flight.participants++;
+        }
+
+        if (leader) {
+            int participants;
+            try {
+                flight.task.run();
+            } finally {
+                synchronized (this.flights) {
+                    this.flights.remove(id);
+                    participants = flight.participants;
+                }
+            }
+
+            try {
+                completed(flight.task.get(), participants);
+            } catch (ExecutionException ignore) {
+                // The error is thrown below.
+            }
+        }
+
+        try {
+            return flight.task.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Returns the number of callers that waited for an execution in flight instead of executing the operation.
+     */
+    long getCoalesced() {
+        return this.coalesced.get();
+    }
+
+    /**
+     * This method is called once an execution succeeds and no more callers can join it.
+     *
+     * @param result of the execution.
+     * @param participants number of callers that receive the result, the caller that executed the operation included.
+     */
+    protected void completed(T result, int participants) {
+    }
+
+    /**
+     * This class represents an execution in flight.
+     */
+    private static class Flight<T> {
+        private final FutureTask<T> task;
+        private int participants;
+
+        Flight(FutureTask<T> task) {
+            this.task = task;
+        }
+    }
+}
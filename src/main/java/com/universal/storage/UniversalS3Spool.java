@@ -0,0 +1,157 @@
+package com.universal.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class holds the content of a download shared by several readers.
+ *
+ * The content is kept in memory up to a max size, a larger content is spooled to a temporary file which
+ * is removed once every reader is closed.  Every reader is independent and starts at the beginning.
+ */
+class UniversalS3Spool {
+    private final byte[] content;
+    private final File file;
+    private final long length;
+    private int readers = -1;
+    private int closed;
+
+    private UniversalS3Spool(byte[] content, File file, long length) {
+        this.content = content;
+        this.file = file;
+        this.length = length;
+    }
+
+    /**
+     * This method reads a stream until its end, the stream is not closed.
+     *
+     * @param stream to be read.
+     * @param maxMemory max number of bytes kept in memory.
+     * @param directory where a larger content is spooled.
+     * @return the spooled content.
+     * @throws IOException when the stream can't be read or the file can't be written.
+     */
+    static UniversalS3Spool spool(InputStream stream, long maxMemory, File directory) throws IOException {
+        ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        long length = IOUtils.copyLarge(stream, memory, 0, maxMemory + 1);
+        if (length <= maxMemory) {
+            return new UniversalS3Spool(memory.toByteArray(), null, length);
+        }
+
+        FileUtils.forceMkdir(directory);
+        File file = File.createTempFile("spool", ".tmp", directory);
+        file.deleteOnExit();
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                memory.writeTo(out);
+                memory = null;
+                length += IOUtils.copyLarge(stream, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+
+        return new UniversalS3Spool(null, file, length);
+    }
+
+    /**
+     * Returns the length of the content.
+     */
+    long getLength() {
+        return this.length;
+    }
+
+    /**
+     * Returns true if the content was spooled to a file.
+     */
+    boolean isSpooled() {
+        return this.file != null;
+    }
+
+    /**
+     * Returns a new reader positioned at the beginning of the content.
+     *
+     * @throws IOException if the spooled file can't be opened.
+     */
+    InputStream open() throws IOException {
+        if (this.content != null) {
+            return new ByteArrayInputStream(this.content);
+        }
+
+        return new FileInputStream(this.file) {
+            private boolean released;
+
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if (!this.released) {
+                        this.released = true;
+                        release();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * This method sets the number of readers of the content, the spooled file is removed once they are closed.
+     *
+     * @param readers in context.
+     */
+    synchronized void setReaders(int readers) {
+        this.readers = readers;
+        deleteIfClosed();
+    }
+
+    /**
+     * This method counts a closed reader.
+     */
+    private synchronized void release() {
+        this.closed++;
+        deleteIfClosed();
+    }
+
+    /**
+     * Removes the spooled file if every reader is closed.
+     */
+    private void deleteIfClosed() {
+        if (this.file != null && this.readers >= 0 && this.closed >= this.readers) {
+            this.file.delete();
+        }
+    }
+}
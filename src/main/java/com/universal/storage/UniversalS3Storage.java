@@ -5,13 +5,34 @@ import com.universal.util.FileUtil;
 import com.universal.error.UniversalIOException;
 import com.universal.storage.settings.UniversalSettings;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.IOException;
 import java.io.ByteArrayInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.PutObjectResult;
 import com.amazonaws.services.s3.model.ObjectMetadata;
@@ -20,23 +41,9 @@ import com.amazonaws.services.s3.model.Tag;
 import com.amazonaws.services.s3.model.ObjectTagging;
 import com.amazonaws.services.s3.model.DeleteObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.amazonaws.services.s3.model.GetObjectRequest;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.regions.Regions;
-import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
 import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
-import com.amazonaws.services.s3.model.PartETag;
-import com.amazonaws.services.s3.model.UploadPartRequest;
-import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
-import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
-import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
-import com.amazonaws.services.s3.model.SetObjectTaggingRequest;
-import com.amazonaws.services.s3.model.CopyObjectRequest;
-import com.amazonaws.services.s3.model.ObjectListing;
-import com.amazonaws.services.s3.model.VersionListing;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
-import com.amazonaws.services.s3.model.ListVersionsRequest;
-import com.amazonaws.services.s3.model.S3VersionSummary;
 
 /**
  * The MIT License (MIT)
@@ -66,17 +73,173 @@ import com.amazonaws.services.s3.model.S3VersionSummary;
  */
 public class UniversalS3Storage extends UniversalStorage {
     private static final String PREFIX_S3_URL = "https://s3.amazonaws.com/";
-    private static final long PART_SIZE = 5242880; // Set part size to 5 MB.
+    private static final int CHANNEL_BUFFER_SIZE = 262144;
+    private static final int NOT_FOUND = 404;
+    private static final int INVALID_RANGE = 416;
     private AmazonS3 s3client;
+    private UniversalS3Settings s3Settings;
+    private ExecutorService uploadExecutor;
+    private ExecutorService downloadExecutor;
+    private ExecutorService copyExecutor;
+    private ExecutorService syncExecutor;
+    private UniversalS3BufferPool bufferPool;
+    private UniversalS3BufferPool channelBufferPool;
+    private UniversalS3BufferPool prefetchBufferPool;
+    private UniversalS3ObjectCache objectCache;
+    private UniversalS3PackStore packStore;
+    private ScheduledExecutorService packFlusher;
+    private UniversalS3Retrier retrier;
+    private UniversalS3Hedger hedger;
+    private UniversalS3ReadRouter router;
+    private final StorageClass storageClass;
+    private final ObjectTagging tagging;
+    private final ObjectMetadata objectMetadata;
+    private final UniversalS3SingleFlight<File> fileFlights = new UniversalS3SingleFlight<File>();
+    private final UniversalS3SingleFlight<UniversalS3Spool> streamFlights = new UniversalS3SingleFlight<UniversalS3Spool>() {
+        protected void completed(UniversalS3Spool spool, int participants) {
+            spool.setReaders(participants);
+        }
+    };
+    private File journalDirectory;
+    private UniversalS3MetadataCache metadataCache;
+    private UniversalS3Metrics metrics;
+    private boolean ownsClient;
+    private boolean closed;
+    private UniversalS3AsyncExecutor asyncExecutor;
+    private UniversalS3AsyncExecutor.Limiter storeLimiter;
+    private UniversalS3AsyncExecutor.Limiter retrieveLimiter;
+    private UniversalS3AsyncExecutor.Limiter streamLimiter;
+    private UniversalS3AsyncExecutor.Limiter removeLimiter;
+
     /**
      * This constructor receives the settings for this new FileStorage instance.
      * 
      * @param settings for this new FileStorage instance.
      */
     public UniversalS3Storage(UniversalSettings settings) {
+        this(settings, new UniversalS3Settings(settings));
+    }
+
+    /**
+     * This constructor receives the settings and the S3 specific settings for this new FileStorage instance.
+     * 
+     * @param settings for this new FileStorage instance.
+     * @param s3Settings S3 specific settings, i.e: part size and concurrency.
+     */
+    public UniversalS3Storage(UniversalSettings settings, UniversalS3Settings s3Settings) {
+        this(settings, s3Settings, null, true);
+    }
+
+    /**
+     * This constructor receives the settings, the S3 specific settings and the client for this new FileStorage instance.
+     * 
+     * @param settings for this new FileStorage instance.
+     * @param s3Settings S3 specific settings, i.e: part size and concurrency.
+     * @param s3client used to access the root bucket.
+     */
+    UniversalS3Storage(UniversalSettings settings, UniversalS3Settings s3Settings, AmazonS3 s3client) {
+        this(settings, s3Settings, s3client, false);
+    }
+
+    /**
+     * This constructor creates the client when it's not passed, the client and every resource created so far 
+     * are released if the initialization fails.
+     * 
+     * @param settings for this new FileStorage instance.
+     * @param s3Settings S3 specific settings, i.e: part size and concurrency.
+     * @param s3client used to access the root bucket, null to create or acquire one.
+     * @param ownsClient true if the client is released when this storage is closed.
+     */
+    private UniversalS3Storage(UniversalSettings settings, UniversalS3Settings s3Settings, AmazonS3 s3client, 
+                boolean ownsClient) {
         super(settings);
-        this.s3client = AmazonS3ClientBuilder.standard().withRegion(Regions.fromName(settings.getS3Region())).
-                    withCredentials(new UniversalProfileCredentialsProvider(this.settings)).build();
+        this.s3Settings = s3Settings;
+        this.storageClass = toStorageClass(settings.getStorageClass());
+
+        // The storage class, the tags and the encryption are the same for every upload.
+        List<Tag> tags = new ArrayList<Tag>();
+        for (String tagKey : settings.getTags().keySet()) {
+            tags.add(new Tag(tagKey, settings.getTags().get(tagKey)));
+        }
+
+        this.tagging = new ObjectTagging(Collections.unmodifiableList(tags));
+        this.objectMetadata = new ObjectMetadata();
+        if (settings.getEncryption()) {
+            this.objectMetadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+        }
+
+        try {
+            initialize(settings, s3Settings, s3client, ownsClient);
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * This method creates the client, if it's not passed, the replicas, the worker pools and the caches of 
+     * this storage.
+     */
+    private void initialize(UniversalSettings settings, UniversalS3Settings s3Settings, AmazonS3 s3client, 
+                boolean ownsClient) {
+        if (s3client == null) {
+            s3client = s3Settings.isSharedClient() ? UniversalS3ClientRegistry.acquire(settings, s3Settings) : 
+                        UniversalS3ClientRegistry.newClient(settings, s3Settings);
+        }
+
+        this.s3client = s3client;
+        this.ownsClient = ownsClient;
+        this.metrics = new UniversalS3Metrics();
+        this.retrier = new UniversalS3Retrier(s3Settings);
+        if (s3Settings.isHedgeReads()) {
+            this.hedger = new UniversalS3Hedger(s3Settings);
+        }
+
+        for (Map.Entry<String, String> replica : s3Settings.getReadReplicas().entrySet()) {
+            addReadReplica(s3Settings.isSharedClient() 
+                        ? UniversalS3ClientRegistry.acquire(settings, s3Settings, replica.getValue(), replica.getKey()) 
+                        : UniversalS3ClientRegistry.newClient(settings, s3Settings, replica.getValue()), replica.getKey(), true);
+        }
+
+        this.uploadExecutor = Executors.newFixedThreadPool(s3Settings.isAdaptiveUpload() 
+                    ? Math.max(s3Settings.getUploadConcurrency(), s3Settings.getAdaptiveMaxConcurrency()) 
+                    : s3Settings.getUploadConcurrency(), 
+                    new UniversalS3ThreadFactory("universal-s3-upload"));
+        this.downloadExecutor = Executors.newFixedThreadPool(s3Settings.getDownloadConcurrency(), 
+                    new UniversalS3ThreadFactory("universal-s3-download"));
+        this.copyExecutor = Executors.newFixedThreadPool(s3Settings.getCopyConcurrency(), 
+                    new UniversalS3ThreadFactory("universal-s3-copy"));
+        this.syncExecutor = Executors.newFixedThreadPool(s3Settings.getSyncConcurrency(), 
+                    new UniversalS3ThreadFactory("universal-s3-sync"));
+
+        if (s3Settings.getMetadataCacheTtl() > 0) {
+            this.metadataCache = new UniversalS3MetadataCache(s3Settings.getMetadataCacheTtl(), 
+                        s3Settings.getMetadataCacheMaxEntries());
+        }
+
+        if (s3Settings.getCacheMaxBytes() > 0) {
+            this.objectCache = new UniversalS3ObjectCache(toCacheDirectory(), s3Settings.getCacheMaxBytes());
+        }
+
+        if (s3Settings.isPackFiles()) {
+            this.packStore = new UniversalS3PackStore(s3client, s3Settings, this, settings.getRoot(), 
+                        settings.getEncryption(), this.storageClass, this.tagging.getTagSet(), this.retrier);
+
+            if (s3Settings.getPackMaxDelay() > 0) {
+                this.packFlusher = Executors.newSingleThreadScheduledExecutor(new UniversalS3ThreadFactory("universal-s3-pack-flush"));
+                this.packFlusher.scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        if (UniversalS3Storage.this.packStore.hasPending()) {
+                            try {
+                                flushPacks();
+                            } catch (UniversalIOException ignore) {
+                                // The error listeners were notified, the files are kept pending.
+                            }
+                        }
+                    }
+                }, s3Settings.getPackMaxDelay(), s3Settings.getPackMaxDelay(), TimeUnit.MILLISECONDS);
+            }
+        }
     }
 
     /**
@@ -97,6 +260,11 @@ public class UniversalS3Storage extends UniversalStorage {
      * 
      * If this file is a folder, a error will be thrown informing that should call the createFolder method.
      * 
+     * When the files are packed, a file smaller than the pack threshold is kept within the pending pack, see
+     * UniversalS3PackStore.  This method returns before the pack is uploaded, so the file is not durable and 
+     * other processes don't see it until the pack is flushed: when it's full, after the pack max delay, by 
+     * flushPacks or by close.
+     * 
      * Validations:
      * Validates if root is a bucket.
      * 
@@ -115,132 +283,347 @@ public class UniversalS3Storage extends UniversalStorage {
             path = "";
         }
 
-        if (file.length() <= PART_SIZE) {
-            uploadTinyFile(file, path);
-        } else {
-            uploadFile(file, path);
-        }        
+        long length = file.length();
+        AtomicInteger retries = new AtomicInteger();
+        long start = this.metrics.start(UniversalS3Operation.STORE_FILE);
+        int parts = 0;
+        boolean failed = true;
+        String codec = this.s3Settings.getCompression();
+        try {
+            if (this.packStore != null && length < this.s3Settings.getPackThreshold()) {
+                packFile(file, path);
+                failed = false;
+                return;
+            }
+
+            if (codec != null && length >= this.s3Settings.getCompressionMinSize()) {
+                parts = uploadCompressedFile(file, path, codec, retries);
+            } else if (length <= this.s3Settings.getPartSize()) {
+                uploadTinyFile(file, path, retries);
+            } else {
+                parts = uploadFile(file, path, retries);
+            }
+
+            // A packed copy of the file would shadow the new object.
+            removePacked(toKey(path, file.getName()));
+            failed = false;
+        } finally {
+            invalidate(toKey(path, file.getName()));
+            this.metrics.stop(UniversalS3Operation.STORE_FILE, start, failed ? 0 : length, parts, retries.get(), failed);
+        }
     }
 
     /**
-     * This method uploads a file with a length greater than PART_SIZE (5Mb).
+     * This method appends a file to the pending pack, see UniversalS3PackStore.  The pack is uploaded when it 
+     * reaches the max pack size or after the pack max delay, the file stored listeners are called once the 
+     * pack is uploaded.
      * 
      * @param file to be stored within the storage.
      * @param path is the path for this new file within the root.
      * @throws UniversalIOException when a specific IO error occurs.
      */
-    private void uploadFile(File file, String path) throws UniversalIOException {
-         // Create a list of UploadPartResponse objects. You get one of these
-        // for each part upload.
-        List<PartETag> partETags = new ArrayList<PartETag>();
+    private void packFile(File file, String path) throws UniversalIOException {
+        boolean full;
+        try {
+            this.triggerOnStoreFileListeners();
+            full = this.packStore.add(toKey(path, file.getName()), FileUtils.readFileToByteArray(file));
+        } catch (Exception e) {
+            UniversalIOException error = new UniversalIOException(e.getMessage());
+            this.triggerOnErrorListeners(error);
+            throw error;
+        }
+
+        if (full) {
+            flushPacks();
+        }
+    }
+
+    /**
+     * This method uploads the files waiting within the pending pack using a single PUT, the pending pack is
+     * uploaded by close as well.  This method does nothing if the files are not packed.
+     * 
+     * @throws UniversalIOException when the pack can't be uploaded, the files are kept pending.
+     */
+    public void flushPacks() throws UniversalIOException {
+        if (this.packStore == null) {
+            return;
+        }
 
-        // Step 1: Initialize.
-        InitiateMultipartUploadRequest initRequest = new 
-             InitiateMultipartUploadRequest(this.settings.getRoot(), file.getName());
-        InitiateMultipartUploadResult initResponse = 
-        	                   this.s3client.initiateMultipartUpload(initRequest);
+        long start = this.metrics.start(UniversalS3Operation.FLUSH_PACK);
+        long bytes = 0;
+        boolean failed = true;
+        try {
+            for (UniversalS3PackStore.Entry entry : this.packStore.flush()) {
+                String key = entry.getKey();
+                int index = key.lastIndexOf("/");
+                String path = index == -1 ? "" : key.substring(0, index);
+                bytes += entry.getLength();
+                invalidate(key);
 
-        long contentLength = file.length();
-        long partSize = PART_SIZE; // Set part size to 5 MB.
+                this.triggerOnFileStoredListeners(new UniversalStorageData(index == -1 ? key : key.substring(index + 1), 
+                                PREFIX_S3_URL + this.settings.getRoot() + "/" + key,
+                                null, 
+                                this.settings.getRoot() + ("".equals(path) ? "" : ("/" + path))));
+            }
 
-        ObjectMetadata objectMetadata = new ObjectMetadata();
-        if (this.settings.getEncryption()) {
-            objectMetadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);     
+            failed = false;
+        } catch (Exception e) {
+            UniversalIOException error = new UniversalIOException(e.getMessage());
+            this.triggerOnErrorListeners(error);
+            throw error;
+        } finally {
+            this.metrics.stop(UniversalS3Operation.FLUSH_PACK, start, bytes, 0, 0, failed);
         }
+    }
 
-        List<Tag> tags = new ArrayList<Tag>();
-        for (String key : this.settings.getTags().keySet()) {
-            tags.add(new Tag(key, this.settings.getTags().get(key)));
+    /**
+     * This method removes the packed copy of a file, if any.
+     * 
+     * @param key of the file within the root.
+     * @throws UniversalIOException when the tombstone can't be stored.
+     */
+    void removePacked(String key) throws UniversalIOException {
+        if (this.packStore == null) {
+            return;
         }
 
         try {
-            this.triggerOnStoreFileListeners();
-            // Step 2: Upload parts.
-            long filePosition = 0;
-            for (int i = 1; filePosition < contentLength; i++) {
-                // Last part can be less than 5 MB. Adjust part size.
-            	partSize = Math.min(partSize, (contentLength - filePosition));
-            	
-                // Create request to upload a part.
-                UploadPartRequest uploadRequest = new UploadPartRequest()
-                    .withBucketName(this.settings.getRoot() + ("".equals(path) ? "" : ("/" + path)))
-                    .withKey(file.getName())
-                    .withUploadId(initResponse.getUploadId()).withPartNumber(i)
-                    .withFileOffset(filePosition)
-                    .withFile(file)
-                    .withObjectMetadata(objectMetadata)
-                    .withPartSize(partSize);
+            this.packStore.remove(key);
+        } catch (Exception e) {
+            UniversalIOException error = new UniversalIOException(e.getMessage());
+            this.triggerOnErrorListeners(error);
+            throw error;
+        }
+    }
+
+    /**
+     * Returns the keys of the packed files, either pending or stored, that start with the passed prefix.
+     * 
+     * @param prefix of the keys.
+     * @throws Exception when the indexes can't be loaded.
+     */
+    List<String> listPacked(String prefix) throws Exception {
+        return this.packStore == null ? new ArrayList<String>() : this.packStore.list(prefix);
+    }
 
-                // Upload part and add response to our list.
-                partETags.add(this.s3client.uploadPart(uploadRequest).getPartETag());
+    /**
+     * Returns the tags sent along with every upload.
+     */
+    ObjectTagging getTagging() {
+        return this.tagging;
+    }
 
-                filePosition += partSize;
-            }
+    /**
+     * Returns the content of a packed file, null if the file is not packed.
+     * 
+     * @param key of the file within the root.
+     * @throws Exception when the indexes or the file can't be read.
+     */
+    byte[] readPacked(String key) throws Exception {
+        if (this.packStore == null) {
+            return null;
+        }
+
+        byte[] content = this.packStore.getPending(key);
+        if (content != null) {
+            return content;
+        }
+
+        UniversalS3PackStore.Entry entry = this.packStore.lookup(key);
+        return entry == null ? null : this.packStore.read(entry);
+    }
+
+    /**
+     * Returns the key of a file within the root.
+     * 
+     * @param path is the path for the file within the root.
+     * @param name of the file.
+     */
+    private String toKey(String path, String name) {
+        return ("".equals(path) ? "" : (path.endsWith("/") ? path : (path + "/"))) + name;
+    }
+
+    /**
+     * This method removes the cached metadata and the cached copy of an object, this method must be called 
+     * every time an object is either stored or removed.
+     * 
+     * @param key of the object.
+     */
+    private void invalidate(String key) {
+        if (this.metadataCache != null) {
+            this.metadataCache.invalidate(key);
+        }
+
+        if (this.objectCache != null) {
+            this.objectCache.invalidate(this.settings.getRoot(), key);
+        }
+    }
+
+    /**
+     * This method removes the cached metadata and the cached copies of every object under a prefix, this 
+     * method must be called every time a folder is either copied, moved or removed.
+     * 
+     * @param prefix of the objects.
+     */
+    private void invalidatePrefix(String prefix) {
+        if (this.metadataCache != null) {
+            this.metadataCache.invalidatePrefix(prefix);
+        }
+
+        if (this.objectCache != null) {
+            this.objectCache.invalidatePrefix(this.settings.getRoot(), prefix);
+        }
+    }
+
+    /**
+     * This method uploads a file with a length greater than the part size (5Mb by default).
+     * The parts are uploaded concurrently, see UniversalS3MultipartUploader.  The listeners receive an
+     * UniversalS3StorageData with the part size and the concurrency used by the upload.
+     * 
+     * @param file to be stored within the storage.
+     * @param path is the path for this new file within the root.
+     * @param retries is incremented by the retries of the parts.
+     * @return the number of parts.
+     * @throws UniversalIOException when a specific IO error occurs.
+     */
+    private int uploadFile(File file, String path, AtomicInteger retries) throws UniversalIOException {
+        String key = toKey(path, file.getName());
 
-            // Step 3: Complete.
-            CompleteMultipartUploadRequest compRequest = new CompleteMultipartUploadRequest(
-                                    this.settings.getRoot() + ("".equals(path) ? "" : ("/" + path)), 
-                                    file.getName(), 
-                                    initResponse.getUploadId(), 
-                                    partETags);
+        UniversalS3MultipartUploader uploader = null;
+        try {
+            this.triggerOnStoreFileListeners();
 
-            CompleteMultipartUploadResult result = this.s3client.completeMultipartUpload(compRequest);
+            uploader = new UniversalS3MultipartUploader(this.s3client, this.uploadExecutor, this.s3Settings, 
+                            this.s3Settings.isResumableUpload() ? getJournalDirectory() : null, getBufferPool(), this.retrier);
+            CompleteMultipartUploadResult result = uploader.upload(file, this.settings.getRoot(), key, newObjectMetadata(), 
+                            this.tagging, this.storageClass);
 
-            StorageClass storageClass = getStorageClass();
-            if (storageClass != StorageClass.Standard) {
-                CopyObjectRequest copyObjectRequest = new CopyObjectRequest(this.settings.getRoot(), file.getName(), 
-                    this.settings.getRoot(), file.getName()).withStorageClass(storageClass);
+            UniversalS3UploadController controller = uploader.getController();
+            this.triggerOnFileStoredListeners(new UniversalS3StorageData(file.getName(), 
+                            PREFIX_S3_URL + this.settings.getRoot() + "/" + key,
+                            result.getVersionId(), 
+                            this.settings.getRoot() + ("".equals(path) ? "" : ("/" + path)), 
+                            uploader.getPartSize(), uploader.getParts(), controller.getInitialLimit(), 
+                            controller.getPeakLimit(), controller.getLimit(), controller.getThrottles()));
 
-                this.s3client.copyObject(copyObjectRequest);
+            return uploader.getParts();
+        } catch (Exception e) {
+            UniversalIOException error = new UniversalIOException(e.getMessage());
+            this.triggerOnErrorListeners(error);
+            throw error;
+        } finally {
+            if (uploader != null) {
+                retries.addAndGet(uploader.getRetries());
             }
+        }
+    }
+
+    /**
+     * This method uploads a file compressing its content on the fly, see UniversalS3Compression.  The codec, 
+     * the uncompressed length and the uncompressed MD5 are stored within the user metadata, so the object is 
+     * decompressed when it's retrieved and the synchronization can compare it with the local file.
+     * 
+     * @param file to be stored within the storage.
+     * @param path is the path for this new file within the root.
+     * @param codec either gzip or deflate.
+     * @param retries is incremented by the retries of the requests.
+     * @return the number of parts, 0 if the compressed content was uploaded using a single request.
+     * @throws UniversalIOException when a specific IO error occurs.
+     */
+    private int uploadCompressedFile(File file, String path, String codec, AtomicInteger retries) throws UniversalIOException {
+        String key = toKey(path, file.getName());
+
+        UniversalS3StreamUploader uploader = new UniversalS3StreamUploader(this.s3client, this.uploadExecutor, 
+                    this.s3Settings, getBufferPool(), this.retrier, UniversalS3Operation.STORE_FILE);
+        try {
+            ObjectMetadata objectMetadata = newObjectMetadata();
+            objectMetadata.addUserMetadata(UniversalS3Compression.METADATA_CODEC, codec);
+            objectMetadata.addUserMetadata(UniversalS3Compression.METADATA_LENGTH, String.valueOf(file.length()));
+            // The MD5 is sent when the upload is initiated, so the object is never copied onto itself to record it.
+            objectMetadata.addUserMetadata(UniversalS3Compression.METADATA_MD5, UniversalS3Synchronizer.computeETag(file, -1));
+
+            this.triggerOnStoreFileListeners();
 
-            if (!tags.isEmpty()) {
-                this.s3client.setObjectTagging(new SetObjectTaggingRequest(this.settings.getRoot(), file.getName(), new ObjectTagging(tags)));
+            UniversalS3StreamUploader.Result result;
+            InputStream stream = UniversalS3Compression.compress(new FileInputStream(file), codec, this.s3Settings.getCompressionLevel());
+            try {
+                result = uploader.upload(stream, this.settings.getRoot(), key, objectMetadata, this.tagging, this.storageClass);
+            } finally {
+                stream.close();
             }
 
             this.triggerOnFileStoredListeners(new UniversalStorageData(file.getName(), 
-                            PREFIX_S3_URL + (this.settings.getRoot() + ("".equals(path) ? "" : ("/" + path))) + "/" + file.getName(),
+                            PREFIX_S3_URL + this.settings.getRoot() + "/" + key,
                             result.getVersionId(), 
                             this.settings.getRoot() + ("".equals(path) ? "" : ("/" + path))));
-        } catch (Exception e) {
-            this.s3client.abortMultipartUpload(new AbortMultipartUploadRequest(
-                    this.settings.getRoot(), file.getName(), initResponse.getUploadId()));
 
+            return result.getParts();
+        } catch (Exception e) {
             UniversalIOException error = new UniversalIOException(e.getMessage());
             this.triggerOnErrorListeners(error);
             throw error;
+        } finally {
+            retries.addAndGet(uploader.getRetries());
         }
     }
 
     /**
-     * This method uploads a file with a length lesser than PART_SIZE (5Mb).
+     * This method uploads a file with a length lesser than the part size (5Mb by default).
      * 
      * @param file to be stored within the storage.
      * @param path is the path for this new file within the root.
+     * @param retries is incremented by the retries of the PUT.
      * @throws UniversalIOException when a specific IO error occurs.
      */
-    private void uploadTinyFile(File file, String path) throws UniversalIOException {
+    private void uploadTinyFile(File file, String path, AtomicInteger retries) throws UniversalIOException {
+        String key = toKey(path, file.getName());
         try {
-            ObjectMetadata objectMetadata = new ObjectMetadata();
-            if (this.settings.getEncryption()) {
-                objectMetadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);     
-            }
+            ObjectMetadata objectMetadata = newObjectMetadata();
+            UniversalS3BufferPool pool = this.s3Settings.isVerifyIntegrity() ? getBufferPool() : null;
+            final ByteBuffer buffer = pool == null || file.length() > pool.getBufferSize() ? null : pool.acquire();
+            PutObjectResult result;
+            try {
+                PutObjectRequest request;
+                if (buffer == null) {
+                    request = new PutObjectRequest(this.settings.getRoot(), key, file);
+                } else {
+                    // The file is read once, the MD5 is computed from the same buffer that is sent.
+                    RandomAccessFile raf = new RandomAccessFile(file, "r");
+                    try {
+                        UniversalS3Channels.read(raf.getChannel(), buffer, 0, raf.length());
+                    } finally {
+                        raf.close();
+                    }
 
-            List<Tag> tags = new ArrayList<Tag>();
-            for (String key : this.settings.getTags().keySet()) {
-                tags.add(new Tag(key, this.settings.getTags().get(key)));
-            }
+                    objectMetadata.setContentLength(buffer.remaining());
+                    objectMetadata.setContentMD5(UniversalS3Checksum.md5(buffer));
+                    request = new PutObjectRequest(this.settings.getRoot(), key, (InputStream) null, null);
+                }
 
-            PutObjectRequest request = new PutObjectRequest(this.settings.getRoot() + ("".equals(path) ? "" : ("/" + path)), file.getName(), file);
-            request.setMetadata(objectMetadata);
-            request.setTagging(new ObjectTagging(tags));
-            request.setStorageClass(getStorageClass());
-            this.triggerOnStoreFileListeners();
-            
-            PutObjectResult result = this.s3client.putObject(request);
+                request.setMetadata(objectMetadata);
+                request.setTagging(this.tagging);
+                request.setStorageClass(this.storageClass);
+                this.triggerOnStoreFileListeners();
+
+                final PutObjectRequest put = request;
+                result = this.retrier.execute(UniversalS3Operation.STORE_FILE, new Callable<PutObjectResult>() {
+                    public PutObjectResult call() {
+                        if (buffer != null) {
+                            // A retry sends the buffer again from its beginning.
+                            put.setInputStream(new UniversalS3ByteBufferInputStream(buffer.duplicate()));
+                        }
+
+                        return UniversalS3Storage.this.s3client.putObject(put);
+                    }
+                }, retries);
+            } finally {
+                if (buffer != null) {
+                    pool.release(buffer);
+                }
+            }
 
             this.triggerOnFileStoredListeners(new UniversalStorageData(file.getName(), 
-                            PREFIX_S3_URL + (this.settings.getRoot() + ("".equals(path) ? "" : ("/" + path))) + "/" + file.getName(),
+                            PREFIX_S3_URL + this.settings.getRoot() + "/" + key,
                             result.getVersionId(), 
                             this.settings.getRoot() + ("".equals(path) ? "" : ("/" + path))));
         } catch(Exception e) {
@@ -250,11 +633,17 @@ public class UniversalS3Storage extends UniversalStorage {
         }
     }
 
+    /**
+     * Returns a new copy of the metadata shared by every upload, i.e: the encryption.
+     */
+    private ObjectMetadata newObjectMetadata() {
+        return this.objectMetadata.clone();
+    }
+
     /**
      * Gets the enum from StorageClass according to the storage class from the settings.
      */
-    private StorageClass getStorageClass() {
-        String sc = this.settings.getStorageClass();
+    private static StorageClass toStorageClass(String sc) {
         if ("REDUCED_REDUNDANCY".equals(sc)) {
             return StorageClass.ReducedRedundancy;
         } else if ("STANDARD_IA".equals(sc)) {
@@ -267,196 +656,1308 @@ public class UniversalS3Storage extends UniversalStorage {
     }
 
     /**
-     * This method stores a file according to the provided path within the storage provider 
-     * according to the current settings.
-     * 
-     * @param path pointing to the file which will be stored within the storage.
-     * @throws UniversalIOException when a specific IO error occurs.
-     */
-    void storeFile(String path) throws UniversalIOException {
-        this.storeFile(new File(path), null);
-    }
-
-    /**
-     * This method stores a file according to the provided path within the storage provider according to the current settings.
-     * 
-     * @param path pointing to the file which will be stored within the storage.
-     * @param targetPath is the path within the storage.
-     * 
-     * @throws UniversalIOException when a specific IO error occurs.
-     */
-    void storeFile(String path, String targetPath) throws UniversalIOException {
-        PathValidator.validatePath(path);
-        PathValidator.validatePath(targetPath);
-
-        this.storeFile(new File(path), targetPath);
-    }
-
-    /**
-     * This method removes a file from the storage.  This method will use the path parameter 
-     * to localte the file and remove it from the storage.  The deletion process will delete the last
-     * version of this object.
-     * 
-     * Root = /s3storage/
-     * path = myfile.txt
-     * Target = /s3storage/myfile.txt
-     * 
-     * Root = /s3storage/
-     * path = myfolder/myfile.txt
-     * Target = /s3storage/myfolder/myfile.txt 
-     * 
-     * @param path is the object's path within the storage.  
-     * @throws UniversalIOException when a specific IO error occurs.
-     */
-    void removeFile(String path) throws UniversalIOException {
-        PathValidator.validatePath(path);
-
-        try {
-            this.triggerOnRemoveFileListeners();
-            s3client.deleteObject(new DeleteObjectRequest(this.settings.getRoot(), path));
-            this.triggerOnFileRemovedListeners();        
-        } catch (Exception e) {
-            UniversalIOException error = new UniversalIOException(e.getMessage());
-            this.triggerOnErrorListeners(error);
-            throw error;
-        }        
-    }
-
-    /**
-     * This method creates a new folder within the storage using the passed path. If the new folder name already
-     * exists within the storage, this  process will skip the creation step.
-     * 
-     * Root = /s3storage/
-     * path = /myFolder
-     * Target = /s3storage/myFolder
+     * This method stores the content of a stream within the storage provider according to the current settings.
+     * The method will replace the object if already exists within the root.
      * 
-     * Root = /s3storage/
-     * path = /folders/myFolder
-     * Target = /s3storage/folders/myFolder
+     * The length of the stream doesn't need to be known, the stream is uploaded on the fly using pooled 
+     * buffers of the part size.  A stream lesser than the part size is uploaded using a single request.
+     * The stream is read until its end but it's not closed.
      * 
-     * @param path is the folder's path.  A path must end with forward slash '/', the back slash '\' is not 
-     *        considered a folder indicator.
-     * @param storeFiles is a flag to store the files after folder creation.
+     * Root = /storage/
+     * key = myfolder/report.csv
+     * Target = /storage/myfolder/report.csv
      * 
+     * @param stream to be stored within the storage.
+     * @param key is the path for this new object within the root.
      * @throws UniversalIOException when a specific IO error occurs.
-     * @throws IllegalArgumentException is path has an invalid value.
      */
-    void createFolder(String path) throws UniversalIOException {
-        PathValidator.validatePath(path);
+    public void storeStream(InputStream stream, String key) throws UniversalIOException {
+        PathValidator.validatePath(key);
 
-        if ("".equals(path.trim())) {
-            UniversalIOException error = new UniversalIOException("Invalid path.  The path shouldn't be empty.");
+        if (key == null || "".equals(key.trim()) || key.endsWith("/")) {
+            UniversalIOException error = new UniversalIOException("Invalid key.  The key should be the path of an object.");
             this.triggerOnErrorListeners(error);
             throw error;
         }
 
-        ObjectMetadata metadata = new ObjectMetadata();
-        metadata.setContentLength(0);
-
-        InputStream emptyContent = new ByteArrayInputStream(new byte[0]);
+        int index = key.lastIndexOf("/");
+        String name = index == -1 ? key : key.substring(index + 1);
+        String path = index == -1 ? "" : key.substring(0, index);
 
+        CountingInputStream counter = new CountingInputStream(stream);
+        UniversalS3StreamUploader uploader = new UniversalS3StreamUploader(this.s3client, this.uploadExecutor, 
+                    this.s3Settings, getBufferPool(), this.retrier, UniversalS3Operation.STORE_STREAM);
+        UniversalS3StreamUploader.Result result = null;
+        long start = this.metrics.start(UniversalS3Operation.STORE_STREAM);
         try {
-            PutObjectRequest putObjectRequest = new PutObjectRequest(this.settings.getRoot(),
-                    path.endsWith("/") ? path : (path + "/"), emptyContent, metadata);
+            this.triggerOnStoreFileListeners();
 
-            this.triggerOnCreateFolderListeners();
+            result = uploader.upload(counter, this.settings.getRoot(), key, newObjectMetadata(), this.tagging, this.storageClass);
 
-            PutObjectResult result = s3client.putObject(putObjectRequest);
+            // A packed copy of the object would shadow the new object.
+            removePacked(key);
 
-            this.triggerOnFolderCreatedListeners(new UniversalStorageData(path, 
-                            PREFIX_S3_URL + (this.settings.getRoot() + ("".equals(path) ? "" : ("/" + path))),
+            this.triggerOnFileStoredListeners(new UniversalStorageData(name, 
+                            PREFIX_S3_URL + this.settings.getRoot() + "/" + key,
                             result.getVersionId(), 
                             this.settings.getRoot() + ("".equals(path) ? "" : ("/" + path))));
-        } catch(Exception e) {
+        } catch (Exception e) {
             UniversalIOException error = new UniversalIOException(e.getMessage());
             this.triggerOnErrorListeners(error);
             throw error;
+        } finally {
+            invalidate(key);
+            this.metrics.stop(UniversalS3Operation.STORE_STREAM, start, counter.getByteCount(), 
+                        result == null ? 0 : result.getParts(), uploader.getRetries(), result == null);
         }
     }
 
     /**
-     * This method removes the folder located on that path.
+     * Returns the folder of the upload journals.  The first call removes the journals older than the max age
+     * along with their uploads, see UniversalS3Settings.isAbortStaleUploads.
+     */
+    private synchronized File getJournalDirectory() {
+        if (this.journalDirectory == null) {
+            this.journalDirectory = toJournalDirectory();
+
+            if (this.s3Settings.getResumableUploadMaxAge() > 0) {
+                try {
+                    UniversalS3UploadJournal.cleanup(this.s3client, this.journalDirectory, this.settings.getRoot(), 
+                                this.s3Settings.getResumableUploadMaxAge(), this.s3Settings.isAbortStaleUploads());
+                } catch (Exception ignore) {
+                    // The cleanup is attempted again by the next storage.
+                }
+            }
+        }
+
+        return this.journalDirectory;
+    }
+
+    /**
+     * Returns the configured folder of the upload journals, by default a folder within the tmp folder.
+     */
+    private File toJournalDirectory() {
+        return new File(this.s3Settings.getJournalDirectory() == null ? 
+                    (FileUtil.completeFileSeparator(this.settings.getTmp()) + ".universal-s3-uploads") : 
+                    this.s3Settings.getJournalDirectory());
+    }
+
+    /**
+     * Returns the configured folder of the local object cache, by default a folder within the tmp folder.
+     */
+    private File toCacheDirectory() {
+        return new File(this.s3Settings.getCacheDirectory() == null ? 
+                    (FileUtil.completeFileSeparator(this.settings.getTmp()) + ".universal-s3-cache") : 
+                    this.s3Settings.getCacheDirectory());
+    }
+
+    /**
+     * Returns the pool of buffers for stream uploads, the pool is created again if the part size has changed.
+     * The max in flight bytes are shared by every stream upload of this storage through the permits of the pool.
+     */
+    private synchronized UniversalS3BufferPool getBufferPool() {
+        int partSize = (int) Math.min(Integer.MAX_VALUE - 8, this.s3Settings.getPartSize());
+        if (this.bufferPool == null || this.bufferPool.getBufferSize() != partSize) {
+            int maxBuffers = (int) Math.max(2, Math.min(Integer.MAX_VALUE, this.s3Settings.getMaxInFlightBytes() / partSize));
+            this.bufferPool = new UniversalS3BufferPool(partSize, maxBuffers, maxBuffers);
+        }
+
+        return this.bufferPool;
+    }
+
+    /**
+     * This method uploads the files of a local directory, including its subdirectories, under the passed prefix.
+     * Only the files that are missing or whose size and ETag don't match are uploaded, several files are 
+     * uploaded concurrently.  A file that couldn't be uploaded is reported through the error listeners and 
+     * the process continues with the remaining files.
+     * 
+     * dir = /var/www/html (index.html, css/site.css)
+     * Root = /storage/
+     * prefix = site
+     * Targets = /storage/site/index.html, /storage/site/css/site.css
+     * 
+     * @param dir local directory to be synchronized.
+     * @param prefix within the root, null or empty means the root.
+     * @return the outcome of the synchronization.
+     * @throws UniversalIOException when the listing fails or any file couldn't be uploaded.
+     */
+    public UniversalS3SyncResult syncToStorage(File dir, String prefix) throws UniversalIOException {
+        if (dir == null || !dir.isDirectory()) {
+            UniversalIOException error = new UniversalIOException((dir == null ? "null" : dir.getName()) + " is not a folder.");
+            this.triggerOnErrorListeners(error);
+            throw error;
+        }
+
+        prefix = toPrefix(prefix);
+
+        UniversalS3SyncResult result = null;
+        long start = this.metrics.start(UniversalS3Operation.SYNC_TO_STORAGE);
+        try {
+            result = new UniversalS3Synchronizer(this.syncExecutor, this.s3Settings, this).upload(dir, prefix);
+        } catch (Exception e) {
+            UniversalIOException error = new UniversalIOException(e.getMessage());
+            this.triggerOnErrorListeners(error);
+            throw error;
+        } finally {
+            this.metrics.stop(UniversalS3Operation.SYNC_TO_STORAGE, start, result == null ? 0 : result.getBytes(), 
+                        0, 0, result == null || result.getFailed() > 0);
+        }
+
+        if (result.getFailed() > 0) {
+            throw new UniversalIOException(result.getFailed() + " files couldn't be uploaded from " + dir.getPath() + ".");
+        }
+
+        return result;
+    }
+
+    /**
+     * This method downloads the objects under the passed prefix into a local directory, keeping the folder structure.
+     * Only the objects that are missing or whose size and ETag don't match are downloaded, several objects are 
+     * downloaded concurrently.  An object that couldn't be downloaded is reported through the error listeners and 
+     * the process continues with the remaining objects.
+     * 
+     * @param prefix within the root, null or empty means the root.
+     * @param dir local directory, will be created if doesn't exist.
+     * @return the outcome of the synchronization.
+     * @throws UniversalIOException when the listing fails or any object couldn't be downloaded.
+     */
+    public UniversalS3SyncResult syncFromStorage(String prefix, File dir) throws UniversalIOException {
+        prefix = toPrefix(prefix);
+
+        UniversalS3SyncResult result = null;
+        long start = this.metrics.start(UniversalS3Operation.SYNC_FROM_STORAGE);
+        try {
+            FileUtils.forceMkdir(dir);
+            result = new UniversalS3Synchronizer(this.syncExecutor, this.s3Settings, this).download(prefix, dir);
+        } catch (Exception e) {
+            UniversalIOException error = new UniversalIOException(e.getMessage());
+            this.triggerOnErrorListeners(error);
+            throw error;
+        } finally {
+            this.metrics.stop(UniversalS3Operation.SYNC_FROM_STORAGE, start, result == null ? 0 : result.getBytes(), 
+                        0, 0, result == null || result.getFailed() > 0);
+        }
+
+        if (result.getFailed() > 0) {
+            throw new UniversalIOException(result.getFailed() + " objects couldn't be downloaded into " + dir.getPath() + ".");
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the passed prefix without leading and trailing slashes, an empty string means the root.
+     */
+    private String toPrefix(String prefix) {
+        if (prefix == null) {
+            return "";
+        }
+
+        PathValidator.validatePath(prefix);
+
+        prefix = prefix.trim();
+        while (prefix.startsWith("/")) {
+            prefix = prefix.substring(1);
+        }
+
+        while (prefix.endsWith("/")) {
+            prefix = prefix.substring(0, prefix.length() - 1);
+        }
+
+        return prefix;
+    }
+
+    /**
+     * This method stores a file according to the provided path within the storage provider 
+     * according to the current settings.
+     * 
+     * @param path pointing to the file which will be stored within the storage.
+     * @throws UniversalIOException when a specific IO error occurs.
+     */
+    void storeFile(String path) throws UniversalIOException {
+        this.storeFile(new File(path), null);
+    }
+
+    /**
+     * This method stores a file according to the provided path within the storage provider according to the current settings.
+     * 
+     * @param path pointing to the file which will be stored within the storage.
+     * @param targetPath is the path within the storage.
+     * 
+     * @throws UniversalIOException when a specific IO error occurs.
+     */
+    void storeFile(String path, String targetPath) throws UniversalIOException {
+        PathValidator.validatePath(path);
+        PathValidator.validatePath(targetPath);
+
+        this.storeFile(new File(path), targetPath);
+    }
+
+    /**
+     * This method removes a file from the storage.  This method will use the path parameter 
+     * to localte the file and remove it from the storage.  The deletion process will delete the last
+     * version of this object.
+     * 
+     * Root = /s3storage/
+     * path = myfile.txt
+     * Target = /s3storage/myfile.txt
+     * 
+     * Root = /s3storage/
+     * path = myfolder/myfile.txt
+     * Target = /s3storage/myfolder/myfile.txt 
+     * 
+     * @param path is the object's path within the storage.  
+     * @throws UniversalIOException when a specific IO error occurs.
+     */
+    void removeFile(String path) throws UniversalIOException {
+        PathValidator.validatePath(path);
+
+        AtomicInteger retries = new AtomicInteger();
+        long start = this.metrics.start(UniversalS3Operation.REMOVE_FILE);
+        boolean failed = true;
+        try {
+            this.triggerOnRemoveFileListeners();
+            if (this.packStore != null) {
+                this.packStore.remove(path);
+            }
+
+            final DeleteObjectRequest request = new DeleteObjectRequest(this.settings.getRoot(), path);
+            this.retrier.execute(UniversalS3Operation.REMOVE_FILE, new Callable<Void>() {
+                public Void call() {
+                    UniversalS3Storage.this.s3client.deleteObject(request);
+                    return null;
+                }
+            }, retries);
+
+            this.triggerOnFileRemovedListeners();        
+            failed = false;
+        } catch (Exception e) {
+            UniversalIOException error = new UniversalIOException(e.getMessage());
+            this.triggerOnErrorListeners(error);
+            throw error;
+        } finally {
+            invalidate(path);
+            this.metrics.stop(UniversalS3Operation.REMOVE_FILE, start, 0, 0, retries.get(), failed);
+        }
+    }
+
+    /**
+     * This method copies a file within the storage, the content is copied by S3 without being transferred
+     * through this host.  The target will be replaced if already exists.  Files up to the copy threshold are
+     * copied using a single request, larger files using concurrent UploadPartCopy ranges.
+     * 
+     * Root = /s3storage/
+     * sourcePath = myfolder/myfile.txt
+     * targetPath = backup/myfile.txt
+     * Target = /s3storage/backup/myfile.txt
+     * 
+     * @param sourcePath is the path of the file to copy.
+     * @param targetPath is the path of the copy.
+     * @throws UniversalIOException when a specific IO error occurs.
+     */
+    public void copyFile(String sourcePath, String targetPath) throws UniversalIOException {
+        copyFile(sourcePath, targetPath, false);
+    }
+
+    /**
+     * This method moves a file within the storage, the file is copied by S3 (see copyFile) and then removed.
+     * 
+     * @param sourcePath is the path of the file to move.
+     * @param targetPath is the new path of the file.
+     * @throws UniversalIOException when a specific IO error occurs.
+     */
+    public void moveFile(String sourcePath, String targetPath) throws UniversalIOException {
+        copyFile(sourcePath, targetPath, true);
+    }
+
+    /**
+     * This method copies or moves a file within the storage.
+     * 
+     * @param sourcePath is the path of the file.
+     * @param targetPath is the path of the copy.
+     * @param move true if the source must be removed.
+     * @throws UniversalIOException when a specific IO error occurs.
+     */
+    private void copyFile(String sourcePath, String targetPath, boolean move) throws UniversalIOException {
+        PathValidator.validatePath(sourcePath);
+        PathValidator.validatePath(targetPath);
+
+        if ("".equals(sourcePath.trim()) || sourcePath.trim().endsWith("/") || 
+                    "".equals(targetPath.trim()) || targetPath.trim().endsWith("/")) {
+            UniversalIOException error = new UniversalIOException("Invalid path.  Looks like you're trying to copy a folder.");
+            this.triggerOnErrorListeners(error);
+            throw error;
+        }
+
+        if (sourcePath.equals(targetPath)) {
+            UniversalIOException error = new UniversalIOException("The source and the target are the same: " + sourcePath);
+            this.triggerOnErrorListeners(error);
+            throw error;
+        }
+
+        UniversalS3Operation operation = move ? UniversalS3Operation.MOVE_FILE : UniversalS3Operation.COPY_FILE;
+        UniversalS3Copier copier = new UniversalS3Copier(this.s3client, this.copyExecutor, this.s3Settings, this, 
+                    this.storageClass, this.settings.getEncryption(), this.retrier, operation);
+        AtomicInteger retries = new AtomicInteger();
+        long start = this.metrics.start(operation);
+        boolean failed = true;
+        try {
+            this.triggerOnStoreFileListeners();
+            String versionId = copier.copy(this.settings.getRoot(), sourcePath, targetPath);
+
+            int index = targetPath.lastIndexOf("/");
+            String folder = index == -1 ? "" : targetPath.substring(0, index);
+            this.triggerOnFileStoredListeners(new UniversalStorageData(targetPath.substring(index + 1), 
+                            PREFIX_S3_URL + this.settings.getRoot() + "/" + targetPath, versionId, 
+                            this.settings.getRoot() + ("".equals(folder) ? "" : ("/" + folder))));
+
+            if (move) {
+                this.triggerOnRemoveFileListeners();
+                removePacked(sourcePath);
+
+                final DeleteObjectRequest request = new DeleteObjectRequest(this.settings.getRoot(), sourcePath);
+                this.retrier.execute(operation, new Callable<Void>() {
+                    public Void call() {
+                        UniversalS3Storage.this.s3client.deleteObject(request);
+                        return null;
+                    }
+                }, retries);
+                this.triggerOnFileRemovedListeners();
+            }
+
+            failed = false;
+        } catch (Exception e) {
+            UniversalIOException error = new UniversalIOException(e.getMessage());
+            this.triggerOnErrorListeners(error);
+            throw error;
+        } finally {
+            invalidate(targetPath);
+            if (move) {
+                invalidate(sourcePath);
+            }
+
+            this.metrics.stop(operation, start, copier.getBytes(), copier.getParts(), copier.getRetries() + retries.get(), failed);
+        }
+    }
+
+    /**
+     * This method copies every file under a folder into another folder, keeping their relative paths.  The files
+     * are copied by S3 (see copyFile), several files are copied concurrently.  A file that couldn't be copied 
+     * is reported through the error listeners and the process continues with the remaining files.
+     * 
+     * @param sourcePath is the path of the folder to copy, it can't be the root.
+     * @param targetPath is the path of the copy, empty means the root.  It can't be within the source.
+     * @throws UniversalIOException when the listing fails or any file couldn't be copied.
+     */
+    public void copyFolder(String sourcePath, String targetPath) throws UniversalIOException {
+        copyFolder(sourcePath, targetPath, false);
+    }
+
+    /**
+     * This method moves every file under a folder into another folder, see copyFolder.  The files are removed 
+     * page by page using multi-object delete requests once they have been copied, a file that couldn't be 
+     * copied is kept.
+     * 
+     * @param sourcePath is the path of the folder to move, it can't be the root.
+     * @param targetPath is the new path of the folder, empty means the root.  It can't be within the source.
+     * @throws UniversalIOException when the listing fails or any file couldn't be moved.
+     */
+    public void moveFolder(String sourcePath, String targetPath) throws UniversalIOException {
+        copyFolder(sourcePath, targetPath, true);
+    }
+
+    /**
+     * This method copies or moves a folder within the storage.
+     * 
+     * @param sourcePath is the path of the folder.
+     * @param targetPath is the path of the copy.
+     * @param move true if the copied files must be removed.
+     * @throws UniversalIOException when a specific IO error occurs.
+     */
+    private void copyFolder(String sourcePath, String targetPath, boolean move) throws UniversalIOException {
+        String source = toPrefix(sourcePath);
+        String target = toPrefix(targetPath);
+        if ("".equals(source) || source.equals(target) || target.startsWith(source + "/")) {
+            UniversalIOException error = new UniversalIOException("Invalid path.  The target can't be within the source: " + 
+                        sourcePath + " -> " + targetPath);
+            this.triggerOnErrorListeners(error);
+            throw error;
+        }
+
+        UniversalS3Operation operation = move ? UniversalS3Operation.MOVE_FOLDER : UniversalS3Operation.COPY_FOLDER;
+        UniversalS3Copier copier = new UniversalS3Copier(this.s3client, this.copyExecutor, this.s3Settings, this, 
+                    this.storageClass, this.settings.getEncryption(), this.retrier, operation);
+        long start = this.metrics.start(operation);
+        long failed = -1;
+        try {
+            failed = copier.copyFolder(this.settings.getRoot(), source, target, move);
+        } catch (Exception e) {
+            UniversalIOException error = new UniversalIOException(e.getMessage());
+            this.triggerOnErrorListeners(error);
+            throw error;
+        } finally {
+            invalidatePrefix("".equals(target) ? "" : (target + "/"));
+            if (move) {
+                invalidatePrefix(source + "/");
+            }
+
+            this.metrics.stop(operation, start, copier.getBytes(), copier.getParts(), copier.getRetries(), failed != 0);
+        }
+
+        if (failed > 0) {
+            throw new UniversalIOException(failed + " files couldn't be " + (move ? "moved" : "copied") + " from " + sourcePath + ".");
+        }
+    }
+
+    /**
+     * This method creates a new folder within the storage using the passed path. If the new folder name already
+     * exists within the storage, this  process will skip the creation step.
+     * 
+     * Root = /s3storage/
+     * path = /myFolder
+     * Target = /s3storage/myFolder
+     * 
+     * Root = /s3storage/
+     * path = /folders/myFolder
+     * Target = /s3storage/folders/myFolder
+     * 
+     * @param path is the folder's path.  A path must end with forward slash '/', the back slash '\' is not 
+     *        considered a folder indicator.
+     * @param storeFiles is a flag to store the files after folder creation.
+     * 
+     * @throws UniversalIOException when a specific IO error occurs.
+     * @throws IllegalArgumentException is path has an invalid value.
+     */
+    void createFolder(String path) throws UniversalIOException {
+        PathValidator.validatePath(path);
+
+        if ("".equals(path.trim())) {
+            UniversalIOException error = new UniversalIOException("Invalid path.  The path shouldn't be empty.");
+            this.triggerOnErrorListeners(error);
+            throw error;
+        }
+
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(0);
+
+        AtomicInteger retries = new AtomicInteger();
+        long start = this.metrics.start(UniversalS3Operation.CREATE_FOLDER);
+        boolean failed = true;
+        try {
+            final PutObjectRequest putObjectRequest = new PutObjectRequest(this.settings.getRoot(),
+                    path.endsWith("/") ? path : (path + "/"), (InputStream) null, metadata);
+
+            this.triggerOnCreateFolderListeners();
+
+            PutObjectResult result = this.retrier.execute(UniversalS3Operation.CREATE_FOLDER, new Callable<PutObjectResult>() {
+                public PutObjectResult call() {
+                    putObjectRequest.setInputStream(new ByteArrayInputStream(new byte[0]));
+                    return UniversalS3Storage.this.s3client.putObject(putObjectRequest);
+                }
+            }, retries);
+            invalidate(putObjectRequest.getKey());
+
+            this.triggerOnFolderCreatedListeners(new UniversalStorageData(path, 
+                            PREFIX_S3_URL + (this.settings.getRoot() + ("".equals(path) ? "" : ("/" + path))),
+                            result.getVersionId(), 
+                            this.settings.getRoot() + ("".equals(path) ? "" : ("/" + path))));
+            failed = false;
+        } catch(Exception e) {
+            UniversalIOException error = new UniversalIOException(e.getMessage());
+            this.triggerOnErrorListeners(error);
+            throw error;
+        } finally {
+            this.metrics.stop(UniversalS3Operation.CREATE_FOLDER, start, 0, 0, retries.get(), failed);
+        }
+    }
+
+    /**
+     * This method removes the folder located on that path.
      * The folder should be empty in order for removing.
      * 
-     * Root = /storage/
-     * path = myFolder
-     * Target = /storage/myFolder
+     * Root = /storage/
+     * path = myFolder
+     * Target = /storage/myFolder
+     * 
+     * Root = /storage/
+     * path = folders/myFolder
+     * Target = /storage/folders/myFolder
+     * 
+     * @param path is the folder's path.  A path must end with forward slash '/', the back slash '\' is not 
+     *        considered a folder indicator.
+     */
+    void removeFolder(String path) throws UniversalIOException {
+        PathValidator.validatePath(path);
+
+        if ("".equals(path.trim())) {
+            return;
+        }
+
+        AtomicInteger retries = new AtomicInteger();
+        long start = this.metrics.start(UniversalS3Operation.REMOVE_FOLDER);
+        boolean failed = true;
+        try {
+            this.triggerOnRemoveFolderListeners();
+            final DeleteObjectRequest request = new DeleteObjectRequest(this.settings.getRoot(), 
+                    path.endsWith("/") ? path : (path + "/"));
+            this.retrier.execute(UniversalS3Operation.REMOVE_FOLDER, new Callable<Void>() {
+                public Void call() {
+                    UniversalS3Storage.this.s3client.deleteObject(request);
+                    return null;
+                }
+            }, retries);
+            this.triggerOnFolderRemovedListeners();
+            failed = false;
+        } catch (Exception e) {
+            UniversalIOException error = new UniversalIOException(e.getMessage());
+            this.triggerOnErrorListeners(error);
+            throw error;
+        } finally {
+            invalidatePrefix(path.endsWith("/") ? path : (path + "/"));
+
+            this.metrics.stop(UniversalS3Operation.REMOVE_FOLDER, start, 0, 0, retries.get(), failed);
+        }
+    }
+
+    /**
+     * This method removes the folder located on that path.  If recursive is true, every file and folder under 
+     * the folder is removed as well, otherwise the folder should be empty in order for removing.
+     * 
+     * The files are listed using listFiles and deleted using batches of multi-object deletes while the listing 
+     * goes on.  A file that couldn't be deleted is reported through the error listeners and the process continues 
+     * with the remaining files.
+     * 
+     * Root = /storage/
+     * path = myFolder
+     * Targets = /storage/myFolder, /storage/myFolder/file.txt, /storage/myFolder/images/logo.png
+     * 
+     * @param path is the folder's path.
+     * @param recursive true if the content of the folder is removed as well.
+     * @throws UniversalIOException when the listing fails or any file couldn't be deleted.
+     */
+    public void removeFolder(String path, boolean recursive) throws UniversalIOException {
+        if (!recursive) {
+            removeFolder(path);
+            return;
+        }
+
+        String prefix = toPrefix(path);
+        if ("".equals(prefix)) {
+            return;
+        }
+
+        prefix += "/";
+
+        long failed = -1;
+        long start = this.metrics.start(UniversalS3Operation.REMOVE_FOLDER);
+        UniversalS3Listing listing = null;
+        try {
+            this.triggerOnRemoveFolderListeners();
+            if (this.packStore != null) {
+                for (String key : this.packStore.list(prefix)) {
+                    this.packStore.remove(key);
+                }
+            }
+
+            listing = newListing(prefix, true);
+            final Iterator<UniversalS3Metadata> files = listing;
+            failed = new UniversalS3BatchDeleter(this.s3client, this.s3Settings, this).delete(this.settings.getRoot(), 
+                        new Iterator<String>() {
+                            public boolean hasNext() {
+                                return files.hasNext();
+                            }
+
+                            public String next() {
+                                return files.next().getPath();
+                            }
+                        });
+
+            if (failed == 0) {
+                this.triggerOnFolderRemovedListeners();
+            }
+        } catch (Exception e) {
+            UniversalIOException error = new UniversalIOException(e.getMessage());
+            this.triggerOnErrorListeners(error);
+            throw error;
+        } finally {
+            if (listing != null) {
+                listing.close();
+            }
+
+            invalidatePrefix(prefix);
+
+            this.metrics.stop(UniversalS3Operation.REMOVE_FOLDER, start, 0, 0, 0, failed != 0);
+        }
+
+        if (failed > 0) {
+            throw new UniversalIOException(failed + " keys couldn't be deleted from " + path + ".");
+        }
+    }
+
+    /**
+     * This method lists the files under the passed prefix lazily, the next listing page is requested while the 
+     * current one is being consumed.  The folder markers are skipped.
+     * 
+     * If the list concurrency is greater than 1, the sub-prefixes are listed concurrently and the files are not
+     * returned in lexicographic order.  The listing must be closed if it's not consumed until its end.
+     * 
+     * Root = /storage/
+     * prefix = images
+     * Files = /storage/images/logo.png, /storage/images/icons/home.png
+     * 
+     * @param prefix within the root, null or empty means the root.
+     * @return the listing, its files hold the size, ETag, last modified date and storage class of every object.
+     * @throws UniversalIOException when the packed files can't be listed.
+     */
+    public UniversalS3Listing listFiles(String prefix) throws UniversalIOException {
+        prefix = toPrefix(prefix);
+
+        try {
+            return newListing("".equals(prefix) ? "" : (prefix + "/"), false);
+        } catch (Exception e) {
+            UniversalIOException error = new UniversalIOException(e.getMessage());
+            this.triggerOnErrorListeners(error);
+            throw error;
+        }
+    }
+
+    /**
+     * This method returns the files under the passed prefix as a stream, see listFiles.  The stream must be 
+     * closed if it's not consumed until its end, i.e: using try-with-resources.
+     * 
+     * @param prefix within the root, null or empty means the root.
+     * @return the stream of files.
+     * @throws UniversalIOException when the packed files can't be listed.
+     */
+    public Stream<UniversalS3Metadata> streamFiles(String prefix) throws UniversalIOException {
+        return listFiles(prefix).stream();
+    }
+
+    /**
+     * Creates a listing of the passed key prefix, the packs are always skipped.
+     * 
+     * @param prefix of the keys, empty or ending with a slash.
+     * @param markers true if the folder markers are returned and the packed files are not.
+     * @throws Exception when the packed files can't be listed.
+     */
+    UniversalS3Listing newListing(String prefix, boolean markers) throws Exception {
+        String hidden = null;
+        List<UniversalS3Metadata> packed = new ArrayList<UniversalS3Metadata>();
+        if (this.packStore != null) {
+            hidden = this.s3Settings.getPackPrefix() + "/";
+            if (!markers) {
+                for (String key : this.packStore.list(prefix)) {
+                    ObjectMetadata metadata = this.packStore.getMetadata(key);
+                    if (metadata != null) {
+                        packed.add(new UniversalS3Metadata(key, metadata));
+                    }
+                }
+            }
+        }
+
+        return new UniversalS3Listing(this.s3client, this.s3Settings, this.retrier, this.metrics, this, 
+                    this.settings.getRoot(), prefix, hidden, packed, markers);
+    }
+
+    /**
+     * This method retrieves a file from the storage.
+     * The method will retrieve the file according to the passed path.  
+     * A file will be stored within the settings' tmp folder.
+     * 
+     * Objects greater than the download threshold are downloaded using concurrent byte-range GETs.
+     * If the local object cache is enabled, a cached copy is revalidated using its ETag and copied 
+     * instead of being downloaded again.  Concurrent calls for the same path share a single download.
+     * 
+     * @param path in context.
+     * @returns a file pointing to the retrieved file.
+     */
+    public File retrieveFile(String path) throws UniversalIOException {
+        PathValidator.validatePath(path);
+
+        if ("".equals(path.trim())) {
+            return null;
+        }
+
+        if (path.trim().endsWith("/")) {
+            UniversalIOException error = new UniversalIOException("Invalid path.  Looks like you're trying to retrieve a folder.");
+            this.triggerOnErrorListeners(error);
+            throw error;
+        }
+        
+        String name = path;
+        int index = name.lastIndexOf("/");
+        if (index != -1) {
+            name = name.substring(index);
+        }
+
+        // Concurrent callers would write the same file, so they share a single download.
+        final String key = path;
+        final File dest = new File(FileUtil.completeFileSeparator(this.settings.getTmp()) + name);
+        try {
+            return this.fileFlights.execute(this.settings.getRoot() + "/" + path, new Callable<File>() {
+                public File call() throws Exception {
+                    retrieve(key, dest);
+                    return dest;
+                }
+            });
+        } catch (UniversalIOException e) {
+            throw e;
+        } catch (Exception e) {
+            UniversalIOException error = new UniversalIOException(e.getMessage());
+            this.triggerOnErrorListeners(error);
+            throw error;
+        }
+    }
+
+    /**
+     * This method retrieves a file from the storage into the passed destination, the destination will be 
+     * replaced if already exists.  The object is downloaded like retrieveFile does, using concurrent byte-range 
+     * GETs above the download threshold and the local object cache if enabled, but into the destination instead 
+     * of the tmp folder.
+     * 
+     * @param path in context.
+     * @param dest destination of the file.
+     * @return the number of bytes retrieved.
+     * @throws UniversalIOException when a specific IO error occurs.
+     */
+    public long retrieveTo(String path, Path dest) throws UniversalIOException {
+        PathValidator.validatePath(path);
+        validateFilePath(path);
+
+        File file = dest.toFile();
+        retrieve(path, file);
+        return file.length();
+    }
+
+    /**
+     * This method opens a read-only channel over a file, the content is read by position using block-aligned 
+     * byte-range GETs backed by a small cache of blocks, see UniversalS3SeekableChannel.  This is useful to read
+     * a few bytes of a large object, i.e: the footer of a ZIP or Parquet file.  A compressed object can't be 
+     * opened because its stored bytes are not the content of the file.
+     * 
+     * @param path in context.
+     * @return a channel positioned at the beginning of the file.
+     * @throws UniversalIOException when the file doesn't exist or it's compressed.
+     */
+    public SeekableByteChannel openSeekable(final String path) throws UniversalIOException {
+        PathValidator.validatePath(path);
+        validateFilePath(path);
+
+        try {
+            byte[] packed = readPacked(path);
+            if (packed != null) {
+                return new UniversalS3SeekableChannel(path, packed);
+            }
+
+            // The blocks are requested from the bucket that answered the HEAD.
+            return route(new UniversalS3ReadRouter.Read<SeekableByteChannel>() {
+                public SeekableByteChannel call(AmazonS3 s3client, String bucketName, 
+                            UniversalS3ReadRouter.Latency latency) throws Exception {
+                    ObjectMetadata metadata = getObjectMetadata(UniversalS3Operation.GET_METADATA, s3client, bucketName, path);
+                    if (UniversalS3Compression.getCodec(metadata) != null) {
+                        throw new IllegalStateException("The object " + path + " is compressed and can't be read by position.");
+                    }
+
+                    return new UniversalS3SeekableChannel(s3client, UniversalS3Storage.this.s3Settings, 
+                                UniversalS3Storage.this.metrics, bucketName, path, metadata);
+                }
+            });
+        } catch (Exception e) {
+            UniversalIOException error = new UniversalIOException(e.getMessage());
+            this.triggerOnErrorListeners(error);
+            throw error;
+        }
+    }
+
+    /**
+     * This method retrieves a file from the storage and writes it into the passed channel, the channel is not 
+     * closed.  A FileChannel is written from its current position using FileChannel.transferFrom, any other 
+     * channel is written through pooled direct buffers.  The object is retrieved using a single GET and the 
+     * local object cache is not used.
+     * 
+     * @param path in context.
+     * @param channel destination of the content.
+     * @return the number of bytes written.
+     * @throws UniversalIOException when a specific IO error occurs.
+     */
+    public long retrieveTo(final String path, WritableByteChannel channel) throws UniversalIOException {
+        PathValidator.validatePath(path);
+        validateFilePath(path);
+
+        long start = this.metrics.start(UniversalS3Operation.RETRIEVE_CHANNEL);
+        long bytes = 0;
+        boolean failed = true;
+        try {
+            byte[] packed = readPacked(path);
+            if (packed != null) {
+                ByteBuffer buffer = ByteBuffer.wrap(packed);
+                while (buffer.hasRemaining()) {
+                    bytes += channel.write(buffer);
+                }
+
+                failed = false;
+                return bytes;
+            }
+
+            S3Object object = route(new UniversalS3ReadRouter.Read<S3Object>() {
+                public S3Object call(AmazonS3 s3client, String bucketName, 
+                            UniversalS3ReadRouter.Latency latency) throws Exception {
+                    return getObject(UniversalS3Operation.RETRIEVE_CHANNEL, s3client, new GetObjectRequest(bucketName, path));
+                }
+            });
+            try {
+                InputStream objectData = openContent(object);
+                try {
+                    bytes = UniversalS3Channels.copy(objectData, channel, getChannelBufferPool());
+                } finally {
+                    objectData.close();
+                }
+            } finally {
+                object.close();
+            }
+
+            failed = false;
+            return bytes;
+        } catch (Exception e) {
+            UniversalIOException error = new UniversalIOException(e.getMessage());
+            this.triggerOnErrorListeners(error);
+            throw error;
+        } finally {
+            this.metrics.stop(UniversalS3Operation.RETRIEVE_CHANNEL, start, bytes, 0, 0, failed);
+        }
+    }
+
+    /**
+     * This method downloads an object into the passed file, either directly or through the local object cache.
+     * 
+     * @param path in context.
+     * @param dest destination of the object.
+     * @throws UniversalIOException when a specific IO error occurs.
+     */
+    void retrieve(final String path, final File dest) throws UniversalIOException {
+        final UniversalS3RangedDownloader downloader = new UniversalS3RangedDownloader(this.s3client, this.downloadExecutor, 
+                    this.s3Settings, this.hedger);
+        AtomicInteger retries = new AtomicInteger();
+        long start = this.metrics.start(UniversalS3Operation.RETRIEVE_FILE);
+        boolean failed = true;
+        try {
+            this.retrier.execute(UniversalS3Operation.RETRIEVE_FILE, new Callable<Void>() {
+                public Void call() throws Exception {
+                    byte[] packed = readPacked(path);
+                    if (packed != null) {
+                        FileUtils.writeByteArrayToFile(dest, packed);
+                    } else if (UniversalS3Storage.this.objectCache == null) {
+                        route(new UniversalS3ReadRouter.Read<ObjectMetadata>() {
+                            public ObjectMetadata call(AmazonS3 s3client, String bucketName, 
+                                        UniversalS3ReadRouter.Latency latency) throws Exception {
+                                return downloader.download(s3client, bucketName, path, dest, latency);
+                            }
+                        }, downloader.getRetryCounter());
+                    } else {
+                        route(new UniversalS3ReadRouter.Read<Void>() {
+                            public Void call(AmazonS3 s3client, String bucketName, 
+                                        UniversalS3ReadRouter.Latency latency) throws Exception {
+                                retrieveThroughCache(s3client, bucketName, path, dest, downloader, latency);
+                                return null;
+                            }
+                        }, downloader.getRetryCounter());
+                    }
+
+                    return null;
+                }
+            }, retries, downloader.getRetryCounter());
+
+            failed = false;
+        } catch (Exception e) {
+            UniversalIOException error = new UniversalIOException(e.getMessage());
+            this.triggerOnErrorListeners(error);
+            throw error;
+        } finally {
+            this.metrics.stop(UniversalS3Operation.RETRIEVE_FILE, start, failed ? 0 : dest.length(), 
+                        downloader.getSegments(), downloader.getRetries() + retries.get(), failed);
+        }
+    }
+
+    /**
+     * Returns the content of an object, the content is decompressed if the object was stored compressed.
+     * If the integrity is verified, the stored bytes are checked against the ETag when the stream is over.
+     * 
+     * @param object in context.
+     * @throws IOException if the compressed content can't be read.
+     */
+    private InputStream openContent(S3Object object) throws IOException {
+        return openContent(object, object.getObjectContent());
+    }
+
+    /**
+     * Returns the passed stored bytes of an object, the content is decompressed if the object was stored 
+     * compressed.  If the integrity is verified, the stored bytes are checked against the ETag when the 
+     * stream is over.
+     * 
+     * @param object in context.
+     * @param stored bytes of the object, i.e: a prefetching stream.
+     * @throws IOException if the compressed content can't be read.
+     */
+    private InputStream openContent(S3Object object, InputStream stored) throws IOException {
+        String codec = UniversalS3Compression.getCodec(object.getObjectMetadata());
+        UniversalS3Checksum checksum = this.s3Settings.isVerifyIntegrity() ? 
+                    UniversalS3Checksum.forObject(object.getKey(), object.getObjectMetadata()) : null;
+        InputStream content = checksum == null ? stored : checksum.verifying(stored);
+        if (codec == null) {
+            return content;
+        }
+
+        try {
+            return UniversalS3Compression.decompress(content, codec);
+        } catch (IOException e) {
+            if (stored instanceof S3ObjectInputStream) {
+                ((S3ObjectInputStream) stored).abort();
+            } else {
+                stored.close();
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the response of the GET of the first block read ahead by a prefetching stream, an empty 
+     * object is returned by a GET without range.
+     * 
+     * @param s3client of the region of the bucket.
+     * @param bucketName in context.
+     * @param path in context.
+     * @param pool of the prefetching streams.
+     */
+    private S3Object getFirstBlock(AmazonS3 s3client, String bucketName, String path, UniversalS3BufferPool pool) throws Exception {
+        try {
+            return getObject(UniversalS3Operation.RETRIEVE_STREAM, s3client, new GetObjectRequest(bucketName, path)
+                        .withRange(0, pool.getBufferSize() - 1));
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() != INVALID_RANGE) {
+                throw e;
+            }
+
+            // Empty objects don't satisfy any range.
+            return getObject(UniversalS3Operation.RETRIEVE_STREAM, s3client, new GetObjectRequest(bucketName, path));
+        }
+    }
+
+    /**
+     * Returns the response of a GET, the GET is retried according to the budget of the operation and hedged
+     * if the hedging is enabled.
+     * 
+     * @param operation in context.
+     * @param s3client of the region of the bucket.
+     * @param request to be sent.
+     * @throws Exception the last error.
+     */
+    private S3Object getObject(UniversalS3Operation operation, final AmazonS3 s3client, final GetObjectRequest request) throws Exception {
+        return this.retrier.execute(operation, new Callable<S3Object>() {
+            public S3Object call() throws Exception {
+                UniversalS3Hedger hedger = UniversalS3Storage.this.hedger;
+                return hedger == null ? s3client.getObject(request) : hedger.getObject(s3client, request);
+            }
+        }, null);
+    }
+
+    /**
+     * Returns the metadata of an object, the HEAD is retried according to the budget of the operation and hedged
+     * if the hedging is enabled.
      * 
-     * Root = /storage/
-     * path = folders/myFolder
-     * Target = /storage/folders/myFolder
+     * @param operation in context.
+     * @param s3client of the region of the bucket.
+     * @param bucketName in context.
+     * @param path in context.
+     * @throws Exception the last error.
+     */
+    private ObjectMetadata getObjectMetadata(UniversalS3Operation operation, final AmazonS3 s3client, final String bucketName, 
+                final String path) throws Exception {
+        return this.retrier.execute(operation, new Callable<ObjectMetadata>() {
+            public ObjectMetadata call() throws Exception {
+                UniversalS3Hedger hedger = UniversalS3Storage.this.hedger;
+                return hedger == null ? s3client.getObjectMetadata(bucketName, path) : 
+                            hedger.getObjectMetadata(s3client, bucketName, path);
+            }
+        }, null);
+    }
+
+    /**
+     * Executes a read against the root bucket, or against the bucket with the lowest latency if the storage has
+     * read replicas, see UniversalS3ReadRouter.  A read of a replica that fails is executed again against the 
+     * root bucket.
      * 
-     * @param path is the folder's path.  A path must end with forward slash '/', the back slash '\' is not 
-     *        considered a folder indicator.
+     * @param read to be executed.
+     * @throws Exception the error of the root bucket.
      */
-    void removeFolder(String path) throws UniversalIOException {
-        PathValidator.validatePath(path);
+    private <T> T route(UniversalS3ReadRouter.Read<T> read) throws Exception {
+        return route(read, null);
+    }
 
-        if ("".equals(path.trim())) {
-            return;
+    /**
+     * Executes a read as the method route(Read) does, the failover to the root bucket is counted as a retry.
+     * 
+     * @param read to be executed.
+     * @param retries is incremented when the read is failed over, can be null.
+     * @throws Exception the error of the root bucket.
+     */
+    private <T> T route(UniversalS3ReadRouter.Read<T> read, AtomicInteger retries) throws Exception {
+        UniversalS3ReadRouter router = this.router;
+        return router == null ? read.call(this.s3client, this.settings.getRoot(), null) : router.read(read, retries);
+    }
+
+    /**
+     * This method adds a read replica of the root bucket.  The writes keep going to the root bucket.
+     * 
+     * @param s3client of the region of the replica.
+     * @param bucketName of the replica.
+     * @param release true if the client is released when this storage is closed.
+     */
+    synchronized void addReadReplica(AmazonS3 s3client, String bucketName, boolean release) {
+        if (this.router == null) {
+            this.router = new UniversalS3ReadRouter(this.s3Settings, this.s3client, this.settings.getRoot());
+        }
+
+        this.router.addReplica(s3client, bucketName, release);
+    }
+
+    /**
+     * Returns the pool of buffers of the prefetching streams.
+     */
+    private synchronized UniversalS3BufferPool getPrefetchBufferPool() {
+        if (this.prefetchBufferPool == null) {
+            this.prefetchBufferPool = new UniversalS3BufferPool(this.s3Settings.getPrefetchBlockSize(), 
+                        this.s3Settings.getPrefetchMaxDepth() * this.s3Settings.getDownloadConcurrency());
+        }
+
+        return this.prefetchBufferPool;
+    }
+
+    /**
+     * This method rejects an empty path and the path of a folder.
+     * 
+     * @param path in context.
+     * @throws UniversalIOException if the path doesn't point to a file.
+     */
+    private void validateFilePath(String path) throws UniversalIOException {
+        if ("".equals(path.trim()) || path.trim().endsWith("/")) {
+            UniversalIOException error = new UniversalIOException("Invalid path.  Looks like you're trying to retrieve a folder.");
+            this.triggerOnErrorListeners(error);
+            throw error;
+        }
+    }
+
+    /**
+     * Returns the pool of direct buffers used to write into channels.
+     */
+    private synchronized UniversalS3BufferPool getChannelBufferPool() {
+        if (this.channelBufferPool == null) {
+            this.channelBufferPool = new UniversalS3BufferPool(CHANNEL_BUFFER_SIZE, this.s3Settings.getDownloadConcurrency());
+        }
+
+        return this.channelBufferPool;
+    }
+
+    /**
+     * This method retrieves a file through the local object cache.  A cached copy is revalidated with a 
+     * conditional GET, so the object is downloaded only if it's not cached or it has changed.
+     * 
+     * @param s3client of the region of the bucket.
+     * @param bucketName where the object is read from, the cached copies belong to the root bucket.
+     * @param path in context.
+     * @param dest where the file will be copied.
+     * @param downloader used if the object needs to be downloaded.
+     * @param latency of the bucket, recorded when the first GET responds.
+     * @throws Exception when the object can't be downloaded.
+     */
+    private void retrieveThroughCache(AmazonS3 s3client, String bucketName, String path, File dest, 
+                UniversalS3RangedDownloader downloader, UniversalS3ReadRouter.Latency latency) throws Exception {
+        UniversalS3ObjectCache.Entry entry = this.objectCache.get(this.settings.getRoot(), path);
+
+        S3Object object = null;
+        if (entry != null) {
+            object = getObject(UniversalS3Operation.RETRIEVE_FILE, s3client, 
+                        new GetObjectRequest(bucketName, path).withNonmatchingETagConstraint(entry.getETag()));
+            if (latency != null) {
+                latency.responded();
+            }
+            if (object == null) {
+                // Not modified.
+                try {
+                    FileUtils.copyFile(entry.getFile(), dest);
+                    this.objectCache.touch(entry);
+                    this.objectCache.hit();
+                    return;
+                } catch (IOException e) {
+                    // The entry was evicted in the meantime.
+                }
+            }
         }
 
+        this.objectCache.miss();
+        File downloaded = this.objectCache.createTempFile();
+        ObjectMetadata objectMetadata;
         try {
-            this.triggerOnRemoveFolderListeners();
-            s3client.deleteObject(new DeleteObjectRequest(this.settings.getRoot(), 
-                    path.endsWith("/") ? path : (path + "/")));
-            this.triggerOnFolderRemovedListeners();
+            if (object != null) {
+                UniversalS3Checksum checksum = this.s3Settings.isVerifyIntegrity() ? 
+                            UniversalS3Checksum.forObject(path, object.getObjectMetadata()) : null;
+                InputStream objectData = checksum == null ? object.getObjectContent() : checksum.verifying(object.getObjectContent());
+                String codec = UniversalS3Compression.getCodec(object.getObjectMetadata());
+                if (codec != null) {
+                    UniversalS3Compression.decompress(objectData, codec, downloaded);
+                } else {
+                    try {
+                        FileOutputStream out = new FileOutputStream(downloaded);
+                        try {
+                            UniversalS3Channels.copy(objectData, out.getChannel(), getChannelBufferPool());
+                        } finally {
+                            out.close();
+                        }
+                    } finally {
+                        objectData.close();
+                    }
+                }
+
+                objectMetadata = object.getObjectMetadata();
+            } else {
+                objectMetadata = downloader.download(s3client, bucketName, path, downloaded, latency);
+            }
+
+            // The cache holds the decompressed content, so hits don't pay for the decompression.
+            FileUtils.copyFile(downloaded, dest);
         } catch (Exception e) {
-            UniversalIOException error = new UniversalIOException(e.getMessage());
+            downloaded.delete();
+            throw e;
+        }
+
+        this.objectCache.put(this.settings.getRoot(), path, objectMetadata.getETag(), downloaded);
+    }
+
+    /**
+     * Returns a snapshot of the counters of the local object cache, i.e: hits, misses and evictions.
+     */
+    public UniversalS3CacheStatistics getCacheStatistics() {
+        if (this.objectCache == null) {
+            return new UniversalS3CacheStatistics(0, 0, 0, 0, 0, 0);
+        }
+
+        return this.objectCache.getStatistics();
+    }
+
+    /**
+     * Returns a snapshot of the metrics of every kind of operation, i.e: latency percentiles and bytes transferred.
+     */
+    public UniversalS3MetricsSnapshot getMetrics() {
+        return this.metrics.getSnapshot();
+    }
+
+    /**
+     * This method registers a sink that receives a sample for every finished operation.
+     * 
+     * @param sink to be registered.
+     */
+    public void addMetricsSink(UniversalS3MetricsSink sink) {
+        this.metrics.addSink(sink);
+    }
+
+    /**
+     * This method unregisters a sink.
+     * 
+     * @param sink to be unregistered.
+     */
+    public void removeMetricsSink(UniversalS3MetricsSink sink) {
+        this.metrics.removeSink(sink);
+    }
+
+    /**
+     * This method checks whether an object exists within the storage without downloading it.
+     * 
+     * @param path of the object within the root.
+     * @return true if the object exists.
+     * @throws UniversalIOException when a specific IO error occurs.
+     */
+    public boolean exists(String path) throws UniversalIOException {
+        return lookupMetadata(path) != null;
+    }
+
+    /**
+     * This method returns the metadata of an object, i.e: its size and ETag, without downloading it.
+     * 
+     * @param path of the object within the root.
+     * @return the metadata of the object.
+     * @throws UniversalIOException when the object doesn't exist or a specific IO error occurs.
+     */
+    public UniversalS3Metadata getMetadata(String path) throws UniversalIOException {
+        UniversalS3Metadata metadata = lookupMetadata(path);
+        if (metadata == null) {
+            UniversalIOException error = new UniversalIOException("The object " + path + " doesn't exist.");
             this.triggerOnErrorListeners(error);
             throw error;
         }
+
+        return metadata;
     }
 
     /**
-     * This method retrieves a file from the storage.
-     * The method will retrieve the file according to the passed path.  
-     * A file will be stored within the settings' tmp folder.
+     * This method returns the metadata of an object using a HEAD request, the result is cached 
+     * according to the metadata cache settings.
      * 
-     * @param path in context.
-     * @returns a file pointing to the retrieved file.
+     * @param path of the object within the root.
+     * @return the metadata of the object, null if the object doesn't exist.
+     * @throws UniversalIOException when a specific IO error occurs.
      */
-    public File retrieveFile(String path) throws UniversalIOException {
+    private UniversalS3Metadata lookupMetadata(String path) throws UniversalIOException {
         PathValidator.validatePath(path);
 
         if ("".equals(path.trim())) {
-            return null;
-        }
-
-        if (path.trim().endsWith("/")) {
-            UniversalIOException error = new UniversalIOException("Invalid path.  Looks like you're trying to retrieve a folder.");
+            UniversalIOException error = new UniversalIOException("Invalid path.  The path shouldn't be empty.");
             this.triggerOnErrorListeners(error);
             throw error;
         }
-        
-        File dest = null;
-        InputStream objectData = null;
-        try {
-            S3Object object = s3client.getObject(new GetObjectRequest(this.settings.getRoot(), path));
-            objectData = object.getObjectContent();
 
-            String name = object.getKey();
-            int index = name.lastIndexOf("/");
-            if (index != -1) {
-                name = name.substring(index);
+        long start = this.metrics.start(UniversalS3Operation.GET_METADATA);
+        boolean failed = true;
+        UniversalS3Metadata metadata;
+        try {
+            if (this.metadataCache != null) {
+                UniversalS3MetadataCache.Entry entry = this.metadataCache.get(path);
+                if (entry != null) {
+                    failed = false;
+                    return entry.getMetadata();
+                }
             }
 
-            dest = new File(FileUtil.completeFileSeparator(this.settings.getTmp()) + name);
+            ObjectMetadata packed = this.packStore == null ? null : this.packStore.getMetadata(path);
+            metadata = new UniversalS3Metadata(path, packed != null ? packed : 
+                        route(new UniversalS3ReadRouter.Read<ObjectMetadata>() {
+                            public ObjectMetadata call(AmazonS3 s3client, String bucketName, 
+                                        UniversalS3ReadRouter.Latency latency) throws Exception {
+                                return getObjectMetadata(UniversalS3Operation.GET_METADATA, s3client, bucketName, path);
+                            }
+                        }));
+            failed = false;
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() != NOT_FOUND) {
+                UniversalIOException error = new UniversalIOException(e.getMessage());
+                this.triggerOnErrorListeners(error);
+                throw error;
+            }
 
-            FileUtils.copyInputStreamToFile(objectData, dest);
+            failed = false;
+            metadata = null;
         } catch (Exception e) {
             UniversalIOException error = new UniversalIOException(e.getMessage());
             this.triggerOnErrorListeners(error);
             throw error;
         } finally {
-            if (objectData != null) {
-                try {
-                    objectData.close();
-                } catch(Exception ignore) {}
-            }
+            this.metrics.stop(UniversalS3Operation.GET_METADATA, start, 0, 0, 0, failed);
         }
 
-        return dest;
+        if (this.metadataCache != null) {
+            this.metadataCache.put(path, metadata);
+        }
+
+        return metadata;
     }
 
     /**
@@ -464,6 +1965,9 @@ public class UniversalS3Storage extends UniversalStorage {
      * The method will retrieve the file according to the passed path.  
      * A file will be stored within the settings' tmp folder.
      * 
+     * If the streams are coalesced, concurrent calls for the same path share a single download and every
+     * caller gets its own stream over the content kept in memory or spooled to a temporary file.
+     * 
      * @param path in context.
      * @returns an InputStream pointing to the retrieved file.
      */
@@ -480,23 +1984,217 @@ public class UniversalS3Storage extends UniversalStorage {
             throw error;
         }
 
+        long start = this.metrics.start(UniversalS3Operation.RETRIEVE_STREAM);
+        AtomicLong bytes = new AtomicLong();
+        boolean failed = true;
         try {
-            S3Object object = s3client.getObject(new GetObjectRequest(this.settings.getRoot(), path));
-            return object.getObjectContent();
+            if (!this.s3Settings.isCoalesceStreams()) {
+                InputStream stream = openStream(path, bytes);
+                failed = false;
+                return stream;
+            }
+
+            final String key = path;
+            UniversalS3Spool spool = this.streamFlights.execute(this.settings.getRoot() + "/" + path, new Callable<UniversalS3Spool>() {
+                public UniversalS3Spool call() throws Exception {
+                    InputStream stream = openStream(key, new AtomicLong());
+                    try {
+                        return UniversalS3Spool.spool(stream, UniversalS3Storage.this.s3Settings.getCoalesceStreamMemory(), 
+                                    new File(FileUtil.completeFileSeparator(UniversalS3Storage.this.settings.getTmp()) + ".universal-s3-spool"));
+                    } finally {
+                        stream.close();
+                    }
+                }
+            });
+
+            bytes.set(spool.getLength());
+            InputStream stream = spool.open();
+            failed = false;
+            return stream;
         } catch (Exception e) {
             UniversalIOException error = new UniversalIOException(e.getMessage());
             this.triggerOnErrorListeners(error);
             throw error;
+        } finally {
+            this.metrics.stop(UniversalS3Operation.RETRIEVE_STREAM, start, bytes.get(), 0, 0, failed);
+        }
+    }
+
+    /**
+     * Returns the content of a file as a stream, the file is read ahead if the prefetching is enabled.
+     * 
+     * @param path in context.
+     * @param bytes is set to the length of the stored object.
+     * @throws Exception when the object can't be requested.
+     */
+    private InputStream openStream(final String path, final AtomicLong bytes) throws Exception {
+        byte[] packed = readPacked(path);
+        if (packed != null) {
+            bytes.set(packed.length);
+            return new ByteArrayInputStream(packed);
+        }
+
+        return route(new UniversalS3ReadRouter.Read<InputStream>() {
+            public InputStream call(AmazonS3 s3client, String bucketName, 
+                        UniversalS3ReadRouter.Latency latency) throws Exception {
+                if (UniversalS3Storage.this.s3Settings.isPrefetchStream()) {
+                    // The blocks are read ahead from the bucket that answered the first one.
+                    UniversalS3BufferPool pool = getPrefetchBufferPool();
+                    S3Object object = getFirstBlock(s3client, bucketName, path, pool);
+                    bytes.set(object.getObjectMetadata().getInstanceLength());
+                    return openContent(object, new UniversalS3PrefetchingInputStream(s3client, 
+                                UniversalS3Storage.this.downloadExecutor, pool, UniversalS3Storage.this.s3Settings, bucketName, object));
+                }
+
+                S3Object object = getObject(UniversalS3Operation.RETRIEVE_STREAM, s3client, new GetObjectRequest(bucketName, path));
+                bytes.set(object.getObjectMetadata().getContentLength());
+                return openContent(object);
+            }
+        });
+    }
+
+    /**
+     * This method stores a file asynchronously, see storeFile.  The listeners are called from the thread 
+     * that executes the operation.
+     * 
+     * @param file to be stored within the storage.
+     * @param path is the path for this new file within the root.
+     * @return a future completed when the file is stored, or completed exceptionally with an UniversalIOException.
+     */
+    public CompletableFuture<Void> storeFileAsync(final File file, final String path) {
+        UniversalS3AsyncExecutor executor = getAsyncExecutor();
+        if (executor == null) {
+            return closedFuture();
+        }
+
+        return executor.submit(this.storeLimiter, new Callable<Void>() {
+            public Void call() throws Exception {
+                storeFile(file, path);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * This method retrieves a file asynchronously, see retrieveFile.
+     * 
+     * @param path in context.
+     * @return a future completed with the retrieved file, or completed exceptionally with an UniversalIOException.
+     */
+    public CompletableFuture<File> retrieveFileAsync(final String path) {
+        UniversalS3AsyncExecutor executor = getAsyncExecutor();
+        if (executor == null) {
+            return closedFuture();
+        }
+
+        return executor.submit(this.retrieveLimiter, new Callable<File>() {
+            public File call() throws Exception {
+                return retrieveFile(path);
+            }
+        });
+    }
+
+    /**
+     * This method retrieves a file as InputStream asynchronously, see retrieveFileAsStream.  The limit of 
+     * operations in flight covers opening the stream, the stream holds a connection until it's closed.
+     * 
+     * @param path in context.
+     * @return a future completed with the stream, or completed exceptionally with an UniversalIOException.
+     */
+    public CompletableFuture<InputStream> retrieveFileAsStreamAsync(final String path) {
+        UniversalS3AsyncExecutor executor = getAsyncExecutor();
+        if (executor == null) {
+            return closedFuture();
+        }
+
+        return executor.submit(this.streamLimiter, new Callable<InputStream>() {
+            public InputStream call() throws Exception {
+                return retrieveFileAsStream(path);
+            }
+        });
+    }
+
+    /**
+     * This method removes a file asynchronously, see removeFile.  The listeners are called from the thread 
+     * that executes the operation.
+     * 
+     * @param path is the object's path within the storage.
+     * @return a future completed when the file is removed, or completed exceptionally with an UniversalIOException.
+     */
+    public CompletableFuture<Void> removeFileAsync(final String path) {
+        UniversalS3AsyncExecutor executor = getAsyncExecutor();
+        if (executor == null) {
+            return closedFuture();
+        }
+
+        return executor.submit(this.removeLimiter, new Callable<Void>() {
+            public Void call() throws Exception {
+                removeFile(path);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Returns true if the asynchronous operations run on virtual threads, false if they run on the bounded pool, 
+     * i.e: async_executor is platform or the jvm doesn't support virtual threads.
+     */
+    public boolean isAsyncVirtual() {
+        UniversalS3AsyncExecutor executor = getAsyncExecutor();
+        return executor != null && executor.isVirtual();
+    }
+
+    /**
+     * Returns the executor of the asynchronous operations, the executor is created on first use.  Returns null 
+     * if this storage is closed, so no executor is created after close.
+     */
+    private synchronized UniversalS3AsyncExecutor getAsyncExecutor() {
+        if (this.closed) {
+            return null;
+        }
+
+        if (this.asyncExecutor == null) {
+            int limit = this.s3Settings.getAsyncOperationLimit();
+
+            this.asyncExecutor = new UniversalS3AsyncExecutor(this.s3Settings);
+            this.storeLimiter = this.asyncExecutor.newLimiter(limit);
+            this.retrieveLimiter = this.asyncExecutor.newLimiter(limit);
+            this.streamLimiter = this.asyncExecutor.newLimiter(limit);
+            this.removeLimiter = this.asyncExecutor.newLimiter(limit);
         }
+
+        return this.asyncExecutor;
+    }
+
+    /**
+     * Returns a future completed exceptionally because this storage is closed.
+     */
+    private static <T> CompletableFuture<T> closedFuture() {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(new UniversalIOException("The storage is closed."));
+        return future;
     }
 
     /**
      * This method cleans the context of this storage.  This method doesn't remove any file from the storage.
-     * The method will clean the tmp folder to release disk usage.
+     * The method will clean the tmp folder to release disk usage.  The upload journals and the local object 
+     * cache are kept, so the interrupted uploads can be resumed and the cached objects are not downloaded again.
      */
     public void clean() throws UniversalIOException  {
         try {
-            FileUtils.cleanDirectory(new File(this.settings.getTmp()));
+            File tmp = new File(this.settings.getTmp());
+            File[] files = tmp.listFiles();
+            if (files == null) {
+                throw new IOException(tmp + " is not a folder.");
+            }
+
+            File journals = toJournalDirectory().getAbsoluteFile();
+            File cache = toCacheDirectory().getAbsoluteFile();
+            for (File file : files) {
+                if (!file.getAbsoluteFile().equals(journals) && !file.getAbsoluteFile().equals(cache)) {
+                    FileUtils.forceDelete(file);
+                }
+            }
         } catch (Exception e) {
             throw new UniversalIOException(e.getMessage());
         }
@@ -507,39 +2205,132 @@ public class UniversalS3Storage extends UniversalStorage {
      * Be careful with this method because in too many cases this action won't provide a rollback action.
      * 
      * This method loops over the versions for deletion, the bucket will be empty and without any version of its objects.
+     * The keys are deleted using batches of multi-object deletes, a key that couldn't be deleted is reported through 
+     * the error listeners and the process continues with the remaining keys.
      */
     public void wipe() throws UniversalIOException {
-        ObjectListing object_listing = this.s3client.listObjects(this.settings.getRoot());
-        while (true) {
-            for (Iterator<?> iterator =
-                    object_listing.getObjectSummaries().iterator();
-                    iterator.hasNext();) {
-                S3ObjectSummary summary = (S3ObjectSummary)iterator.next();
-                this.s3client.deleteObject(this.settings.getRoot(), summary.getKey());
+        long failed = -1;
+        long start = this.metrics.start(UniversalS3Operation.WIPE);
+        try {
+            UniversalS3BatchDeleter deleter = new UniversalS3BatchDeleter(this.s3client, this.s3Settings, this);
+
+            // Deleting the versions removes the objects as well, the second pass deletes what was stored in the meantime.
+            failed = deleter.deleteVersions(this.settings.getRoot(), null);
+            failed += deleter.deleteObjects(this.settings.getRoot(), null);
+        } catch (Exception e) {
+            UniversalIOException error = new UniversalIOException(e.getMessage());
+            this.triggerOnErrorListeners(error);
+            throw error;
+        } finally {
+            if (this.metadataCache != null) {
+                this.metadataCache.clear();
             }
 
-            if (object_listing.isTruncated()) {
-                object_listing = this.s3client.listNextBatchOfObjects(object_listing);
-            } else {
-                break;
+            if (this.objectCache != null) {
+                this.objectCache.invalidatePrefix(this.settings.getRoot(), "");
             }
-        };
 
-        VersionListing version_listing = this.s3client.listVersions(
-                new ListVersionsRequest().withBucketName(this.settings.getRoot()));
-        while (true) {
-            for (Iterator<?> iterator = version_listing.getVersionSummaries().iterator(); iterator.hasNext();) {
-                S3VersionSummary vs = (S3VersionSummary) iterator.next();
-                this.s3client.deleteVersion(
-        
-                this.settings.getRoot(), vs.getKey(), vs.getVersionId());
+            if (this.packStore != null) {
+                this.packStore.clear();
             }
 
-            if (version_listing.isTruncated()) {
-                version_listing = this.s3client.listNextBatchOfVersions(version_listing);
-            } else {
-                break;
+            this.metrics.stop(UniversalS3Operation.WIPE, start, 0, 0, 0, failed != 0);
+        }
+
+        if (failed > 0) {
+            throw new UniversalIOException(failed + " keys couldn't be deleted from " + this.settings.getRoot() + ".");
+        }
+    }
+
+    /**
+     * This method releases the resources of this storage, i.e: the worker pools for uploads, downloads 
+     * and asynchronous operations.  The operations in flight are completed first, then the clients are 
+     * released, a shared client is shut down when the last storage using it is closed.  The pending pack, 
+     * if any, is uploaded as well.
+     */
+    public void close() {
+        UniversalS3AsyncExecutor asyncExecutor;
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+
+            this.closed = true;
+            asyncExecutor = this.asyncExecutor;
+        }
+
+        // The asynchronous operations and the synchronizations use the other pools, so they are completed first.
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdown();
+            asyncExecutor.awaitTermination();
+        }
+
+        if (this.syncExecutor != null) {
+            this.syncExecutor.shutdown();
+            awaitTermination(this.syncExecutor);
+        }
+
+        if (this.packFlusher != null) {
+            this.packFlusher.shutdown();
+            awaitTermination(this.packFlusher);
+        }
+
+        if (this.packStore != null) {
+            try {
+                flushPacks();
+            } catch (UniversalIOException ignore) {
+                // The error listeners were already notified.
+            }
+
+            this.packStore.close();
+            this.packStore.awaitTermination();
+        }
+
+        // The pools are null when the initialization failed.
+        ExecutorService[] executors = new ExecutorService[] {this.uploadExecutor, this.downloadExecutor, this.copyExecutor};
+        for (ExecutorService executor : executors) {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+
+        if (this.hedger != null) {
+            this.hedger.shutdown();
+        }
+
+        for (ExecutorService executor : executors) {
+            if (executor != null) {
+                awaitTermination(executor);
+            }
+        }
+
+        if (this.hedger != null) {
+            this.hedger.awaitTermination();
+        }
+
+        // The clients are released once no work in flight uses them.
+        synchronized (this) {
+            if (this.router != null) {
+                this.router.close();
             }
         }
+
+        if (this.ownsClient) {
+            UniversalS3ClientRegistry.release(this.s3client);
+        }
+    }
+
+    /**
+     * This method waits until the tasks of a pool already shut down are completed.  An interrupted wait 
+     * returns with the interrupt status set, so the resources are still released.
+     * 
+     * @param executor in context.
+     */
+    static void awaitTermination(ExecutorService executor) {
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
\ No newline at end of file
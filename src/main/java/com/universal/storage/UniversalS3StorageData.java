@@ -0,0 +1,100 @@
+package com.universal.storage;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class represents a file stored using a multipart upload, it's passed to the onFileStored listeners
+ * along with the choices made for the upload.
+ *
+ * i.e:
+ *
+ * public void onFileStored(UniversalStorageData data) {
+ *     if (data instanceof UniversalS3StorageData) {
+ *         UniversalS3StorageData s3Data = (UniversalS3StorageData) data;
+ *         System.out.println(s3Data.getPartSize() + " " + s3Data.getPeakConcurrency());
+ *     }
+ * }
+ */
+public class UniversalS3StorageData extends UniversalStorageData {
+    private final long partSize;
+    private final int parts;
+    private final int initialConcurrency;
+    private final int peakConcurrency;
+    private final int finalConcurrency;
+    private final int throttles;
+
+    /**
+     * This constructor creates a new instance.
+     *
+     * @param name of the file.
+     * @param remoteLink of the new object.
+     * @param remoteId version id of the new object.
+     * @param remotePath where the object was stored.
+     * @param partSize used by the upload.
+     * @param parts number of parts of the upload.
+     * @param initialConcurrency number of parts in flight allowed at first.
+     * @param peakConcurrency highest number of parts in flight allowed.
+     * @param finalConcurrency number of parts in flight allowed at the end.
+     * @param throttles number of parts throttled by S3.
+     */
+    public UniversalS3StorageData(String name, String remoteLink, String remoteId, String remotePath, long partSize,
+                int parts, int initialConcurrency, int peakConcurrency, int finalConcurrency, int throttles) {
+        super(name, remoteLink, remoteId, remotePath);
+        this.partSize = partSize;
+        this.parts = parts;
+        this.initialConcurrency = initialConcurrency;
+        this.peakConcurrency = peakConcurrency;
+        this.finalConcurrency = finalConcurrency;
+        this.throttles = throttles;
+    }
+
+    public long getPartSize() {
+        return this.partSize;
+    }
+
+    public int getParts() {
+        return this.parts;
+    }
+
+    public int getInitialConcurrency() {
+        return this.initialConcurrency;
+    }
+
+    public int getPeakConcurrency() {
+        return this.peakConcurrency;
+    }
+
+    public int getFinalConcurrency() {
+        return this.finalConcurrency;
+    }
+
+    public int getThrottles() {
+        return this.throttles;
+    }
+
+    public String toString() {
+        return super.toString() + ", partSize=" + this.partSize + ", parts=" + this.parts + 
+                    ", initialConcurrency=" + this.initialConcurrency + ", peakConcurrency=" + this.peakConcurrency + 
+                    ", finalConcurrency=" + this.finalConcurrency + ", throttles=" + this.throttles;
+    }
+}
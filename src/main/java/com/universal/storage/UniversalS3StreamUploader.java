@@ -0,0 +1,398 @@
+package com.universal.storage;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.ObjectTagging;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.StorageClass;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class uploads an InputStream of unknown length.
+ *
+ * The stream is read into pooled direct buffers of the part size.  A stream that fits in one buffer is
+ * uploaded using a single PUT, otherwise every filled buffer is uploaded as a part while the next one is
+ * being filled.  The number of buffers held by an upload is bounded by the max in flight bytes, so reading
+ * blocks until a part finishes and memory doesn't grow with the object size.  If the pool has permits, the
+ * bound is shared by every upload of the pool, an upload takes its first two buffers at once and the next
+ * ones only after submitting the filled one, so two uploads never wait for each other's buffers.
+ *
+ * The part size is fixed by the pool, so a stream greater than 10,000 parts fails before its part 10,001 
+ * is uploaded and the upload is aborted.  When the integrity is verified,
+ * the MD5 of every buffer is sent along, so S3 rejects a part whose bytes were corrupted on the way.
+ *
+ * The single PUT and the parts that fail with a transient error are sent again from their buffer, see 
+ * UniversalS3Retrier.
+ */
+class UniversalS3StreamUploader {
+    private AmazonS3 s3client;
+    private ExecutorService executor;
+    private UniversalS3Settings s3Settings;
+    private UniversalS3BufferPool pool;
+    private UniversalS3Retrier retrier;
+    private UniversalS3Operation operation;
+    private final AtomicInteger retries = new AtomicInteger();
+    private int maxParts = UniversalS3MultipartUploader.MAX_PARTS;
+
+    /**
+     * This constructor creates a new uploader.
+     *
+     * @param s3client used to upload the parts.
+     * @param executor where the parts will be uploaded.
+     * @param s3Settings with the in flight limits.
+     * @param pool of buffers, the capacity of every buffer is the part size.
+     */
+    UniversalS3StreamUploader(AmazonS3 s3client, ExecutorService executor, UniversalS3Settings s3Settings,
+                UniversalS3BufferPool pool) {
+        this(s3client, executor, s3Settings, pool, new UniversalS3Retrier(s3Settings), UniversalS3Operation.STORE_STREAM);
+    }
+
+    /**
+     * This constructor creates a new uploader whose requests are retried by the passed retrier.
+     *
+     * @param s3client used to upload the parts.
+     * @param executor where the parts will be uploaded.
+     * @param s3Settings with the in flight limits.
+     * @param pool of buffers, the capacity of every buffer is the part size.
+     * @param retrier of the single PUT and the parts.
+     * @param operation whose budget is used by the single PUT, the parts use the part retries.
+     */
+    UniversalS3StreamUploader(AmazonS3 s3client, ExecutorService executor, UniversalS3Settings s3Settings,
+                UniversalS3BufferPool pool, UniversalS3Retrier retrier, UniversalS3Operation operation) {
+        this.s3client = s3client;
+        this.executor = executor;
+        this.s3Settings = s3Settings;
+        this.pool = pool;
+        this.retrier = retrier;
+        this.operation = operation;
+    }
+
+    /**
+     * This method sets the max number of parts of an upload, used by the tests.
+     *
+     * @param maxParts of an upload.
+     * @return this uploader.
+     */
+    UniversalS3StreamUploader withMaxParts(int maxParts) {
+        this.maxParts = maxParts;
+        return this;
+    }
+
+    /**
+     * Returns the number of times either the single PUT or a part was sent again.
+     */
+    int getRetries() {
+        return this.retries.get();
+    }
+
+    /**
+     * This method uploads the stream, the stream is read until its end but it's not closed.
+     *
+     * @param stream to be uploaded.
+     * @param bucketName target bucket.
+     * @param key target key.
+     * @param objectMetadata for the single PUT or the initiate request, it's sent along with every part as well.
+     * @param tagging for the single PUT or the initiate request.
+     * @param storageClass for the single PUT or the initiate request.
+     * @return the result of the upload.
+     * @throws Exception when the stream can't be read or a part fails.
+     */
+    Result upload(InputStream stream, String bucketName, String key, ObjectMetadata objectMetadata,
+                ObjectTagging tagging, StorageClass storageClass) throws Exception {
+        ReadableByteChannel channel = Channels.newChannel(stream);
+        Semaphore buffers = this.pool.getPermits();
+        if (buffers == null) {
+            buffers = new Semaphore((int) Math.max(2, Math.min(Integer.MAX_VALUE,
+                        this.s3Settings.getMaxInFlightBytes() / this.pool.getBufferSize())), true);
+        }
+
+        // Both buffers are taken at once, an upload waiting for its second buffer would hold the first one.
+        buffers.acquire(2);
+        ByteBuffer current = this.pool.acquire();
+        ByteBuffer next = this.pool.acquire();
+        boolean multipart = false;
+        try {
+            fill(channel, current);
+            if (!current.hasRemaining()) {
+                fill(channel, next);
+                if (next.position() != 0) {
+                    // The buffers are released by the multipart upload.
+                    multipart = true;
+                    return uploadParts(channel, current, next, buffers, bucketName, key, objectMetadata, 
+                                tagging, storageClass);
+                }
+            }
+
+            return putObject(current, bucketName, key, objectMetadata, tagging, storageClass);
+        } finally {
+            if (!multipart) {
+                release(current, buffers);
+                release(next, buffers);
+            }
+        }
+    }
+
+    /**
+     * This method uploads the stream using a multipart upload, the first two buffers are already filled.
+     */
+    private Result uploadParts(ReadableByteChannel channel, ByteBuffer first, ByteBuffer second, final Semaphore buffers,
+                final String bucketName, final String key, final ObjectMetadata objectMetadata, ObjectTagging tagging, 
+                StorageClass storageClass) throws Exception {
+        final String uploadId;
+        try {
+            // The part size lets the downloads verify the ETag, see UniversalS3Checksum.
+            objectMetadata.addUserMetadata(UniversalS3Checksum.METADATA_PART_SIZE, String.valueOf(first.capacity()));
+            uploadId = UniversalS3MultipartUploader.initiate(this.s3client, this.retrier, this.operation, this.retries, 
+                        bucketName, key, objectMetadata, tagging, storageClass);
+        } catch (Exception e) {
+            release(first, buffers);
+            release(second, buffers);
+            throw e;
+        }
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Future<PartETag>> futures = new ArrayList<Future<PartETag>>();
+        ByteBuffer current = first;
+        ByteBuffer next = second;
+        long size = 0;
+        try {
+            for (int partNumber = 1; ; partNumber++) {
+                size += current.position();
+                boolean last = current.hasRemaining();
+                futures.add(submit(current, partNumber, buffers, failure, bucketName, key, uploadId, objectMetadata));
+                current = null;
+                if (last || failure.get() != null) {
+                    break;
+                }
+
+                if (next == null) {
+                    // Blocks until a part in flight releases its buffer, this upload holds no other buffer.
+                    next = acquire(buffers);
+                    fill(channel, next);
+                }
+
+                if (next.position() == 0) {
+                    break;
+                }
+
+                if (partNumber >= this.maxParts) {
+                    throw new IllegalStateException("The stream of " + key + " exceeds " + this.maxParts + " parts of " + 
+                                first.capacity() + " bytes, the part_size must be increased.");
+                }
+
+                current = next;
+                next = null;
+            }
+
+            release(next, buffers);
+            next = null;
+
+            List<PartETag> partETags = new ArrayList<PartETag>();
+            for (Future<PartETag> future : futures) {
+                try {
+                    partETags.add(future.get());
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+
+            return new Result(UniversalS3MultipartUploader.complete(this.s3client, this.retrier, this.operation, this.retries,
+                    new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags)).getVersionId(), partETags.size(), size);
+        } catch (Exception e) {
+            failure.compareAndSet(null, e);
+            release(current, buffers);
+            release(next, buffers);
+            for (Future<PartETag> future : futures) {
+                future.cancel(false);
+            }
+
+            try {
+                this.s3client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+            } catch (Exception ignore) {}
+
+            throw e;
+        }
+    }
+
+    /**
+     * Submits a filled buffer as a part, the buffer is released after the upload.
+     */
+    private Future<PartETag> submit(final ByteBuffer buffer, final int partNumber, final Semaphore buffers,
+                final AtomicReference<Throwable> failure, final String bucketName, final String key,
+                final String uploadId, final ObjectMetadata objectMetadata) {
+        buffer.flip();
+        try {
+            return this.executor.submit(new Callable<PartETag>() {
+                public PartETag call() throws Exception {
+                    try {
+                        if (failure.get() != null) {
+                            throw new IllegalStateException("Multipart upload was cancelled.");
+                        }
+
+                        final UploadPartRequest uploadRequest = new UploadPartRequest()
+                            .withBucketName(bucketName)
+                            .withKey(key)
+                            .withUploadId(uploadId).withPartNumber(partNumber)
+                            .withObjectMetadata(objectMetadata)
+                            .withPartSize(buffer.remaining());
+                        if (UniversalS3StreamUploader.this.s3Settings.isVerifyIntegrity()) {
+                            uploadRequest.setMd5Digest(UniversalS3Checksum.md5(buffer));
+                        }
+
+                        return UniversalS3StreamUploader.this.retrier.execute(
+                                    UniversalS3StreamUploader.this.s3Settings.getPartRetries(), new Callable<PartETag>() {
+                            public PartETag call() {
+                                // A retry sends the buffer again from its beginning.
+                                uploadRequest.setInputStream(new UniversalS3ByteBufferInputStream(buffer.duplicate()));
+                                return UniversalS3StreamUploader.this.s3client.uploadPart(uploadRequest).getPartETag();
+                            }
+                        }, UniversalS3StreamUploader.this.retries);
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                        throw e;
+                    } finally {
+                        release(buffer, buffers);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            release(buffer, buffers);
+            throw e;
+        }
+    }
+
+    /**
+     * Uploads the filled buffer using a single PUT.
+     */
+    private Result putObject(final ByteBuffer buffer, String bucketName, String key, ObjectMetadata objectMetadata,
+                ObjectTagging tagging, StorageClass storageClass) throws Exception {
+        buffer.flip();
+        objectMetadata.setContentLength(buffer.remaining());
+        if (this.s3Settings.isVerifyIntegrity()) {
+            objectMetadata.setContentMD5(UniversalS3Checksum.md5(buffer));
+        }
+
+        final PutObjectRequest request = new PutObjectRequest(bucketName, key, (InputStream) null, objectMetadata);
+        request.setTagging(tagging);
+        request.setStorageClass(storageClass);
+
+        String versionId = this.retrier.execute(this.operation, new Callable<String>() {
+            public String call() {
+                // A retry sends the buffer again from its beginning.
+                request.setInputStream(new UniversalS3ByteBufferInputStream(buffer.duplicate()));
+                return UniversalS3StreamUploader.this.s3client.putObject(request).getVersionId();
+            }
+        }, this.retries);
+
+        return new Result(versionId, 0, objectMetadata.getContentLength());
+    }
+
+    /**
+     * Reads from the channel until either the buffer is full or the stream is over.
+     */
+    private void fill(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+            // Keeps reading.
+        }
+    }
+
+    /**
+     * Acquires a buffer, blocks if this upload already holds the max number of buffers.
+     */
+    private ByteBuffer acquire(Semaphore buffers) throws InterruptedException {
+        buffers.acquire();
+        return this.pool.acquire();
+    }
+
+    /**
+     * Returns the buffer to the pool.
+     */
+    private void release(ByteBuffer buffer, Semaphore buffers) {
+        if (buffer != null) {
+            this.pool.release(buffer);
+            buffers.release();
+        }
+    }
+
+    /**
+     * This class represents the result of an upload.
+     */
+    static class Result {
+        private final String versionId;
+        private final int parts;
+        private final long size;
+
+        Result(String versionId, int parts, long size) {
+            this.versionId = versionId;
+            this.parts = parts;
+            this.size = size;
+        }
+
+        /**
+         * Returns the version id of the new object.
+         */
+        String getVersionId() {
+            return this.versionId;
+        }
+
+        /**
+         * Returns true if the stream was uploaded using a multipart upload.
+         */
+        boolean isMultipart() {
+            return this.parts > 0;
+        }
+
+        /**
+         * Returns the number of parts of the multipart upload, 0 for a single PUT.
+         */
+        int getParts() {
+            return this.parts;
+        }
+
+        /**
+         * Returns the number of bytes uploaded.
+         */
+        long getSize() {
+            return this.size;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.universal.storage;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class represents the outcome of a directory synchronization.
+ */
+public class UniversalS3SyncResult {
+    private final long transferred;
+    private final long skipped;
+    private final long failed;
+    private final long bytes;
+
+    /**
+     * This constructor creates a new result.
+     *
+     * @param transferred files uploaded or downloaded.
+     * @param skipped files whose size and ETag already matched.
+     * @param failed files that couldn't be synchronized.
+     * @param bytes total size of the transferred files.
+     */
+    public UniversalS3SyncResult(long transferred, long skipped, long failed, long bytes) {
+        this.transferred = transferred;
+        this.skipped = skipped;
+        this.failed = failed;
+        this.bytes = bytes;
+    }
+
+    public long getTransferred() {
+        return this.transferred;
+    }
+
+    public long getSkipped() {
+        return this.skipped;
+    }
+
+    public long getFailed() {
+        return this.failed;
+    }
+
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    public String toString() {
+        return "transferred=" + this.transferred + ", skipped=" + this.skipped + ", failed=" + this.failed + 
+                    ", bytes=" + this.bytes;
+    }
+}
@@ -0,0 +1,351 @@
+package com.universal.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import com.universal.error.UniversalIOException;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class synchronizes a local directory with the objects under a prefix, in either direction.
+ *
+ * The local tree is walked while the remote listing is being fetched.  A file is skipped when its size and
+ * ETag already match, the ETag is computed locally as S3 does, either the MD5 of the content or the MD5 of 
+ * the part digests for multipart objects.  The remaining files are transferred by a bounded pool through 
+ * the regular upload and download paths of the storage, so the retries, the read replicas, the hedged reads,
+ * the metrics and the local object cache apply to every file.  The pool is shared by the runs of a storage.  A failed file is reported through the error listeners of the 
+ * storage without stopping the run.  The remote side is the listing of the storage, so the packs are never 
+ * transferred and the packed files are compared and read like the other files, see UniversalS3PackStore.
+ */
+class UniversalS3Synchronizer {
+    private static final int BUFFER_SIZE = 65536;
+    private static final long MEGABYTE = 1048576;
+
+    private ExecutorService executor;
+    private UniversalS3Settings s3Settings;
+    private UniversalS3Storage storage;
+
+    /**
+     * This constructor creates a new synchronizer.
+     *
+     * @param executor where the files are transferred, its threads bound the number of files in flight.
+     * @param s3Settings with the part size.
+     * @param storage used to list, upload and download and whose error listeners will be notified.
+     */
+    UniversalS3Synchronizer(ExecutorService executor, UniversalS3Settings s3Settings, UniversalS3Storage storage) {
+        this.executor = executor;
+        this.s3Settings = s3Settings;
+        this.storage = storage;
+    }
+
+    /**
+     * This method uploads the files of a local directory that are missing or different under the prefix.
+     *
+     * @param dir local directory.
+     * @param prefix within the root, empty means the root.
+     * @return the outcome of the synchronization.
+     * @throws Exception when the remote listing fails.
+     */
+    UniversalS3SyncResult upload(File dir, String prefix) throws Exception {
+        return run(dir, prefix, true);
+    }
+
+    /**
+     * This method downloads the objects under the prefix that are missing or different within the local directory.
+     *
+     * @param prefix within the root, empty means the root.
+     * @param dir local directory, it's created if doesn't exist.
+     * @return the outcome of the synchronization.
+     * @throws Exception when the remote listing fails.
+     */
+    UniversalS3SyncResult download(String prefix, File dir) throws Exception {
+        return run(dir, prefix, false);
+    }
+
+    /**
+     * This method executes the synchronization in the passed direction.
+     */
+    private UniversalS3SyncResult run(final File dir, final String prefix, final boolean upload) throws Exception {
+        ExecutorService executor = this.executor;
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        final AtomicLong transferred = new AtomicLong();
+        final AtomicLong skipped = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        try {
+            // The remote listing is fetched while the local tree is being walked.
+            Future<Map<String, UniversalS3Metadata>> listing = executor.submit(new Callable<Map<String, UniversalS3Metadata>>() {
+                public Map<String, UniversalS3Metadata> call() throws Exception {
+                    return list(prefix);
+                }
+            });
+            futures.add(listing);
+
+            Map<String, File> local = new HashMap<String, File>();
+            walk(dir, "", local);
+
+            Map<String, UniversalS3Metadata> remote;
+            try {
+                remote = listing.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+
+            if (upload) {
+                for (final Map.Entry<String, File> entry : local.entrySet()) {
+                    final UniversalS3Metadata metadata = remote.get(entry.getKey());
+                    futures.add(executor.submit(new Runnable() {
+                        public void run() {
+                            File file = entry.getValue();
+                            try {
+                                if (matches(file, metadata)) {
+                                    skipped.incrementAndGet();
+                                    return;
+                                }
+
+                                String relative = entry.getKey();
+                                int index = relative.lastIndexOf("/");
+                                UniversalS3Synchronizer.this.storage.storeFile(file, 
+                                            join(prefix, index == -1 ? "" : relative.substring(0, index)));
+                                transferred.incrementAndGet();
+                                bytes.addAndGet(file.length());
+                            } catch (UniversalIOException e) {
+                                // The storage already notified its error listeners.
+                                failed.incrementAndGet();
+                            } catch (Exception e) {
+                                failed.incrementAndGet();
+                                UniversalS3Synchronizer.this.storage.triggerOnErrorListeners(
+                                            new UniversalIOException(file.getPath() + ": " + e.getMessage()));
+                            }
+                        }
+                    }));
+                }
+            } else {
+                for (final Map.Entry<String, UniversalS3Metadata> entry : remote.entrySet()) {
+                    final File file = local.containsKey(entry.getKey()) ? local.get(entry.getKey()) : 
+                                new File(dir, entry.getKey().replace("/", File.separator));
+                    futures.add(executor.submit(new Runnable() {
+                        public void run() {
+                            UniversalS3Metadata metadata = entry.getValue();
+                            try {
+                                if (!isWithin(dir, file)) {
+                                    throw new IllegalStateException("The key points outside of " + dir.getPath() + ".");
+                                }
+
+                                if (matches(file, metadata)) {
+                                    skipped.incrementAndGet();
+                                    return;
+                                }
+
+                                UniversalS3Synchronizer.this.storage.retrieve(metadata.getPath(), file);
+                                transferred.incrementAndGet();
+                                bytes.addAndGet(file.length());
+                            } catch (UniversalIOException e) {
+                                // The storage already notified its error listeners.
+                                failed.incrementAndGet();
+                            } catch (Exception e) {
+                                failed.incrementAndGet();
+                                UniversalS3Synchronizer.this.storage.triggerOnErrorListeners(
+                                            new UniversalIOException(metadata.getPath() + ": " + e.getMessage()));
+                            }
+                        }
+                    }));
+                }
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            // The pool is shared, only the tasks of this run are cancelled when it fails.
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        return new UniversalS3SyncResult(transferred.get(), skipped.get(), failed.get(), bytes.get());
+    }
+
+    /**
+     * This method lists the files under the prefix, packed files included.  The folder markers and the packs 
+     * are skipped by the listing.
+     *
+     * @return the files keyed by their path relative to the prefix.
+     */
+    private Map<String, UniversalS3Metadata> list(String prefix) throws Exception {
+        String fullPrefix = "".equals(prefix) ? "" : (prefix + "/");
+        Map<String, UniversalS3Metadata> remote = new HashMap<String, UniversalS3Metadata>();
+
+        UniversalS3Listing listing = this.storage.newListing(fullPrefix, false);
+        try {
+            while (listing.hasNext()) {
+                UniversalS3Metadata metadata = listing.next();
+                remote.put(metadata.getPath().substring(fullPrefix.length()), metadata);
+            }
+        } finally {
+            listing.close();
+        }
+
+        return remote;
+    }
+
+    /**
+     * This method collects the files of a local directory keyed by their relative path, i.e: docs/readme.txt
+     */
+    private void walk(File dir, String relative, Map<String, File> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+
+        for (File child : children) {
+            String path = join(relative, child.getName());
+            if (child.isDirectory()) {
+                walk(child, path, files);
+            } else if (child.isFile()) {
+                files.put(path, child);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the local file has the same size and ETag as the object.  An object smaller than the 
+     * file may have been stored compressed, in that case the file is compared with the uncompressed length 
+     * and MD5 recorded within the user metadata of the object.
+     *
+     * @param file local file.
+     * @param metadata of the listing, null if the object doesn't exist.
+     */
+    private boolean matches(File file, UniversalS3Metadata metadata) throws Exception {
+        if (metadata == null || !file.isFile() || metadata.getETag() == null) {
+            return false;
+        }
+
+        if (file.length() != metadata.getSize()) {
+            if (metadata.getSize() > file.length()) {
+                return false;
+            }
+
+            // The listing doesn't return the user metadata, the packed files are never compressed.
+            Map<String, String> userMetadata = this.storage.getMetadata(metadata.getPath()).getUserMetadata();
+            return userMetadata.get(UniversalS3Compression.METADATA_CODEC) != null && 
+                        String.valueOf(file.length()).equals(userMetadata.get(UniversalS3Compression.METADATA_LENGTH)) &&
+                        computeETag(file, -1).equalsIgnoreCase(userMetadata.get(UniversalS3Compression.METADATA_MD5));
+        }
+
+        String eTag = metadata.getETag().replace("\"", "");
+        int dash = eTag.indexOf('-');
+        if (dash == -1) {
+            return eTag.equalsIgnoreCase(computeETag(file, -1));
+        }
+
+        // Multipart ETag, the part size is either the one picked by the uploader or a MB multiple that produces the same number of parts.
+        long parts = Long.parseLong(eTag.substring(dash + 1));
+        long partSize = UniversalS3MultipartUploader.choosePartSize(file.length(), this.s3Settings);
+        if ((file.length() + partSize - 1) / partSize != parts) {
+            partSize = (file.length() + parts - 1) / parts;
+            partSize = ((partSize + MEGABYTE - 1) / MEGABYTE) * MEGABYTE;
+        }
+
+        return eTag.equalsIgnoreCase(computeETag(file, partSize));
+    }
+
+    /**
+     * This method computes the ETag S3 assigns to the content of a file.
+     *
+     * @param file in context.
+     * @param partSize of the multipart upload, -1 for a single PUT.
+     * @return the ETag without quotes.
+     */
+    static String computeETag(File file, long partSize) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        MessageDigest parts = MessageDigest.getInstance("MD5");
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long inPart = 0;
+        int count = 0;
+
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer, 0, partSize < 0 ? buffer.length : (int) Math.min(buffer.length, partSize - inPart))) != -1) {
+                digest.update(buffer, 0, read);
+                inPart += read;
+                if (partSize > 0 && inPart == partSize) {
+                    parts.update(digest.digest());
+                    inPart = 0;
+                    count++;
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        if (partSize < 0) {
+            return toHex(digest.digest());
+        }
+
+        if (inPart > 0 || count == 0) {
+            parts.update(digest.digest());
+            count++;
+        }
+
+        return toHex(parts.digest()) + "-" + count;
+    }
+
+    /**
+     * Returns the hexadecimal representation of a digest.
+     */
+    private static String toHex(byte[] digest) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest) {
+            builder.append(String.format("%02x", b));
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Returns true if the file is located within the directory.
+     */
+    private static boolean isWithin(File dir, File file) throws Exception {
+        return file.getCanonicalPath().startsWith(dir.getCanonicalPath() + File.separator);
+    }
+
+    /**
+     * Joins two paths using a forward slash.
+     */
+    private static String join(String path, String name) {
+        return "".equals(path) ? name : ("".equals(name) ? path : (path + "/" + name));
+    }
+}
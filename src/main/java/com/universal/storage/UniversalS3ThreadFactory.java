@@ -0,0 +1,56 @@
+package com.universal.storage;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class creates named daemon threads, so the worker pools of this storage never
+ * prevent the jvm from exiting.
+ */
+class UniversalS3ThreadFactory implements ThreadFactory {
+    private final String name;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    /**
+     * This constructor creates a new factory.
+     *
+     * @param name prefix for the name of every thread, i.e: universal-s3-upload.
+     */
+    UniversalS3ThreadFactory(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Creates a new daemon thread.
+     *
+     * @param runnable to be executed by the new thread.
+     */
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, this.name + "-" + this.counter.incrementAndGet());
+        thread.setDaemon(true);
+
+        return thread;
+    }
+}
@@ -0,0 +1,179 @@
+package com.universal.storage;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class bounds the number of parts in flight of a multipart upload.
+ *
+ * A fixed controller keeps its limit.  An adaptive controller adjusts its limit after every round of
+ * completed parts (a round is as many parts as the current limit): the limit grows by one while the measured
+ * throughput keeps improving, it's reduced by a quarter when the throughput stops improving and the average
+ * latency of the parts has doubled, and it's halved when S3 throttles a part.
+ */
+class UniversalS3UploadController {
+    private static final double IMPROVEMENT = 1.05;
+    private static final double LATENCY_GROWTH = 2.0;
+
+    private final boolean adaptive;
+    private final int maxLimit;
+    private final int initialLimit;
+    private int limit;
+    private int inFlight;
+    private int peakLimit;
+    private int throttles;
+
+    private long roundStart;
+    private long roundBytes;
+    private long roundLatency;
+    private int roundParts;
+    private double lastThroughput;
+    private double minLatency;
+
+    /**
+     * This constructor creates a new controller.
+     *
+     * @param initialLimit number of parts in flight allowed at first.
+     * @param maxLimit max number of parts in flight, ignored by a fixed controller.
+     * @param adaptive true if the limit should follow the measured throughput.
+     */
+    UniversalS3UploadController(int initialLimit, int maxLimit, boolean adaptive) {
+        this.adaptive = adaptive;
+        this.maxLimit = adaptive ? Math.max(1, maxLimit) : Math.max(1, initialLimit);
+        this.initialLimit = Math.max(1, Math.min(initialLimit, this.maxLimit));
+        this.limit = this.initialLimit;
+        this.peakLimit = this.initialLimit;
+    }
+
+    /**
+     * Blocks until a part can be sent.
+     */
+    synchronized void acquire() throws InterruptedException {
+        while (this.inFlight >= this.limit) {
+            wait();
+        }
+
+        this.inFlight++;
+        if (this.roundStart == 0) {
+            this.roundStart = System.nanoTime();
+        }
+    }
+
+    /**
+     * This method releases the slot of a part.
+     *
+     * @param bytes sent by the part, 0 if the part failed.
+     * @param nanos spent sending the part.
+     */
+    synchronized void release(long bytes, long nanos) {
+        this.inFlight--;
+        if (this.adaptive && bytes > 0) {
+            this.roundBytes += bytes;
+            this.roundLatency += nanos;
+            if (++this.roundParts >= this.limit) {
+                adjust();
+            }
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * This method records a throttled part, an adaptive controller halves its limit.
+     */
+    synchronized void throttled() {
+        this.throttles++;
+        if (this.adaptive) {
+            this.limit = Math.max(1, this.limit / 2);
+            this.lastThroughput = 0;
+            resetRound();
+        }
+    }
+
+    /**
+     * Returns the limit in place when this controller was created.
+     */
+    synchronized int getInitialLimit() {
+        return this.initialLimit;
+    }
+
+    /**
+     * Returns the max limit this controller can grow to.
+     */
+    synchronized int getMaxLimit() {
+        return this.maxLimit;
+    }
+
+    /**
+     * Returns the current limit.
+     */
+    synchronized int getLimit() {
+        return this.limit;
+    }
+
+    /**
+     * Returns the highest limit reached.
+     */
+    synchronized int getPeakLimit() {
+        return this.peakLimit;
+    }
+
+    /**
+     * Returns the number of throttled parts.
+     */
+    synchronized int getThrottles() {
+        return this.throttles;
+    }
+
+    /**
+     * Adjusts the limit using the samples of the round that just finished.
+     */
+    private void adjust() {
+        long elapsed = Math.max(1, System.nanoTime() - this.roundStart);
+        double throughput = (double) this.roundBytes / elapsed;
+        double latency = (double) this.roundLatency / this.roundParts;
+
+        if (this.minLatency == 0 || latency < this.minLatency) {
+            this.minLatency = latency;
+        }
+
+        if (throughput > this.lastThroughput * IMPROVEMENT) {
+            this.limit = Math.min(this.maxLimit, this.limit + 1);
+        } else if (latency > this.minLatency * LATENCY_GROWTH) {
+            this.limit = Math.max(1, this.limit - Math.max(1, this.limit / 4));
+        }
+
+        this.peakLimit = Math.max(this.peakLimit, this.limit);
+        this.lastThroughput = throughput;
+        resetRound();
+    }
+
+    /**
+     * Starts a new round of samples.
+     */
+    private void resetRound() {
+        this.roundStart = this.inFlight > 0 ? System.nanoTime() : 0;
+        this.roundBytes = 0;
+        this.roundLatency = 0;
+        this.roundParts = 0;
+    }
+}
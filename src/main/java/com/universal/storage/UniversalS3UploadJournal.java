@@ -0,0 +1,320 @@
+package com.universal.storage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Date;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+import org.apache.commons.io.FileUtils;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListMultipartUploadsRequest;
+import com.amazonaws.services.s3.model.MultipartUpload;
+import com.amazonaws.services.s3.model.MultipartUploadListing;
+
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Dynamicloud
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * This class is the local journal of a resumable multipart upload.
+ *
+ * The journal is a small text file named after the bucket and key, it holds the upload id, the length,
+ * last modified date and part size of the file, followed by one line per completed part.  Lines are only
+ * appended, so a crash can't corrupt the lines already written.  The completed parts are reconciled with
+ * ListParts before resuming, so the journal is never trusted on its own.
+ */
+class UniversalS3UploadJournal {
+    private static final String EXTENSION = ".journal";
+
+    private final File journal;
+    private final String bucketName;
+    private final String key;
+    private final String uploadId;
+    private final long length;
+    private final long lastModified;
+    private final long partSize;
+    private final Map<Integer, String> parts = new HashMap<Integer, String>();
+    private Writer writer;
+
+    private UniversalS3UploadJournal(File journal, String bucketName, String key, String uploadId, long length,
+                long lastModified, long partSize) {
+        this.journal = journal;
+        this.bucketName = bucketName;
+        this.key = key;
+        this.uploadId = uploadId;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.partSize = partSize;
+    }
+
+    /**
+     * This method creates the journal of a new multipart upload, a previous journal of the same object is replaced.
+     *
+     * @param directory of the journals.
+     * @param bucketName target bucket.
+     * @param key target key.
+     * @param uploadId of the new multipart upload.
+     * @param file being uploaded.
+     * @param partSize of the upload.
+     * @throws IOException if the journal can't be written.
+     */
+    static UniversalS3UploadJournal create(File directory, String bucketName, String key, String uploadId,
+                File file, long partSize) throws IOException {
+        FileUtils.forceMkdir(directory);
+        UniversalS3UploadJournal journal = new UniversalS3UploadJournal(fileOf(directory, bucketName, key), 
+                    bucketName, key, uploadId, file.length(), file.lastModified(), partSize);
+
+        journal.writer = new OutputStreamWriter(new FileOutputStream(journal.journal, false), "UTF-8");
+        journal.write("bucket=" + encode(bucketName) + "\nkey=" + encode(key) + "\nupload=" + encode(uploadId) + 
+                    "\nlength=" + journal.length + "\nmodified=" + journal.lastModified + "\npart_size=" + partSize + "\n");
+        return journal;
+    }
+
+    /**
+     * Returns the journal of an object, null if there is no journal or the journal can't be read.
+     *
+     * @param directory of the journals.
+     * @param bucketName target bucket.
+     * @param key target key.
+     */
+    static UniversalS3UploadJournal load(File directory, String bucketName, String key) {
+        UniversalS3UploadJournal journal = load(fileOf(directory, bucketName, key));
+        return journal != null && bucketName.equals(journal.bucketName) && key.equals(journal.key) ? journal : null;
+    }
+
+    /**
+     * Returns true if the journal belongs to the passed file as it's now, i.e: the file wasn't modified.
+     *
+     * @param file in context.
+     */
+    boolean matches(File file) {
+        return file.length() == this.length && file.lastModified() == this.lastModified;
+    }
+
+    /**
+     * This method records a completed part.
+     *
+     * @param partNumber of the part.
+     * @param eTag returned by S3.
+     * @throws IOException if the journal can't be written.
+     */
+    synchronized void append(int partNumber, String eTag) throws IOException {
+        if (this.writer == null) {
+            this.writer = new OutputStreamWriter(new FileOutputStream(this.journal, true), "UTF-8");
+        }
+
+        write("part=" + partNumber + " " + eTag + "\n");
+        this.parts.put(partNumber, eTag);
+    }
+
+    /**
+     * Returns the ETag recorded for a part, null if the part is not recorded.
+     *
+     * @param partNumber of the part.
+     */
+    synchronized String getETag(int partNumber) {
+        return this.parts.get(partNumber);
+    }
+
+    String getUploadId() {
+        return this.uploadId;
+    }
+
+    long getPartSize() {
+        return this.partSize;
+    }
+
+    /**
+     * This method closes the journal and keeps it, so the upload can be resumed.
+     */
+    synchronized void close() {
+        if (this.writer != null) {
+            try {
+                this.writer.close();
+            } catch (IOException ignore) {}
+
+            this.writer = null;
+        }
+    }
+
+    /**
+     * This method closes and removes the journal.
+     */
+    synchronized void delete() {
+        close();
+        this.journal.delete();
+    }
+
+    /**
+     * This method removes the journals older than the max age along with their uploads.  Only if it's asked, 
+     * it aborts as well the incomplete multipart uploads of the bucket older than the max age which don't have 
+     * a journal, those uploads may belong to other hosts or tools.
+     *
+     * @param s3client used to abort the uploads.
+     * @param directory of the journals.
+     * @param bucketName in context.
+     * @param maxAge in milliseconds.
+     * @param abortUnjournaled true if the old uploads of the bucket without a local journal must be aborted.
+     * @return the number of aborted uploads.
+     */
+    static int cleanup(AmazonS3 s3client, File directory, String bucketName, long maxAge, boolean abortUnjournaled) {
+        long limit = System.currentTimeMillis() - maxAge;
+        Set<String> journaled = new HashSet<String>();
+        int aborted = 0;
+
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            if (!file.getName().endsWith(EXTENSION)) {
+                continue;
+            }
+
+            UniversalS3UploadJournal journal = load(file);
+            if (journal != null && file.lastModified() >= limit) {
+                journaled.add(journal.uploadId);
+                continue;
+            }
+
+            if (journal != null && abort(s3client, journal.bucketName, journal.key, journal.uploadId)) {
+                aborted++;
+            }
+
+            file.delete();
+        }
+
+        if (!abortUnjournaled) {
+            return aborted;
+        }
+
+        ListMultipartUploadsRequest request = new ListMultipartUploadsRequest(bucketName);
+        MultipartUploadListing listing;
+        do {
+            listing = s3client.listMultipartUploads(request);
+            for (MultipartUpload upload : listing.getMultipartUploads()) {
+                Date initiated = upload.getInitiated();
+                if (initiated != null && initiated.getTime() < limit && !journaled.contains(upload.getUploadId()) && 
+                            abort(s3client, bucketName, upload.getKey(), upload.getUploadId())) {
+                    aborted++;
+                }
+            }
+
+            request.setKeyMarker(listing.getNextKeyMarker());
+            request.setUploadIdMarker(listing.getNextUploadIdMarker());
+        } while (listing.isTruncated());
+
+        return aborted;
+    }
+
+    /**
+     * Aborts an upload, returns false if the upload couldn't be aborted.
+     */
+    private static boolean abort(AmazonS3 s3client, String bucketName, String key, String uploadId) {
+        try {
+            s3client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads a journal, returns null if the journal can't be read.
+     */
+    private static UniversalS3UploadJournal load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        Map<String, String> header = new HashMap<String, String>();
+        Map<Integer, String> parts = new HashMap<Integer, String>();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int equals = line.indexOf('=');
+                    if (equals == -1) {
+                        continue;
+                    }
+
+                    String name = line.substring(0, equals);
+                    String value = line.substring(equals + 1);
+                    if ("part".equals(name)) {
+                        int space = value.indexOf(' ');
+                        if (space != -1) {
+                            parts.put(Integer.parseInt(value.substring(0, space)), value.substring(space + 1));
+                        }
+                    } else {
+                        header.put(name, value);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+
+            UniversalS3UploadJournal journal = new UniversalS3UploadJournal(file, decode(header.get("bucket")), 
+                        decode(header.get("key")), decode(header.get("upload")), Long.parseLong(header.get("length")), 
+                        Long.parseLong(header.get("modified")), Long.parseLong(header.get("part_size")));
+            journal.parts.putAll(parts);
+            return journal;
+        } catch (Exception e) {
+            // A journal without its header is useless, the upload will start again.
+            return null;
+        }
+    }
+
+    /**
+     * Writes and flushes a text.
+     */
+    private void write(String text) throws IOException {
+        this.writer.write(text);
+        this.writer.flush();
+    }
+
+    /**
+     * Returns the journal file of an object.
+     */
+    private static File fileOf(File directory, String bucketName, String key) {
+        return new File(directory, UniversalS3Keys.id(bucketName, key) + EXTENSION);
+    }
+
+    private static String encode(String value) throws IOException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+
+    private static String decode(String value) throws IOException {
+        if (value == null) {
+            throw new IOException("Incomplete journal.");
+        }
+
+        return URLDecoder.decode(value, "UTF-8");
+    }
+}
@@ -0,0 +1,160 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.commons.io.FileUtils;
+import com.universal.storage.settings.UniversalSettings;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * This class tests the part size selection, the concurrency controller and the adaptive multipart upload.
+ */
+public class TestUniversalS3AdaptiveUpload extends TestCase {
+    private static final long MEGABYTE = 1048576;
+
+    private File tmp;
+    private UniversalSettings settings;
+
+    protected void setUp() throws Exception {
+        this.tmp = File.createTempFile("adaptive", "");
+        this.tmp.delete();
+        this.tmp.mkdirs();
+        this.settings = UniversalS3FakeClient.settings(this.tmp);
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.tmp);
+    }
+
+    /**
+     * This test verifies that the part size fits the file within the max number of parts and the adaptive target.
+     */
+    public void testPartSize() {
+        UniversalS3Settings fixed = new UniversalS3Settings(this.settings);
+        assertEquals(UniversalS3Settings.MIN_PART_SIZE, UniversalS3MultipartUploader.choosePartSize(100 * MEGABYTE, fixed));
+        assertEquals(11 * MEGABYTE, UniversalS3MultipartUploader.choosePartSize(100 * 1024 * MEGABYTE, fixed));
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("adaptive_upload", "true");
+        UniversalS3Settings adaptive = new UniversalS3Settings(this.settings, values);
+        assertEquals(UniversalS3Settings.MIN_PART_SIZE, UniversalS3MultipartUploader.choosePartSize(100 * MEGABYTE, adaptive));
+        assertEquals(103 * MEGABYTE, UniversalS3MultipartUploader.choosePartSize(100 * 1024 * MEGABYTE, adaptive));
+
+        try {
+            UniversalS3MultipartUploader.choosePartSize(UniversalS3MultipartUploader.MAX_PART_SIZE * 10001, fixed);
+            fail("The file exceeds the max object size.");
+        } catch (IllegalStateException expected) {}
+    }
+
+    /**
+     * This test verifies that the controller grows while the throughput improves and backs off otherwise.
+     */
+    public void testController() throws Exception {
+        UniversalS3UploadController controller = new UniversalS3UploadController(2, 8, true);
+        round(controller, 1, 1000);
+        assertEquals(3, controller.getLimit());
+
+        round(controller, 1L << 40, 1000);
+        assertEquals(4, controller.getLimit());
+
+        // The throughput drops while the latency grows.
+        round(controller, 1, 1000000000L);
+        assertEquals(3, controller.getLimit());
+
+        controller.throttled();
+        assertEquals(1, controller.getLimit());
+        assertEquals(4, controller.getPeakLimit());
+        assertEquals(1, controller.getThrottles());
+
+        UniversalS3UploadController fixed = new UniversalS3UploadController(2, 8, false);
+        round(fixed, 1, 1000);
+        fixed.throttled();
+        assertEquals(2, fixed.getLimit());
+    }
+
+    /**
+     * This test verifies that a throttled part is retried and the choices reach the listeners.
+     */
+    public void testThrottledUpload() throws Exception {
+        File file = new File(this.tmp, "large.bin");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(UniversalS3Settings.MIN_PART_SIZE * 3 + 10);
+        raf.close();
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("adaptive_upload", "true");
+        values.put("adaptive_target_parts", "2");
+
+        final UniversalS3FakeClient fake = new UniversalS3FakeClient();
+        final AmazonS3 delegate = fake.client();
+        final Set<Integer> throttled = new HashSet<Integer>();
+        AmazonS3 client = (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[] {AmazonS3.class},
+                new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("uploadPart".equals(method.getName())) {
+                    synchronized (throttled) {
+                        if (throttled.add(((UploadPartRequest) args[0]).getPartNumber())) {
+                            AmazonServiceException e = new AmazonServiceException("Please reduce your request rate.");
+                            e.setStatusCode(503);
+                            e.setErrorCode("SlowDown");
+                            throw e;
+                        }
+                    }
+                }
+
+                try {
+                    return method.invoke(delegate, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        });
+
+        final AtomicReference<UniversalStorageData> stored = new AtomicReference<UniversalStorageData>();
+        UniversalS3Storage storage = new UniversalS3Storage(this.settings, new UniversalS3Settings(this.settings, values), client);
+        storage.registerListener(new UniversalStorageListenerAdapter() {
+            public void onFileStored(UniversalStorageData data) {
+                stored.set(data);
+            }
+        });
+
+        try {
+            storage.storeFile(file, "");
+        } finally {
+            storage.close();
+        }
+
+        assertTrue(stored.get() instanceof UniversalS3StorageData);
+        UniversalS3StorageData data = (UniversalS3StorageData) stored.get();
+        assertEquals(8 * MEGABYTE, data.getPartSize());
+        assertEquals(2, data.getParts());
+        assertEquals(2, data.getThrottles());
+        assertEquals(file.length(), fake.get(this.settings.getRoot(), "large.bin").length);
+    }
+
+    /**
+     * Sends as many parts as the current limit, every part with the passed bytes and latency.
+     */
+    private void round(UniversalS3UploadController controller, long bytes, long nanos) throws Exception {
+        int limit = controller.getLimit();
+        for (int i = 0; i < limit; i++) {
+            controller.acquire();
+        }
+
+        for (int i = 0; i < limit; i++) {
+            controller.release(bytes, nanos);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.File;
+import java.io.InputStream;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import com.universal.error.UniversalIOException;
+
+/**
+ * This class tests the asynchronous operations against a fake AmazonS3 client.
+ */
+public class TestUniversalS3AsyncOperations extends TestCase {
+
+    private File tmp;
+    private Map<String, String> values;
+
+    protected void setUp() throws Exception {
+        this.tmp = File.createTempFile("async", "");
+        this.tmp.delete();
+        this.tmp.mkdirs();
+
+        this.values = new HashMap<String, String>();
+        this.values.put("async_operation_limit", "2");
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.tmp);
+    }
+
+    /**
+     * This test verifies the store, retrieve and remove operations, virtual threads fall back to platform 
+     * threads on older jvms.
+     */
+    public void testOperations() throws Exception {
+        this.values.put("async_executor", "virtual");
+        UniversalS3FakeClient fake = new UniversalS3FakeClient();
+        UniversalS3Storage us = new UniversalS3Storage(UniversalS3FakeClient.settings(this.tmp), 
+                    new UniversalS3Settings(null, this.values), fake.client());
+        try {
+            File file = new File(this.tmp, "local/a.txt");
+            FileUtils.writeStringToFile(file, "content", "UTF-8");
+
+            us.storeFileAsync(file, "folder").get();
+            assertEquals("content", new String(fake.get("bucket", "folder/a.txt"), "UTF-8"));
+
+            File retrieved = us.retrieveFileAsync("folder/a.txt").get();
+            assertEquals("content", FileUtils.readFileToString(retrieved, "UTF-8"));
+
+            InputStream stream = us.retrieveFileAsStreamAsync("folder/a.txt").get();
+            try {
+                assertEquals("content", IOUtils.toString(stream, "UTF-8"));
+            } finally {
+                stream.close();
+            }
+
+            us.removeFileAsync("folder/a.txt").get();
+            assertNull(fake.get("bucket", "folder/a.txt"));
+
+            boolean supported = true;
+            try {
+                ((ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null)).shutdown();
+            } catch (Exception e) {
+                supported = false;
+            }
+
+            assertEquals(supported, us.isAsyncVirtual());
+
+            try {
+                us.retrieveFileAsync("folder/a.txt").get();
+                fail("This future should fail.");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof UniversalIOException);
+            }
+        } finally {
+            us.close();
+        }
+    }
+
+    /**
+     * This test verifies that a closed storage rejects the operations instead of creating a new executor.
+     */
+    public void testClosed() throws Exception {
+        UniversalS3Storage us = new UniversalS3Storage(UniversalS3FakeClient.settings(this.tmp), 
+                    new UniversalS3Settings(null, this.values), new UniversalS3FakeClient().client());
+        us.removeFileAsync("folder/a.txt").get();
+        us.close();
+
+        try {
+            us.retrieveFileAsync("folder/a.txt").get();
+            fail("This future should fail.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof UniversalIOException);
+            assertEquals("The storage is closed.", e.getCause().getMessage());
+        }
+
+        assertFalse(us.isAsyncVirtual());
+    }
+
+    /**
+     * This test verifies that the operations of a kind above the limit wait for the operations in flight.
+     */
+    public void testLimit() throws Exception {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        UniversalS3FakeClient fake = new UniversalS3FakeClient() {
+            protected void before(String method, Object[] args) throws Exception {
+                if ("getObject".equals(method)) {
+                    int current = inFlight.incrementAndGet();
+                    synchronized (maxInFlight) {
+                        maxInFlight.set(Math.max(maxInFlight.get(), current));
+                    }
+
+                    Thread.sleep(50);
+                    inFlight.decrementAndGet();
+                }
+            }
+        };
+
+        for (int i = 0; i < 6; i++) {
+            fake.put("bucket", "file" + i + ".txt", ("content" + i).getBytes("UTF-8"));
+        }
+
+        UniversalS3Storage us = new UniversalS3Storage(UniversalS3FakeClient.settings(this.tmp), 
+                    new UniversalS3Settings(null, this.values), fake.client());
+        try {
+            List<CompletableFuture<InputStream>> futures = new ArrayList<CompletableFuture<InputStream>>();
+            for (int i = 0; i < 6; i++) {
+                futures.add(us.retrieveFileAsStreamAsync("file" + i + ".txt"));
+            }
+
+            for (int i = 0; i < 6; i++) {
+                InputStream stream = futures.get(i).get();
+                assertEquals("content" + i, IOUtils.toString(stream, "UTF-8"));
+                stream.close();
+            }
+
+            assertEquals(2, maxInFlight.get());
+        } finally {
+            us.close();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.File;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import org.apache.commons.io.FileUtils;
+import com.universal.error.UniversalIOException;
+
+/**
+ * This class tests the pipelined wipe against a fake AmazonS3 client.
+ */
+public class TestUniversalS3BatchDeleter extends TestCase {
+
+    private File tmp;
+    private UniversalS3FakeClient fake;
+    private UniversalS3Storage us;
+    private List<String> errors;
+
+    protected void setUp() throws Exception {
+        this.tmp = File.createTempFile("wipe", "");
+        this.tmp.delete();
+        this.tmp.mkdirs();
+
+        this.fake = new UniversalS3FakeClient();
+        this.fake.pageSize = 700;
+        for (int i = 0; i < 2500; i++) {
+            this.fake.put("bucket", "folder/" + i + ".txt", new byte[] {(byte) i});
+        }
+
+        this.us = new UniversalS3Storage(UniversalS3FakeClient.settings(this.tmp),
+                    new UniversalS3Settings(null), this.fake.client());
+
+        this.errors = Collections.synchronizedList(new ArrayList<String>());
+        this.us.registerListener(new UniversalStorageListenerAdapter() {
+            public void onError(UniversalIOException error) {
+                TestUniversalS3BatchDeleter.this.errors.add(error.getMessage());
+            }
+        });
+    }
+
+    protected void tearDown() throws Exception {
+        this.us.close();
+        FileUtils.deleteDirectory(this.tmp);
+    }
+
+    /**
+     * This test verifies that every key is removed using batches.
+     */
+    public void testWipeRemovesEverything() throws Exception {
+        this.us.wipe();
+
+        assertTrue(this.fake.objects.isEmpty());
+        assertTrue(this.errors.isEmpty());
+        // 2500 keys in pages of 700 keys.
+        assertEquals(4, Collections.frequency(this.fake.getCalls(), "deleteObjects"));
+    }
+
+    /**
+     * This test verifies that a failed key is reported and the remaining keys are removed.
+     */
+    public void testWipeReportsFailedKeys() throws Exception {
+        this.fake.failingKeys.add("folder/42.txt");
+
+        try {
+            this.us.wipe();
+            fail("This method should throw an error.");
+        } catch (UniversalIOException e) {
+            assertEquals("2 keys couldn't be deleted from bucket.", e.getMessage());
+        }
+
+        assertEquals(1, this.fake.objects.size());
+        // The key fails on both passes, versions and objects.
+        assertEquals(2, this.errors.size());
+        assertTrue(this.errors.get(0).startsWith("folder/42.txt"));
+    }
+}
@@ -0,0 +1,87 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import com.universal.storage.settings.UniversalSettings;
+
+/**
+ * This class tests the channel based downloads against the in-memory fake client.
+ */
+public class TestUniversalS3ChannelDownload extends TestCase {
+
+    private File tmp;
+    private byte[] content;
+    private UniversalS3FakeClient fake;
+    private UniversalS3Storage storage;
+
+    protected void setUp() throws Exception {
+        this.tmp = File.createTempFile("channel", "");
+        this.tmp.delete();
+        this.tmp.mkdirs();
+        UniversalSettings settings = UniversalS3FakeClient.settings(this.tmp);
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("download_threshold", "100000");
+        values.put("download_segment_size", "65536");
+
+        this.content = new byte[1000000];
+        new Random(3).nextBytes(this.content);
+        this.fake = new UniversalS3FakeClient();
+        this.fake.put("bucket", "dir/large.bin", this.content);
+        this.fake.put("bucket", "small.bin", Arrays.copyOf(this.content, 10));
+        this.storage = new UniversalS3Storage(settings, new UniversalS3Settings(settings, values), this.fake.client());
+    }
+
+    protected void tearDown() throws Exception {
+        this.storage.close();
+        FileUtils.deleteDirectory(this.tmp);
+    }
+
+    /**
+     * This test verifies that an object is retrieved into an arbitrary path, using ranges when it's large.
+     */
+    public void testRetrieveToPath() throws Exception {
+        File dest = new File(this.tmp, "out/large.bin");
+        assertEquals(this.content.length, this.storage.retrieveTo("dir/large.bin", dest.toPath()));
+        assertTrue(Arrays.equals(this.content, FileUtils.readFileToByteArray(dest)));
+
+        File small = new File(this.tmp, "out/small.bin");
+        assertEquals(10, this.storage.retrieveTo("small.bin", small.toPath()));
+        assertTrue(Arrays.equals(Arrays.copyOf(this.content, 10), FileUtils.readFileToByteArray(small)));
+    }
+
+    /**
+     * This test verifies that an object is written into both a file channel and any other channel.
+     */
+    public void testRetrieveToChannel() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(this.content.length, this.storage.retrieveTo("dir/large.bin", Channels.newChannel(out)));
+        assertTrue(Arrays.equals(this.content, out.toByteArray()));
+
+        File dest = new File(this.tmp, "appended.bin");
+        RandomAccessFile raf = new RandomAccessFile(dest, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+            assertEquals(10, this.storage.retrieveTo("small.bin", channel));
+            assertEquals(13, channel.position());
+        } finally {
+            raf.close();
+        }
+
+        byte[] written = FileUtils.readFileToByteArray(dest);
+        assertEquals(13, written.length);
+        assertTrue(Arrays.equals(Arrays.copyOf(this.content, 10), Arrays.copyOfRange(written, 3, 13)));
+        assertEquals(2, this.storage.getMetrics().get(UniversalS3Operation.RETRIEVE_CHANNEL).getCount());
+    }
+}
@@ -0,0 +1,200 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+import com.universal.storage.settings.UniversalSettings;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class tests the registry of shared clients, the shared clients are created but never used.
+ */
+public class TestUniversalS3ClientRegistry extends TestCase {
+
+    private File tmp;
+    private UniversalSettings settings;
+
+    protected void setUp() throws Exception {
+        this.tmp = File.createTempFile("registry", "");
+        this.tmp.delete();
+        this.tmp.mkdirs();
+        this.settings = UniversalS3FakeClient.settings(this.tmp);
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.tmp);
+    }
+
+    /**
+     * This test verifies that the storages with the same settings share a client until the last one is closed.
+     */
+    public void testSharedClient() throws Exception {
+        UniversalS3Settings s3Settings = new UniversalS3Settings(this.settings);
+        UniversalS3Storage first = new UniversalS3Storage(this.settings, s3Settings);
+        UniversalS3Storage second = new UniversalS3Storage(this.settings, s3Settings);
+
+        AmazonS3 client = UniversalS3ClientRegistry.acquire(this.settings, s3Settings);
+        assertEquals(3, UniversalS3ClientRegistry.getReferences(client));
+
+        first.close();
+        first.close();
+        assertEquals(2, UniversalS3ClientRegistry.getReferences(client));
+
+        second.close();
+        UniversalS3ClientRegistry.release(client);
+        assertEquals(0, UniversalS3ClientRegistry.getReferences(client));
+
+        AmazonS3 other = UniversalS3ClientRegistry.acquire(this.settings, s3Settings);
+        assertNotSame(client, other);
+        UniversalS3ClientRegistry.release(other);
+    }
+
+    /**
+     * This test verifies that the shared client is released when the storage can't be created.
+     */
+    public void testFailedStorageReleasesClient() throws Exception {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("read_replicas", "replica@nowhere-1");
+
+        try {
+            new UniversalS3Storage(this.settings, new UniversalS3Settings(this.settings, values));
+            fail("The unknown region should be thrown.");
+        } catch (IllegalArgumentException expected) {
+            // The client of the root bucket was acquired before the replica failed.
+        }
+
+        AmazonS3 client = UniversalS3ClientRegistry.acquire(this.settings, new UniversalS3Settings(this.settings, values));
+        try {
+            assertEquals(1, UniversalS3ClientRegistry.getReferences(client));
+        } finally {
+            UniversalS3ClientRegistry.release(client);
+        }
+    }
+
+    /**
+     * This test verifies that different connection settings use different clients.
+     */
+    public void testConnectionSettings() throws Exception {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("max_connections", "200");
+        values.put("tcp_keep_alive", "true");
+
+        UniversalS3Settings tuned = new UniversalS3Settings(this.settings, values);
+        assertEquals(200, UniversalS3ClientRegistry.newClientConfiguration(tuned).getMaxConnections());
+        assertTrue(UniversalS3ClientRegistry.newClientConfiguration(tuned).useTcpKeepAlive());
+
+        AmazonS3 client = UniversalS3ClientRegistry.acquire(this.settings, new UniversalS3Settings(this.settings));
+        AmazonS3 other = UniversalS3ClientRegistry.acquire(this.settings, tuned);
+        try {
+            assertNotSame(client, other);
+        } finally {
+            UniversalS3ClientRegistry.release(client);
+            UniversalS3ClientRegistry.release(other);
+        }
+    }
+
+    /**
+     * This test verifies that every provider returns the credentials of its own settings.
+     */
+    public void testCredentialsAreNotShared() throws Exception {
+        File file = new File(this.tmp, "other.json");
+        FileUtils.writeStringToFile(file, "{\"provider\": \"aws.s3\", \"root\": \"other\", \"tmp\": \"" +
+                    this.tmp.getAbsolutePath().replace("\\", "/") + "\", \"aws_s3\": {\"access_key\": \"other\", " + 
+                    "\"secret_key\": \"other\", \"storage_class\": \"STANDARD\", \"s3_region\": \"us-east-1\", " +
+                    "\"encryption\": false, \"tags\": []}}", "UTF-8");
+
+        assertEquals("fake", new UniversalProfileCredentialsProvider(this.settings).getCredentials().getAWSAccessKeyId());
+        assertEquals("other", new UniversalProfileCredentialsProvider(new UniversalSettings(file)).getCredentials().getAWSAccessKeyId());
+    }
+
+    /**
+     * This test verifies that close waits for the operations in flight before releasing the client.
+     */
+    public void testCloseCompletesOperationsInFlight() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        UniversalS3FakeClient fake = new UniversalS3FakeClient() {
+            protected void before(String method, Object[] args) throws Exception {
+                if ("putObject".equals(method)) {
+                    started.countDown();
+                    Thread.sleep(200);
+                }
+            }
+        };
+
+        File file = new File(this.tmp, "in/file.txt");
+        FileUtils.writeStringToFile(file, "content", "UTF-8");
+        UniversalS3Storage storage = new UniversalS3Storage(this.settings, new UniversalS3Settings(this.settings), fake.client());
+        CompletableFuture<Void> stored = storage.storeFileAsync(file, null);
+        started.await();
+        storage.close();
+
+        assertTrue(stored.isDone());
+        stored.get();
+        assertEquals("content", new String(fake.get("bucket", "file.txt"), "UTF-8"));
+    }
+
+    /**
+     * This test verifies that a failing request is sent only by the library retrier, the SDK doesn't retry it
+     * on its own, unless the library retries are disabled.
+     */
+    public void testSdkDoesNotRetry() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                attempts.incrementAndGet();
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("retries", "3");
+        values.put("retry_base_delay", "1");
+        final UniversalS3Settings s3Settings = new UniversalS3Settings(this.settings, values);
+        final AmazonS3 client = AmazonS3ClientBuilder.standard()
+                    .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(
+                                "http://127.0.0.1:" + server.getAddress().getPort(), "us-east-1"))
+                    .withPathStyleAccessEnabled(true)
+                    .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("access", "secret")))
+                    .withClientConfiguration(UniversalS3ClientRegistry.newClientConfiguration(s3Settings)).build();
+        try {
+            new UniversalS3Retrier(s3Settings).execute(UniversalS3Operation.GET_METADATA, new Callable<ObjectMetadata>() {
+                public ObjectMetadata call() {
+                    return client.getObjectMetadata("bucket", "file.txt");
+                }
+            }, null);
+            fail("The server error should be thrown.");
+        } catch (AmazonServiceException expected) {
+            assertEquals(500, expected.getStatusCode());
+        } finally {
+            client.shutdown();
+            server.stop(0);
+        }
+
+        assertEquals(4, attempts.get());
+
+        values.put("retries", "0");
+        assertNotSame(PredefinedRetryPolicies.NO_RETRY_POLICY, 
+                    UniversalS3ClientRegistry.newClientConfiguration(new UniversalS3Settings(this.settings, values)).getRetryPolicy());
+    }
+}
@@ -0,0 +1,230 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.universal.error.UniversalIOException;
+import com.universal.storage.settings.UniversalSettings;
+
+/**
+ * This class tests the transparent compression against the in-memory fake client.
+ */
+public class TestUniversalS3Compression extends TestCase {
+
+    private File tmp;
+    private UniversalS3FakeClient fake;
+
+    protected void setUp() throws Exception {
+        this.tmp = File.createTempFile("compression", "");
+        this.tmp.delete();
+        this.tmp.mkdirs();
+        this.fake = new UniversalS3FakeClient();
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.tmp);
+    }
+
+    /**
+     * This test verifies that the gzip stream is readable by GZIPInputStream, so any gzip tool can read the objects.
+     */
+    public void testGzipFormat() throws Exception {
+        byte[] content = text(200000);
+        InputStream compressed = UniversalS3Compression.compress(new ByteArrayInputStream(content), UniversalS3Compression.GZIP, 6);
+        byte[] bytes = IOUtils.toByteArray(compressed);
+        compressed.close();
+
+        assertTrue(bytes.length < content.length / 4);
+        assertTrue(Arrays.equals(content, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(bytes)))));
+    }
+
+    /**
+     * This test verifies that a file is stored compressed and retrieved decompressed with both codecs.
+     */
+    public void testRoundTrip() throws Exception {
+        for (String codec : new String[] {"gzip", "deflate"}) {
+            UniversalS3Storage storage = storage(codec, null);
+            try {
+                byte[] content = text(300000);
+                File file = new File(this.tmp, "report-" + codec + ".txt");
+                FileUtils.writeByteArrayToFile(file, content);
+                storage.storeFile(file, "docs");
+
+                byte[] stored = this.fake.get("bucket", "docs/" + file.getName());
+                assertTrue(stored.length < content.length / 4);
+
+                File retrieved = storage.retrieveFile("docs/" + file.getName());
+                assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(retrieved)));
+
+                InputStream stream = storage.retrieveFileAsStream("docs/" + file.getName());
+                try {
+                    assertTrue(Arrays.equals(content, IOUtils.toByteArray(stream)));
+                } finally {
+                    stream.close();
+                }
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                assertEquals(content.length, storage.retrieveTo("docs/" + file.getName(), Channels.newChannel(out)));
+                assertTrue(Arrays.equals(content, out.toByteArray()));
+            } finally {
+                storage.close();
+            }
+        }
+    }
+
+    /**
+     * This test verifies that a compressed content greater than the part size is uploaded in parts 
+     * and keeps its user metadata.
+     */
+    public void testMultipart() throws Exception {
+        UniversalS3Storage storage = storage("gzip", null);
+        try {
+            // Random bytes don't compress, so the compressed content spans three parts.
+            byte[] content = new byte[12 * 1024 * 1024];
+            new Random(5).nextBytes(content);
+            File file = new File(this.tmp, "random.bin");
+            FileUtils.writeByteArrayToFile(file, content);
+            storage.storeFile(file, null);
+
+            assertEquals(3, storage.getMetrics().get(UniversalS3Operation.STORE_FILE).getParts());
+            ObjectMetadata metadata = this.fake.client().getObjectMetadata("bucket", "random.bin");
+            assertEquals("gzip", UniversalS3Compression.getCodec(metadata));
+            // The MD5 is sent when the upload is initiated, the object is not copied onto itself.
+            assertEquals(UniversalS3Synchronizer.computeETag(file, -1), 
+                        UniversalS3Compression.getUserMetadata(metadata, UniversalS3Compression.METADATA_MD5));
+            assertEquals(0, Collections.frequency(this.fake.getCalls(), "copyObject"));
+
+            File retrieved = storage.retrieveFile("random.bin");
+            assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(retrieved)));
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * This test verifies that a compressed object is decompressed while it's downloaded, using a GET for the
+     * first bytes and another one for the rest instead of concurrent segments, and it's verified.
+     */
+    public void testStreamingDecompression() throws Exception {
+        UniversalSettings settings = UniversalS3FakeClient.settings(this.tmp);
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("compression", "deflate");
+        values.put("download_threshold", "65536");
+        values.put("download_segment_size", "65536");
+        values.put("verify_integrity", "true");
+        UniversalS3Storage storage = new UniversalS3Storage(settings, new UniversalS3Settings(settings, values), this.fake.client());
+        try {
+            byte[] content = new byte[300000];
+            new Random(9).nextBytes(content);
+            File file = new File(this.tmp, "random.bin");
+            FileUtils.writeByteArrayToFile(file, content);
+            storage.storeFile(file, "docs");
+            assertEquals(UniversalS3Synchronizer.computeETag(file, -1), UniversalS3Compression.getUserMetadata(
+                        this.fake.client().getObjectMetadata("bucket", "docs/random.bin"), UniversalS3Compression.METADATA_MD5));
+            assertTrue(file.delete());
+            this.fake.getCalls().clear();
+
+            File retrieved = storage.retrieveFile("docs/random.bin");
+            assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(retrieved)));
+            assertEquals(2, Collections.frequency(this.fake.getCalls(), "getObject"));
+
+            this.fake.corrupt("bucket", "docs/random.bin", 100000);
+            try {
+                storage.retrieveFile("docs/random.bin");
+                fail("The corrupted object should be rejected.");
+            } catch (UniversalIOException expected) {
+                // The stored bytes don't match the ETag.
+            }
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * This test verifies that files below the min size and objects stored without compression are left as they are.
+     */
+    public void testUncompressed() throws Exception {
+        this.fake.put("bucket", "plain.txt", text(5000));
+
+        UniversalS3Storage storage = storage("deflate", "2048");
+        try {
+            byte[] tiny = text(1000);
+            File file = new File(this.tmp, "tiny.txt");
+            FileUtils.writeByteArrayToFile(file, tiny);
+            storage.storeFile(file, null);
+            assertTrue(Arrays.equals(tiny, this.fake.get("bucket", "tiny.txt")));
+
+            assertTrue(Arrays.equals(text(5000), FileUtils.readFileToByteArray(storage.retrieveFile("plain.txt"))));
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * This test verifies that the synchronization recognizes a compressed object as equal to the local file 
+     * and downloads it decompressed.
+     */
+    public void testSync() throws Exception {
+        UniversalS3Storage storage = storage("gzip", null);
+        try {
+            File dir = new File(this.tmp, "site");
+            FileUtils.writeByteArrayToFile(new File(dir, "index.html"), text(50000));
+            assertEquals(1, storage.syncToStorage(dir, "site").getTransferred());
+            assertEquals(1, storage.syncToStorage(dir, "site").getSkipped());
+
+            File local = new File(this.tmp, "local");
+            assertEquals(1, storage.syncFromStorage("site", local).getTransferred());
+            assertTrue(Arrays.equals(text(50000), FileUtils.readFileToByteArray(new File(local, "index.html"))));
+            assertEquals(1, storage.syncFromStorage("site", local).getSkipped());
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * This test verifies that an unknown codec is rejected.
+     */
+    public void testInvalidCodec() throws Exception {
+        UniversalSettings settings = UniversalS3FakeClient.settings(this.tmp);
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("compression", "lz4");
+        try {
+            new UniversalS3Settings(settings, values).getCompression();
+            fail("The codec should be rejected.");
+        } catch (IllegalStateException expected) {
+            assertEquals("Invalid compression: lz4", expected.getMessage());
+        }
+    }
+
+    private UniversalS3Storage storage(String codec, String minSize) throws Exception {
+        UniversalSettings settings = UniversalS3FakeClient.settings(this.tmp);
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("compression", codec);
+        if (minSize != null) {
+            values.put("compression_min_size", minSize);
+        }
+
+        return new UniversalS3Storage(settings, new UniversalS3Settings(settings, values), this.fake.client());
+    }
+
+    private static byte[] text(int length) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; builder.length() < length; i++) {
+            builder.append("line ").append(i % 100).append(" of the report\n");
+        }
+
+        return builder.substring(0, length).getBytes();
+    }
+}
@@ -0,0 +1,106 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import com.universal.error.UniversalIOException;
+import com.universal.storage.settings.UniversalSettings;
+
+/**
+ * This class tests the server-side copies and moves against the in-memory fake client.
+ */
+public class TestUniversalS3Copy extends TestCase {
+
+    private File tmp;
+    private byte[] content;
+    private UniversalS3FakeClient fake;
+    private UniversalS3Storage storage;
+
+    protected void setUp() throws Exception {
+        this.tmp = File.createTempFile("copy", "");
+        this.tmp.delete();
+        this.tmp.mkdirs();
+        UniversalSettings settings = UniversalS3FakeClient.settings(this.tmp);
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("copy_threshold", "1000");
+        values.put("copy_part_size", "5242880");
+
+        this.content = new byte[(int) UniversalS3Settings.MIN_PART_SIZE * 2 + 10];
+        new Random(5).nextBytes(this.content);
+        this.fake = new UniversalS3FakeClient();
+        this.storage = new UniversalS3Storage(settings, new UniversalS3Settings(settings, values), this.fake.client());
+    }
+
+    protected void tearDown() throws Exception {
+        this.storage.close();
+        FileUtils.deleteDirectory(this.tmp);
+    }
+
+    /**
+     * This test verifies that small files are copied using CopyObject and large files using UploadPartCopy ranges.
+     */
+    public void testCopyFile() throws Exception {
+        this.fake.put("bucket", "small.txt", "hello".getBytes("UTF-8"));
+        this.fake.put("bucket", "large.bin", this.content);
+
+        this.storage.copyFile("small.txt", "backup/small.txt");
+        assertEquals("hello", new String(this.fake.get("bucket", "backup/small.txt"), "UTF-8"));
+        assertEquals(1, Collections.frequency(this.fake.getCalls(), "copyObject"));
+
+        this.storage.copyFile("large.bin", "backup/large.bin");
+        assertTrue(Arrays.equals(this.content, this.fake.get("bucket", "backup/large.bin")));
+        assertEquals(1, Collections.frequency(this.fake.getCalls(), "copyObject"));
+        assertEquals(3, Collections.frequency(this.fake.getCalls(), "copyPart"));
+        assertEquals(3, this.storage.getMetrics().get(UniversalS3Operation.COPY_FILE).getParts());
+        assertNotNull(this.fake.get("bucket", "large.bin"));
+    }
+
+    /**
+     * This test verifies that a moved file is removed and a missing source fails.
+     */
+    public void testMoveFile() throws Exception {
+        this.fake.put("bucket", "a/large.bin", this.content);
+
+        this.storage.moveFile("a/large.bin", "b/large.bin");
+        assertNull(this.fake.get("bucket", "a/large.bin"));
+        assertTrue(Arrays.equals(this.content, this.fake.get("bucket", "b/large.bin")));
+
+        try {
+            this.storage.moveFile("a/large.bin", "c/large.bin");
+            fail("The source doesn't exist.");
+        } catch (UniversalIOException expected) {}
+    }
+
+    /**
+     * This test verifies that every file under a folder is moved across several listing pages.
+     */
+    public void testMoveFolder() throws Exception {
+        this.fake.pageSize = 2;
+        for (int i = 0; i < 5; i++) {
+            this.fake.put("bucket", "src/dir/file" + i + ".txt", ("content" + i).getBytes("UTF-8"));
+        }
+
+        this.fake.put("bucket", "src/large.bin", this.content);
+        this.fake.put("bucket", "srcfile.txt", "outside".getBytes("UTF-8"));
+
+        this.storage.moveFolder("src", "dst/moved");
+        for (int i = 0; i < 5; i++) {
+            assertNull(this.fake.get("bucket", "src/dir/file" + i + ".txt"));
+            assertEquals("content" + i, new String(this.fake.get("bucket", "dst/moved/dir/file" + i + ".txt"), "UTF-8"));
+        }
+
+        assertTrue(Arrays.equals(this.content, this.fake.get("bucket", "dst/moved/large.bin")));
+        assertNotNull(this.fake.get("bucket", "srcfile.txt"));
+
+        try {
+            this.storage.copyFolder("dst", "dst/moved/again");
+            fail("The target is within the source.");
+        } catch (UniversalIOException expected) {}
+    }
+}
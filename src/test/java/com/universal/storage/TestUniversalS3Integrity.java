@@ -0,0 +1,240 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.universal.error.UniversalIOException;
+import com.universal.storage.settings.UniversalSettings;
+
+/**
+ * This class tests the checksums of uploads and downloads against the in-memory fake client.
+ */
+public class TestUniversalS3Integrity extends TestCase {
+
+    private File tmp;
+    private byte[] content;
+    private UniversalS3FakeClient fake;
+    private UniversalS3Storage storage;
+
+    protected void setUp() throws Exception {
+        this.tmp = File.createTempFile("integrity", "");
+        this.tmp.delete();
+        this.tmp.mkdirs();
+        UniversalSettings settings = UniversalS3FakeClient.settings(this.tmp);
+
+        Map<String, String> values = new HashMap<String, String>();
+        // The ranges of the downloads don't match the parts of the uploads.
+        values.put("download_threshold", "1000000");
+        values.put("download_segment_size", "3000000");
+
+        this.content = new byte[12 * 1024 * 1024];
+        new Random(11).nextBytes(this.content);
+        this.fake = new UniversalS3FakeClient();
+        this.storage = new UniversalS3Storage(settings, new UniversalS3Settings(settings, values), this.fake.client());
+    }
+
+    protected void tearDown() throws Exception {
+        this.storage.close();
+        FileUtils.deleteDirectory(this.tmp);
+    }
+
+    /**
+     * This test verifies that every PUT and part carries its MD5 and the part size is recorded.
+     */
+    public void testUploadsSendMd5() throws Exception {
+        File tiny = new File(this.tmp, "tiny.bin");
+        FileUtils.writeByteArrayToFile(tiny, Arrays.copyOf(this.content, 1000));
+        this.storage.storeFile(tiny, null);
+        assertEquals(1, this.fake.getMd5Count());
+        assertTrue(Arrays.equals(Arrays.copyOf(this.content, 1000), this.fake.get("bucket", "tiny.bin")));
+
+        // The tiny files are stored within the root bucket, keyed by their path.
+        final List<String> urls = new ArrayList<String>();
+        this.storage.registerListener(new UniversalStorageListenerAdapter() {
+            public void onFileStored(UniversalStorageData data) {
+                urls.add(data.getRemoteLink());
+            }
+        });
+        this.storage.storeFile(tiny, "dir/");
+        assertEquals(2, this.fake.getMd5Count());
+        assertTrue(Arrays.equals(Arrays.copyOf(this.content, 1000), this.fake.get("bucket", "dir/tiny.bin")));
+        assertEquals(Arrays.asList("https://s3.amazonaws.com/bucket/dir/tiny.bin"), urls);
+
+        File large = new File(this.tmp, "large.bin");
+        FileUtils.writeByteArrayToFile(large, this.content);
+        this.storage.storeFile(large, "dir");
+        assertEquals(5, this.fake.getMd5Count());
+        assertTrue(Arrays.equals(this.content, this.fake.get("bucket", "dir/large.bin")));
+        assertEquals("5242880", UniversalS3Compression.getUserMetadata(
+                    this.fake.client().getObjectMetadata("bucket", "dir/large.bin"), UniversalS3Checksum.METADATA_PART_SIZE));
+
+        this.storage.storeStream(new ByteArrayInputStream(this.content), "stream.bin");
+        assertEquals(8, this.fake.getMd5Count());
+        assertTrue(Arrays.equals(this.content, this.fake.get("bucket", "stream.bin")));
+    }
+
+    /**
+     * This test verifies that multipart and single PUT objects are verified while they are downloaded.
+     */
+    public void testVerifiedDownloads() throws Exception {
+        File large = new File(this.tmp, "large.bin");
+        FileUtils.writeByteArrayToFile(large, this.content);
+        this.storage.storeFile(large, null);
+        this.fake.put("bucket", "small.bin", Arrays.copyOf(this.content, 5000));
+
+        large.delete();
+        assertTrue(Arrays.equals(this.content, FileUtils.readFileToByteArray(this.storage.retrieveFile("large.bin"))));
+        assertTrue(Arrays.equals(Arrays.copyOf(this.content, 5000), FileUtils.readFileToByteArray(this.storage.retrieveFile("small.bin"))));
+
+        InputStream stream = this.storage.retrieveFileAsStream("large.bin");
+        try {
+            assertTrue(Arrays.equals(this.content, IOUtils.toByteArray(stream)));
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * This test verifies that a corrupted content is rejected by every kind of download.
+     */
+    public void testCorruptedDownloads() throws Exception {
+        File large = new File(this.tmp, "large.bin");
+        FileUtils.writeByteArrayToFile(large, this.content);
+        this.storage.storeFile(large, null);
+        this.fake.put("bucket", "small.bin", Arrays.copyOf(this.content, 5000));
+
+        this.fake.corrupt("bucket", "large.bin", 7000000);
+        this.fake.corrupt("bucket", "small.bin", 10);
+
+        for (String path : new String[] {"large.bin", "small.bin"}) {
+            try {
+                this.storage.retrieveFile(path);
+                fail("The corrupted content should be rejected.");
+            } catch (UniversalIOException expected) {
+                assertTrue(expected.getMessage().contains("doesn't match its checksum"));
+            }
+
+            InputStream stream = this.storage.retrieveFileAsStream(path);
+            try {
+                IOUtils.toByteArray(stream);
+                fail("The corrupted content should be rejected.");
+            } catch (IOException expected) {
+                assertTrue(expected.getMessage().contains("doesn't match its checksum"));
+            } finally {
+                stream.close();
+            }
+        }
+    }
+
+    /**
+     * This test verifies that a multipart object without a recorded part size is retrieved without verification.
+     */
+    public void testUnverifiableObject() throws Exception {
+        this.fake.put("bucket", "foreign.bin", this.content);
+        this.fake.multipartETags.put("bucket/foreign.bin", "\"0123456789abcdef0123456789abcdef-3\"");
+
+        assertTrue(Arrays.equals(this.content, FileUtils.readFileToByteArray(this.storage.retrieveFile("foreign.bin"))));
+    }
+
+    /**
+     * This test verifies that a throttled part sent from a buffer is sent again from its beginning, although
+     * the first attempt read its stream to the end.
+     */
+    public void testThrottledPartIsSentAgain() throws Exception {
+        final Set<Integer> throttled = new HashSet<Integer>();
+        UniversalS3FakeClient fake = new UniversalS3FakeClient() {
+            protected void before(String method, Object[] args) throws Exception {
+                if ("uploadPart".equals(method)) {
+                    UploadPartRequest request = (UploadPartRequest) args[0];
+                    synchronized (throttled) {
+                        if (throttled.add(request.getPartNumber())) {
+                            IOUtils.toByteArray(request.getInputStream());
+                            AmazonServiceException e = new AmazonServiceException("Please reduce your request rate.");
+                            e.setStatusCode(503);
+                            e.setErrorCode("SlowDown");
+                            throw e;
+                        }
+                    }
+                }
+            }
+        };
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("verify_integrity", "true");
+        UniversalSettings settings = UniversalS3FakeClient.settings(this.tmp);
+        UniversalS3Storage storage = new UniversalS3Storage(settings, new UniversalS3Settings(settings, values), fake.client());
+        try {
+            File large = new File(this.tmp, "large.bin");
+            FileUtils.writeByteArrayToFile(large, this.content);
+            storage.storeFile(large, null);
+
+            assertEquals(3, throttled.size());
+            assertTrue(Arrays.equals(this.content, fake.get("bucket", "large.bin")));
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * This test verifies that the ranges of a verified download are aligned to the parts of the object, so no
+     * part is split across ranges and read again from the file.
+     */
+    public void testRangesAlignedToParts() throws Exception {
+        final List<String> ranges = new ArrayList<String>();
+        UniversalS3FakeClient fake = new UniversalS3FakeClient() {
+            protected void before(String method, Object[] args) throws Exception {
+                if ("getObject".equals(method) && args[0] instanceof GetObjectRequest) {
+                    long[] range = ((GetObjectRequest) args[0]).getRange();
+                    synchronized (ranges) {
+                        ranges.add(range[0] + "-" + range[1]);
+                    }
+                }
+            }
+        };
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("verify_integrity", "true");
+        values.put("download_threshold", "1000000");
+        values.put("download_segment_size", "3000000");
+        UniversalS3Settings s3Settings = new UniversalS3Settings(null, values);
+        UniversalSettings settings = UniversalS3FakeClient.settings(this.tmp);
+        UniversalS3Storage storage = new UniversalS3Storage(settings, new UniversalS3Settings(settings, values), fake.client());
+        ExecutorService executor = Executors.newFixedThreadPool(4, new UniversalS3ThreadFactory("test-integrity"));
+        try {
+            File large = new File(this.tmp, "large.bin");
+            FileUtils.writeByteArrayToFile(large, this.content);
+            storage.storeFile(large, null);
+
+            File dest = new File(this.tmp, "downloaded.bin");
+            UniversalS3RangedDownloader downloader = new UniversalS3RangedDownloader(fake.client(), executor, s3Settings);
+            downloader.download("bucket", "large.bin", dest);
+            assertTrue(Arrays.equals(this.content, FileUtils.readFileToByteArray(dest)));
+
+            // The first range goes on to the end of the first part, the segments are made of whole parts.
+            assertEquals(3, downloader.getSegments());
+            assertTrue(ranges.contains("1000000-5242879"));
+            assertTrue(ranges.contains("5242880-10485759"));
+            assertTrue(ranges.contains("10485760-" + (this.content.length - 1)));
+        } finally {
+            executor.shutdownNow();
+            storage.close();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.commons.io.FileUtils;
+import com.universal.storage.settings.UniversalSettings;
+
+/**
+ * This class tests the lazy listing and the recursive removal of folders against a fake AmazonS3 client.
+ */
+public class TestUniversalS3Listing extends TestCase {
+
+    private File tmp;
+    private UniversalS3FakeClient fake;
+
+    protected void setUp() throws Exception {
+        this.tmp = File.createTempFile("listing", "");
+        this.tmp.delete();
+        this.tmp.mkdirs();
+
+        this.fake = new UniversalS3FakeClient();
+        this.fake.pageSize = 700;
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.tmp);
+    }
+
+    /**
+     * This test verifies that the pages are requested while the files are consumed, not upfront.
+     */
+    public void testLazyPaging() throws Exception {
+        this.fake.put("bucket", "docs/", new byte[0]);
+        for (int i = 0; i < 2500; i++) {
+            this.fake.put("bucket", String.format("docs/%04d.txt", i), new byte[] {(byte) i});
+        }
+
+        this.fake.put("bucket", "other/file.txt", new byte[1]);
+
+        UniversalS3Storage storage = storage(new HashMap<String, String>());
+        UniversalS3Listing listing = storage.listFiles("docs");
+        try {
+            assertEquals("docs/0000.txt", listing.next().getPath());
+            // The current page, the next one in the queue and one being requested.
+            assertTrue(listing.getRequests() <= 3);
+
+            List<String> paths = new ArrayList<String>();
+            while (listing.hasNext()) {
+                paths.add(listing.next().getPath());
+            }
+
+            assertEquals(2499, paths.size());
+            assertEquals("docs/2499.txt", paths.get(paths.size() - 1));
+            assertEquals(4, listing.getRequests());
+            assertEquals(4, storage.getMetrics().get(UniversalS3Operation.LIST_FILES).getCount());
+        } finally {
+            listing.close();
+            storage.close();
+        }
+    }
+
+    /**
+     * This test verifies that a concurrent listing splits the prefix and returns every file once.
+     */
+    public void testFanOut() throws Exception {
+        Set<String> expected = new TreeSet<String>();
+        for (String folder : new String[] {"a", "b", "c", "d"}) {
+            for (int i = 0; i < 1000; i++) {
+                expected.add(folder + "/" + i + ".txt");
+            }
+        }
+
+        expected.add("root.txt");
+        for (String key : expected) {
+            this.fake.put("bucket", key, new byte[1]);
+        }
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("list_concurrency", "4");
+        UniversalS3Storage storage = storage(values);
+        try {
+            Stream<UniversalS3Metadata> files = storage.streamFiles(null);
+            try {
+                List<String> paths = files.map(new java.util.function.Function<UniversalS3Metadata, String>() {
+                    public String apply(UniversalS3Metadata metadata) {
+                        return metadata.getPath();
+                    }
+                }).collect(Collectors.<String>toList());
+
+                assertEquals(expected.size(), paths.size());
+                assertEquals(expected, new TreeSet<String>(paths));
+            } finally {
+                files.close();
+            }
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * This test verifies that a recursive removal deletes the objects, the markers and the packed files under 
+     * the folder using batches, and nothing else.
+     */
+    public void testRecursiveRemoveFolder() throws Exception {
+        this.fake.put("bucket", "docs/", new byte[0]);
+        this.fake.put("bucket", "docs/images/", new byte[0]);
+        for (int i = 0; i < 1500; i++) {
+            this.fake.put("bucket", "docs/images/" + i + ".png", new byte[1]);
+        }
+
+        this.fake.put("bucket", "docs.txt", new byte[1]);
+        this.fake.put("bucket", "other/file.txt", new byte[1]);
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("pack_files", "true");
+        values.put("pack_compaction_percent", "100");
+        UniversalS3Storage storage = storage(values);
+        try {
+            File small = new File(this.tmp, "in/small.txt");
+            FileUtils.writeStringToFile(small, "small", "UTF-8");
+            storage.storeFile(small, "docs");
+            storage.storeFile(small, null);
+            storage.flushPacks();
+            assertTrue(storage.exists("docs/small.txt"));
+
+            storage.removeFolder("docs", true);
+
+            assertFalse(storage.exists("docs/small.txt"));
+            assertTrue(storage.exists("small.txt"));
+            assertFalse(storage.exists("docs/images/7.png"));
+            assertNull(this.fake.get("bucket", "docs/"));
+            assertNotNull(this.fake.get("bucket", "docs.txt"));
+            assertNotNull(this.fake.get("bucket", "other/file.txt"));
+            // 1502 keys in batches of 1000.
+            assertEquals(2, Collections.frequency(this.fake.getCalls(), "deleteObjects"));
+        } finally {
+            storage.close();
+        }
+    }
+
+    private UniversalS3Storage storage(Map<String, String> values) throws Exception {
+        UniversalSettings settings = UniversalS3FakeClient.settings(this.tmp);
+        return new UniversalS3Storage(settings, new UniversalS3Settings(settings, values), this.fake.client());
+    }
+}
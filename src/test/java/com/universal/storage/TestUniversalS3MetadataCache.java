@@ -0,0 +1,84 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.HashMap;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * This class tests exists and getMetadata against a fake AmazonS3 client.
+ */
+public class TestUniversalS3MetadataCache extends TestCase {
+
+    private File tmp;
+    private UniversalS3FakeClient fake;
+    private UniversalS3Storage us;
+
+    protected void setUp() throws Exception {
+        this.tmp = File.createTempFile("metadata", "");
+        this.tmp.delete();
+        this.tmp.mkdirs();
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("metadata_cache_ttl", "10000");
+
+        this.fake = new UniversalS3FakeClient();
+        this.us = new UniversalS3Storage(UniversalS3FakeClient.settings(this.tmp), 
+                    new UniversalS3Settings(null, values), this.fake.client());
+    }
+
+    protected void tearDown() throws Exception {
+        this.us.close();
+        FileUtils.deleteDirectory(this.tmp);
+    }
+
+    private int heads() {
+        return Collections.frequency(this.fake.getCalls(), "getObjectMetadata");
+    }
+
+    /**
+     * This test verifies that the HEAD results are cached, missing objects included.
+     */
+    public void testMetadataIsCached() throws Exception {
+        this.fake.put("bucket", "folder/a.txt", new byte[42]);
+
+        assertEquals(42, this.us.getMetadata("folder/a.txt").getSize());
+        assertTrue(this.us.exists("folder/a.txt"));
+        assertFalse(this.us.exists("folder/b.txt"));
+        assertFalse(this.us.exists("folder/b.txt"));
+
+        assertEquals(2, heads());
+    }
+
+    /**
+     * This test verifies that storing and removing objects invalidates their entries.
+     */
+    public void testStoreAndRemoveInvalidate() throws Exception {
+        File file = new File(this.tmp, "b.txt");
+        FileUtils.writeStringToFile(file, "content", "UTF-8");
+
+        assertFalse(this.us.exists("folder/b.txt"));
+        this.us.storeFile(file, "folder");
+        assertTrue(this.us.exists("folder/b.txt"));
+        assertEquals(7, this.us.getMetadata("folder/b.txt").getSize());
+
+        this.us.removeFile("folder/b.txt");
+        assertFalse(this.us.exists("folder/b.txt"));
+
+        assertEquals(3, heads());
+    }
+
+    /**
+     * This test verifies that getMetadata fails for a missing object.
+     */
+    public void testMissingObject() {
+        try {
+            this.us.getMetadata("missing.txt");
+            fail("This method should throw an error.");
+        } catch (Exception e) {
+            assertEquals("The object missing.txt doesn't exist.", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.File;
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * This class tests the metrics of the operations against a fake AmazonS3 client.
+ */
+public class TestUniversalS3Metrics extends TestCase {
+
+    private File tmp;
+
+    protected void setUp() throws Exception {
+        this.tmp = File.createTempFile("metrics", "");
+        this.tmp.delete();
+        this.tmp.mkdirs();
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.tmp);
+    }
+
+    /**
+     * This test verifies that every value falls within the bounds of its bucket.
+     */
+    public void testHistogramBuckets() {
+        long[] values = {0, 1, 7, 8, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = UniversalS3Metrics.bucket(value);
+            assertTrue(value <= UniversalS3Metrics.upperBound(bucket));
+            assertTrue(bucket == 0 || value > UniversalS3Metrics.upperBound(bucket - 1));
+        }
+
+        for (int bucket = 1; bucket < UniversalS3Metrics.bucket(Long.MAX_VALUE); bucket++) {
+            assertEquals(bucket, UniversalS3Metrics.bucket(UniversalS3Metrics.upperBound(bucket)));
+            assertEquals(bucket, UniversalS3Metrics.bucket(UniversalS3Metrics.upperBound(bucket - 1) + 1));
+        }
+    }
+
+    /**
+     * This test verifies the counters of the operations and the samples received by a sink.
+     */
+    public void testOperations() throws Exception {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("download_threshold", "100000");
+        values.put("download_segment_size", "65536");
+
+        UniversalS3FakeClient fake = new UniversalS3FakeClient();
+        fake.put("bucket", "large.bin", new byte[300000]);
+        UniversalS3Storage us = new UniversalS3Storage(UniversalS3FakeClient.settings(this.tmp), 
+                    new UniversalS3Settings(null, values), fake.client());
+
+        final List<UniversalS3Operation> samples = new ArrayList<UniversalS3Operation>();
+        us.addMetricsSink(new UniversalS3MetricsSink() {
+            public void record(UniversalS3Operation operation, long nanos, long bytes, int parts, int retries, boolean failed) {
+                samples.add(operation);
+            }
+        });
+
+        try {
+            us.storeStream(new ByteArrayInputStream(new byte[1000]), "folder/a.bin");
+            us.retrieveFile("large.bin");
+            try {
+                us.retrieveFile("missing.bin");
+                fail("This method should throw an error.");
+            } catch (Exception expected) {
+            }
+        } finally {
+            us.close();
+        }
+
+        UniversalS3MetricsSnapshot snapshot = us.getMetrics();
+        UniversalS3OperationMetrics stored = snapshot.get(UniversalS3Operation.STORE_STREAM);
+        assertEquals(1, stored.getCount());
+        assertEquals(1000, stored.getBytes());
+        assertEquals(0, stored.getParts());
+        assertEquals(0, stored.getInFlight());
+
+        UniversalS3OperationMetrics retrieved = snapshot.get(UniversalS3Operation.RETRIEVE_FILE);
+        assertEquals(2, retrieved.getCount());
+        assertEquals(1, retrieved.getFailures());
+        assertEquals(300000, retrieved.getBytes());
+        assertEquals(5, retrieved.getParts());
+        assertTrue(retrieved.getMax() > 0);
+        assertTrue(retrieved.getP50() <= retrieved.getP99() && retrieved.getP99() <= retrieved.getMax());
+
+        assertEquals(0, snapshot.get(UniversalS3Operation.WIPE).getCount());
+        assertEquals(3, samples.size());
+        assertEquals(UniversalS3Operation.STORE_STREAM, samples.get(0));
+    }
+}
@@ -0,0 +1,158 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+/**
+ * This class tests the concurrent multipart uploader against a fake AmazonS3 client.
+ */
+public class TestUniversalS3MultipartUploader extends TestCase {
+
+    private File file;
+    private ExecutorService executor;
+
+    protected void setUp() throws Exception {
+        this.file = File.createTempFile("multipart", ".bin");
+        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+        raf.setLength(UniversalS3Settings.MIN_PART_SIZE * 3 + 10);
+        raf.close();
+
+        this.executor = Executors.newFixedThreadPool(4, new UniversalS3ThreadFactory("test-upload"));
+    }
+
+    protected void tearDown() {
+        this.executor.shutdownNow();
+        this.file.delete();
+    }
+
+    private AmazonS3 fakeClient(final int failingPart, final AtomicBoolean aborted,
+                final List<?>[] completedParts, final AtomicInteger maxConcurrent) {
+        final AtomicInteger running = new AtomicInteger();
+        return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[] {AmazonS3.class},
+                new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if ("initiateMultipartUpload".equals(name)) {
+                    InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+                    result.setUploadId("upload-id");
+                    return result;
+                } else if ("uploadPart".equals(name)) {
+                    UploadPartRequest request = (UploadPartRequest) args[0];
+                    maxConcurrent.set(Math.max(maxConcurrent.get(), running.incrementAndGet()));
+                    try {
+                        // Later parts finish first to prove the PartETags are collected in order.
+                        Thread.sleep(50 - request.getPartNumber() * 10);
+                        if (request.getPartNumber() == failingPart) {
+                            throw new IllegalStateException("Part " + failingPart + " failed.");
+                        }
+
+                        UploadPartResult result = new UploadPartResult();
+                        result.setPartNumber(request.getPartNumber());
+                        result.setETag("etag-" + request.getPartNumber());
+                        return result;
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                } else if ("completeMultipartUpload".equals(name)) {
+                    completedParts[0] = ((CompleteMultipartUploadRequest) args[0]).getPartETags();
+                    return new CompleteMultipartUploadResult();
+                } else if ("abortMultipartUpload".equals(name)) {
+                    aborted.set(true);
+                    return null;
+                }
+
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    /**
+     * This test uploads four parts concurrently and verifies the order of the PartETags.
+     */
+    public void testUploadCollectsPartsInOrder() throws Exception {
+        AtomicBoolean aborted = new AtomicBoolean();
+        List<?>[] completedParts = new List<?>[1];
+        AtomicInteger maxConcurrent = new AtomicInteger();
+
+        new UniversalS3MultipartUploader(fakeClient(-1, aborted, completedParts, maxConcurrent), this.executor,
+                new UniversalS3Settings(null)).upload(this.file, "bucket", "key", new ObjectMetadata());
+
+        assertFalse(aborted.get());
+        assertEquals(4, completedParts[0].size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals("etag-" + (i + 1), ((PartETag) completedParts[0].get(i)).getETag());
+        }
+
+        assertTrue(maxConcurrent.get() > 1);
+    }
+
+    /**
+     * This test verifies that the in flight limit bounds the number of concurrent parts.
+     */
+    public void testUploadRespectsInFlightBytes() throws Exception {
+        AtomicInteger maxConcurrent = new AtomicInteger();
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("max_in_flight_bytes", String.valueOf(UniversalS3Settings.MIN_PART_SIZE));
+
+        new UniversalS3MultipartUploader(fakeClient(-1, new AtomicBoolean(), new List<?>[1], maxConcurrent), this.executor,
+                new UniversalS3Settings(null, values)).upload(this.file, "bucket", "key", new ObjectMetadata());
+
+        assertEquals(1, maxConcurrent.get());
+    }
+
+    /**
+     * This test verifies that the in flight limit bounds the adaptive controller.
+     */
+    public void testAdaptiveUploadRespectsInFlightBytes() throws Exception {
+        AtomicInteger maxConcurrent = new AtomicInteger();
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("adaptive_upload", "true");
+        values.put("adaptive_max_concurrency", "64");
+        values.put("max_in_flight_bytes", String.valueOf(UniversalS3Settings.MIN_PART_SIZE * 2));
+
+        UniversalS3MultipartUploader uploader = new UniversalS3MultipartUploader(fakeClient(-1, new AtomicBoolean(), 
+                    new List<?>[1], maxConcurrent), this.executor, new UniversalS3Settings(null, values));
+        uploader.upload(this.file, "bucket", "key", new ObjectMetadata());
+
+        assertEquals(2, uploader.getController().getMaxLimit());
+        assertTrue(maxConcurrent.get() <= 2);
+    }
+
+    /**
+     * This test verifies that a failing part aborts the multipart upload.
+     */
+    public void testUploadAbortsWhenAPartFails() {
+        AtomicBoolean aborted = new AtomicBoolean();
+        List<?>[] completedParts = new List<?>[1];
+
+        try {
+            new UniversalS3MultipartUploader(fakeClient(2, aborted, completedParts, new AtomicInteger()), this.executor,
+                    new UniversalS3Settings(null)).upload(this.file, "bucket", "key", new ObjectMetadata());
+            fail("This method should throw an error.");
+        } catch (Exception e) {
+            assertEquals("Part 2 failed.", e.getMessage());
+        }
+
+        assertTrue(aborted.get());
+        assertNull(completedParts[0]);
+    }
+}
@@ -0,0 +1,148 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * This class tests the local object cache of retrieveFile against a fake AmazonS3 client.
+ */
+public class TestUniversalS3ObjectCache extends TestCase {
+
+    private File tmp;
+    private UniversalS3FakeClient fake;
+    private Map<String, String> values;
+
+    protected void setUp() throws Exception {
+        this.tmp = File.createTempFile("cache", "");
+        this.tmp.delete();
+        this.tmp.mkdirs();
+
+        this.fake = new UniversalS3FakeClient();
+        this.fake.put("bucket", "folder/a.txt", new byte[1000]);
+        this.fake.put("bucket", "folder/b.txt", new byte[1000]);
+        this.fake.put("bucket", "folder/c.txt", new byte[1000]);
+
+        this.values = new HashMap<String, String>();
+        this.values.put("cache_max_bytes", "2500");
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.tmp);
+    }
+
+    private UniversalS3Storage storage() throws Exception {
+        return new UniversalS3Storage(UniversalS3FakeClient.settings(this.tmp), 
+                    new UniversalS3Settings(null, this.values), this.fake.client());
+    }
+
+    /**
+     * This test verifies the hits, misses and evictions of the cache.
+     */
+    public void testHitsMissesAndEvictions() throws Exception {
+        UniversalS3Storage us = storage();
+
+        us.retrieveFile("folder/a.txt");
+        us.retrieveFile("folder/a.txt");
+        us.retrieveFile("folder/b.txt");
+        us.retrieveFile("folder/c.txt");
+        us.close();
+
+        UniversalS3CacheStatistics statistics = us.getCacheStatistics();
+        assertEquals(1, statistics.getHits());
+        assertEquals(3, statistics.getMisses());
+        assertEquals(1, statistics.getEvictions());
+        assertEquals(2, statistics.getEntries());
+        assertEquals(2000, statistics.getBytes());
+    }
+
+    /**
+     * This test verifies that a changed object is downloaded again.
+     */
+    public void testChangedObjectIsDownloadedAgain() throws Exception {
+        UniversalS3Storage us = storage();
+
+        us.retrieveFile("folder/a.txt");
+        byte[] changed = new byte[500];
+        Arrays.fill(changed, (byte) 7);
+        this.fake.put("bucket", "folder/a.txt", changed);
+
+        File file = us.retrieveFile("folder/a.txt");
+        us.close();
+
+        assertTrue(Arrays.equals(changed, FileUtils.readFileToByteArray(file)));
+        assertEquals(0, us.getCacheStatistics().getHits());
+        assertEquals(2, us.getCacheStatistics().getMisses());
+    }
+
+    /**
+     * This test verifies that removing a folder removes the cached copies of its files.
+     */
+    public void testRemoveFolderInvalidates() throws Exception {
+        UniversalS3Storage us = storage();
+        us.retrieveFile("folder/a.txt");
+        us.retrieveFile("folder/b.txt");
+        assertEquals(2, us.getCacheStatistics().getEntries());
+
+        us.removeFolder("folder", true);
+        us.close();
+
+        assertEquals(0, us.getCacheStatistics().getEntries());
+        assertEquals(0, us.getCacheStatistics().getBytes());
+    }
+
+    /**
+     * This test verifies that wiping the storage removes every cached copy.
+     */
+    public void testWipeInvalidates() throws Exception {
+        UniversalS3Storage us = storage();
+        us.retrieveFile("folder/a.txt");
+        us.retrieveFile("folder/b.txt");
+        assertEquals(2, us.getCacheStatistics().getEntries());
+
+        us.wipe();
+        us.close();
+
+        assertEquals(0, us.getCacheStatistics().getEntries());
+        assertEquals(0, us.getCacheStatistics().getBytes());
+    }
+
+    /**
+     * This test verifies that clean keeps the cache and the upload journals within the tmp folder.
+     */
+    public void testCleanKeepsCacheAndJournals() throws Exception {
+        File journal = new File(this.tmp, ".universal-s3-uploads/upload.journal");
+        FileUtils.writeStringToFile(journal, "journal", "UTF-8");
+        File other = new File(this.tmp, "other/file.txt");
+        FileUtils.writeStringToFile(other, "other", "UTF-8");
+
+        UniversalS3Storage us = storage();
+        us.retrieveFile("folder/a.txt");
+        us.clean();
+        us.retrieveFile("folder/a.txt");
+        us.close();
+
+        assertTrue(journal.exists());
+        assertFalse(other.exists());
+        assertEquals(1, us.getCacheStatistics().getHits());
+    }
+
+    /**
+     * This test verifies that the cache survives a restart.
+     */
+    public void testCacheIsPersistent() throws Exception {
+        UniversalS3Storage us = storage();
+        us.retrieveFile("folder/a.txt");
+        us.close();
+
+        us = storage();
+        us.retrieveFile("folder/a.txt");
+        us.close();
+
+        assertEquals(1, us.getCacheStatistics().getHits());
+        assertEquals(1, us.getCacheStatistics().getEntries());
+    }
+}
@@ -0,0 +1,366 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.io.FileUtils;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.universal.error.UniversalIOException;
+import com.universal.storage.settings.UniversalSettings;
+
+/**
+ * This class tests the packing of small files against the in-memory fake client.
+ */
+public class TestUniversalS3PackStore extends TestCase {
+
+    private File tmp;
+    private UniversalS3FakeClient fake;
+
+    protected void setUp() throws Exception {
+        this.tmp = File.createTempFile("pack", "");
+        this.tmp.delete();
+        this.tmp.mkdirs();
+        this.fake = new UniversalS3FakeClient();
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.tmp);
+    }
+
+    /**
+     * This test verifies that small files are stored within a single pack and read with a single ranged GET.
+     */
+    public void testPackAndRead() throws Exception {
+        UniversalS3Storage storage = storage("100000");
+        try {
+            for (int i = 0; i < 50; i++) {
+                storage.storeFile(file("file" + i + ".txt", "content " + i), "docs");
+            }
+
+            // Pending files are read from memory.
+            assertEquals("content 7", FileUtils.readFileToString(storage.retrieveFile("docs/file7.txt"), "UTF-8"));
+            assertEquals(0, this.fake.getCalls().size());
+
+            storage.flushPacks();
+            assertEquals(1, packs().size());
+            assertNull(this.fake.get("bucket", "docs/file7.txt"));
+        } finally {
+            storage.close();
+        }
+
+        storage = storage("100000");
+        try {
+            assertEquals("content 3", FileUtils.readFileToString(storage.retrieveFile("docs/file3.txt"), "UTF-8"));
+            this.fake.getCalls().clear();
+            assertEquals("content 42", FileUtils.readFileToString(storage.retrieveFile("docs/file42.txt"), "UTF-8"));
+            assertEquals(Collections.singletonList("getObject"), this.fake.getCalls());
+
+            assertTrue(storage.exists("docs/file9.txt"));
+            assertEquals(9, storage.getMetadata("docs/file9.txt").getSize());
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * This test verifies that the pending pack is uploaded when it reaches the max pack size and by close.
+     */
+    public void testFlushes() throws Exception {
+        UniversalS3Storage storage = storage("1000");
+        try {
+            for (int i = 0; i < 5; i++) {
+                storage.storeFile(file("file" + i + ".bin", new String(new char[300]).replace('\0', 'x')), null);
+            }
+
+            assertEquals(1, packs().size());
+        } finally {
+            storage.close();
+        }
+
+        assertEquals(2, packs().size());
+        assertEquals(2, storage.getMetrics().get(UniversalS3Operation.FLUSH_PACK).getCount());
+    }
+
+    /**
+     * This test verifies that the pending pack is uploaded once the max delay elapses.
+     */
+    public void testFlushAfterMaxDelay() throws Exception {
+        UniversalS3Storage storage = storage("100000", null, "50");
+        try {
+            storage.storeFile(file("file.txt", "content"), null);
+            for (int i = 0; i < 100 && packs().isEmpty(); i++) {
+                Thread.sleep(20);
+            }
+
+            assertEquals(1, packs().size());
+            assertEquals(1, storage.getMetrics().get(UniversalS3Operation.FLUSH_PACK).getCount());
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * This test verifies that removed files are hidden and their pack is compacted in the background.
+     */
+    public void testRemoveAndCompaction() throws Exception {
+        // The files are removed without compacting, the next storage compacts the pack once it loads the indexes.
+        UniversalS3Storage storage = storage("100000", "100");
+        String original;
+        try {
+            for (int i = 0; i < 10; i++) {
+                storage.storeFile(file("file" + i + ".txt", "content " + i), null);
+            }
+
+            storage.flushPacks();
+            original = packs().get(0);
+            for (int i = 0; i < 6; i++) {
+                storage.removeFile("file" + i + ".txt");
+            }
+
+            assertFalse(storage.exists("file2.txt"));
+            getPackStore(storage).awaitCompactions();
+            assertEquals(0, getPackStore(storage).getCompactions());
+        } finally {
+            storage.close();
+        }
+
+        storage = storage("100000");
+        try {
+            assertEquals("content 8", FileUtils.readFileToString(storage.retrieveFile("file8.txt"), "UTF-8"));
+            getPackStore(storage).awaitCompactions();
+            assertEquals(1, getPackStore(storage).getCompactions());
+            assertEquals(1, packs().size());
+            assertFalse(original.equals(packs().get(0)));
+            assertEquals(1, this.fake.listObjects("bucket").getObjectSummaries().size());
+
+            try {
+                storage.retrieveFile("file1.txt");
+                fail("The removed file should not be found.");
+            } catch (UniversalIOException expected) {
+                // The object doesn't exist.
+            }
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * This test verifies that a file stored again replaces its packed copy.
+     */
+    public void testReplace() throws Exception {
+        UniversalS3Storage storage = storage("100000");
+        try {
+            storage.storeFile(file("a.txt", "first"), null);
+            storage.flushPacks();
+            storage.storeFile(file("a.txt", "second"), null);
+            storage.flushPacks();
+            assertEquals("second", FileUtils.readFileToString(storage.retrieveFile("a.txt"), "UTF-8"));
+
+            storage.storeFile(file("a.txt", new String(new char[20000]).replace('\0', 'y')), null);
+            assertEquals(20000, storage.retrieveFile("a.txt").length());
+        } finally {
+            storage.close();
+        }
+
+        storage = storage("100000");
+        try {
+            assertEquals(20000, storage.retrieveFile("a.txt").length());
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * This test verifies that a file removed while its pack is being uploaded gets a tombstone once the pack is 
+     * uploaded, so it doesn't come back.
+     */
+    public void testRemoveWhileFlushing() throws Exception {
+        final CountDownLatch uploading = new CountDownLatch(1);
+        final CountDownLatch removed = new CountDownLatch(1);
+        this.fake = new UniversalS3FakeClient() {
+            protected void before(String method, Object[] args) throws Exception {
+                if ("putObject".equals(method) && ((PutObjectRequest) args[0]).getKey().endsWith(UniversalS3PackStore.PACK_EXTENSION)) {
+                    uploading.countDown();
+                    removed.await();
+                }
+            }
+        };
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final UniversalS3Storage storage = storage("100000");
+        try {
+            storage.storeFile(file("a.txt", "first"), null);
+            storage.storeFile(file("b.txt", "second"), null);
+            Future<Void> flush = executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    storage.flushPacks();
+                    return null;
+                }
+            });
+
+            uploading.await();
+            storage.removeFile("a.txt");
+            assertFalse(storage.exists("a.txt"));
+            removed.countDown();
+            flush.get();
+
+            assertFalse(storage.exists("a.txt"));
+            assertEquals("second", FileUtils.readFileToString(storage.retrieveFile("b.txt"), "UTF-8"));
+        } finally {
+            storage.close();
+            executor.shutdownNow();
+        }
+
+        UniversalS3Storage other = storage("100000");
+        try {
+            assertFalse(other.exists("a.txt"));
+            assertTrue(other.exists("b.txt"));
+        } finally {
+            other.close();
+        }
+    }
+
+    /**
+     * This test verifies that a pack flushed while the indexes are being listed is kept by the refresh.
+     */
+    public void testFlushWhileRefreshing() throws Exception {
+        final CountDownLatch listed = new CountDownLatch(1);
+        final CountDownLatch flushed = new CountDownLatch(1);
+        this.fake = new UniversalS3FakeClient() {
+            public ObjectListing listObjects(ListObjectsRequest request) {
+                ObjectListing listing = super.listObjects(request);
+                if (listed.getCount() != 0) {
+                    listed.countDown();
+                    try {
+                        flushed.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e.getMessage());
+                    }
+                }
+
+                return listing;
+            }
+        };
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final UniversalS3Storage storage = storage("100000");
+        try {
+            Future<Boolean> exists = executor.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    return storage.exists("missing.txt");
+                }
+            });
+
+            listed.await();
+            storage.storeFile(file("a.txt", "first"), null);
+            storage.flushPacks();
+            flushed.countDown();
+            assertFalse(exists.get());
+
+            // The index TTL hasn't expired, so the file is found within the indexes rebuilt by the refresh.
+            assertEquals("first", FileUtils.readFileToString(storage.retrieveFile("a.txt"), "UTF-8"));
+        } finally {
+            storage.close();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * This test verifies that packed files are copied and moved, and that a copy or a stream stored onto a
+     * packed file replaces it.
+     */
+    public void testCopyAndMovePacked() throws Exception {
+        UniversalS3Storage storage = storage("100000");
+        try {
+            for (int i = 0; i < 3; i++) {
+                storage.storeFile(file("file" + i + ".txt", "content " + i), "docs");
+            }
+
+            storage.storeFile(file("target.txt", "packed target"), null);
+            storage.flushPacks();
+
+            storage.copyFile("docs/file0.txt", "copy/file0.txt");
+            assertEquals("content 0", new String(this.fake.get("bucket", "copy/file0.txt"), "UTF-8"));
+            storage.moveFile("docs/file1.txt", "moved/file1.txt");
+            assertEquals("content 1", FileUtils.readFileToString(storage.retrieveFile("moved/file1.txt"), "UTF-8"));
+            assertFalse(storage.exists("docs/file1.txt"));
+
+            storage.moveFolder("docs", "archive");
+            assertEquals("content 2", FileUtils.readFileToString(storage.retrieveFile("archive/file2.txt"), "UTF-8"));
+            assertFalse(storage.exists("docs/file0.txt"));
+            assertFalse(storage.exists("docs/file2.txt"));
+
+            storage.copyFile("copy/file0.txt", "target.txt");
+            assertEquals("content 0", FileUtils.readFileToString(storage.retrieveFile("target.txt"), "UTF-8"));
+
+            storage.storeFile(file("streamed.txt", "packed stream"), null);
+            storage.flushPacks();
+            storage.storeStream(new java.io.ByteArrayInputStream("plain stream".getBytes("UTF-8")), "streamed.txt");
+            assertEquals("plain stream", FileUtils.readFileToString(storage.retrieveFile("streamed.txt"), "UTF-8"));
+        } finally {
+            storage.close();
+        }
+
+        storage = storage("100000");
+        try {
+            assertFalse(storage.exists("docs/file2.txt"));
+            assertEquals("content 0", FileUtils.readFileToString(storage.retrieveFile("target.txt"), "UTF-8"));
+            assertEquals("plain stream", FileUtils.readFileToString(storage.retrieveFile("streamed.txt"), "UTF-8"));
+        } finally {
+            storage.close();
+        }
+    }
+
+    private UniversalS3Storage storage(String maxSize) throws Exception {
+        return storage(maxSize, null);
+    }
+
+    private UniversalS3Storage storage(String maxSize, String compactionPercent) throws Exception {
+        return storage(maxSize, compactionPercent, "0");
+    }
+
+    private UniversalS3Storage storage(String maxSize, String compactionPercent, String maxDelay) throws Exception {
+        UniversalSettings settings = UniversalS3FakeClient.settings(this.tmp);
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("pack_files", "true");
+        values.put("pack_max_size", maxSize);
+        values.put("pack_compaction_percent", compactionPercent);
+        values.put("pack_max_delay", maxDelay);
+
+        return new UniversalS3Storage(settings, new UniversalS3Settings(settings, values), this.fake.client());
+    }
+
+    private File file(String name, String content) throws Exception {
+        File file = new File(this.tmp, "in/" + name);
+        FileUtils.writeStringToFile(file, content, "UTF-8");
+        return file;
+    }
+
+    private List<String> packs() {
+        List<String> packs = new ArrayList<String>();
+        for (com.amazonaws.services.s3.model.S3ObjectSummary summary : this.fake.listObjects("bucket").getObjectSummaries()) {
+            if (summary.getKey().endsWith(UniversalS3PackStore.PACK_EXTENSION)) {
+                packs.add(summary.getKey());
+            }
+        }
+
+        return packs;
+    }
+
+    private static UniversalS3PackStore getPackStore(UniversalS3Storage storage) throws Exception {
+        java.lang.reflect.Field field = UniversalS3Storage.class.getDeclaredField("packStore");
+        field.setAccessible(true);
+        return (UniversalS3PackStore) field.get(storage);
+    }
+}
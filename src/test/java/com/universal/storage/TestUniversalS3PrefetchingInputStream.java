@@ -0,0 +1,166 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.universal.storage.settings.UniversalSettings;
+
+/**
+ * This class tests the read-ahead of the prefetching stream against a fake AmazonS3 client.
+ */
+public class TestUniversalS3PrefetchingInputStream extends TestCase {
+
+    private ExecutorService executor;
+    private UniversalS3Settings s3Settings;
+    private UniversalS3BufferPool pool;
+
+    protected void setUp() throws Exception {
+        this.executor = Executors.newFixedThreadPool(4, new UniversalS3ThreadFactory("test-prefetch"));
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("prefetch_block_size", "65536");
+        values.put("prefetch_max_depth", "4");
+        this.s3Settings = new UniversalS3Settings(null, values);
+        this.pool = new UniversalS3BufferPool(this.s3Settings.getPrefetchBlockSize(), this.s3Settings.getPrefetchMaxDepth());
+    }
+
+    protected void tearDown() {
+        this.executor.shutdownNow();
+    }
+
+    private byte[] content(int length) {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+
+        return content;
+    }
+
+    private UniversalS3PrefetchingInputStream open(UniversalS3FakeClient fake, String key) {
+        return new UniversalS3PrefetchingInputStream(fake.client(), this.executor, this.pool, this.s3Settings, "bucket",
+                    fake.client().getObject(new GetObjectRequest("bucket", key).withRange(0, this.pool.getBufferSize() - 1)));
+    }
+
+    /**
+     * This test verifies that the object is read by blocks and a failed block is retried on its own.
+     */
+    public void testReadsBlocks() throws Exception {
+        final AtomicInteger failures = new AtomicInteger();
+        UniversalS3FakeClient fake = new UniversalS3FakeClient() {
+            protected void before(String method, Object[] args) throws Exception {
+                long[] range = ((GetObjectRequest) args[0]).getRange();
+                if (range != null && range[0] == 131072 && failures.getAndIncrement() == 0) {
+                    throw new java.io.IOException("Connection reset");
+                }
+            }
+        };
+
+        byte[] content = content(300000);
+        fake.put("bucket", "big.bin", content);
+
+        InputStream stream = open(fake, "big.bin");
+        try {
+            assertTrue(Arrays.equals(content, IOUtils.toByteArray(stream)));
+        } finally {
+            stream.close();
+        }
+
+        assertEquals(2, failures.get());
+        assertEquals(5, fake.getCount.get());
+    }
+
+    /**
+     * This test verifies that the depth grows while the consumer waits for the blocks and shrinks when
+     * the consumer is slower than the network.
+     */
+    public void testAdaptiveDepth() throws Exception {
+        UniversalS3FakeClient slowNetwork = new UniversalS3FakeClient() {
+            protected void before(String method, Object[] args) throws Exception {
+                Thread.sleep(20);
+            }
+        };
+
+        byte[] content = content(1048576);
+        slowNetwork.put("bucket", "big.bin", content);
+
+        UniversalS3PrefetchingInputStream stream = open(slowNetwork, "big.bin");
+        try {
+            assertTrue(Arrays.equals(content, IOUtils.toByteArray(stream)));
+            assertTrue(stream.getWaits() > 0);
+            assertEquals(4, stream.getDepth());
+        } finally {
+            stream.close();
+        }
+
+        UniversalS3FakeClient fastNetwork = new UniversalS3FakeClient();
+        fastNetwork.put("bucket", "big.bin", content);
+
+        stream = open(fastNetwork, "big.bin");
+        try {
+            byte[] block = new byte[65536];
+            while (IOUtils.read(stream, block) > 0) {
+                Thread.sleep(20);
+            }
+
+            assertEquals(1, stream.getDepth());
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * This test verifies that retrieveFileAsStream reads ahead a compressed object.
+     */
+    public void testRetrieveFileAsStream() throws Exception {
+        File tmp = File.createTempFile("prefetch", "");
+        tmp.delete();
+        tmp.mkdirs();
+        try {
+            UniversalSettings settings = UniversalS3FakeClient.settings(tmp);
+            Map<String, String> values = new HashMap<String, String>();
+            values.put("prefetch_stream", "true");
+            values.put("prefetch_block_size", "65536");
+            values.put("compression", "gzip");
+            values.put("verify_integrity", "true");
+
+            UniversalS3FakeClient fake = new UniversalS3FakeClient();
+            UniversalS3Storage storage = new UniversalS3Storage(settings, new UniversalS3Settings(settings, values), fake.client());
+            try {
+                byte[] content = content(500000);
+                File file = new File(tmp, "big.bin");
+                FileUtils.writeByteArrayToFile(file, content);
+                storage.storeFile(file, null);
+
+                InputStream stream = storage.retrieveFileAsStream("big.bin");
+                try {
+                    assertTrue(Arrays.equals(content, IOUtils.toByteArray(stream)));
+                } finally {
+                    stream.close();
+                }
+
+                File empty = new File(tmp, "empty.bin");
+                empty.createNewFile();
+                storage.storeFile(empty, null);
+                stream = storage.retrieveFileAsStream("empty.bin");
+                try {
+                    assertEquals(-1, stream.read());
+                } finally {
+                    stream.close();
+                }
+            } finally {
+                storage.close();
+            }
+        } finally {
+            FileUtils.deleteDirectory(tmp);
+        }
+    }
+}
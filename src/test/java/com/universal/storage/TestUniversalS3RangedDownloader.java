@@ -0,0 +1,124 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+
+/**
+ * This class tests the segmented download against a fake AmazonS3 client.
+ */
+public class TestUniversalS3RangedDownloader extends TestCase {
+
+    private File dest;
+    private ExecutorService executor;
+    private UniversalS3Settings s3Settings;
+
+    protected void setUp() throws Exception {
+        this.dest = File.createTempFile("ranged", ".bin");
+        this.executor = Executors.newFixedThreadPool(4, new UniversalS3ThreadFactory("test-download"));
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("download_threshold", "100000");
+        values.put("download_segment_size", "65536");
+        this.s3Settings = new UniversalS3Settings(null, values);
+    }
+
+    protected void tearDown() {
+        this.executor.shutdownNow();
+        this.dest.delete();
+    }
+
+    private byte[] content(int length) {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+
+        return content;
+    }
+
+    /**
+     * This test verifies that an object lesser than the threshold is retrieved with a single GET.
+     */
+    public void testSmallObjectUsesSingleGet() throws Exception {
+        UniversalS3FakeClient fake = new UniversalS3FakeClient();
+        byte[] content = content(1000);
+        fake.put("bucket", "small.bin", content);
+
+        new UniversalS3RangedDownloader(fake.client(), this.executor, this.s3Settings).download("bucket", "small.bin", this.dest);
+
+        assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(this.dest)));
+        assertEquals(1, fake.getCount.get());
+    }
+
+    /**
+     * This test verifies that an empty object is retrieved.
+     */
+    public void testEmptyObject() throws Exception {
+        UniversalS3FakeClient fake = new UniversalS3FakeClient();
+        fake.put("bucket", "empty.bin", new byte[0]);
+
+        new UniversalS3RangedDownloader(fake.client(), this.executor, this.s3Settings).download("bucket", "empty.bin", this.dest);
+
+        assertEquals(0, this.dest.length());
+    }
+
+    /**
+     * This test verifies that a large object is assembled from its segments and that a failed
+     * segment is retried on its own.
+     */
+    public void testLargeObjectIsDownloadedBySegments() throws Exception {
+        final AtomicInteger failures = new AtomicInteger();
+        UniversalS3FakeClient fake = new UniversalS3FakeClient() {
+            protected void before(String method, Object[] args) throws Exception {
+                if ("getObject".equals(method)) {
+                    long[] range = ((GetObjectRequest) args[0]).getRange();
+                    if (range != null && range[0] == 100000 + 65536 && failures.getAndIncrement() == 0) {
+                        throw new IllegalArgumentException("Connection reset");
+                    }
+                }
+            }
+        };
+
+        byte[] content = content(500000);
+        fake.put("bucket", "large.bin", content);
+
+        new UniversalS3RangedDownloader(fake.client(), this.executor, this.s3Settings).download("bucket", "large.bin", this.dest);
+
+        assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(this.dest)));
+        // First GET + 7 segments + 1 retry.
+        assertEquals(9, Collections.frequency(fake.getCalls(), "getObject"));
+    }
+
+    /**
+     * This test verifies that the destination file is removed when a segment exhausts its retries.
+     */
+    public void testFailedSegmentRemovesDestination() throws Exception {
+        UniversalS3FakeClient fake = new UniversalS3FakeClient() {
+            protected void before(String method, Object[] args) throws Exception {
+                long[] range = ((GetObjectRequest) args[0]).getRange();
+                if (range[0] > 0) {
+                    throw new IllegalArgumentException("Connection reset");
+                }
+            }
+        };
+
+        fake.put("bucket", "large.bin", content(500000));
+
+        try {
+            new UniversalS3RangedDownloader(fake.client(), this.executor, this.s3Settings).download("bucket", "large.bin", this.dest);
+            fail("This method should throw an error.");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Connection reset", e.getMessage());
+        }
+
+        assertFalse(this.dest.exists());
+    }
+}
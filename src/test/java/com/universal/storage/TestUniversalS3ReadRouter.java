@@ -0,0 +1,222 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.universal.storage.settings.UniversalSettings;
+
+/**
+ * This class tests the routing of the reads to the read replicas against fake AmazonS3 clients.
+ */
+public class TestUniversalS3ReadRouter extends TestCase {
+
+    private File tmp;
+    private Bucket primary;
+    private Bucket replica;
+
+    protected void setUp() throws Exception {
+        this.tmp = File.createTempFile("router", "");
+        this.tmp.delete();
+        this.tmp.mkdirs();
+
+        // The primary is far away.
+        this.primary = new Bucket(20);
+        this.replica = new Bucket(0);
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.tmp);
+    }
+
+    /**
+     * This test verifies that once both buckets are measured the reads go to the bucket with the lowest latency.
+     */
+    public void testReadsGoToTheFastestBucket() throws Exception {
+        byte[] content = "replicated".getBytes("UTF-8");
+        this.primary.put("bucket", "docs/file.txt", content);
+        this.replica.put("replica", "docs/file.txt", content);
+
+        UniversalS3Storage storage = storage();
+        try {
+            for (int i = 0; i < 5; i++) {
+                InputStream stream = storage.retrieveFileAsStream("docs/file.txt");
+                try {
+                    assertEquals("replicated", IOUtils.toString(stream, "UTF-8"));
+                } finally {
+                    stream.close();
+                }
+            }
+
+            // The first read measures the primary, the remaining ones go to the replica.
+            assertEquals(1, Collections.frequency(this.primary.getCalls(), "getObject"));
+            assertEquals(4, Collections.frequency(this.replica.getCalls(), "getObject"));
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * This test verifies that an object not replicated yet is read from the primary.
+     */
+    public void testFailoverToPrimaryOnNotFound() throws Exception {
+        this.primary.put("bucket", "docs/old.txt", new byte[1]);
+        this.replica.put("replica", "docs/old.txt", new byte[1]);
+        this.primary.put("bucket", "docs/new.txt", "fresh".getBytes("UTF-8"));
+
+        UniversalS3Storage storage = storage();
+        try {
+            storage.retrieveFileAsStream("docs/old.txt").close();
+            storage.retrieveFileAsStream("docs/old.txt").close();
+
+            InputStream stream = storage.retrieveFileAsStream("docs/new.txt");
+            try {
+                assertEquals("fresh", IOUtils.toString(stream, "UTF-8"));
+            } finally {
+                stream.close();
+            }
+
+            assertEquals(2, Collections.frequency(this.replica.getCalls(), "getObject"));
+            assertEquals(2, Collections.frequency(this.primary.getCalls(), "getObject"));
+            assertEquals(5, storage.getMetadata("docs/new.txt").getSize());
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * This test verifies that the time spent transferring a large object doesn't count as latency, so the
+     * replica keeps receiving the reads while its downloads take longer than the first response of the primary.
+     */
+    public void testLargeDownloadDoesNotSlowReplica() throws Exception {
+        byte[] content = new byte[5 * 65536];
+        new Random(7).nextBytes(content);
+        this.primary.put("bucket", "docs/old.txt", new byte[1]);
+        this.replica.put("replica", "docs/old.txt", new byte[1]);
+        this.primary.put("bucket", "docs/large.bin", content);
+        this.replica.put("replica", "docs/large.bin", content);
+        this.replica.segmentDelay = 200;
+
+        UniversalS3Storage storage = storage();
+        try {
+            // Measures both buckets.
+            storage.retrieveFileAsStream("docs/old.txt").close();
+            storage.retrieveFileAsStream("docs/old.txt").close();
+
+            for (int i = 0; i < 3; i++) {
+                File file = storage.retrieveFile("docs/large.bin");
+                assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(file)));
+            }
+
+            assertEquals(1, this.primary.firstGets.get());
+            assertEquals(4, this.replica.firstGets.get());
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * This test verifies that a download from a replica whose copy is replaced in the meantime is failed
+     * over to the primary.
+     */
+    public void testFailoverToPrimaryOnChangedObject() throws Exception {
+        byte[] content = new byte[5 * 65536];
+        new Random(7).nextBytes(content);
+        byte[] stale = content.clone();
+        stale[0]++;
+        this.primary.put("bucket", "docs/old.txt", new byte[1]);
+        this.replica.put("replica", "docs/old.txt", new byte[1]);
+        this.primary.put("bucket", "docs/large.bin", content);
+        this.replica.put("replica", "docs/large.bin", stale);
+        this.replica.replacement = content;
+
+        UniversalS3Storage storage = storage();
+        try {
+            storage.retrieveFileAsStream("docs/old.txt").close();
+            storage.retrieveFileAsStream("docs/old.txt").close();
+
+            File file = storage.retrieveFile("docs/large.bin");
+            assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(file)));
+            assertEquals(2, this.replica.firstGets.get());
+            assertEquals(2, this.primary.firstGets.get());
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * This test verifies that the writes only go to the primary.
+     */
+    public void testWritesGoToPrimary() throws Exception {
+        File file = new File(this.tmp, "upload.txt");
+        FileUtils.writeStringToFile(file, "primary", "UTF-8");
+
+        UniversalS3Storage storage = storage();
+        try {
+            storage.storeFile(file, "docs");
+            storage.removeFile("docs/upload.txt");
+            storage.storeFile(file, "docs");
+
+            assertEquals("primary", new String(this.primary.get("bucket", "docs/upload.txt"), "UTF-8"));
+            assertTrue(this.replica.getCalls().isEmpty());
+        } finally {
+            storage.close();
+        }
+    }
+
+    private UniversalS3Storage storage() throws Exception {
+        UniversalSettings settings = UniversalS3FakeClient.settings(this.tmp);
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("replica_probe_interval", "0");
+        values.put("download_threshold", "65536");
+        values.put("download_segment_size", "65536");
+
+        UniversalS3Storage storage = new UniversalS3Storage(settings, new UniversalS3Settings(settings, values), 
+                    this.primary.client());
+        storage.addReadReplica(this.replica.client(), "replica", false);
+        return storage;
+    }
+
+    /**
+     * This class is a bucket whose first responses are delayed, the GETs of the remaining segments of a ranged
+     * download can be delayed as well, and the object can be replaced while it's being downloaded.
+     */
+    private static class Bucket extends UniversalS3FakeClient {
+        private final long firstByteDelay;
+        private volatile long segmentDelay;
+        private volatile byte[] replacement;
+        private final AtomicInteger firstGets = new AtomicInteger();
+
+        Bucket(long firstByteDelay) {
+            this.firstByteDelay = firstByteDelay;
+        }
+
+        protected void before(String method, Object[] args) throws Exception {
+            if ("getObjectMetadata".equals(method)) {
+                Thread.sleep(this.firstByteDelay);
+            } else if ("getObject".equals(method)) {
+                GetObjectRequest request = (GetObjectRequest) args[0];
+                if (request.getRange() == null || request.getRange()[0] == 0) {
+                    this.firstGets.incrementAndGet();
+                    Thread.sleep(this.firstByteDelay);
+                } else {
+                    byte[] replacement = this.replacement;
+                    if (replacement != null) {
+                        this.replacement = null;
+                        put(request.getBucketName(), request.getKey(), replacement);
+                    }
+
+                    Thread.sleep(this.segmentDelay);
+                }
+            }
+        }
+    }
+}
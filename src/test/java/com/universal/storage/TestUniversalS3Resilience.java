@@ -0,0 +1,402 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.universal.error.UniversalIOException;
+import com.universal.storage.settings.UniversalSettings;
+
+/**
+ * This class tests the retries and the hedged reads against a fake AmazonS3 client.
+ */
+public class TestUniversalS3Resilience extends TestCase {
+
+    private File tmp;
+
+    protected void setUp() throws Exception {
+        this.tmp = File.createTempFile("resilience", "");
+        this.tmp.delete();
+        this.tmp.mkdirs();
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.tmp);
+    }
+
+    private UniversalS3Storage storage(UniversalS3FakeClient fake, Map<String, String> values) throws Exception {
+        UniversalSettings settings = UniversalS3FakeClient.settings(this.tmp);
+        values.put("retry_base_delay", "1");
+
+        return new UniversalS3Storage(settings, new UniversalS3Settings(settings, values), fake.client());
+    }
+
+    private static AmazonS3Exception error(int statusCode, String errorCode) {
+        AmazonS3Exception error = new AmazonS3Exception(errorCode);
+        error.setStatusCode(statusCode);
+        error.setErrorCode(errorCode);
+        return error;
+    }
+
+    /**
+     * This test verifies that throttled and failed reads are retried and the retries are recorded.
+     */
+    public void testRetriesTransientErrors() throws Exception {
+        final AtomicInteger failures = new AtomicInteger();
+        UniversalS3FakeClient fake = new UniversalS3FakeClient() {
+            protected void before(String method, Object[] args) throws Exception {
+                if ("getObject".equals(method) && failures.incrementAndGet() <= 2) {
+                    throw failures.get() == 1 ? error(503, "SlowDown") : error(500, "InternalError");
+                }
+            }
+        };
+
+        byte[] content = "hot content".getBytes("UTF-8");
+        fake.put("bucket", "file.txt", content);
+
+        UniversalS3Storage storage = storage(fake, new HashMap<String, String>());
+        try {
+            assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(storage.retrieveFile("file.txt"))));
+            assertEquals(2, storage.getMetrics().get(UniversalS3Operation.RETRIEVE_FILE).getRetries());
+
+            failures.set(0);
+            assertTrue(Arrays.equals(content, IOUtils.toByteArray(storage.retrieveFileAsStream("file.txt"))));
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * This test verifies that a missing object is not retried and that every operation has its own budget.
+     */
+    public void testBudgets() throws Exception {
+        final AtomicInteger deletes = new AtomicInteger();
+        UniversalS3FakeClient fake = new UniversalS3FakeClient() {
+            protected void before(String method, Object[] args) throws Exception {
+                if ("deleteObject".equals(method)) {
+                    deletes.incrementAndGet();
+                    throw error(500, "InternalError");
+                }
+            }
+        };
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("retries", "5");
+        values.put("retries_remove_file", "1");
+        UniversalS3Storage storage = storage(fake, values);
+        try {
+            try {
+                storage.retrieveFile("missing.txt");
+                fail("The missing object should not be retrieved.");
+            } catch (UniversalIOException expected) {
+                assertEquals(1, fake.getCount.get());
+            }
+
+            try {
+                storage.removeFile("file.txt");
+                fail("The failed delete should be thrown.");
+            } catch (UniversalIOException expected) {
+                assertEquals(2, deletes.get());
+            }
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * This test verifies that a client error is retried only when it was caused by the connection.
+     */
+    public void testRetriesOnlyTransientClientErrors() throws Exception {
+        final AtomicInteger timeouts = new AtomicInteger();
+        final AtomicInteger gets = new AtomicInteger();
+        UniversalS3FakeClient fake = new UniversalS3FakeClient() {
+            protected void before(String method, Object[] args) throws Exception {
+                if (!"getObject".equals(method)) {
+                    return;
+                }
+
+                gets.incrementAndGet();
+                if (timeouts.get() < 0) {
+                    throw new AmazonClientException("Unable to load AWS credentials");
+                }
+
+                if (timeouts.getAndDecrement() > 0) {
+                    throw new AmazonClientException("Unable to execute HTTP request", new SocketTimeoutException());
+                }
+            }
+        };
+
+        byte[] content = "client content".getBytes("UTF-8");
+        fake.put("bucket", "file.txt", content);
+
+        UniversalS3Storage storage = storage(fake, new HashMap<String, String>());
+        try {
+            timeouts.set(2);
+            assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(storage.retrieveFile("file.txt"))));
+            assertEquals(3, gets.get());
+
+            gets.set(0);
+            timeouts.set(-1);
+            try {
+                storage.retrieveFile("file.txt");
+                fail("The client error should be thrown.");
+            } catch (UniversalIOException expected) {
+                assertEquals(1, gets.get());
+            }
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * This test verifies that a failed segment is retried by the download only, the retries of the file are 
+     * not multiplied by the retries of the segments.
+     */
+    public void testNestedRetriesDoNotMultiply() throws Exception {
+        final AtomicInteger failures = new AtomicInteger();
+        UniversalS3FakeClient fake = new UniversalS3FakeClient() {
+            protected void before(String method, Object[] args) throws Exception {
+                if ("getObject".equals(method) && ((GetObjectRequest) args[0]).getRange() != null 
+                            && ((GetObjectRequest) args[0]).getRange()[0] > 0) {
+                    failures.incrementAndGet();
+                    throw error(500, "InternalError");
+                }
+            }
+        };
+
+        fake.put("bucket", "large.bin", new byte[131072]);
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("retries", "3");
+        values.put("download_threshold", "65536");
+        values.put("download_segment_size", "65536");
+        values.put("download_segment_retries", "2");
+        UniversalS3Storage storage = storage(fake, values);
+        try {
+            storage.retrieveFile("large.bin");
+            fail("The failed segment should be thrown.");
+        } catch (UniversalIOException expected) {
+            assertEquals(3, failures.get());
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * This test verifies that a GET slower than the recent responses is hedged and the fastest response wins.
+     */
+    public void testHedgesSlowGet() throws Exception {
+        final AtomicInteger slow = new AtomicInteger();
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        UniversalS3FakeClient fake = new UniversalS3FakeClient() {
+            protected void before(String method, Object[] args) throws Exception {
+                threads.add(Thread.currentThread());
+                if (slow.getAndSet(0) == 1) {
+                    Thread.sleep(5000);
+                }
+            }
+        };
+
+        byte[] content = "straggler".getBytes("UTF-8");
+        fake.put("bucket", "file.txt", content);
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("hedge_min_delay", "20");
+        UniversalS3Hedger hedger = new UniversalS3Hedger(new UniversalS3Settings(null, values));
+        try {
+            for (int i = 0; i < 30; i++) {
+                hedger.getObject(fake.client(), new GetObjectRequest("bucket", "file.txt")).getObjectContent().close();
+            }
+
+            assertEquals(0, hedger.getHedges());
+            assertTrue(hedger.getDelay() >= 20000000);
+
+            // The requests that are not hedged are sent from the caller's thread.
+            assertEquals(Collections.singleton(Thread.currentThread()), threads);
+
+            slow.set(1);
+            long start = System.currentTimeMillis();
+            S3Object object = hedger.getObject(fake.client(), new GetObjectRequest("bucket", "file.txt"));
+            try {
+                assertTrue(Arrays.equals(content, IOUtils.toByteArray(object.getObjectContent())));
+            } finally {
+                object.getObjectContent().close();
+            }
+
+            assertTrue(System.currentTimeMillis() - start < 2000);
+            assertEquals(1, hedger.getHedges());
+            assertEquals(2, threads.size());
+            assertFalse(Thread.currentThread().isInterrupted());
+        } finally {
+            hedger.shutdown();
+        }
+    }
+
+    /**
+     * This test verifies that the parts, the single PUTs, the copies and the delete of a move are retried and 
+     * their retries are recorded.
+     */
+    public void testRetriesUploadsAndCopies() throws Exception {
+        final Set<String> failed = new HashSet<String>();
+        UniversalS3FakeClient fake = new UniversalS3FakeClient() {
+            protected void before(String method, Object[] args) throws Exception {
+                if (Arrays.asList("uploadPart", "putObject", "copyPart", "copyObject", "deleteObject").contains(method)) {
+                    synchronized (failed) {
+                        if (failed.add(method)) {
+                            if (args[0] instanceof UploadPartRequest && ((UploadPartRequest) args[0]).getInputStream() != null) {
+                                IOUtils.toByteArray(((UploadPartRequest) args[0]).getInputStream());
+                            } else if (args[0] instanceof PutObjectRequest) {
+                                IOUtils.toByteArray(((PutObjectRequest) args[0]).getInputStream());
+                            }
+
+                            throw error(500, "InternalError");
+                        }
+                    }
+                }
+            }
+        };
+
+        byte[] content = new byte[(int) UniversalS3Settings.MIN_PART_SIZE * 2 + 10];
+        new Random(7).nextBytes(content);
+        fake.put("bucket", "small.txt", "small content".getBytes("UTF-8"));
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("copy_threshold", "1000");
+        values.put("copy_part_size", String.valueOf(UniversalS3Settings.MIN_PART_SIZE));
+        UniversalS3Storage storage = storage(fake, values);
+        try {
+            File large = new File(this.tmp, "large.bin");
+            FileUtils.writeByteArrayToFile(large, content);
+            storage.storeFile(large, null);
+            assertTrue(Arrays.equals(content, fake.get("bucket", "large.bin")));
+            assertEquals(1, storage.getMetrics().get(UniversalS3Operation.STORE_FILE).getRetries());
+
+            storage.storeStream(new ByteArrayInputStream(content, 0, 100), "stream.bin");
+            assertEquals(100, fake.get("bucket", "stream.bin").length);
+            assertEquals(1, storage.getMetrics().get(UniversalS3Operation.STORE_STREAM).getRetries());
+
+            storage.copyFile("large.bin", "copy.bin");
+            assertTrue(Arrays.equals(content, fake.get("bucket", "copy.bin")));
+            assertEquals(1, storage.getMetrics().get(UniversalS3Operation.COPY_FILE).getRetries());
+
+            storage.moveFile("small.txt", "moved.txt");
+            assertNull(fake.get("bucket", "small.txt"));
+            assertEquals("small content", new String(fake.get("bucket", "moved.txt"), "UTF-8"));
+            assertEquals(2, storage.getMetrics().get(UniversalS3Operation.MOVE_FILE).getRetries());
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * This test verifies that the initiate and complete requests of a multipart upload, the folder requests and 
+     * the conditional GET of a cached object are retried.
+     */
+    public void testRetriesMultipartFolderAndCachedRequests() throws Exception {
+        final Set<String> failed = new HashSet<String>();
+        UniversalS3FakeClient fake = new UniversalS3FakeClient() {
+            protected void before(String method, Object[] args) throws Exception {
+                boolean conditional = args != null && args.length > 0 && args[0] instanceof GetObjectRequest && 
+                            !((GetObjectRequest) args[0]).getNonmatchingETagConstraints().isEmpty();
+                if (Arrays.asList("initiateMultipartUpload", "completeMultipartUpload", "putObject", "deleteObject").contains(method) || 
+                            conditional) {
+                    synchronized (failed) {
+                        if (failed.add(conditional ? "conditional" : method)) {
+                            throw error(500, "InternalError");
+                        }
+                    }
+                }
+            }
+        };
+
+        byte[] content = new byte[(int) UniversalS3Settings.MIN_PART_SIZE * 2 + 10];
+        new Random(11).nextBytes(content);
+        fake.put("bucket", "cached.txt", "cached content".getBytes("UTF-8"));
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("cache_max_bytes", "1000");
+        UniversalS3Storage storage = storage(fake, values);
+        try {
+            File large = new File(this.tmp, "large.bin");
+            FileUtils.writeByteArrayToFile(large, content);
+            storage.storeFile(large, null);
+            assertTrue(Arrays.equals(content, fake.get("bucket", "large.bin")));
+            assertEquals(2, storage.getMetrics().get(UniversalS3Operation.STORE_FILE).getRetries());
+
+            storage.createFolder("folder");
+            assertNotNull(fake.get("bucket", "folder/"));
+            assertEquals(1, storage.getMetrics().get(UniversalS3Operation.CREATE_FOLDER).getRetries());
+
+            storage.removeFolder("folder", false);
+            assertNull(fake.get("bucket", "folder/"));
+            assertEquals(1, storage.getMetrics().get(UniversalS3Operation.REMOVE_FOLDER).getRetries());
+
+            storage.retrieveFile("cached.txt");
+            File cached = storage.retrieveFile("cached.txt");
+            assertEquals("cached content", FileUtils.readFileToString(cached, "UTF-8"));
+            assertEquals(1, storage.getCacheStatistics().getHits());
+            assertTrue(failed.contains("conditional"));
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * This test verifies that the PUT of a pack, the ranged GET of a packed file and the PUT of a tombstone
+     * are retried.
+     */
+    public void testRetriesPackRequests() throws Exception {
+        final Set<String> failed = new HashSet<String>();
+        UniversalS3FakeClient fake = new UniversalS3FakeClient() {
+            protected void before(String method, Object[] args) throws Exception {
+                if (Arrays.asList("putObject", "getObject").contains(method)) {
+                    synchronized (failed) {
+                        if (failed.add(method)) {
+                            if (args[0] instanceof PutObjectRequest) {
+                                IOUtils.toByteArray(((PutObjectRequest) args[0]).getInputStream());
+                            }
+
+                            throw error(500, "InternalError");
+                        }
+                    }
+                }
+            }
+        };
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("pack_files", "true");
+        UniversalS3Storage storage = storage(fake, values);
+        try {
+            File file = new File(this.tmp, "small.txt");
+            FileUtils.writeStringToFile(file, "packed content", "UTF-8");
+            storage.storeFile(file, null);
+            storage.flushPacks();
+            assertEquals("packed content", FileUtils.readFileToString(storage.retrieveFile("small.txt"), "UTF-8"));
+            assertTrue(failed.contains("getObject"));
+
+            failed.clear();
+            failed.add("getObject");
+            storage.removeFile("small.txt");
+            assertTrue(failed.contains("putObject"));
+            assertFalse(storage.exists("small.txt"));
+        } finally {
+            storage.close();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.commons.io.FileUtils;
+import com.universal.error.UniversalIOException;
+import com.universal.storage.settings.UniversalSettings;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * This class tests the resumable multipart uploads against the in-memory fake client.
+ */
+public class TestUniversalS3ResumableUpload extends TestCase {
+
+    private File tmp;
+    private File file;
+    private byte[] content;
+    private UniversalSettings settings;
+    private UniversalS3Settings s3Settings;
+    private FailingClient fake;
+
+    protected void setUp() throws Exception {
+        this.tmp = File.createTempFile("resumable", "");
+        this.tmp.delete();
+        this.tmp.mkdirs();
+        this.settings = UniversalS3FakeClient.settings(this.tmp);
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("resumable_upload", "true");
+        values.put("journal_dir", new File(this.tmp, "journals").getAbsolutePath());
+        this.s3Settings = new UniversalS3Settings(this.settings, values);
+
+        this.content = new byte[(int) UniversalS3Settings.MIN_PART_SIZE * 3 + 10];
+        new Random(7).nextBytes(this.content);
+        this.file = new File(this.tmp, "large.bin");
+        FileUtils.writeByteArrayToFile(this.file, this.content);
+
+        this.fake = new FailingClient();
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.tmp);
+    }
+
+    /**
+     * This test verifies that a failed upload is kept and only the missing parts are sent when it's resumed.
+     */
+    public void testResume() throws Exception {
+        this.fake.failingPart = 3;
+        store(false);
+
+        assertEquals(1, this.fake.pendingUploads.size());
+        assertEquals(1, new File(this.tmp, "journals").list().length);
+        int uploadedBefore = this.fake.uploads.values().iterator().next().size();
+        assertTrue(uploadedBefore < 4);
+
+        this.fake.getCalls().clear();
+        store(true);
+
+        assertEquals(0, Collections.frequency(this.fake.getCalls(), "initiateMultipartUpload"));
+        assertEquals(4 - uploadedBefore, Collections.frequency(this.fake.getCalls(), "uploadPart"));
+        assertTrue(Arrays.equals(this.content, this.fake.get("bucket", "large.bin")));
+        assertEquals(0, this.fake.pendingUploads.size());
+        assertEquals(0, new File(this.tmp, "journals").list().length);
+    }
+
+    /**
+     * This test verifies that the upload of a modified file starts again and the previous upload is aborted.
+     */
+    public void testModifiedFile() throws Exception {
+        this.fake.failingPart = 2;
+        store(false);
+
+        this.content[0]++;
+        FileUtils.writeByteArrayToFile(this.file, this.content);
+        this.file.setLastModified(this.file.lastModified() - 60000);
+
+        this.fake.getCalls().clear();
+        store(true);
+
+        assertEquals(1, Collections.frequency(this.fake.getCalls(), "initiateMultipartUpload"));
+        assertEquals(4, Collections.frequency(this.fake.getCalls(), "uploadPart"));
+        assertTrue(Arrays.equals(this.content, this.fake.get("bucket", "large.bin")));
+        assertEquals(0, this.fake.pendingUploads.size());
+    }
+
+    /**
+     * This test verifies that old journals are removed along with their uploads, and that old incomplete uploads
+     * without a journal are aborted only if it's asked.
+     */
+    public void testCleanup() throws Exception {
+        File journals = new File(this.tmp, "journals");
+        String journaled = this.fake.client().initiateMultipartUpload(new InitiateMultipartUploadRequest("bucket", "a")).getUploadId();
+        UniversalS3UploadJournal.create(journals, "bucket", "a", journaled, this.file, UniversalS3Settings.MIN_PART_SIZE).close();
+        String orphan = this.fake.client().initiateMultipartUpload(new InitiateMultipartUploadRequest("bucket", "b")).getUploadId();
+        String recent = this.fake.client().initiateMultipartUpload(new InitiateMultipartUploadRequest("bucket", "c")).getUploadId();
+
+        long old = System.currentTimeMillis() - 3600000;
+        journals.listFiles()[0].setLastModified(old);
+        this.fake.pendingUploads.get(journaled).setInitiated(new Date(old));
+        this.fake.pendingUploads.get(orphan).setInitiated(new Date(old));
+
+        assertEquals(1, UniversalS3UploadJournal.cleanup(this.fake.client(), journals, "bucket", 60000, false));
+        assertEquals(0, journals.list().length);
+        assertEquals(new HashSet<String>(Arrays.asList(orphan, recent)), this.fake.pendingUploads.keySet());
+
+        assertEquals(1, UniversalS3UploadJournal.cleanup(this.fake.client(), journals, "bucket", 60000, true));
+        assertEquals(Collections.singleton(recent), this.fake.pendingUploads.keySet());
+    }
+
+    /**
+     * Stores the file using a new storage.
+     */
+    private void store(boolean succeed) throws Exception {
+        UniversalS3Storage storage = new UniversalS3Storage(this.settings, this.s3Settings, this.fake.client());
+        try {
+            storage.storeFile(this.file, "");
+            assertTrue("The upload should have failed.", succeed);
+        } catch (UniversalIOException e) {
+            assertFalse(e.getMessage(), succeed);
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * This fake fails the first attempt of a part.
+     */
+    private static class FailingClient extends UniversalS3FakeClient {
+        private volatile int failingPart;
+        private final AtomicBoolean failed = new AtomicBoolean();
+
+        protected void before(String method, Object[] args) throws Exception {
+            if ("uploadPart".equals(method) && ((UploadPartRequest) args[0]).getPartNumber() == this.failingPart && 
+                        this.failed.compareAndSet(false, true)) {
+                throw new IllegalStateException("Connection reset.");
+            }
+        }
+    }
+}
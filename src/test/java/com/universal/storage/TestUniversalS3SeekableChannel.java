@@ -0,0 +1,141 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.universal.error.UniversalIOException;
+import com.universal.storage.settings.UniversalSettings;
+
+/**
+ * This class tests the reads by position of openSeekable against a fake AmazonS3 client.
+ */
+public class TestUniversalS3SeekableChannel extends TestCase {
+
+    private File tmp;
+    private UniversalS3FakeClient fake;
+    private UniversalS3Storage storage;
+    private byte[] content;
+
+    protected void setUp() throws Exception {
+        this.tmp = File.createTempFile("seekable", "");
+        this.tmp.delete();
+        this.tmp.mkdirs();
+
+        UniversalSettings settings = UniversalS3FakeClient.settings(this.tmp);
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("seekable_block_size", "4096");
+        values.put("seekable_cache_blocks", "4");
+
+        this.fake = new UniversalS3FakeClient();
+        this.storage = new UniversalS3Storage(settings, new UniversalS3Settings(settings, values), this.fake.client());
+
+        this.content = new byte[100000];
+        new Random(7).nextBytes(this.content);
+        this.fake.put("bucket", "data.zip", this.content);
+    }
+
+    protected void tearDown() throws Exception {
+        this.storage.close();
+        FileUtils.deleteDirectory(this.tmp);
+    }
+
+    private byte[] read(SeekableByteChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        channel.position(position);
+        while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+            // Keeps reading.
+        }
+
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * This test verifies that reading the footer costs a single GET and reading it again costs none.
+     */
+    public void testReadFooter() throws Exception {
+        UniversalS3SeekableChannel channel = (UniversalS3SeekableChannel) this.storage.openSeekable("data.zip");
+        try {
+            assertEquals(100000, channel.size());
+
+            byte[] footer = read(channel, 100000 - 6000, 6000);
+            assertTrue(Arrays.equals(Arrays.copyOfRange(this.content, 94000, 100000), footer));
+            assertEquals(1, channel.getRequests());
+
+            footer = read(channel, 100000 - 22, 22);
+            assertTrue(Arrays.equals(Arrays.copyOfRange(this.content, 99978, 100000), footer));
+            assertEquals(1, channel.getRequests());
+
+            assertEquals(-1, channel.read(ByteBuffer.allocate(10)));
+            assertEquals(0, read(channel, 200000, 10).length);
+        } finally {
+            channel.close();
+        }
+
+        assertFalse(channel.isOpen());
+        assertEquals(1, this.storage.getMetrics().get(UniversalS3Operation.READ_RANGE).getCount());
+    }
+
+    /**
+     * This test verifies that a read spanning cached and missing blocks fetches every run of missing blocks
+     * with a single GET, and that the least recently used blocks are evicted.
+     */
+    public void testCoalescesMissingBlocks() throws Exception {
+        UniversalS3SeekableChannel channel = (UniversalS3SeekableChannel) this.storage.openSeekable("data.zip");
+        try {
+            read(channel, 4096 * 2, 10);
+            assertEquals(1, channel.getRequests());
+
+            // Blocks 0-1 and 3-4 are missing, block 2 is cached.
+            assertTrue(Arrays.equals(Arrays.copyOfRange(this.content, 100, 4096 * 5 - 100), read(channel, 100, 4096 * 5 - 200)));
+            assertEquals(3, channel.getRequests());
+
+            // Block 2 is the least recently used, it was evicted by the blocks 0, 1, 3 and 4.
+            read(channel, 0, 10);
+            assertEquals(3, channel.getRequests());
+            read(channel, 4096 * 2, 10);
+            assertEquals(4, channel.getRequests());
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * This test verifies that a compressed object can't be opened and a replaced object can't be read.
+     */
+    public void testRejectsCompressedAndReplacedObjects() throws Exception {
+        SeekableByteChannel channel = this.storage.openSeekable("data.zip");
+        try {
+            this.fake.put("bucket", "data.zip", new byte[10]);
+            read(channel, 0, 10);
+            fail("The replaced object should not be read.");
+        } catch (IOException expected) {
+            // The ETag doesn't match.
+        } finally {
+            channel.close();
+        }
+
+        Map<String, String> userMetadata = new HashMap<String, String>();
+        userMetadata.put(UniversalS3Compression.METADATA_CODEC, UniversalS3Compression.GZIP);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setUserMetadata(userMetadata);
+        metadata.setContentLength(3);
+        this.fake.client().putObject(new PutObjectRequest("bucket", "data.gz", 
+                    new ByteArrayInputStream(new byte[3]), metadata));
+        try {
+            this.storage.openSeekable("data.gz");
+            fail("The compressed object should not be opened.");
+        } catch (UniversalIOException expected) {
+            // The stored bytes are compressed.
+        }
+    }
+}
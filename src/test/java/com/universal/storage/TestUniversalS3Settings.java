@@ -0,0 +1,52 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.util.Map;
+import java.util.HashMap;
+
+/**
+ * This class tests how the S3 settings resolve their values.
+ */
+public class TestUniversalS3Settings extends TestCase {
+
+    protected void tearDown() {
+        System.clearProperty("universal.storage.s3.part_retries");
+    }
+
+    /**
+     * This test verifies the order of the sources and that a value is resolved once.
+     */
+    public void testValuesAreResolvedOnce() {
+        System.setProperty("universal.storage.s3.part_retries", "7");
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("upload_concurrency", "9");
+        values.put("part_retries", " ");
+
+        UniversalS3Settings s3Settings = new UniversalS3Settings(null, values);
+        assertEquals(9, s3Settings.getUploadConcurrency());
+        assertEquals(7, s3Settings.getPartRetries());
+        assertEquals(1024, s3Settings.getCompressionMinSize());
+
+        // The later reads don't look at the jvm parameters again.
+        System.setProperty("universal.storage.s3.part_retries", "1");
+        assertEquals(7, s3Settings.getPartRetries());
+        assertEquals(1, new UniversalS3Settings(null, values).getPartRetries());
+    }
+
+    /**
+     * This test verifies that an invalid number is reported every time it's read.
+     */
+    public void testInvalidNumber() {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("upload_concurrency", "many");
+        UniversalS3Settings s3Settings = new UniversalS3Settings(null, values);
+        for (int i = 0; i < 2; i++) {
+            try {
+                s3Settings.getUploadConcurrency();
+                fail("The value is not a number.");
+            } catch (IllegalStateException e) {
+                assertEquals("Invalid upload_concurrency: many", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import com.universal.error.UniversalIOException;
+import com.universal.storage.settings.UniversalSettings;
+
+/**
+ * This class tests the coalescing of concurrent downloads of the same file.
+ */
+public class TestUniversalS3SingleFlight extends TestCase {
+
+    private static final int CALLERS = 8;
+
+    private File tmp;
+    private ExecutorService executor;
+    private CountDownLatch arrived;
+    private UniversalS3FakeClient fake;
+    private byte[] content;
+
+    protected void setUp() throws Exception {
+        this.tmp = File.createTempFile("flight", "");
+        this.tmp.delete();
+        this.tmp.mkdirs();
+        this.executor = Executors.newFixedThreadPool(CALLERS, new UniversalS3ThreadFactory("test-flight"));
+        this.arrived = new CountDownLatch(CALLERS);
+
+        // The GET is held until every caller has arrived.
+        this.fake = new UniversalS3FakeClient() {
+            protected void before(String method, Object[] args) throws Exception {
+                if ("getObject".equals(method)) {
+                    TestUniversalS3SingleFlight.this.arrived.await();
+                    Thread.sleep(50);
+                }
+            }
+        };
+
+        this.content = new byte[200000];
+        new Random(3).nextBytes(this.content);
+        this.fake.put("bucket", "hot/file.bin", this.content);
+    }
+
+    protected void tearDown() throws Exception {
+        this.executor.shutdownNow();
+        FileUtils.deleteDirectory(this.tmp);
+    }
+
+    private UniversalS3Storage storage(String coalesceStreamMemory) throws Exception {
+        UniversalSettings settings = UniversalS3FakeClient.settings(this.tmp);
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("coalesce_streams", "true");
+        values.put("coalesce_stream_memory", coalesceStreamMemory);
+
+        return new UniversalS3Storage(settings, new UniversalS3Settings(settings, values), this.fake.client());
+    }
+
+    private <T> List<T> call(final Callable<T> callable) throws Exception {
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        for (int i = 0; i < CALLERS; i++) {
+            futures.add(this.executor.submit(new Callable<T>() {
+                public T call() throws Exception {
+                    TestUniversalS3SingleFlight.this.arrived.countDown();
+                    return callable.call();
+                }
+            }));
+        }
+
+        List<T> results = new ArrayList<T>();
+        for (Future<T> future : futures) {
+            results.add(future.get());
+        }
+
+        return results;
+    }
+
+    /**
+     * This test verifies that concurrent calls of retrieveFile share a single GET.
+     */
+    public void testRetrieveFile() throws Exception {
+        final UniversalS3Storage storage = storage("1048576");
+        try {
+            List<File> files = call(new Callable<File>() {
+                public File call() throws Exception {
+                    return storage.retrieveFile("hot/file.bin");
+                }
+            });
+
+            for (File file : files) {
+                assertTrue(Arrays.equals(this.content, FileUtils.readFileToByteArray(file)));
+            }
+
+            assertEquals(1, this.fake.getCount.get());
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * This test verifies that concurrent calls of retrieveFileAsStream share a single GET and every caller
+     * reads the whole content, from memory or from the spooled file which is removed once every stream is closed.
+     */
+    public void testRetrieveFileAsStream() throws Exception {
+        for (String memory : new String[] {"1048576", "1000"}) {
+            this.fake.getCount.set(0);
+            this.arrived = new CountDownLatch(CALLERS);
+
+            final UniversalS3Storage storage = storage(memory);
+            try {
+                List<byte[]> contents = call(new Callable<byte[]>() {
+                    public byte[] call() throws Exception {
+                        InputStream stream = storage.retrieveFileAsStream("hot/file.bin");
+                        try {
+                            return IOUtils.toByteArray(stream);
+                        } finally {
+                            stream.close();
+                        }
+                    }
+                });
+
+                for (byte[] content : contents) {
+                    assertTrue(Arrays.equals(this.content, content));
+                }
+
+                assertEquals(1, this.fake.getCount.get());
+                File spool = new File(this.tmp, ".universal-s3-spool");
+                assertTrue(!spool.exists() || spool.list().length == 0);
+            } finally {
+                storage.close();
+            }
+        }
+    }
+
+    /**
+     * This test verifies that the callers of a failed download receive the same error and the next call
+     * downloads again.
+     */
+    public void testFailureIsShared() throws Exception {
+        final UniversalS3Storage storage = storage("1048576");
+        try {
+            List<String> errors = call(new Callable<String>() {
+                public String call() throws Exception {
+                    try {
+                        storage.retrieveFile("hot/missing.bin");
+                        return null;
+                    } catch (UniversalIOException e) {
+                        return e.getMessage();
+                    }
+                }
+            });
+
+            for (String error : errors) {
+                assertNotNull(error);
+            }
+
+            assertTrue(this.fake.getCount.get() < CALLERS);
+            assertTrue(Arrays.equals(this.content, FileUtils.readFileToByteArray(storage.retrieveFile("hot/file.bin"))));
+        } finally {
+            storage.close();
+        }
+    }
+}
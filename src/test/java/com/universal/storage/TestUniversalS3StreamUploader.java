@@ -0,0 +1,245 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+import com.universal.storage.settings.UniversalSettings;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+/**
+ * This class tests the stream uploads against a fake AmazonS3 client.
+ */
+public class TestUniversalS3StreamUploader extends TestCase {
+
+    private File tmp;
+
+    protected void setUp() throws Exception {
+        this.tmp = File.createTempFile("stream", "");
+        this.tmp.delete();
+        this.tmp.mkdirs();
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.tmp);
+    }
+
+    private byte[] content(int length) {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+
+        return content;
+    }
+
+    private UniversalS3Storage storage(UniversalS3FakeClient fake, Map<String, String> values) throws Exception {
+        return new UniversalS3Storage(UniversalS3FakeClient.settings(this.tmp), new UniversalS3Settings(null, values), fake.client());
+    }
+
+    /**
+     * This test verifies that a stream lesser than the part size is uploaded using a single PUT.
+     */
+    public void testSmallStreamUsesSinglePut() throws Exception {
+        UniversalS3FakeClient fake = new UniversalS3FakeClient();
+        UniversalS3Storage us = storage(fake, null);
+        byte[] content = content((int) UniversalS3Settings.MIN_PART_SIZE);
+
+        us.storeStream(new ByteArrayInputStream(content), "folder/small.bin");
+        us.close();
+
+        assertTrue(Arrays.equals(content, fake.get("bucket", "folder/small.bin")));
+        assertEquals(1, Collections.frequency(fake.getCalls(), "putObject"));
+        assertFalse(fake.getCalls().contains("initiateMultipartUpload"));
+    }
+
+    /**
+     * This test verifies that a large stream is uploaded by parts with a bounded number of parts in flight.
+     */
+    public void testLargeStreamUsesParts() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        UniversalS3FakeClient fake = new UniversalS3FakeClient() {
+            public UploadPartResult uploadPart(UploadPartRequest request) throws IOException {
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), running.incrementAndGet()));
+                }
+
+                try {
+                    Thread.sleep(20);
+                    return super.uploadPart(request);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                } finally {
+                    running.decrementAndGet();
+                }
+            }
+        };
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("max_in_flight_bytes", String.valueOf(UniversalS3Settings.MIN_PART_SIZE * 2));
+        UniversalS3Storage us = storage(fake, values);
+        byte[] content = content((int) (UniversalS3Settings.MIN_PART_SIZE * 4 + 100));
+
+        us.storeStream(new ByteArrayInputStream(content), "large.bin");
+        us.close();
+
+        assertTrue(Arrays.equals(content, fake.get("bucket", "large.bin")));
+        assertEquals(5, Collections.frequency(fake.getCalls(), "uploadPart"));
+        assertTrue(maxRunning.get() <= 2);
+    }
+
+    /**
+     * This test verifies that the max in flight bytes are shared by the streams stored at the same time.
+     */
+    public void testConcurrentStreamsShareBuffers() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        UniversalS3FakeClient fake = new UniversalS3FakeClient() {
+            public UploadPartResult uploadPart(UploadPartRequest request) throws IOException {
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), running.incrementAndGet()));
+                }
+
+                try {
+                    Thread.sleep(50);
+                    return super.uploadPart(request);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                } finally {
+                    running.decrementAndGet();
+                }
+            }
+        };
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("max_in_flight_bytes", String.valueOf(UniversalS3Settings.MIN_PART_SIZE * 2));
+        values.put("upload_concurrency", "8");
+        final UniversalS3Storage us = storage(fake, values);
+        final byte[] content = content((int) (UniversalS3Settings.MIN_PART_SIZE * 3 + 100));
+
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final String key = "stream" + i + ".bin";
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        us.storeStream(new ByteArrayInputStream(content), key);
+                    } catch (Exception e) {
+                        errors.add(e);
+                    }
+                }
+            };
+
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        us.close();
+
+        assertTrue(errors.isEmpty());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(Arrays.equals(content, fake.get("bucket", "stream" + i + ".bin")));
+        }
+
+        assertTrue(String.valueOf(maxRunning.get()), maxRunning.get() <= 2);
+    }
+
+    /**
+     * This test verifies that a stream greater than the max number of parts fails and its upload is aborted.
+     */
+    public void testTooManyParts() throws Exception {
+        UniversalS3FakeClient fake = new UniversalS3FakeClient();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        UniversalS3StreamUploader uploader = new UniversalS3StreamUploader(fake.client(), executor, 
+                    new UniversalS3Settings(null), new UniversalS3BufferPool((int) UniversalS3Settings.MIN_PART_SIZE, 2, 2))
+                    .withMaxParts(2);
+        try {
+            uploader.upload(new ByteArrayInputStream(content((int) (UniversalS3Settings.MIN_PART_SIZE * 2 + 100))), 
+                        "bucket", "large.bin", new ObjectMetadata(), null, null);
+            fail("The stream exceeds the max number of parts.");
+        } catch (IllegalStateException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("part_size"));
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(2, Collections.frequency(fake.getCalls(), "uploadPart"));
+        assertEquals(1, Collections.frequency(fake.getCalls(), "abortMultipartUpload"));
+        assertNull(fake.get("bucket", "large.bin"));
+    }
+
+    /**
+     * This test verifies that an empty stream is stored as an empty object.
+     */
+    public void testEmptyStream() throws Exception {
+        UniversalS3FakeClient fake = new UniversalS3FakeClient();
+        UniversalS3Storage us = storage(fake, null);
+
+        us.storeStream(new ByteArrayInputStream(new byte[0]), "empty.bin");
+        us.close();
+
+        assertEquals(0, fake.get("bucket", "empty.bin").length);
+    }
+
+    /**
+     * This test verifies that the storage class, the encryption and the tags are sent by the initiate request,
+     * so the multipart uploads of files and streams are completed without copying the object or tagging it.
+     */
+    public void testMultipartAttributesOnInitiate() throws Exception {
+        final List<InitiateMultipartUploadRequest> initiated = Collections.synchronizedList(new ArrayList<InitiateMultipartUploadRequest>());
+        UniversalS3FakeClient fake = new UniversalS3FakeClient() {
+            public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+                initiated.add(request);
+                return super.initiateMultipartUpload(request);
+            }
+        };
+
+        File settings = new File(this.tmp, "settings.json");
+        FileUtils.writeStringToFile(settings, "{\"provider\": \"aws.s3\", \"root\": \"bucket\", \"tmp\": \"" +
+                    this.tmp.getAbsolutePath().replace("\\", "/") + "\", \"aws_s3\": {\"access_key\": \"fake\", " + 
+                    "\"secret_key\": \"fake\", \"storage_class\": \"STANDARD_IA\", \"s3_region\": \"us-east-1\", " +
+                    "\"encryption\": true, \"tags\": [{\"key\": \"application\", \"value\": \"Test cases\"}]}}", "UTF-8");
+        UniversalS3Storage us = new UniversalS3Storage(new UniversalSettings(settings), new UniversalS3Settings(null), fake.client());
+
+        byte[] content = content((int) (UniversalS3Settings.MIN_PART_SIZE * 2 + 100));
+        File file = new File(this.tmp, "in/large.bin");
+        FileUtils.writeByteArrayToFile(file, content);
+
+        us.storeFile(file, "files");
+        us.storeStream(new ByteArrayInputStream(content), "streams/large.bin");
+        us.close();
+
+        assertTrue(Arrays.equals(content, fake.get("bucket", "files/large.bin")));
+        assertTrue(Arrays.equals(content, fake.get("bucket", "streams/large.bin")));
+        assertEquals(2, initiated.size());
+        for (InitiateMultipartUploadRequest request : initiated) {
+            assertEquals("STANDARD_IA", request.getStorageClass().toString());
+            assertEquals(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION, request.getObjectMetadata().getSSEAlgorithm());
+            assertEquals("application=Test%20cases", request.getCustomRequestHeaders().get(Headers.S3_TAGGING));
+            assertNotNull(request.getObjectMetadata().getUserMetadata().get(UniversalS3Checksum.METADATA_PART_SIZE));
+        }
+
+        assertFalse(fake.getCalls().contains("copyObject"));
+        assertFalse(fake.getCalls().contains("setObjectTagging"));
+    }
+}
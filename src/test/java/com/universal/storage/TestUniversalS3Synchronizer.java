@@ -0,0 +1,181 @@
+package com.universal.storage;
+
+import junit.framework.TestCase;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+
+/**
+ * This class tests syncToStorage and syncFromStorage against a fake AmazonS3 client.
+ */
+public class TestUniversalS3Synchronizer extends TestCase {
+
+    private File tmp;
+    private File dir;
+    private UniversalS3FakeClient fake;
+    private UniversalS3Storage us;
+
+    protected void setUp() throws Exception {
+        this.tmp = File.createTempFile("sync", "");
+        this.tmp.delete();
+        this.tmp.mkdirs();
+        this.dir = new File(this.tmp, "local");
+
+        this.fake = new UniversalS3FakeClient();
+        this.us = new UniversalS3Storage(UniversalS3FakeClient.settings(this.tmp), 
+                    new UniversalS3Settings(null), this.fake.client());
+    }
+
+    protected void tearDown() throws Exception {
+        this.us.close();
+        FileUtils.deleteDirectory(this.tmp);
+    }
+
+    /**
+     * This test verifies that only the missing or changed files are uploaded, multipart objects included.
+     */
+    public void testSyncToStorage() throws Exception {
+        byte[] large = new byte[(int) UniversalS3Settings.MIN_PART_SIZE + 1000];
+        Arrays.fill(large, (byte) 7);
+        FileUtils.writeStringToFile(new File(this.dir, "index.html"), "<html/>", "UTF-8");
+        FileUtils.writeStringToFile(new File(this.dir, "css/site.css"), "body {}", "UTF-8");
+        FileUtils.writeByteArrayToFile(new File(this.dir, "media/video.bin"), large);
+
+        UniversalS3SyncResult result = this.us.syncToStorage(this.dir, "/site/");
+        assertEquals(3, result.getTransferred());
+        assertEquals(0, result.getSkipped());
+        assertTrue(Arrays.equals(large, this.fake.get("bucket", "site/media/video.bin")));
+        assertEquals("body {}", new String(this.fake.get("bucket", "site/css/site.css"), "UTF-8"));
+
+        FileUtils.writeStringToFile(new File(this.dir, "css/site.css"), "body {color: red}", "UTF-8");
+        this.fake.getCalls().clear();
+
+        result = this.us.syncToStorage(this.dir, "site");
+        assertEquals(1, result.getTransferred());
+        assertEquals(2, result.getSkipped());
+        assertEquals(1, Collections.frequency(this.fake.getCalls(), "putObject"));
+        assertEquals(0, Collections.frequency(this.fake.getCalls(), "initiateMultipartUpload"));
+        assertEquals("body {color: red}", new String(this.fake.get("bucket", "site/css/site.css"), "UTF-8"));
+    }
+
+    /**
+     * This test verifies that only the missing or changed objects are downloaded, folder markers are ignored.
+     */
+    public void testSyncFromStorage() throws Exception {
+        this.fake.put("bucket", "site/", new byte[0]);
+        this.fake.put("bucket", "site/index.html", "<html/>".getBytes("UTF-8"));
+        this.fake.put("bucket", "site/css/site.css", "body {}".getBytes("UTF-8"));
+        this.fake.put("bucket", "other/file.txt", "other".getBytes("UTF-8"));
+
+        UniversalS3SyncResult result = this.us.syncFromStorage("site", this.dir);
+        assertEquals(2, result.getTransferred());
+        assertEquals("body {}", FileUtils.readFileToString(new File(this.dir, "css/site.css"), "UTF-8"));
+        assertFalse(new File(this.dir, "file.txt").exists());
+
+        this.fake.put("bucket", "site/index.html", "<html></html>".getBytes("UTF-8"));
+        this.fake.getCalls().clear();
+
+        result = this.us.syncFromStorage("site", this.dir);
+        assertEquals(1, result.getTransferred());
+        assertEquals(1, result.getSkipped());
+        assertEquals(1, Collections.frequency(this.fake.getCalls(), "getObject"));
+        assertEquals("<html></html>", FileUtils.readFileToString(new File(this.dir, "index.html"), "UTF-8"));
+    }
+
+    /**
+     * This test verifies that a failed file doesn't stop the synchronization.
+     */
+    public void testFailedFile() throws Exception {
+        this.fake.put("bucket", "site/a.txt", "a".getBytes("UTF-8"));
+        this.fake.put("bucket", "site/b.txt", "b".getBytes("UTF-8"));
+        this.fake.put("bucket", "site/../escape.txt", "c".getBytes("UTF-8"));
+
+        try {
+            this.us.syncFromStorage("site", this.dir);
+            fail("This method should throw an error.");
+        } catch (Exception e) {
+            assertEquals("1 objects couldn't be downloaded into " + this.dir.getPath() + ".", e.getMessage());
+        }
+
+        assertTrue(new File(this.dir, "a.txt").exists());
+        assertTrue(new File(this.dir, "b.txt").exists());
+        assertFalse(new File(this.tmp, "escape.txt").exists());
+    }
+
+    /**
+     * This test verifies that the downloads go through the retries of the storage.
+     */
+    public void testDownloadsAreRetried() throws Exception {
+        final AtomicInteger gets = new AtomicInteger();
+        UniversalS3FakeClient fake = new UniversalS3FakeClient() {
+            protected void before(String method, Object[] args) throws Exception {
+                if ("getObject".equals(method) && gets.incrementAndGet() == 1) {
+                    AmazonS3Exception error = new AmazonS3Exception("SlowDown");
+                    error.setStatusCode(503);
+                    error.setErrorCode("SlowDown");
+                    throw error;
+                }
+            }
+        };
+        fake.put("bucket", "site/index.html", "<html/>".getBytes("UTF-8"));
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("retry_base_delay", "1");
+        UniversalS3Storage storage = new UniversalS3Storage(UniversalS3FakeClient.settings(this.tmp), 
+                    new UniversalS3Settings(null, values), fake.client());
+        try {
+            UniversalS3SyncResult result = storage.syncFromStorage("site", this.dir);
+            assertEquals(1, result.getTransferred());
+            assertEquals(2, gets.get());
+            assertEquals("<html/>", FileUtils.readFileToString(new File(this.dir, "index.html"), "UTF-8"));
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * This test verifies that the packed files are compared and downloaded like the other files, while the 
+     * packs and their tombstones are never downloaded.
+     */
+    public void testSyncWithPackedFiles() throws Exception {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("pack_files", "true");
+        UniversalS3Storage packing = new UniversalS3Storage(UniversalS3FakeClient.settings(this.tmp), 
+                    new UniversalS3Settings(null, values), this.fake.client());
+        try {
+            FileUtils.writeStringToFile(new File(this.dir, "index.html"), "<html/>", "UTF-8");
+            FileUtils.writeStringToFile(new File(this.dir, "css/site.css"), "body {}", "UTF-8");
+            FileUtils.writeStringToFile(new File(this.dir, "old.txt"), "old", "UTF-8");
+
+            UniversalS3SyncResult result = packing.syncToStorage(this.dir, "site");
+            assertEquals(3, result.getTransferred());
+            packing.flushPacks();
+            packing.removeFile("site/old.txt");
+            assertTrue(new File(this.dir, "old.txt").delete());
+            this.fake.getCalls().clear();
+
+            result = packing.syncToStorage(this.dir, "site");
+            assertEquals(0, result.getTransferred());
+            assertEquals(2, result.getSkipped());
+            assertEquals(0, Collections.frequency(this.fake.getCalls(), "putObject"));
+
+            File copy = new File(this.tmp, "copy");
+            result = packing.syncFromStorage("", copy);
+            assertEquals(2, result.getTransferred());
+            assertEquals("<html/>", FileUtils.readFileToString(new File(copy, "site/index.html"), "UTF-8"));
+            assertEquals("body {}", FileUtils.readFileToString(new File(copy, "site/css/site.css"), "UTF-8"));
+            assertEquals(2, FileUtils.listFiles(copy, null, true).size());
+
+            result = packing.syncFromStorage("", copy);
+            assertEquals(0, result.getTransferred());
+            assertEquals(2, result.getSkipped());
+        } finally {
+            packing.close();
+        }
+    }
+}
@@ -0,0 +1,613 @@
+package com.universal.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+import com.universal.storage.settings.UniversalSettings;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.DeleteObjectRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.DeleteObjectsResult.DeletedObject;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ListVersionsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import com.amazonaws.services.s3.model.SetObjectTaggingRequest;
+import com.amazonaws.services.s3.model.SetObjectTaggingResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.amazonaws.services.s3.model.VersionListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.GetObjectTaggingRequest;
+import com.amazonaws.services.s3.model.GetObjectTaggingResult;
+import com.amazonaws.services.s3.model.ListMultipartUploadsRequest;
+import com.amazonaws.services.s3.model.Tag;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.MultipartUpload;
+import com.amazonaws.services.s3.model.MultipartUploadListing;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+/**
+ * This class is an in-memory AmazonS3 client for tests.  Every object lives in a map keyed by bucket and key,
+ * the operations which are not supported throw an UnsupportedOperationException.
+ *
+ * Subclasses can override the method "before" to inject latency or failures.
+ */
+public class UniversalS3FakeClient implements InvocationHandler {
+    protected final ConcurrentNavigableMap<String, byte[]> objects = new ConcurrentSkipListMap<String, byte[]>();
+    protected final Set<String> failingKeys = Collections.synchronizedSet(new HashSet<String>());
+    protected final Map<String, SortedMap<Integer, byte[]>> uploads = new ConcurrentHashMap<String, SortedMap<Integer, byte[]>>();
+    protected final Map<String, ObjectMetadata> metadata = new ConcurrentHashMap<String, ObjectMetadata>();
+    protected final Map<String, String> multipartETags = new ConcurrentHashMap<String, String>();
+    protected final Map<String, MultipartUpload> pendingUploads = new ConcurrentHashMap<String, MultipartUpload>();
+    protected final AtomicInteger uploadIds = new AtomicInteger();
+    protected int pageSize = 1000;
+    protected final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    protected final AtomicInteger getCount = new AtomicInteger();
+    protected final AtomicInteger md5Count = new AtomicInteger();
+
+    /**
+     * Returns a new AmazonS3 proxy backed by this fake.
+     */
+    public AmazonS3 client() {
+        return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[] {AmazonS3.class}, this);
+    }
+
+    /**
+     * Stores an object within this fake.
+     */
+    public void put(String bucketName, String key, byte[] content) {
+        this.multipartETags.remove(bucketName + "/" + key);
+        this.objects.put(bucketName + "/" + key, content);
+    }
+
+    /**
+     * Flips a byte of a stored object, the object keeps its ETag as if the bytes were corrupted on the way.
+     */
+    public void corrupt(String bucketName, String key, int index) {
+        byte[] content = get(bucketName, key);
+        this.multipartETags.put(bucketName + "/" + key, eTag(bucketName, key, content));
+        content[index] ^= 0x01;
+    }
+
+    /**
+     * Returns the number of PUT and part requests that carried a Content-MD5.
+     */
+    public int getMd5Count() {
+        return this.md5Count.get();
+    }
+
+    /**
+     * Returns the content of an object, null if doesn't exist.
+     */
+    public byte[] get(String bucketName, String key) {
+        return this.objects.get(bucketName + "/" + key);
+    }
+
+    /**
+     * Returns the calls made to this fake, i.e: getObject.
+     */
+    public List<String> getCalls() {
+        return this.calls;
+    }
+
+    /**
+     * Returns the settings for a storage backed by this fake, the settings file is created within the tmp folder.
+     *
+     * @param tmp folder of the storage.
+     */
+    public static UniversalSettings settings(File tmp) throws Exception {
+        File file = new File(tmp, "settings.json");
+        FileUtils.writeStringToFile(file, "{\"provider\": \"aws.s3\", \"root\": \"bucket\", \"tmp\": \"" +
+                    tmp.getAbsolutePath().replace("\\", "/") + "\", \"aws_s3\": {\"access_key\": \"fake\", " + 
+                    "\"secret_key\": \"fake\", \"storage_class\": \"STANDARD\", \"s3_region\": \"us-east-1\", " +
+                    "\"encryption\": false, \"tags\": []}}", "UTF-8");
+
+        return new UniversalSettings(file);
+    }
+
+    /**
+     * Returns the ETag of the passed content, i.e: the MD5 of the content.
+     */
+    public static String eTag(byte[] content) {
+        try {
+            return "\"" + toHex(MessageDigest.getInstance("MD5").digest(content)) + "\"";
+        } catch (Exception e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the ETag of a stored object, objects completed by a multipart upload have a multipart ETag.
+     */
+    public String eTag(String bucketName, String key, byte[] content) {
+        String eTag = this.multipartETags.get(bucketName + "/" + key);
+        return eTag == null ? eTag(content) : eTag;
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest) {
+            builder.append(String.format("%02x", b));
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * This method is called before executing every operation.
+     *
+     * @param method name of the operation.
+     * @param args arguments of the operation.
+     */
+    protected void before(String method, Object[] args) throws Exception {
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        this.calls.add(method.getName());
+        before(method.getName(), args);
+
+        try {
+            Method handler = getClass().getMethod(method.getName(), method.getParameterTypes());
+            if (handler.getDeclaringClass() != AmazonS3.class) {
+                return handler.invoke(this, args);
+            }
+        } catch (NoSuchMethodException ignore) {
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+
+        throw new UnsupportedOperationException(method.getName());
+    }
+
+    public S3Object getObject(GetObjectRequest request) {
+        this.getCount.incrementAndGet();
+        byte[] content = get(request.getBucketName(), request.getKey());
+        if (content == null) {
+            AmazonS3Exception error = new AmazonS3Exception("The specified key does not exist.");
+            error.setStatusCode(404);
+            throw error;
+        }
+
+        String eTag = eTag(request.getBucketName(), request.getKey(), content);
+        if (request.getMatchingETagConstraints() != null && !request.getMatchingETagConstraints().isEmpty()
+                    && !request.getMatchingETagConstraints().contains(eTag)) {
+            return null;
+        }
+
+        if (request.getNonmatchingETagConstraints() != null && request.getNonmatchingETagConstraints().contains(eTag)) {
+            return null;
+        }
+
+        long from = 0;
+        long to = content.length - 1;
+        ObjectMetadata metadata = new ObjectMetadata();
+        ObjectMetadata stored = this.metadata.get(request.getBucketName() + "/" + request.getKey());
+        if (stored != null && stored.getUserMetadata() != null) {
+            metadata.setUserMetadata(stored.getUserMetadata());
+        }
+
+        if (request.getRange() != null) {
+            if (content.length == 0) {
+                AmazonS3Exception error = new AmazonS3Exception("The requested range is not satisfiable");
+                error.setStatusCode(416);
+                throw error;
+            }
+
+            from = request.getRange()[0];
+            to = Math.min(request.getRange()[1], content.length - 1);
+            metadata.setHeader("Content-Range", "bytes " + from + "-" + to + "/" + content.length);
+        }
+
+        metadata.setContentLength(to - from + 1);
+        metadata.setHeader("ETag", eTag);
+
+        S3Object object = new S3Object();
+        object.setBucketName(request.getBucketName());
+        object.setKey(request.getKey());
+        object.setObjectMetadata(metadata);
+        object.setObjectContent(new S3ObjectInputStream(
+                    new ByteArrayInputStream(content, (int) from, (int) (to - from + 1)), null));
+
+        return object;
+    }
+
+    /**
+     * Returns the keys of a page, the common prefixes are added to the passed list.
+     */
+    private List<String> page(String bucketName, String prefix, String marker, String delimiter, List<String> commonPrefixes) {
+        String from = bucketName + "/" + (prefix == null ? "" : prefix);
+        SortedMap<String, byte[]> tail = this.objects.tailMap(marker == null ? from : (bucketName + "/" + marker), marker == null);
+        List<String> keys = new ArrayList<String>();
+        for (String fullKey : tail.keySet()) {
+            if (!fullKey.startsWith(from)) {
+                break;
+            }
+
+            if (keys.size() + commonPrefixes.size() == this.pageSize) {
+                keys.add(null); // Marks the page as truncated.
+                break;
+            }
+
+            String key = fullKey.substring(bucketName.length() + 1);
+            if (delimiter != null) {
+                int index = key.indexOf(delimiter, prefix == null ? 0 : prefix.length());
+                if (index != -1) {
+                    String commonPrefix = key.substring(0, index + delimiter.length());
+                    if (!commonPrefixes.contains(commonPrefix)) {
+                        commonPrefixes.add(commonPrefix);
+                    }
+
+                    continue;
+                }
+            }
+
+            keys.add(key);
+        }
+
+        return keys;
+    }
+
+    public ObjectListing listObjects(String bucketName) {
+        return listObjects(new ListObjectsRequest().withBucketName(bucketName));
+    }
+
+    public ObjectListing listObjects(ListObjectsRequest request) {
+        List<String> commonPrefixes = new ArrayList<String>();
+        List<String> keys = page(request.getBucketName(), request.getPrefix(), request.getMarker(), request.getDelimiter(), commonPrefixes);
+
+        ObjectListing listing = new ObjectListing();
+        listing.setBucketName(request.getBucketName());
+        listing.setPrefix(request.getPrefix());
+        listing.setDelimiter(request.getDelimiter());
+        listing.setCommonPrefixes(commonPrefixes);
+        for (String key : keys) {
+            if (key == null) {
+                listing.setTruncated(true);
+                break;
+            }
+
+            S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setBucketName(request.getBucketName());
+            summary.setKey(key);
+            summary.setSize(get(request.getBucketName(), key).length);
+            summary.setETag(eTag(request.getBucketName(), key, get(request.getBucketName(), key)));
+            listing.getObjectSummaries().add(summary);
+            listing.setNextMarker(key);
+        }
+
+        if (!commonPrefixes.isEmpty() && listing.isTruncated()) {
+            String last = commonPrefixes.get(commonPrefixes.size() - 1);
+            if (listing.getNextMarker() == null || last.compareTo(listing.getNextMarker()) > 0) {
+                listing.setNextMarker(last + Character.MAX_VALUE);
+            }
+        }
+
+        return listing;
+    }
+
+    public ObjectListing listNextBatchOfObjects(ObjectListing previous) {
+        return listObjects(new ListObjectsRequest().withBucketName(previous.getBucketName()).withPrefix(previous.getPrefix())
+                    .withDelimiter(previous.getDelimiter()).withMarker(previous.getNextMarker()));
+    }
+
+    public VersionListing listVersions(ListVersionsRequest request) {
+        List<String> keys = page(request.getBucketName(), request.getPrefix(), request.getKeyMarker(), null, new ArrayList<String>());
+
+        VersionListing listing = new VersionListing();
+        listing.setBucketName(request.getBucketName());
+        listing.setPrefix(request.getPrefix());
+        for (String key : keys) {
+            if (key == null) {
+                listing.setTruncated(true);
+                break;
+            }
+
+            S3VersionSummary summary = new S3VersionSummary();
+            summary.setBucketName(request.getBucketName());
+            summary.setKey(key);
+            summary.setVersionId("null");
+            listing.getVersionSummaries().add(summary);
+            listing.setNextKeyMarker(key);
+        }
+
+        return listing;
+    }
+
+    public VersionListing listNextBatchOfVersions(VersionListing previous) {
+        return listVersions(new ListVersionsRequest().withBucketName(previous.getBucketName())
+                    .withPrefix(previous.getPrefix()).withKeyMarker(previous.getNextKeyMarker()));
+    }
+
+    public DeleteObjectsResult deleteObjects(DeleteObjectsRequest request) {
+        List<DeletedObject> deleted = new ArrayList<DeletedObject>();
+        List<DeleteError> errors = new ArrayList<DeleteError>();
+        for (KeyVersion keyVersion : request.getKeys()) {
+            if (this.failingKeys.contains(keyVersion.getKey())) {
+                DeleteError error = new DeleteError();
+                error.setKey(keyVersion.getKey());
+                error.setCode("AccessDenied");
+                error.setMessage("Access Denied");
+                errors.add(error);
+            } else {
+                this.objects.remove(request.getBucketName() + "/" + keyVersion.getKey());
+                DeletedObject deletedObject = new DeletedObject();
+                deletedObject.setKey(keyVersion.getKey());
+                deleted.add(deletedObject);
+            }
+        }
+
+        if (!errors.isEmpty()) {
+            throw new MultiObjectDeleteException(errors, deleted);
+        }
+
+        return new DeleteObjectsResult(deleted);
+    }
+
+    public void deleteObject(DeleteObjectRequest request) {
+        this.objects.remove(request.getBucketName() + "/" + request.getKey());
+    }
+
+    /**
+     * Reads the content of a request, either from its file or from its stream.
+     */
+    private static byte[] read(File file, long offset, long length, InputStream stream) throws IOException {
+        if (file != null) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                byte[] content = new byte[(int) (length < 0 ? raf.length() - offset : length)];
+                raf.seek(offset);
+                raf.readFully(content);
+                return content;
+            } finally {
+                raf.close();
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((length < 0 || out.size() < length) && (read = stream.read(buffer, 0,
+                    (int) (length < 0 ? buffer.length : Math.min(buffer.length, length - out.size())))) != -1) {
+            out.write(buffer, 0, read);
+        }
+
+        return out.toByteArray();
+    }
+
+    public PutObjectResult putObject(PutObjectRequest request) throws IOException {
+        byte[] content = read(request.getFile(), 0, -1, request.getInputStream());
+        checkMd5(request.getMetadata() == null ? null : request.getMetadata().getContentMD5(), content);
+        put(request.getBucketName(), request.getKey(), content);
+        this.metadata.put(request.getBucketName() + "/" + request.getKey(),
+                    request.getMetadata() == null ? new ObjectMetadata() : request.getMetadata());
+
+        PutObjectResult result = new PutObjectResult();
+        result.setETag(eTag(content));
+        return result;
+    }
+
+    /**
+     * Rejects the content if it doesn't match the passed Content-MD5, as S3 does.
+     */
+    private void checkMd5(String md5, byte[] content) {
+        if (md5 == null) {
+            return;
+        }
+
+        this.md5Count.incrementAndGet();
+        String computed;
+        try {
+            computed = Base64.getEncoder().encodeToString(MessageDigest.getInstance("MD5").digest(content));
+        } catch (Exception e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+
+        if (!md5.equals(computed)) {
+            AmazonS3Exception error = new AmazonS3Exception("The Content-MD5 you specified did not match what we received.");
+            error.setStatusCode(400);
+            error.setErrorCode("BadDigest");
+            throw error;
+        }
+    }
+
+    public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+        String uploadId = "upload-" + this.uploadIds.incrementAndGet();
+        this.uploads.put(uploadId, Collections.synchronizedSortedMap(new TreeMap<Integer, byte[]>()));
+        this.metadata.put(uploadId, request.getObjectMetadata() == null ? new ObjectMetadata() : request.getObjectMetadata());
+
+        MultipartUpload upload = new MultipartUpload();
+        upload.setKey(request.getKey());
+        upload.setUploadId(uploadId);
+        upload.setInitiated(new Date());
+        this.pendingUploads.put(uploadId, upload);
+
+        InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setBucketName(request.getBucketName());
+        result.setKey(request.getKey());
+        result.setUploadId(uploadId);
+        return result;
+    }
+
+    public UploadPartResult uploadPart(UploadPartRequest request) throws IOException {
+        byte[] content = read(request.getFile(), request.getFileOffset(), request.getPartSize(), request.getInputStream());
+        checkMd5(request.getMd5Digest(), content);
+        this.uploads.get(request.getUploadId()).put(request.getPartNumber(), content);
+
+        UploadPartResult result = new UploadPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag(eTag(content));
+        return result;
+    }
+
+    public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) throws Exception {
+        SortedMap<Integer, byte[]> parts = this.uploads.remove(request.getUploadId());
+        this.pendingUploads.remove(request.getUploadId());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MessageDigest digests = MessageDigest.getInstance("MD5");
+        for (PartETag partETag : request.getPartETags()) {
+            out.write(parts.get(partETag.getPartNumber()));
+            digests.update(MessageDigest.getInstance("MD5").digest(parts.get(partETag.getPartNumber())));
+        }
+
+        put(request.getBucketName(), request.getKey(), out.toByteArray());
+        this.multipartETags.put(request.getBucketName() + "/" + request.getKey(), 
+                    "\"" + toHex(digests.digest()) + "-" + request.getPartETags().size() + "\"");
+        this.metadata.put(request.getBucketName() + "/" + request.getKey(), this.metadata.remove(request.getUploadId()));
+
+        CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+        result.setBucketName(request.getBucketName());
+        result.setKey(request.getKey());
+        result.setETag(this.multipartETags.get(request.getBucketName() + "/" + request.getKey()));
+        return result;
+    }
+
+    public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+        this.uploads.remove(request.getUploadId());
+        this.metadata.remove(request.getUploadId());
+        this.pendingUploads.remove(request.getUploadId());
+    }
+
+    public PartListing listParts(ListPartsRequest request) {
+        SortedMap<Integer, byte[]> parts = this.uploads.get(request.getUploadId());
+        if (parts == null) {
+            AmazonS3Exception error = new AmazonS3Exception("The specified upload does not exist.");
+            error.setStatusCode(404);
+            error.setErrorCode("NoSuchUpload");
+            throw error;
+        }
+
+        List<PartSummary> summaries = new ArrayList<PartSummary>();
+        synchronized (parts) {
+            for (Map.Entry<Integer, byte[]> part : parts.entrySet()) {
+                PartSummary summary = new PartSummary();
+                summary.setPartNumber(part.getKey());
+                summary.setSize(part.getValue().length);
+                summary.setETag(eTag(part.getValue()));
+                summaries.add(summary);
+            }
+        }
+
+        PartListing listing = new PartListing();
+        listing.setParts(summaries);
+        listing.setTruncated(false);
+        return listing;
+    }
+
+    public MultipartUploadListing listMultipartUploads(ListMultipartUploadsRequest request) {
+        MultipartUploadListing listing = new MultipartUploadListing();
+        listing.setMultipartUploads(new ArrayList<MultipartUpload>(this.pendingUploads.values()));
+        listing.setTruncated(false);
+        return listing;
+    }
+
+    public CopyObjectResult copyObject(CopyObjectRequest request) {
+        byte[] content = get(request.getSourceBucketName(), request.getSourceKey());
+        ObjectMetadata source = this.metadata.get(request.getSourceBucketName() + "/" + request.getSourceKey());
+        put(request.getDestinationBucketName(), request.getDestinationKey(), content);
+        ObjectMetadata copied = request.getNewObjectMetadata() != null ? request.getNewObjectMetadata() : source;
+        if (copied != null) {
+            this.metadata.put(request.getDestinationBucketName() + "/" + request.getDestinationKey(), copied);
+        }
+
+        CopyObjectResult result = new CopyObjectResult();
+        result.setETag(eTag(content));
+        return result;
+    }
+
+    public CopyPartResult copyPart(CopyPartRequest request) {
+        byte[] content = get(request.getSourceBucketName(), request.getSourceKey());
+        String eTag = eTag(request.getSourceBucketName(), request.getSourceKey(), content).replace("\"", "");
+        for (String constraint : request.getMatchingETagConstraints()) {
+            if (!constraint.replace("\"", "").equals(eTag)) {
+                return null;
+            }
+        }
+
+        byte[] part = Arrays.copyOfRange(content, request.getFirstByte().intValue(), request.getLastByte().intValue() + 1);
+        this.uploads.get(request.getUploadId()).put(request.getPartNumber(), part);
+
+        CopyPartResult result = new CopyPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag(eTag(part));
+        return result;
+    }
+
+    public GetObjectTaggingResult getObjectTagging(GetObjectTaggingRequest request) {
+        return new GetObjectTaggingResult(new ArrayList<Tag>());
+    }
+
+    public SetObjectTaggingResult setObjectTagging(SetObjectTaggingRequest request) {
+        return new SetObjectTaggingResult();
+    }
+
+    public ObjectMetadata getObjectMetadata(String bucketName, String key) {
+        return getObjectMetadata(new GetObjectMetadataRequest(bucketName, key));
+    }
+
+    public ObjectMetadata getObjectMetadata(GetObjectMetadataRequest request) {
+        byte[] content = get(request.getBucketName(), request.getKey());
+        if (content == null) {
+            AmazonS3Exception error = new AmazonS3Exception("Not Found");
+            error.setStatusCode(404);
+            throw error;
+        }
+
+        ObjectMetadata stored = this.metadata.get(request.getBucketName() + "/" + request.getKey());
+        ObjectMetadata metadata = new ObjectMetadata();
+        if (stored != null && stored.getUserMetadata() != null) {
+            metadata.setUserMetadata(stored.getUserMetadata());
+        }
+
+        metadata.setContentLength(content.length);
+        metadata.setHeader("ETag", eTag(request.getBucketName(), request.getKey(), content));
+        return metadata;
+    }
+}